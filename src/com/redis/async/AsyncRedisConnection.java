@@ -0,0 +1,384 @@
+package com.redis.async;
+
+import com.redis.common.ScriptRegistry;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 非阻塞redis连接
+ * <p>
+ * 一条NIO连接上同时承载任意多个未完成的请求：调用线程只负责编码命令并入队，
+ * 由一个IO线程把队列中的命令批量写出、按顺序解析回复并完成对应的future，调用线程不会阻塞在网络往返上。
+ * <p>
+ * 回复类型：状态与批量字符串为String，整数为Long，数组为List&lt;Object&gt;，空回复为null，
+ * 错误回复使future以 {@link JedisDataException} 异常完成（事务数组中的错误以异常对象出现在列表里）。
+ * future在IO线程上完成，耗时的后续处理应使用 thenXxxAsync。
+ * <p>
+ * 连接是多路复用共享的，不支持依赖连接状态的命令（WATCH、SUBSCRIBE、阻塞弹出）；
+ * MULTI/EXEC 通过 {@link #transaction(List)} 作为一个整体连续写出。
+ *
+ * @author kqyang
+ */
+public class AsyncRedisConnection implements AutoCloseable {
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final Object INCOMPLETE = new Object();
+    private static final String NOSCRIPT = "NOSCRIPT";
+
+    private final SocketChannel channel;
+    private final Selector selector;
+    private final Queue<Request> submitted = new ConcurrentLinkedQueue<>();
+    private final ArrayDeque<Request> inflight = new ArrayDeque<>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    private final Thread ioThread;
+    private ByteBuffer writeBuffer = ByteBuffer.allocate(16 * 1024);
+    private ByteBuffer readBuffer = ByteBuffer.allocate(16 * 1024);
+    private volatile boolean closed;
+
+    /**
+     * @param host
+     * @param port
+     * @param password      为null时不认证
+     * @param database
+     * @param timeoutMillis 建立连接及认证/选库的超时时间
+     */
+    public AsyncRedisConnection(String host, int port, String password, int database, int timeoutMillis)
+            throws IOException {
+        channel = SocketChannel.open();
+        channel.socket().connect(new InetSocketAddress(host, port), timeoutMillis);
+        channel.socket().setTcpNoDelay(true);
+        channel.configureBlocking(false);
+        selector = Selector.open();
+        channel.register(selector, SelectionKey.OP_READ);
+        ioThread = new Thread(this::loop, "AsyncRedis-" + host + ":" + port);
+        ioThread.setDaemon(true);
+        ioThread.start();
+        try {
+            if (password != null) {
+                command("AUTH", password).get(timeoutMillis, TimeUnit.MILLISECONDS);
+            }
+            if (database != 0) {
+                command("SELECT", String.valueOf(database)).get(timeoutMillis, TimeUnit.MILLISECONDS);
+            }
+        } catch (Exception e) {
+            close();
+            throw new IOException("failed to initialize async connection to " + host + ":" + port, e);
+        }
+    }
+
+    /**
+     * 发送一条命令
+     *
+     * @param args 命令名与参数
+     * @return 回复
+     */
+    public CompletableFuture<Object> command(String... args) {
+        return submit(encode(args), 1);
+    }
+
+    /**
+     * 以 MULTI ... EXEC 原子执行一组命令，命令在连接上连续写出，不会与其他请求交错
+     *
+     * @param commands
+     * @return EXEC的回复数组
+     */
+    @SuppressWarnings("unchecked")
+    public CompletableFuture<List<Object>> transaction(List<String[]> commands) {
+        ByteBuffer payload = append(ByteBuffer.allocate(256), encode("MULTI"));
+        for (String[] command : commands) {
+            payload = append(payload, encode(command));
+        }
+        payload = append(payload, encode("EXEC"));
+        payload.flip();
+        return submit(payload, commands.size() + 2).thenApply(reply -> (List<Object>) reply);
+    }
+
+    /**
+     * 通过EVALSHA执行脚本，服务端没有缓存该脚本时先SCRIPT LOAD再重试
+     *
+     * @param script
+     * @param keys
+     * @param args
+     * @return
+     */
+    public CompletableFuture<Object> evalsha(ScriptRegistry.Script script, List<String> keys, List<String> args) {
+        String[] command = new String[3 + keys.size() + args.size()];
+        command[0] = "EVALSHA";
+        command[1] = script.getSha();
+        command[2] = String.valueOf(keys.size());
+        int i = 3;
+        for (String key : keys) {
+            command[i++] = key;
+        }
+        for (String arg : args) {
+            command[i++] = arg;
+        }
+        return command(command).handle((reply, error) -> {
+            if (error == null) {
+                return CompletableFuture.completedFuture(reply);
+            }
+            Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+            if (cause instanceof JedisDataException && cause.getMessage().startsWith(NOSCRIPT)) {
+                return command("SCRIPT", "LOAD", script.getSource()).thenCompose(sha -> command(command));
+            }
+            CompletableFuture<Object> failed = new CompletableFuture<>();
+            failed.completeExceptionally(cause);
+            return failed;
+        }).thenCompose(future -> future);
+    }
+
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        selector.wakeup();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    private CompletableFuture<Object> submit(ByteBuffer payload, int replies) {
+        Request request = new Request(payload, replies);
+        if (closed) {
+            request.future.completeExceptionally(new JedisConnectionException("connection closed"));
+            return request.future;
+        }
+        submitted.add(request);
+        // IO线程可能已经退出，再检查一次
+        if (closed) {
+            failSubmitted(new JedisConnectionException("connection closed"));
+        } else if (wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+        return request.future;
+    }
+
+    /**
+     * IO线程：写出已提交的命令，读取并分发回复
+     */
+    private void loop() {
+        try {
+            while (!closed) {
+                selector.select();
+                wakeupPending.set(false);
+                Request request;
+                while ((request = submitted.poll()) != null) {
+                    writeBuffer = append(writeBuffer, request.payload);
+                    inflight.add(request);
+                }
+                if (writeBuffer.position() > 0) {
+                    writeBuffer.flip();
+                    channel.write(writeBuffer);
+                    writeBuffer.compact();
+                }
+                SelectionKey key = channel.keyFor(selector);
+                key.interestOps(writeBuffer.position() > 0
+                        ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+                if (key.isReadable()) {
+                    read();
+                }
+                selector.selectedKeys().clear();
+            }
+        } catch (IOException | RuntimeException e) {
+            closed = true;
+        } finally {
+            try {
+                selector.close();
+                channel.close();
+            } catch (IOException e) {
+                // ignore
+            }
+            failAll(new JedisConnectionException("connection closed"));
+        }
+    }
+
+    private void read() throws IOException {
+        if (!readBuffer.hasRemaining()) {
+            readBuffer = grow(readBuffer, readBuffer.capacity() * 2);
+        }
+        int n = channel.read(readBuffer);
+        if (n < 0) {
+            throw new IOException("connection closed by server");
+        }
+        readBuffer.flip();
+        while (readBuffer.hasRemaining()) {
+            int mark = readBuffer.position();
+            Object reply = parse(readBuffer);
+            if (reply == INCOMPLETE) {
+                readBuffer.position(mark);
+                break;
+            }
+            deliver(reply);
+        }
+        readBuffer.compact();
+    }
+
+    private void deliver(Object reply) {
+        Request request = inflight.peek();
+        if (request == null) {
+            return;
+        }
+        if (--request.remaining > 0) {
+            return;
+        }
+        inflight.poll();
+        if (reply instanceof JedisDataException) {
+            request.future.completeExceptionally((JedisDataException) reply);
+        } else {
+            request.future.complete(reply);
+        }
+    }
+
+    /**
+     * 连接关闭后失败所有请求，只在IO线程调用
+     */
+    private void failAll(RuntimeException e) {
+        Request request;
+        while ((request = inflight.poll()) != null) {
+            request.future.completeExceptionally(e);
+        }
+        failSubmitted(e);
+    }
+
+    private void failSubmitted(RuntimeException e) {
+        Request request;
+        while ((request = submitted.poll()) != null) {
+            request.future.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * 解析一条完整的回复，数据不足时返回INCOMPLETE
+     */
+    private static Object parse(ByteBuffer buffer) {
+        if (!buffer.hasRemaining()) {
+            return INCOMPLETE;
+        }
+        byte type = buffer.get();
+        String line = readLine(buffer);
+        if (line == null) {
+            return INCOMPLETE;
+        }
+        switch (type) {
+            case '+':
+                return line;
+            case '-':
+                return new JedisDataException(line);
+            case ':':
+                return Long.parseLong(line);
+            case '$': {
+                int length = Integer.parseInt(line);
+                if (length < 0) {
+                    return null;
+                }
+                if (buffer.remaining() < length + 2) {
+                    return INCOMPLETE;
+                }
+                String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length,
+                        StandardCharsets.UTF_8);
+                buffer.position(buffer.position() + length + 2);
+                return value;
+            }
+            case '*': {
+                int count = Integer.parseInt(line);
+                if (count < 0) {
+                    return null;
+                }
+                List<Object> items = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    Object item = parse(buffer);
+                    if (item == INCOMPLETE) {
+                        return INCOMPLETE;
+                    }
+                    items.add(item);
+                }
+                return items;
+            }
+            default:
+                throw new IllegalStateException("unexpected reply type: " + (char) type);
+        }
+    }
+
+    private static String readLine(ByteBuffer buffer) {
+        int start = buffer.position();
+        for (int i = start; i + 1 < buffer.limit(); i++) {
+            if (buffer.get(i) == '\r' && buffer.get(i + 1) == '\n') {
+                String line = new String(buffer.array(), buffer.arrayOffset() + start, i - start,
+                        StandardCharsets.UTF_8);
+                buffer.position(i + 2);
+                return line;
+            }
+        }
+        return null;
+    }
+
+    private static ByteBuffer encode(String... args) {
+        byte[][] parts = new byte[args.length][];
+        int size = 16;
+        for (int i = 0; i < args.length; i++) {
+            parts[i] = args[i].getBytes(StandardCharsets.UTF_8);
+            size += parts[i].length + 16;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.put((byte) '*').put(Integer.toString(args.length).getBytes(StandardCharsets.US_ASCII)).put(CRLF);
+        for (byte[] part : parts) {
+            buffer.put((byte) '$').put(Integer.toString(part.length).getBytes(StandardCharsets.US_ASCII)).put(CRLF);
+            buffer.put(part).put(CRLF);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * 把source中未读的数据追加到target（写模式），必要时扩容
+     */
+    private static ByteBuffer append(ByteBuffer target, ByteBuffer source) {
+        if (target.remaining() < source.remaining()) {
+            target = grow(target, Math.max(target.capacity() * 2, target.position() + source.remaining()));
+        }
+        target.put(source.duplicate());
+        return target;
+    }
+
+    private static ByteBuffer grow(ByteBuffer buffer, int capacity) {
+        ByteBuffer bigger = ByteBuffer.allocate(capacity);
+        buffer.flip();
+        bigger.put(buffer);
+        return bigger;
+    }
+
+    private static final class Request {
+        final ByteBuffer payload;
+        final CompletableFuture<Object> future = new CompletableFuture<>();
+        int remaining;
+
+        Request(ByteBuffer payload, int replies) {
+            this.payload = payload;
+            this.remaining = replies;
+        }
+    }
+}
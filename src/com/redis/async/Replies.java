@@ -0,0 +1,74 @@
+package com.redis.async;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * {@link AsyncRedisConnection} 回复的类型转换，与jedis同步接口的返回类型保持一致
+ *
+ * @author kqyang
+ */
+public final class Replies {
+    private Replies() {
+    }
+
+    public static String string(Object reply) {
+        return (String) reply;
+    }
+
+    public static Long integer(Object reply) {
+        return (Long) reply;
+    }
+
+    /**
+     * 分值（ZSCORE/ZINCRBY的字符串回复）
+     *
+     * @param reply
+     * @return
+     */
+    public static Double score(Object reply) {
+        return reply == null ? null : Double.valueOf((String) reply);
+    }
+
+    @SuppressWarnings("unchecked")
+    public static List<String> strings(Object reply) {
+        if (reply == null) {
+            return Collections.emptyList();
+        }
+        List<String> values = new ArrayList<>();
+        for (Object item : (List<Object>) reply) {
+            values.add((String) item);
+        }
+        return values;
+    }
+
+    /**
+     * 有序集合等需要保持顺序的成员列表
+     *
+     * @param reply
+     * @return
+     */
+    public static Set<String> orderedSet(Object reply) {
+        return new LinkedHashSet<>(strings(reply));
+    }
+
+    /**
+     * HGETALL的字段值交替数组
+     *
+     * @param reply
+     * @return
+     */
+    public static Map<String, String> hash(Object reply) {
+        List<String> values = strings(reply);
+        Map<String, String> hash = new HashMap<>(values.size());
+        for (int i = 0; i + 1 < values.size(); i += 2) {
+            hash.put(values.get(i), values.get(i + 1));
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,228 @@
+package com.redis.bench;
+
+import com.redis.chapter.Chapter01;
+import com.redis.chapter.Chapter04;
+import com.redis.chapter.Chapter05;
+import com.redis.chapter.Chapter06;
+import com.redis.common.Base;
+import com.redis.common.LatencyHistogram;
+import com.redis.common.Metrics;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 章节操作基准测试
+ * <p>
+ * 针对本地redis直接调用各章节方法（不经过反射），按线程数分组运行，先预热再测量，
+ * 每次调用用 {@link LatencyHistogram} 记录耗时并输出吞吐与 p50/p99/p999 延迟。
+ * <p>
+ * 参数：--threads=1,4,16 --warmup=3 --duration=10 --ops=chapter04.updateToken,chapter01.getArticles
+ *
+ * @author kqyang
+ */
+public class RedisBenchmark extends Base {
+    private static final int SEED_ARTICLES = 100;
+
+    private final Map<String, Operation> operations = new LinkedHashMap<>();
+    private int[] threads = new int[]{1, 4, 16};
+    private int warmupSeconds = 3;
+    private int durationSeconds = 10;
+
+    /**
+     * 基准操作
+     */
+    public interface Operation {
+        /**
+         * @param thread 线程序号
+         * @param seq    线程内调用序号
+         */
+        void invoke(int thread, long seq);
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        RedisBenchmark benchmark = new RedisBenchmark();
+        benchmark.registerChapterOperations();
+        List<String> selected = benchmark.parseArgs(args);
+        benchmark.run(selected);
+    }
+
+    /**
+     * 解析命令行参数
+     *
+     * @param args
+     * @return 选中的操作名，空表示全部
+     */
+    public List<String> parseArgs(String[] args) {
+        List<String> selected = new ArrayList<>();
+        for (String arg : args) {
+            String[] pair = arg.replaceFirst("^--", "").split("=", 2);
+            if (pair.length != 2) {
+                throw new IllegalArgumentException("bad argument: " + arg);
+            }
+            switch (pair[0]) {
+                case "threads":
+                    String[] parts = pair[1].split(",");
+                    threads = new int[parts.length];
+                    for (int i = 0; i < parts.length; i++) {
+                        threads[i] = Integer.parseInt(parts[i].trim());
+                    }
+                    break;
+                case "warmup":
+                    warmupSeconds = Integer.parseInt(pair[1]);
+                    break;
+                case "duration":
+                    durationSeconds = Integer.parseInt(pair[1]);
+                    break;
+                case "ops":
+                    for (String op : pair[1].split(",")) {
+                        selected.add(op.trim());
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown argument: " + arg);
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * 注册操作
+     *
+     * @param name
+     * @param operation
+     */
+    public void register(String name, Operation operation) {
+        operations.put(name, operation);
+    }
+
+    /**
+     * 注册各章节的待测操作，并准备必要的数据
+     */
+    public void registerChapterOperations() {
+        Chapter01 chapter01 = new Chapter01();
+        Chapter04 chapter04 = new Chapter04();
+        Chapter05 chapter05 = new Chapter05();
+        Chapter06 chapter06 = new Chapter06();
+
+        String[] articleIds = new String[SEED_ARTICLES];
+        for (int i = 0; i < SEED_ARTICLES; i++) {
+            articleIds[i] = chapter01.postArticle("bench-author", "bench title " + i, "https://bench/" + i);
+        }
+        for (int i = 0; i < 100; i++) {
+            chapter06.addUpdateContact("bench-user", "contact-" + (i % 10) + '-' + i);
+        }
+
+        register("chapter04.updateToken", (t, seq) ->
+                chapter04.updateToken("token" + t + '-' + seq, "user" + t, "item" + (seq & 1023)));
+        register("chapter04.updateTokenPipeline", (t, seq) ->
+                chapter04.updateTokenPipeline("token" + t + '-' + seq, "user" + t, "item" + (seq & 1023)));
+        register("chapter01.postArticle", (t, seq) ->
+                chapter01.postArticle("user" + t, "title " + seq, "https://bench/" + t + '/' + seq));
+        // 投票者集合有限，绝大多数调用走去重分支，避免打印刷屏
+        register("chapter01.articleVote", (t, seq) ->
+                chapter01.articleVote("voter" + (seq & 63), articleIds[(int) (seq % SEED_ARTICLES)]));
+        // 全局排名中有SEED_ARTICLES篇种子文章，每次读取完整的首页
+        register("chapter01.getArticles", (t, seq) ->
+                chapter01.getArticles(1, Chapter01.SCORE_RANKING));
+        register("chapter05.logCommon", (t, seq) ->
+                chapter05.logCommon("bench", "message-" + (seq & 15)));
+        register("chapter05.updateCounter", (t, seq) ->
+                chapter05.updateCounter("bench", 1));
+        register("chapter05.findCityByIp", (t, seq) -> {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            chapter05.findCityByIp(random.nextInt(1, 224) + "." + random.nextInt(256) + '.'
+                    + random.nextInt(256) + '.' + random.nextInt(256));
+        });
+        register("chapter06.fetchAutocompleteList", (t, seq) ->
+                chapter06.fetchAutocompleteList("bench-user", "contact-" + (seq % 10)));
+    }
+
+    /**
+     * 运行选中的操作
+     *
+     * @param selected
+     */
+    public void run(List<String> selected) throws InterruptedException {
+        printer(String.format("%-34s %7s %12s %10s %10s %10s %10s",
+                "operation", "threads", "ops/s", "p50(us)", "p99(us)", "p999(us)", "max(us)"));
+        for (Map.Entry<String, Operation> entry : operations.entrySet()) {
+            if (!selected.isEmpty() && !selected.contains(entry.getKey())) {
+                continue;
+            }
+            for (int threadCount : threads) {
+                measure(entry.getValue(), threadCount, warmupSeconds, null);
+                LatencyHistogram histogram = new LatencyHistogram();
+                long elapsed = measure(entry.getValue(), threadCount, durationSeconds, histogram);
+                printer(String.format("%-34s %7d %12.0f %10.1f %10.1f %10.1f %10.1f",
+                        entry.getKey(), threadCount,
+                        histogram.getCount() * 1e9 / elapsed,
+                        histogram.percentile(50) / 1000.0,
+                        histogram.percentile(99) / 1000.0,
+                        histogram.percentile(99.9) / 1000.0,
+                        histogram.getMax() / 1000.0));
+            }
+        }
+        printer();
+        printer("Command and pool latency over the whole run:");
+        printer(Metrics.snapshot().toString());
+    }
+
+    /**
+     * 多线程运行一个操作
+     *
+     * @param operation
+     * @param threadCount
+     * @param seconds
+     * @param histogram   为null时只预热不记录
+     * @return 实际耗时（纳秒）
+     */
+    private long measure(Operation operation, int threadCount, int seconds, LatencyHistogram histogram)
+            throws InterruptedException {
+        CountDownLatch ready = new CountDownLatch(threadCount);
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threadCount);
+        AtomicLong errors = new AtomicLong();
+        long[] window = new long[1];
+        for (int i = 0; i < threadCount; i++) {
+            int thread = i;
+            Thread worker = new Thread(() -> {
+                ready.countDown();
+                try {
+                    start.await();
+                    long seq = 0;
+                    while (System.nanoTime() < window[0]) {
+                        long begin = System.nanoTime();
+                        try {
+                            operation.invoke(thread, seq++);
+                        } catch (RuntimeException e) {
+                            errors.incrementAndGet();
+                        }
+                        if (histogram != null) {
+                            histogram.recordSince(begin);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            }, "bench-" + i);
+            worker.start();
+        }
+        ready.await();
+        long begin = System.nanoTime();
+        window[0] = begin + seconds * 1_000_000_000L;
+        start.countDown();
+        done.await();
+        if (errors.get() > 0) {
+            printer("  " + errors.get() + " calls failed");
+        }
+        return System.nanoTime() - begin;
+    }
+}
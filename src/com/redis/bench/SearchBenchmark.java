@@ -0,0 +1,139 @@
+package com.redis.bench;
+
+import com.redis.chapter.ArticleSearch;
+import com.redis.chapter.Chapter01;
+import com.redis.common.RedisHandler;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * 文章检索基准测试
+ * <p>
+ * 先用 {@link Chapter01#postArticles(Iterable)} 生成语料（标题词频近似Zipf分布，发表时同时建立倒排索引并写入全局排名），
+ * 再用 {@link RedisBenchmark} 分别测量带缓存与不带缓存、按全局排名 {@link Chapter01#SCORE_RANKING} 排序的查询。
+ * <p>
+ * 参数：--articles=100000 --vocabulary=5000 --queries=50，其余参数同 {@link RedisBenchmark}
+ *
+ * @author kqyang
+ */
+public class SearchBenchmark extends RedisHandler {
+    private static final String SORT_KEY = Chapter01.SCORE_RANKING;
+    private static final long SEED = 42;
+
+    private int articles = 100000;
+    private int vocabulary = 5000;
+    private int queries = 50;
+
+    public static void main(String[] args) throws InterruptedException {
+        SearchBenchmark search = new SearchBenchmark();
+        List<String> rest = new ArrayList<>();
+        for (String arg : args) {
+            String[] pair = arg.replaceFirst("^--", "").split("=", 2);
+            switch (pair[0]) {
+                case "articles":
+                    search.articles = Integer.parseInt(pair[1]);
+                    break;
+                case "vocabulary":
+                    search.vocabulary = Integer.parseInt(pair[1]);
+                    break;
+                case "queries":
+                    search.queries = Integer.parseInt(pair[1]);
+                    break;
+                default:
+                    rest.add(arg);
+            }
+        }
+        RedisBenchmark benchmark = new RedisBenchmark();
+        List<String> selected = benchmark.parseArgs(rest.toArray(new String[rest.size()]));
+        search.generateCorpus();
+        search.register(benchmark);
+        benchmark.run(selected);
+    }
+
+    /**
+     * 发表语料文章
+     */
+    public void generateCorpus() {
+        Random random = new Random(SEED);
+        Iterable<Map<String, String>> corpus = () -> new Iterator<Map<String, String>>() {
+            private int generated;
+
+            @Override
+            public boolean hasNext() {
+                return generated < articles;
+            }
+
+            @Override
+            public Map<String, String> next() {
+                Map<String, String> article = new HashMap<>(8);
+                article.put("user", "author" + generated % 1000);
+                article.put("title", title(random));
+                article.put("link", "https://bench/search/" + generated);
+                generated++;
+                return article;
+            }
+        };
+        long posted = new Chapter01().postArticles(corpus);
+        printer("corpus: " + posted + " articles, " + vocabulary + " words, ranking " + SORT_KEY);
+    }
+
+    /**
+     * 注册查询操作：同一批查询分别走缓存与不缓存两个检索实例
+     *
+     * @param benchmark
+     */
+    public void register(RedisBenchmark benchmark) {
+        Random random = new Random(SEED + 1);
+        String[] pool = new String[queries];
+        for (int i = 0; i < pool.length; i++) {
+            pool[i] = query(random, i);
+        }
+        ArticleSearch cached = new ArticleSearch();
+        ArticleSearch uncached = new ArticleSearch(0);
+        benchmark.register("search.cached", (t, seq) ->
+                cached.search(pool[(int) (seq % pool.length)], SORT_KEY, 0, 24));
+        benchmark.register("search.uncached", (t, seq) ->
+                uncached.search(pool[(int) (seq % pool.length)], SORT_KEY, 0, 24));
+        benchmark.register("search.deepPage", (t, seq) ->
+                cached.search(pool[(int) (seq % pool.length)], SORT_KEY, 500, 524));
+    }
+
+    /**
+     * 4到8个词的标题，词的序号偏向小值，常用词的倒排集合远大于罕见词
+     */
+    private String title(Random random) {
+        StringBuilder title = new StringBuilder();
+        int words = 4 + random.nextInt(5);
+        for (int i = 0; i < words; i++) {
+            if (i > 0) {
+                title.append(' ');
+            }
+            title.append(word(random));
+        }
+        return title.toString();
+    }
+
+    private String word(Random random) {
+        double skewed = Math.pow(random.nextDouble(), 3);
+        return "w" + (int) (skewed * vocabulary);
+    }
+
+    /**
+     * 轮流生成交集、同义词并集与排除三种查询
+     */
+    private String query(Random random, int i) {
+        switch (i % 3) {
+            case 0:
+                return word(random) + ' ' + word(random);
+            case 1:
+                return word(random) + " +" + word(random) + ' ' + word(random);
+            default:
+                return word(random) + " -" + word(random);
+        }
+    }
+}
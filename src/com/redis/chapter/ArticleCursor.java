@@ -0,0 +1,93 @@
+package com.redis.chapter;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * 游标分页的位置：上一页最后一篇文章的分值与成员
+ * <p>
+ * 分值相同的成员按字节序降序排列（与ZREVRANGE一致），ties记录已返回的同分成员数，
+ * 用来限定下一页读取同分成员的数量。编码为URL安全的Base64字符串，对调用方不透明。
+ *
+ * @author kqyang
+ */
+final class ArticleCursor {
+    final double score;
+    final String member;
+    final int ties;
+
+    ArticleCursor(double score, String member, int ties) {
+        this.score = score;
+        this.member = member;
+        this.ties = ties;
+    }
+
+    String encode() {
+        String value = Double.toString(score) + ':' + ties + ':' + member;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param token
+     * @return
+     * @throws IllegalArgumentException 不是本类生成的游标
+     */
+    static ArticleCursor decode(String token) {
+        String value;
+        try {
+            value = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("invalid cursor: " + token, e);
+        }
+        int first = value.indexOf(':');
+        int second = value.indexOf(':', first + 1);
+        if (first < 0 || second < 0) {
+            throw new IllegalArgumentException("invalid cursor: " + token);
+        }
+        try {
+            return new ArticleCursor(Double.parseDouble(value.substring(0, first)),
+                    value.substring(second + 1), Integer.parseInt(value.substring(first + 1, second)));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid cursor: " + token, e);
+        }
+    }
+
+    /**
+     * 同分时member是否排在游标之后（尚未返回）
+     *
+     * @param other
+     * @return
+     */
+    boolean isAfter(String other) {
+        return compare(other, member) < 0;
+    }
+
+    /**
+     * 按redis有序集合的规则比较同分成员：UTF-8字节的无符号字典序
+     *
+     * @param a
+     * @param b
+     * @return
+     */
+    static int compare(String a, String b) {
+        byte[] x = a.getBytes(StandardCharsets.UTF_8);
+        byte[] y = b.getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(x.length, y.length);
+        for (int i = 0; i < length; i++) {
+            if (x[i] != y[i]) {
+                return (x[i] & 0xff) - (y[i] & 0xff);
+            }
+        }
+        return x.length - y.length;
+    }
+
+    /**
+     * ZRANGEBYSCORE的分值参数
+     */
+    static String bound(double score) {
+        if (Double.isInfinite(score)) {
+            return score > 0 ? "+inf" : "-inf";
+        }
+        return Double.toString(score);
+    }
+}
@@ -0,0 +1,388 @@
+package com.redis.chapter;
+
+import com.google.gson.Gson;
+import com.redis.common.LatencyHistogram;
+import com.redis.common.Metrics;
+import com.redis.common.RedisHandler;
+import com.redis.common.RedisLease;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.PipelineBase;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.Transaction;
+import redis.clients.jedis.Tuple;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 关注关系与首页时间线
+ * <p>
+ * 键：
+ * <ul>
+ * <li>followers:用户 / following:用户 为有序集合，分值为关注时间</li>
+ * <li>posts:用户 为用户自己发表的文章，home:用户 为首页时间线，成员都是文章键，分值为发表时间，各保留最近的1000篇</li>
+ * <li>fanout:queue 为待扩散的任务列表，fanout:processing:工作者名 为正在处理的任务</li>
+ * </ul>
+ * 启用后（{@link #enable()}）发表文章只写作者自己的两条时间线并入队一个扩散任务，不等待扩散完成。
+ * 后台工作者每次取一个任务，处理一块关注者（默认1000个），用一个流水线写入这些关注者的时间线并裁剪长度，
+ * 还有剩余关注者时把下一块作为新任务入队，因此百万关注者的扩散分散成许多小批次，与其他任务交替执行。
+ * 任务记录上一块最后一个关注者的 (关注时间, 成员) 而不是排名偏移，扩散期间有人取消关注也不会跳过其他关注者。
+ * 任务先用BRPOPLPUSH移入工作者自己的处理列表，处理完才删除，工作者异常退出后重启时重新入队，
+ * 时间线写入是幂等的，重复处理不会产生重复条目。
+ *
+ * @author kqyang
+ */
+public class ArticleFeed extends RedisHandler implements AutoCloseable {
+    static final String FOLLOWERS = "followers:";
+    static final String FOLLOWING = "following:";
+    static final String POSTS = "posts:";
+    static final String HOME = "home:";
+    static final String QUEUE = "fanout:queue";
+    static final String PROCESSING = "fanout:processing:";
+    static final int TIMELINE_SIZE = 1000;
+    private static final int DEFAULT_CHUNK_SIZE = 1000;
+    private static final int POLL_SECONDS = 1;
+    private static final Gson GSON = new Gson();
+    private static final LatencyHistogram FANOUT_LATENCY = Metrics.operation("feedFanout");
+
+    private static volatile boolean enabled;
+
+    private final String name;
+    private final int chunkSize;
+    private final List<Thread> workers = new ArrayList<>();
+    private volatile boolean closed;
+
+    /**
+     * 扩散任务：把文章写入author的关注者中排在 (score, member) 之后的一块，member为null时从头开始
+     */
+    private static final class Task {
+        String author;
+        String article;
+        long time;
+        double score;
+        String member;
+
+        /**
+         * 从last之后继续的下一个任务
+         */
+        Task after(Tuple last) {
+            Task next = new Task();
+            next.author = author;
+            next.article = article;
+            next.time = time;
+            next.score = last.getScore();
+            next.member = last.getElement();
+            return next;
+        }
+    }
+
+    /**
+     * 只做关注关系与时间线读取，不处理扩散任务
+     */
+    public ArticleFeed() {
+        this("default", DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param name      工作者名，决定处理列表 fanout:processing:name，多个进程的工作者应使用不同的名字
+     * @param chunkSize 每个任务处理的关注者数
+     */
+    public ArticleFeed(String name, int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize must be positive");
+        }
+        this.name = name;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * 发表文章时扩散到关注者的时间线，需要有工作者处理 fanout:queue，否则任务会一直堆积
+     */
+    public static void enable() {
+        enabled = true;
+    }
+
+    public static void disable() {
+        enabled = false;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 发表文章：写入作者的时间线并入队扩散任务
+     *
+     * @param pipe
+     * @param author
+     * @param articleKey
+     * @param time       发表时间（秒）
+     */
+    static void publish(PipelineBase pipe, String author, String articleKey, long time) {
+        pipe.zadd(POSTS + author, time, articleKey);
+        pipe.zremrangeByRank(POSTS + author, 0, -TIMELINE_SIZE - 1);
+        pipe.zadd(HOME + author, time, articleKey);
+        pipe.zremrangeByRank(HOME + author, 0, -TIMELINE_SIZE - 1);
+        pipe.lpush(QUEUE, firstTask(author, articleKey, time));
+    }
+
+    /**
+     * {@link #publish} 的各条命令，供异步连接使用
+     *
+     * @param author
+     * @param articleKey
+     * @param time
+     * @return
+     */
+    static List<String[]> publishCommands(String author, String articleKey, long time) {
+        String score = String.valueOf(time);
+        String trim = String.valueOf(-TIMELINE_SIZE - 1);
+        List<String[]> commands = new ArrayList<>(5);
+        commands.add(new String[]{"ZADD", POSTS + author, score, articleKey});
+        commands.add(new String[]{"ZREMRANGEBYRANK", POSTS + author, "0", trim});
+        commands.add(new String[]{"ZADD", HOME + author, score, articleKey});
+        commands.add(new String[]{"ZREMRANGEBYRANK", HOME + author, "0", trim});
+        commands.add(new String[]{"LPUSH", QUEUE, firstTask(author, articleKey, time)});
+        return commands;
+    }
+
+    private static String firstTask(String author, String articleKey, long time) {
+        Task task = new Task();
+        task.author = author;
+        task.article = articleKey;
+        task.time = time;
+        return GSON.toJson(task);
+    }
+
+    /**
+     * 关注，并把对方最近的文章补进自己的时间线
+     *
+     * @param user
+     * @param other
+     * @return 此前是否未关注
+     */
+    public boolean follow(String user, String other) {
+        if (user.equals(other)) {
+            return false;
+        }
+        long now = System.currentTimeMillis() / 1000;
+        try (RedisLease lease = lease()) {
+            Jedis conn = lease.getConn();
+            Transaction trans = conn.multi();
+            Response<Long> added = trans.zadd(FOLLOWING + user, now, other);
+            trans.zadd(FOLLOWERS + other, now, user);
+            Response<Set<Tuple>> posts = trans.zrevrangeWithScores(POSTS + other, 0, TIMELINE_SIZE - 1);
+            trans.exec();
+            if (added.get() == 0) {
+                return false;
+            }
+            if (!posts.get().isEmpty()) {
+                Pipeline pipe = conn.pipelined();
+                for (Tuple post : posts.get()) {
+                    pipe.zadd(HOME + user, post.getScore(), post.getElement());
+                }
+                pipe.zremrangeByRank(HOME + user, 0, -TIMELINE_SIZE - 1);
+                pipe.sync();
+            }
+            return true;
+        }
+    }
+
+    /**
+     * 取消关注，并从自己的时间线中删除对方的文章
+     *
+     * @param user
+     * @param other
+     * @return 此前是否已关注
+     */
+    public boolean unfollow(String user, String other) {
+        try (RedisLease lease = lease()) {
+            Jedis conn = lease.getConn();
+            Transaction trans = conn.multi();
+            Response<Long> removed = trans.zrem(FOLLOWING + user, other);
+            trans.zrem(FOLLOWERS + other, user);
+            Response<Set<String>> posts = trans.zrange(POSTS + other, 0, -1);
+            trans.exec();
+            if (removed.get() == 0) {
+                return false;
+            }
+            if (!posts.get().isEmpty()) {
+                // 还在扩散中的文章可能稍后又写入，时间线容忍这种少量残留
+                conn.zrem(HOME + user, posts.get().toArray(new String[posts.get().size()]));
+            }
+            return true;
+        }
+    }
+
+    /**
+     * 首页时间线，一次ZREVRANGE
+     *
+     * @param user
+     * @param start
+     * @param end
+     * @return 文章键，按发表时间降序
+     */
+    public List<String> homeTimeline(String user, int start, int end) {
+        try (RedisLease lease = lease()) {
+            return new ArrayList<>(lease.getConn().zrevrange(HOME + user, start, end));
+        }
+    }
+
+    public long getFollowerCount(String user) {
+        try (RedisLease lease = lease()) {
+            return lease.getConn().zcard(FOLLOWERS + user);
+        }
+    }
+
+    /**
+     * 启动后台工作者处理扩散任务
+     *
+     * @param threads 工作者线程数
+     */
+    public synchronized void start(int threads) {
+        if (!workers.isEmpty()) {
+            throw new IllegalStateException("fanout workers already started");
+        }
+        requeueProcessing();
+        for (int i = 0; i < threads; i++) {
+            Thread worker = new Thread(this::run, "ArticleFeedFanout-" + name + '-' + i);
+            worker.setDaemon(true);
+            worker.start();
+            workers.add(worker);
+        }
+    }
+
+    /**
+     * 在当前线程处理任务直到队列为空
+     *
+     * @return 处理的任务数
+     */
+    public long drain() {
+        long processed = 0;
+        try (RedisLease lease = lease()) {
+            Jedis conn = lease.getConn();
+            String task;
+            while ((task = conn.rpoplpush(QUEUE, PROCESSING + name)) != null) {
+                fanout(conn, task);
+                processed++;
+            }
+        }
+        return processed;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+    }
+
+    private void run() {
+        while (!closed) {
+            try (RedisLease lease = lease()) {
+                Jedis conn = lease.getConn();
+                while (!closed) {
+                    String task = conn.brpoplpush(QUEUE, PROCESSING + name, POLL_SECONDS);
+                    if (task != null) {
+                        fanout(conn, task);
+                    }
+                }
+            } catch (RuntimeException e) {
+                if (closed) {
+                    return;
+                }
+                printer("fanout failed: " + e.getMessage());
+                try {
+                    Thread.sleep(POLL_SECONDS * 1000L);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * 上次退出时未处理完的任务放回队列
+     */
+    private void requeueProcessing() {
+        try (RedisLease lease = lease()) {
+            Jedis conn = lease.getConn();
+            String task;
+            do {
+                task = conn.rpoplpush(PROCESSING + name, QUEUE);
+            } while (task != null);
+        }
+    }
+
+    /**
+     * 处理一块关注者，还有剩余时入队下一块
+     */
+    private void fanout(Jedis conn, String json) {
+        long start = System.nanoTime();
+        try {
+            Task task = GSON.fromJson(json, Task.class);
+            String key = FOLLOWERS + task.author;
+            while (true) {
+                // 读取这一块期间关注者有增减时事务失败并重新读取，保证定位与分窗读取前后一致
+                conn.watch(key);
+                List<Tuple> followers = nextFollowers(conn, key, task);
+                Transaction trans = conn.multi();
+                for (Tuple follower : followers) {
+                    trans.zadd(HOME + follower.getElement(), task.time, task.article);
+                    trans.zremrangeByRank(HOME + follower.getElement(), 0, -TIMELINE_SIZE - 1);
+                }
+                if (followers.size() == chunkSize) {
+                    trans.lpush(QUEUE, GSON.toJson(task.after(followers.get(chunkSize - 1))));
+                }
+                trans.lrem(PROCESSING + name, 1, json);
+                List<Object> results = trans.exec();
+                if (results != null && !results.isEmpty()) {
+                    return;
+                }
+            }
+        } finally {
+            FANOUT_LATENCY.recordSince(start);
+        }
+    }
+
+    /**
+     * 排在任务游标之后的一块关注者，按 (关注时间, 成员) 升序，调用方已WATCH关注者集合
+     * <p>
+     * 游标成员仍以原分值在集合中时从它的排名之后读取；已取消关注时，同一秒关注的成员按字节序排列，
+     * 先分窗读取与游标同分且排在其后的成员，直到取满或同分成员读完，再用开区间读取更晚关注的成员
+     */
+    private List<Tuple> nextFollowers(Jedis conn, String key, Task task) {
+        List<Tuple> followers = new ArrayList<>(chunkSize);
+        if (task.member == null) {
+            followers.addAll(conn.zrangeWithScores(key, 0, chunkSize - 1));
+            return followers;
+        }
+        Pipeline pipe = conn.pipelined();
+        Response<Double> score = pipe.zscore(key, task.member);
+        Response<Long> rank = pipe.zrank(key, task.member);
+        pipe.sync();
+        if (score.get() != null && score.get() == task.score) {
+            followers.addAll(conn.zrangeWithScores(key, rank.get() + 1, rank.get() + chunkSize));
+            return followers;
+        }
+        String bound = ArticleCursor.bound(task.score);
+        for (int offset = 0; followers.size() < chunkSize; offset += chunkSize) {
+            Set<Tuple> ties = conn.zrangeByScoreWithScores(key, bound, bound, offset, chunkSize);
+            for (Tuple tuple : ties) {
+                if (followers.size() < chunkSize && ArticleCursor.compare(tuple.getElement(), task.member) > 0) {
+                    followers.add(tuple);
+                }
+            }
+            if (ties.size() < chunkSize) {
+                break;
+            }
+        }
+        if (followers.size() < chunkSize) {
+            followers.addAll(conn.zrangeByScoreWithScores(key, "(" + bound, "+inf", 0, chunkSize - followers.size()));
+        }
+        return followers;
+    }
+}
@@ -0,0 +1,145 @@
+package com.redis.chapter;
+
+import com.redis.common.KeyPurger;
+import com.redis.common.RedisHandler;
+import com.redis.common.RedisLease;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 两种文章散列布局的内存对比
+ * <p>
+ * 在空库中分别按每篇文章一个散列、分桶散列写入同样的N篇模拟文章，比较INFO中used_memory的增量，
+ * 并抽样OBJECT ENCODING确认分桶散列是否保持ziplist编码。每种布局测完后清空写入的键。
+ * <p>
+ * 用法：ArticleMemoryReport [文章数] [每桶文章数]，每桶文章数默认取 hash-max-ziplist-entries 的一半，
+ * 保证桶内字段数（每篇两个字段）不超过阈值。
+ * 嵌入式服务端的used_memory是JVM堆占用，受GC影响，结果只对真实redis有意义。
+ *
+ * @author kqyang
+ */
+public class ArticleMemoryReport extends RedisHandler {
+    private static final int DEFAULT_ARTICLES = 100000;
+    private static final int WRITE_BATCH = 1000;
+
+    public static void main(String[] args) {
+        ArticleMemoryReport report = new ArticleMemoryReport();
+        int articles = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_ARTICLES;
+        int perBucket = args.length > 1 ? Integer.parseInt(args[1])
+                : report.config("hash-max-ziplist-entries", 128) / 2;
+        report.run(articles, perBucket);
+    }
+
+    /**
+     * @param articles  模拟文章数
+     * @param perBucket 分桶布局的每桶文章数
+     */
+    public void run(int articles, int perBucket) {
+        try (RedisLease lease = lease()) {
+            if (lease.getConn().dbSize() != 0) {
+                printer("database is not empty, run the report against an empty database");
+                return;
+            }
+        }
+        int maxValue = config("hash-max-ziplist-value", 64);
+        printer("articles=" + articles + " articlesPerBucket=" + perBucket
+                + " hash-max-ziplist-value=" + maxValue);
+        int current = ArticleStorage.articlesPerBucket();
+        try {
+            ArticleStorage.usePerArticleHashes();
+            long perArticle = measure("per-article", articles, "article:");
+            ArticleStorage.useBuckets(perBucket);
+            long buckets = measure("bucketed", articles, "articles:");
+            if (perArticle > 0 && buckets > 0) {
+                printer(String.format("bucketed layout uses %.1f%% of the per-article layout",
+                        100.0 * buckets / perArticle));
+            }
+        } finally {
+            // 恢复调用前的布局
+            if (current > 0) {
+                ArticleStorage.useBuckets(current);
+            } else {
+                ArticleStorage.usePerArticleHashes();
+            }
+        }
+    }
+
+    /**
+     * 写入一种布局并打印一行结果
+     *
+     * @return used_memory增量
+     */
+    private long measure(String layout, int articles, String prefix) {
+        long before = usedMemory();
+        try (RedisLease lease = lease()) {
+            Jedis conn = lease.getConn();
+            Pipeline pipe = conn.pipelined();
+            for (int id = 1; id <= articles; id++) {
+                ArticleStorage.save(pipe, String.valueOf(id), sample(id));
+                if (id % WRITE_BATCH == 0) {
+                    pipe.sync();
+                }
+            }
+            pipe.sync();
+            long used = usedMemory() - before;
+            long keys = conn.dbSize();
+            String encoding = encoding(conn, ArticleStorage.hashKey("1"));
+            printer(String.format("%-12s keys=%-8d used_memory=%-12d bytes/article=%-8.1f encoding=%s",
+                    layout, keys, used, (double) used / articles, encoding));
+            return used;
+        } finally {
+            new KeyPurger(prefix + "*").purge();
+        }
+    }
+
+    private static Map<String, String> sample(int id) {
+        Map<String, String> article = new HashMap<>(16);
+        article.put("id", String.valueOf(id));
+        article.put("title", "A title " + id);
+        article.put("link", "https://www.example.com/" + id);
+        article.put("user", "user:" + id % 1000);
+        article.put("now", String.valueOf(1500000000L + id));
+        article.put("votes", "1");
+        return article;
+    }
+
+    private long usedMemory() {
+        try (RedisLease lease = lease()) {
+            for (String line : lease.getConn().info("memory").split("\r\n")) {
+                if (line.startsWith("used_memory:")) {
+                    return Long.parseLong(line.substring("used_memory:".length()));
+                }
+            }
+        }
+        return 0;
+    }
+
+    private static String encoding(Jedis conn, String key) {
+        try {
+            return conn.objectEncoding(key);
+        } catch (JedisDataException e) {
+            // 服务端不支持OBJECT命令
+            return "unknown";
+        }
+    }
+
+    /**
+     * 读取整数配置项，服务端不支持或没有该项时返回默认值
+     */
+    private int config(String name, int defaultValue) {
+        try (RedisLease lease = lease()) {
+            List<String> reply = lease.getConn().configGet(name);
+            if (reply != null && reply.size() == 2) {
+                return Integer.parseInt(reply.get(1));
+            }
+        } catch (JedisDataException | ClassCastException | NumberFormatException e) {
+            // 使用默认值
+        }
+        return defaultValue;
+    }
+}
@@ -0,0 +1,137 @@
+package com.redis.chapter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 一页文章，由 {@link ArticlePageLoader} 生成
+ * <p>
+ * 数据保存在数组中：指定了字段时每行的值与字段一一对应，否则每行是HGETALL的字段、值交替数组。
+ *
+ * @author kqyang
+ */
+public final class ArticlePage {
+    private final String[] ids;
+    private final String[] fields;
+    private final String[][] rows;
+    private final String nextCursor;
+
+    /**
+     * @param ids    文章键，按分值降序
+     * @param fields 投影的字段，null表示全部字段
+     * @param rows   每篇文章的数据
+     */
+    ArticlePage(String[] ids, String[] fields, String[][] rows) {
+        this(ids, fields, rows, null);
+    }
+
+    /**
+     * @param ids        文章键，按分值降序
+     * @param fields     投影的字段，null表示全部字段
+     * @param rows       每篇文章的数据
+     * @param nextCursor 下一页的游标，没有下一页时为null
+     */
+    ArticlePage(String[] ids, String[] fields, String[][] rows, String nextCursor) {
+        this.ids = ids;
+        this.fields = fields;
+        this.rows = rows;
+        this.nextCursor = nextCursor;
+    }
+
+    public int size() {
+        return ids.length;
+    }
+
+    /**
+     * 第index篇文章的键，例如 article:1
+     *
+     * @param index
+     * @return
+     */
+    public String getId(int index) {
+        return ids[index];
+    }
+
+    /**
+     * 第index篇文章的字段值，文章或字段不存在时为null
+     *
+     * @param index
+     * @param field
+     * @return
+     */
+    public String get(int index, String field) {
+        String[] row = rows[index];
+        if (fields != null) {
+            for (int i = 0; i < fields.length; i++) {
+                if (fields[i].equals(field)) {
+                    return row[i];
+                }
+            }
+            return null;
+        }
+        for (int i = 0; i + 1 < row.length; i += 2) {
+            if (row[i].equals(field)) {
+                return row[i + 1];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 游标分页时下一页的游标，已到末尾或按页码分页时为null
+     *
+     * @return
+     */
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    /**
+     * 投影的字段，未投影时为null
+     *
+     * @return
+     */
+    public List<String> getFields() {
+        return fields == null ? null : Collections.unmodifiableList(Arrays.asList(fields));
+    }
+
+    /**
+     * 第index篇文章转为散列，省略不存在的字段
+     *
+     * @param index
+     * @return
+     */
+    public Map<String, String> getArticle(int index) {
+        String[] row = rows[index];
+        Map<String, String> article = new HashMap<>(16);
+        if (fields != null) {
+            for (int i = 0; i < fields.length; i++) {
+                if (row[i] != null) {
+                    article.put(fields[i], row[i]);
+                }
+            }
+        } else {
+            for (int i = 0; i + 1 < row.length; i += 2) {
+                article.put(row[i], row[i + 1]);
+            }
+        }
+        return article;
+    }
+
+    /**
+     * 转为 {@link Chapter01#getArticles(int, String)} 的返回形式
+     *
+     * @return
+     */
+    public List<Map<String, String>> toMaps() {
+        List<Map<String, String>> articles = new ArrayList<>(ids.length);
+        for (int i = 0; i < ids.length; i++) {
+            articles.add(getArticle(i));
+        }
+        return articles;
+    }
+}
@@ -0,0 +1,287 @@
+package com.redis.chapter;
+
+import com.redis.common.LatencyHistogram;
+import com.redis.common.Metrics;
+import com.redis.common.RedisHandler;
+import com.redis.common.RedisLease;
+import com.redis.common.ScriptRegistry;
+import com.redis.common.ShardedRedis;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.Tuple;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 文章分页加载
+ * <p>
+ * 单节点时用一个脚本在服务端完成ZREVRANGE与各文章的HGETALL/HMGET，一次往返取回整页；
+ * 服务端不支持脚本或启用了分片（文章散列可能在其他节点）时，先取id页，再按节点用流水线批量取文章，
+ * 往返次数为1加涉及的节点数。文章使用分桶布局（{@link ArticleStorage}）时同样走流水线。
+ *
+ * @author kqyang
+ */
+public class ArticlePageLoader extends RedisHandler {
+    private static final LatencyHistogram LOAD_LATENCY = Metrics.operation("articlePage");
+    private static final LatencyHistogram CURSOR_LATENCY = Metrics.operation("articlePageAfter");
+    /**
+     * 分页脚本
+     * KEYS: 排序用的有序集合
+     * ARGV: start, end, 投影字段...（没有字段时取全部）
+     */
+    private static final ScriptRegistry.Script LOAD_PAGE = scripts().register("articlePage",
+            "local ids = redis.call('zrevrange', KEYS[1], ARGV[1], ARGV[2])\n"
+                    + "local rows = {}\n"
+                    + "for i, id in ipairs(ids) do\n"
+                    + "  if #ARGV > 2 then rows[i] = redis.call('hmget', id, unpack(ARGV, 3))\n"
+                    + "  else rows[i] = redis.call('hgetall', id) end\n"
+                    + "end\n"
+                    + "return {ids, rows}");
+
+    private volatile boolean useScript = true;
+
+    /**
+     * 加载有序集合key中按分值降序的 [start, end] 区间
+     *
+     * @param key
+     * @param start
+     * @param end
+     * @param fields 只取这些字段，为空时取全部字段
+     * @return
+     */
+    public ArticlePage load(String key, int start, int end, String... fields) {
+        long begin = System.nanoTime();
+        try {
+            String[] projection = fields.length == 0 ? null : fields;
+            if (ScriptRegistry.usable(useScript) && !ArticleStorage.isBucketed()) {
+                try {
+                    return loadScripted(key, start, end, projection);
+                } catch (JedisDataException e) {
+                    if (!ScriptRegistry.isUnsupported(e)) {
+                        throw e;
+                    }
+                    // 服务端不支持脚本，之后都用流水线
+                    useScript = false;
+                }
+            }
+            return loadPipelined(key, start, end, projection);
+        } finally {
+            LOAD_LATENCY.recordSince(begin);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private ArticlePage loadScripted(String key, int start, int end, String[] fields) {
+        List<String> args = new ArrayList<>(2 + (fields == null ? 0 : fields.length));
+        args.add(String.valueOf(start));
+        args.add(String.valueOf(end));
+        if (fields != null) {
+            args.addAll(Arrays.asList(fields));
+        }
+        List<Object> reply;
+        try (RedisLease lease = lease()) {
+            reply = (List<Object>) LOAD_PAGE.eval(lease.getConn(), Collections.singletonList(key), args);
+        }
+        List<String> ids = (List<String>) reply.get(0);
+        List<List<String>> values = (List<List<String>>) reply.get(1);
+        String[][] rows = new String[ids.size()][];
+        for (int i = 0; i < rows.length; i++) {
+            List<String> row = values.get(i);
+            rows[i] = row.toArray(new String[row.size()]);
+        }
+        return new ArticlePage(ids.toArray(new String[ids.size()]), fields, rows);
+    }
+
+    private ArticlePage loadPipelined(String key, int start, int end, String[] fields) {
+        Set<String> idSet;
+        try (RedisLease lease = Chapter01.leaseRanking(key)) {
+            idSet = lease.getConn().zrevrange(key, start, end);
+        }
+        String[] ids = idSet.toArray(new String[idSet.size()]);
+        return new ArticlePage(ids, fields, loadRows(ids, fields));
+    }
+
+    /**
+     * 从游标位置继续加载有序集合key中按分值降序的count篇文章
+     * <p>
+     * 不按排名偏移定位，而是从上一页最后一篇的 (分值, 成员) 之后继续：同分且排在其后的成员用闭区间 [s, s] 读取，
+     * 更低的分值用开区间 (s 读取，两条ZREVRANGEBYSCORE在同一流水线中发出；同分成员多于一个窗口时逐窗读取，
+     * 直到取满一页或同分成员读完。每页的代价与深度无关，
+     * 翻页期间的投票也不会让页面整体错位（分值变化的文章本身可能重复或跳过）。
+     *
+     * @param key
+     * @param cursor 上一页的 {@link ArticlePage#getNextCursor()}，null表示第一页
+     * @param count
+     * @param fields 只取这些字段，为空时取全部字段
+     * @return
+     */
+    public ArticlePage loadAfter(String key, String cursor, int count, String... fields) {
+        long begin = System.nanoTime();
+        try {
+            ArticleCursor position = cursor == null ? null : ArticleCursor.decode(cursor);
+            List<Tuple> page = new ArrayList<>(count);
+            try (RedisLease lease = Chapter01.leaseRanking(key)) {
+                Jedis conn = lease.getConn();
+                if (position == null) {
+                    page.addAll(conn.zrevrangeByScoreWithScores(key, "+inf", "-inf", 0, count));
+                } else {
+                    String score = ArticleCursor.bound(position.score);
+                    // 已返回的同分成员通常不超过ties个，第一窗多取count个，与更低分值的一页在同一流水线中读取
+                    int window = position.ties + count;
+                    Pipeline pipe = conn.pipelined();
+                    Response<Set<Tuple>> ties = pipe.zrevrangeByScoreWithScores(key, score, score, 0, window);
+                    Response<Set<Tuple>> lower = pipe.zrevrangeByScoreWithScores(key, "(" + score, "-inf", 0, count);
+                    pipe.sync();
+                    Set<Tuple> batch = ties.get();
+                    for (int offset = 0; ; ) {
+                        for (Tuple tuple : batch) {
+                            if (page.size() < count && position.isAfter(tuple.getElement())) {
+                                page.add(tuple);
+                            }
+                        }
+                        // 窗口不满说明同分成员已读完；窗口满而本页未满时（翻页期间有更多文章得到同样的分值）继续读下一窗
+                        if (batch.size() < window || page.size() >= count) {
+                            break;
+                        }
+                        offset += window;
+                        batch = conn.zrevrangeByScoreWithScores(key, score, score, offset, window);
+                    }
+                    for (Tuple tuple : lower.get()) {
+                        if (page.size() < count) {
+                            page.add(tuple);
+                        }
+                    }
+                }
+            }
+            String[] ids = new String[page.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = page.get(i).getElement();
+            }
+            String[] projection = fields.length == 0 ? null : fields;
+            return new ArticlePage(ids, projection, loadRows(ids, projection), nextCursor(position, page, count));
+        } finally {
+            CURSOR_LATENCY.recordSince(begin);
+        }
+    }
+
+    /**
+     * 按节点批量读取文章，用于检索结果、时间线等已有id列表的页面
+     *
+     * @param members 排名成员 article:id
+     * @return 与members一一对应，文章不存在时为空散列
+     */
+    public List<Map<String, String>> loadArticles(List<String> members) {
+        String[] ids = members.toArray(new String[members.size()]);
+        return new ArticlePage(ids, null, loadRows(ids, null)).toMaps();
+    }
+
+    /**
+     * 本页不满count篇时已到末尾
+     */
+    private static String nextCursor(ArticleCursor previous, List<Tuple> page, int count) {
+        if (page.size() < count) {
+            return null;
+        }
+        Tuple last = page.get(page.size() - 1);
+        int ties = 0;
+        for (Tuple tuple : page) {
+            if (tuple.getScore() == last.getScore()) {
+                ties++;
+            }
+        }
+        if (previous != null && previous.score == last.getScore()) {
+            ties += previous.ties;
+        }
+        return new ArticleCursor(last.getScore(), last.getElement(), ties).encode();
+    }
+
+    /**
+     * 按节点用流水线读取各文章
+     */
+    private String[][] loadRows(String[] ids, String[] fields) {
+        String[][] rows = new String[ids.length][];
+        boolean bucketed = ArticleStorage.isBucketed();
+        for (List<Integer> group : groupByShard(ids)) {
+            try (RedisLease lease = leaseFor(hashKey(ids[group.get(0)]))) {
+                Jedis conn = lease.getConn();
+                if (bucketed) {
+                    List<String> members = new ArrayList<>(group.size());
+                    for (int index : group) {
+                        members.add(ids[index]);
+                    }
+                    List<Map<String, String>> articles = ArticleStorage.load(conn, members);
+                    for (int i = 0; i < group.size(); i++) {
+                        rows[group.get(i)] = toRow(project(articles.get(i), fields), fields);
+                    }
+                    continue;
+                }
+                Pipeline pipe = conn.pipelined();
+                List<Response<?>> responses = new ArrayList<>(group.size());
+                for (int index : group) {
+                    responses.add(fields == null ? pipe.hgetAll(ids[index]) : pipe.hmget(ids[index], fields));
+                }
+                pipe.sync();
+                for (int i = 0; i < group.size(); i++) {
+                    rows[group.get(i)] = toRow(responses.get(i).get(), fields);
+                }
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * 按所在节点分组的下标，未分片时只有一组
+     */
+    private static Collection<List<Integer>> groupByShard(String[] ids) {
+        ShardedRedis sharded = shards();
+        Map<String, List<Integer>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < ids.length; i++) {
+            String shard = sharded == null ? "" : sharded.shardFor(hashKey(ids[i]));
+            groups.computeIfAbsent(shard, k -> new ArrayList<>()).add(i);
+        }
+        return groups.values();
+    }
+
+    /**
+     * 排名成员所在的文章散列
+     */
+    private static String hashKey(String member) {
+        return ArticleStorage.isBucketed() ? ArticleStorage.hashKey(ArticleStorage.idOf(member)) : member;
+    }
+
+    private static Object project(Map<String, String> article, String[] fields) {
+        if (fields == null) {
+            return article;
+        }
+        List<String> values = new ArrayList<>(fields.length);
+        for (String field : fields) {
+            values.add(article.get(field));
+        }
+        return values;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static String[] toRow(Object value, String[] fields) {
+        if (fields != null) {
+            List<String> values = (List<String>) value;
+            return values.toArray(new String[values.size()]);
+        }
+        Map<String, String> hash = (Map<String, String>) value;
+        String[] row = new String[hash.size() * 2];
+        int i = 0;
+        for (Map.Entry<String, String> entry : hash.entrySet()) {
+            row[i++] = entry.getKey();
+            row[i++] = entry.getValue();
+        }
+        return row;
+    }
+}
@@ -0,0 +1,347 @@
+package com.redis.chapter;
+
+import com.redis.common.LatencyHistogram;
+import com.redis.common.Metrics;
+import com.redis.common.RedisHandler;
+import com.redis.common.RedisLease;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.PipelineBase;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.ZParams;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * 文章标题的全文检索
+ * <p>
+ * 发表文章时标题分词，文章键加入每个词的 idx:词 集合（倒排索引）。查询语法：
+ * <ul>
+ * <li>空格分隔的词取交集：redis cache</li>
+ * <li>以+开头的词与前一个词取并集（同义词）：redis +memcached</li>
+ * <li>以-开头的词排除：redis -cluster</li>
+ * </ul>
+ * 查询结果集合与按排名排序后的有序集合都缓存在会过期的临时键中（键名由规范化后的查询计算），
+ * 相同查询在缓存期内直接复用并续期，因此缓存期内新发表的文章不会出现在已缓存的结果中。
+ * 索引与排序用的有序集合需在同一节点，通常用发表与投票时维护的全局排名
+ * {@link Chapter01#SCORE_RANKING} 或 {@link Chapter01#TIME_RANKING}，二者与索引都在默认节点。
+ *
+ * @author kqyang
+ */
+public class ArticleSearch extends RedisHandler {
+    static final String INDEX = "idx:";
+    private static final String RESULT = "idx:result:";
+    private static final String SORTED = "idx:sorted:";
+    private static final int DEFAULT_CACHE_SECONDS = 300;
+    private static final LatencyHistogram SEARCH_LATENCY = Metrics.operation("articleSearch");
+    private static final Set<String> STOP_WORDS = new HashSet<>(Arrays.asList(
+            "a", "an", "and", "are", "as", "at", "be", "by", "for", "from", "in", "is", "it", "of", "on", "or",
+            "the", "to", "with"));
+
+    private final int cacheSeconds;
+
+    public ArticleSearch() {
+        this(DEFAULT_CACHE_SECONDS);
+    }
+
+    /**
+     * @param cacheSeconds 查询结果的缓存时间，0表示不缓存（每次重新计算，用完即删）
+     */
+    public ArticleSearch(int cacheSeconds) {
+        if (cacheSeconds < 0) {
+            throw new IllegalArgumentException("cacheSeconds must not be negative");
+        }
+        this.cacheSeconds = cacheSeconds;
+    }
+
+    /**
+     * 一次查询的结果
+     */
+    public static final class Result {
+        private final long total;
+        private final List<String> ids;
+        private final String cacheKey;
+
+        Result(long total, List<String> ids, String cacheKey) {
+            this.total = total;
+            this.ids = ids;
+            this.cacheKey = cacheKey;
+        }
+
+        /**
+         * 匹配的文章总数
+         *
+         * @return
+         */
+        public long getTotal() {
+            return total;
+        }
+
+        /**
+         * 本页的文章键，按排名降序
+         *
+         * @return
+         */
+        public List<String> getIds() {
+            return ids;
+        }
+
+        /**
+         * 排序结果所在的临时键，未缓存时为null
+         *
+         * @return
+         */
+        public String getCacheKey() {
+            return cacheKey;
+        }
+    }
+
+    /**
+     * 分词：转小写，按非字母数字切分，中日韩文字按单字切分，去掉停用词与单个字母
+     *
+     * @param text
+     * @return
+     */
+    public static Set<String> tokenize(String text) {
+        Set<String> words = new LinkedHashSet<>();
+        if (text == null) {
+            return words;
+        }
+        StringBuilder word = new StringBuilder();
+        String lower = text.toLowerCase(Locale.ROOT);
+        for (int i = 0; i < lower.length(); ) {
+            int ch = lower.codePointAt(i);
+            i += Character.charCount(ch);
+            if (Character.isIdeographic(ch)) {
+                addWord(words, word);
+                words.add(new String(Character.toChars(ch)));
+            } else if (Character.isLetterOrDigit(ch) || ch == '\'') {
+                word.appendCodePoint(ch);
+            } else {
+                addWord(words, word);
+            }
+        }
+        addWord(words, word);
+        return words;
+    }
+
+    private static void addWord(Set<String> words, StringBuilder word) {
+        // 去掉首尾的撇号，例如 'quoted'
+        String value = word.toString().replaceAll("^'+|'+$", "");
+        word.setLength(0);
+        if (value.length() > 1 && !STOP_WORDS.contains(value)) {
+            words.add(value);
+        }
+    }
+
+    /**
+     * 把文章标题写入倒排索引
+     *
+     * @param pipe
+     * @param articleKey 文章键 article:id，与排名有序集合的成员一致
+     * @param title
+     */
+    public static void index(PipelineBase pipe, String articleKey, String title) {
+        for (String word : tokenize(title)) {
+            pipe.sadd(INDEX + word, articleKey);
+        }
+    }
+
+    /**
+     * 从倒排索引中删除文章
+     *
+     * @param pipe
+     * @param articleKey
+     * @param title      索引时的标题
+     */
+    public static void unindex(PipelineBase pipe, String articleKey, String title) {
+        for (String word : tokenize(title)) {
+            pipe.srem(INDEX + word, articleKey);
+        }
+    }
+
+    /**
+     * 查询并按排名有序集合排序
+     *
+     * @param query   查询语句
+     * @param sortKey 排序用的有序集合，例如 {@link Chapter01#SCORE_RANKING}
+     * @param start
+     * @param end
+     * @return
+     */
+    public Result search(String query, String sortKey, int start, int end) {
+        long begin = System.nanoTime();
+        try {
+            Query parsed = Query.parse(query);
+            if (parsed.all.isEmpty()) {
+                return new Result(0, Collections.emptyList(), null);
+            }
+            try (RedisLease lease = lease()) {
+                Jedis conn = lease.getConn();
+                String sorted = SORTED + (cacheSeconds > 0 ? digest(parsed.normalized() + '\n' + sortKey)
+                        : UUID.randomUUID().toString());
+                if (cacheSeconds > 0 && conn.expire(sorted, cacheSeconds) == 1) {
+                    // 缓存命中
+                    return page(conn, sorted, start, end, sorted);
+                }
+                String result = intersect(conn, parsed);
+                Pipeline pipe = conn.pipelined();
+                pipe.zinterstore(sorted, new ZParams().weightsByDouble(0, 1), result, sortKey);
+                expireTemporary(pipe, sorted);
+                pipe.sync();
+                try {
+                    return page(conn, sorted, start, end, cacheSeconds > 0 ? sorted : null);
+                } finally {
+                    if (cacheSeconds == 0) {
+                        conn.del(sorted, result);
+                    }
+                }
+            }
+        } finally {
+            SEARCH_LATENCY.recordSince(begin);
+        }
+    }
+
+    /**
+     * 计算（或复用）查询的结果集合
+     *
+     * @return 结果集合的键
+     */
+    private String intersect(Jedis conn, Query query) {
+        String result = RESULT + (cacheSeconds > 0 ? digest(query.normalized()) : UUID.randomUUID().toString());
+        if (cacheSeconds > 0 && conn.expire(result, cacheSeconds) == 1) {
+            return result;
+        }
+        List<String> temporary = new ArrayList<>();
+        List<String> keys = new ArrayList<>(query.all.size());
+        Pipeline pipe = conn.pipelined();
+        for (List<String> synonyms : query.all) {
+            if (synonyms.size() == 1) {
+                keys.add(INDEX + synonyms.get(0));
+                continue;
+            }
+            String union = RESULT + UUID.randomUUID();
+            pipe.sunionstore(union, prefixed(synonyms));
+            temporary.add(union);
+            keys.add(union);
+        }
+        // 缓存的结果集合由其他查询共享，交集与差集分两步写入时要放进事务，其他查询不会看到只做了交集的结果
+        boolean atomic = cacheSeconds > 0 && !query.exclude.isEmpty();
+        if (atomic) {
+            pipe.multi();
+        }
+        pipe.sinterstore(result, keys.toArray(new String[keys.size()]));
+        if (!query.exclude.isEmpty()) {
+            List<String> diff = new ArrayList<>(query.exclude.size() + 1);
+            diff.add(result);
+            diff.addAll(Arrays.asList(prefixed(query.exclude)));
+            pipe.sdiffstore(result, diff.toArray(new String[diff.size()]));
+        }
+        expireTemporary(pipe, result);
+        if (atomic) {
+            pipe.exec();
+        }
+        if (!temporary.isEmpty()) {
+            pipe.del(temporary.toArray(new String[temporary.size()]));
+        }
+        pipe.sync();
+        return result;
+    }
+
+    /**
+     * 不缓存时也设置一个短过期，避免进程中途退出留下临时键
+     */
+    private void expireTemporary(Pipeline pipe, String key) {
+        pipe.expire(key, cacheSeconds > 0 ? cacheSeconds : 30);
+    }
+
+    private static Result page(Jedis conn, String sorted, int start, int end, String cacheKey) {
+        Pipeline pipe = conn.pipelined();
+        Response<Long> total = pipe.zcard(sorted);
+        Response<Set<String>> ids = pipe.zrevrange(sorted, start, end);
+        pipe.sync();
+        return new Result(total.get(), new ArrayList<>(ids.get()), cacheKey);
+    }
+
+    private static String[] prefixed(List<String> words) {
+        String[] keys = new String[words.size()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = INDEX + words.get(i);
+        }
+        return keys;
+    }
+
+    private static String digest(String value) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-1").digest(value.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 解析后的查询：all中每组同义词取并集，各组取交集，再去掉exclude
+     */
+    static final class Query {
+        final List<List<String>> all = new ArrayList<>();
+        final List<String> exclude = new ArrayList<>();
+
+        static Query parse(String query) {
+            Query parsed = new Query();
+            List<String> current = new ArrayList<>();
+            for (String token : query.trim().split("\\s+")) {
+                char prefix = token.isEmpty() ? ' ' : token.charAt(0);
+                String body = prefix == '+' || prefix == '-' ? token.substring(1) : token;
+                for (String word : tokenize(body)) {
+                    if (prefix == '-') {
+                        parsed.exclude.add(word);
+                    } else if (prefix == '+' && !current.isEmpty()) {
+                        current.add(word);
+                    } else {
+                        if (!current.isEmpty()) {
+                            parsed.all.add(current);
+                        }
+                        current = new ArrayList<>();
+                        current.add(word);
+                    }
+                }
+            }
+            if (!current.isEmpty()) {
+                parsed.all.add(current);
+            }
+            return parsed;
+        }
+
+        /**
+         * 与书写顺序无关的规范形式，用作缓存键
+         */
+        String normalized() {
+            List<String> groups = new ArrayList<>(all.size());
+            for (List<String> synonyms : all) {
+                List<String> sorted = new ArrayList<>(new LinkedHashSet<>(synonyms));
+                Collections.sort(sorted);
+                groups.add(String.join("+", sorted));
+            }
+            Collections.sort(groups);
+            List<String> excluded = new ArrayList<>(new LinkedHashSet<>(exclude));
+            Collections.sort(excluded);
+            return String.join(" ", groups) + " -" + String.join(" -", excluded);
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package com.redis.chapter;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.PipelineBase;
+import redis.clients.jedis.Response;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 文章散列的存储布局
+ * <p>
+ * 默认每篇文章一个 article:id 散列（六个字段）。文章数量很大时每个键的固定开销占了大头，
+ * 可以切换为分桶布局：每 articlesPerBucket 篇文章共用一个 articles:(id/articlesPerBucket) 散列，
+ * 字段 (id%articlesPerBucket) 存放紧凑编码的文章记录，字段 (id%articlesPerBucket)v 存放票数（可直接HINCRBY）。
+ * 桶内字段数与记录长度不超过 hash-max-ziplist-entries / hash-max-ziplist-value 时，
+ * 散列保持ziplist（listpack）编码，见 {@link ArticleMemoryReport}。
+ * <p>
+ * 排名有序集合的成员仍是 article:id，布局只影响文章散列本身。切换布局不会迁移已有数据，应在写入前设置。
+ *
+ * @author kqyang
+ */
+public final class ArticleStorage {
+    static final String ARTICLE = "article:";
+    static final String BUCKET = "articles:";
+    private static final String VOTES = "votes";
+
+    private static volatile int articlesPerBucket;
+
+    private ArticleStorage() {
+    }
+
+    /**
+     * 切换为分桶布局
+     *
+     * @param perBucket 每桶文章数，桶内字段数为其两倍
+     */
+    public static void useBuckets(int perBucket) {
+        if (perBucket <= 0) {
+            throw new IllegalArgumentException("articlesPerBucket must be positive");
+        }
+        articlesPerBucket = perBucket;
+    }
+
+    /**
+     * 恢复每篇文章一个散列的布局
+     */
+    public static void usePerArticleHashes() {
+        articlesPerBucket = 0;
+    }
+
+    public static boolean isBucketed() {
+        return articlesPerBucket > 0;
+    }
+
+    /**
+     * @return 每桶文章数，0表示每篇文章一个散列
+     */
+    static int articlesPerBucket() {
+        return articlesPerBucket;
+    }
+
+    /**
+     * 保存票数的散列键
+     *
+     * @param articleId
+     * @return
+     */
+    public static String hashKey(String articleId) {
+        int perBucket = articlesPerBucket;
+        return perBucket > 0 ? BUCKET + Long.parseLong(articleId) / perBucket : ARTICLE + articleId;
+    }
+
+    /**
+     * 保存票数的字段
+     *
+     * @param articleId
+     * @return
+     */
+    public static String votesField(String articleId) {
+        int perBucket = articlesPerBucket;
+        return perBucket > 0 ? Long.parseLong(articleId) % perBucket + "v" : VOTES;
+    }
+
+    /**
+     * 分桶时保存文章记录的字段
+     *
+     * @param articleId
+     * @return
+     */
+    static String recordField(String articleId) {
+        return String.valueOf(Long.parseLong(articleId) % articlesPerBucket);
+    }
+
+    /**
+     * 排名成员（article:id）对应的文章id
+     *
+     * @param member
+     * @return
+     */
+    public static String idOf(String member) {
+        return member.substring(member.indexOf(':') + 1);
+    }
+
+    /**
+     * 写入一篇文章
+     *
+     * @param pipe    连接上的流水线或事务
+     * @param article 字段与 {@link Chapter01#postArticle(String, String, String)} 相同
+     */
+    public static void save(PipelineBase pipe, String articleId, Map<String, String> article) {
+        int perBucket = articlesPerBucket;
+        if (perBucket <= 0) {
+            pipe.hmset(ARTICLE + articleId, article);
+            return;
+        }
+        long id = Long.parseLong(articleId);
+        Map<String, String> fields = new HashMap<>(4);
+        fields.put(String.valueOf(id % perBucket), encode(article));
+        fields.put(id % perBucket + "v", article.getOrDefault(VOTES, "0"));
+        pipe.hmset(BUCKET + id / perBucket, fields);
+    }
+
+    /**
+     * 写入一篇文章的HMSET命令，供只能发送字符串命令的客户端使用
+     *
+     * @param articleId
+     * @param article
+     * @return
+     */
+    static String[] saveCommand(String articleId, Map<String, String> article) {
+        if (!isBucketed()) {
+            List<String> command = new ArrayList<>(2 + article.size() * 2);
+            command.add("HMSET");
+            command.add(ARTICLE + articleId);
+            for (Map.Entry<String, String> field : article.entrySet()) {
+                command.add(field.getKey());
+                command.add(field.getValue());
+            }
+            return command.toArray(new String[command.size()]);
+        }
+        return new String[]{"HMSET", hashKey(articleId), recordField(articleId), encode(article),
+                votesField(articleId), article.getOrDefault(VOTES, "0")};
+    }
+
+    /**
+     * 增加票数
+     *
+     * @param pipe
+     * @param articleId
+     * @param votes
+     * @return
+     */
+    public static Response<Long> incrVotes(PipelineBase pipe, String articleId, long votes) {
+        return pipe.hincrBy(hashKey(articleId), votesField(articleId), votes);
+    }
+
+    /**
+     * 读取一篇文章，不存在时返回空散列
+     *
+     * @param conn
+     * @param articleId
+     * @return
+     */
+    public static Map<String, String> load(Jedis conn, String articleId) {
+        List<String> members = new ArrayList<>(1);
+        members.add(ARTICLE + articleId);
+        return load(conn, members).get(0);
+    }
+
+    /**
+     * 流水线读取多篇文章，分桶时同一桶的文章合并为一条HMGET
+     *
+     * @param conn
+     * @param members 排名成员 article:id
+     * @return 与members一一对应
+     */
+    public static List<Map<String, String>> load(Jedis conn, List<String> members) {
+        int perBucket = articlesPerBucket;
+        Pipeline pipe = conn.pipelined();
+        List<Map<String, String>> articles = new ArrayList<>(members.size());
+        if (perBucket <= 0) {
+            List<Response<Map<String, String>>> replies = new ArrayList<>(members.size());
+            for (String member : members) {
+                replies.add(pipe.hgetAll(member));
+            }
+            pipe.sync();
+            for (Response<Map<String, String>> reply : replies) {
+                articles.add(reply.get());
+            }
+            return articles;
+        }
+        Map<Long, List<Long>> buckets = new LinkedHashMap<>();
+        for (String member : members) {
+            long id = Long.parseLong(idOf(member));
+            buckets.computeIfAbsent(id / perBucket, k -> new ArrayList<>()).add(id);
+        }
+        Map<Long, Response<List<String>>> replies = new HashMap<>(buckets.size());
+        for (Map.Entry<Long, List<Long>> bucket : buckets.entrySet()) {
+            List<Long> ids = bucket.getValue();
+            String[] fields = new String[ids.size() * 2];
+            for (int i = 0; i < ids.size(); i++) {
+                fields[i * 2] = String.valueOf(ids.get(i) % perBucket);
+                fields[i * 2 + 1] = ids.get(i) % perBucket + "v";
+            }
+            replies.put(bucket.getKey(), pipe.hmget(BUCKET + bucket.getKey(), fields));
+        }
+        pipe.sync();
+        for (String member : members) {
+            long id = Long.parseLong(idOf(member));
+            List<Long> ids = buckets.get(id / perBucket);
+            List<String> values = replies.get(id / perBucket).get();
+            int index = ids.indexOf(id);
+            articles.add(decode(String.valueOf(id), values.get(index * 2), values.get(index * 2 + 1)));
+        }
+        return articles;
+    }
+
+    /**
+     * 紧凑编码：发布时间;用户长度:用户 标题长度:标题 链接长度:链接（长度按字符计），
+     * id由字段名决定，票数单独存放
+     */
+    static String encode(Map<String, String> article) {
+        StringBuilder record = new StringBuilder(64);
+        record.append(article.get("now")).append(';');
+        for (String field : new String[]{"user", "title", "link"}) {
+            String value = article.get(field);
+            if (value == null) {
+                value = "";
+            }
+            record.append(value.length()).append(':').append(value);
+        }
+        return record.toString();
+    }
+
+    static Map<String, String> decode(String articleId, String record, String votes) {
+        Map<String, String> article = new HashMap<>(16);
+        if (record == null) {
+            return article;
+        }
+        int pos = record.indexOf(';');
+        article.put("id", articleId);
+        article.put("now", record.substring(0, pos));
+        pos++;
+        for (String field : new String[]{"user", "title", "link"}) {
+            int colon = record.indexOf(':', pos);
+            int length = Integer.parseInt(record.substring(pos, colon));
+            article.put(field, record.substring(colon + 1, colon + 1 + length));
+            pos = colon + 1 + length;
+        }
+        article.put(VOTES, votes == null ? "0" : votes);
+        return article;
+    }
+}
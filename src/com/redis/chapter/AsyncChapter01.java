@@ -0,0 +1,220 @@
+package com.redis.chapter;
+
+import com.redis.async.AsyncRedisConnection;
+import com.redis.async.Replies;
+import com.redis.common.LatencyHistogram;
+import com.redis.common.Metrics;
+import com.redis.common.RedisHandler;
+import com.redis.common.RedisLease;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * {@link Chapter01} 的异步版本
+ * <p>
+ * 每个操作立即返回CompletableFuture，命令在共享的非阻塞连接上发送，互不依赖的命令一次性全部发出，
+ * 只有依赖前一条回复的步骤才串行等待。
+ *
+ * @author kqyang
+ */
+public class AsyncChapter01 extends RedisHandler {
+    private static final int ONE_WEEK_IN_SECONDS = 7 * 86400;
+    private static final int VOTE_SCORE = 432;
+    private static final int ARTICLES_PER_PAGE = 25;
+    private static final LatencyHistogram POST_ARTICLE_LATENCY = Metrics.operation("postArticle.async");
+    private static final LatencyHistogram ARTICLE_VOTE_LATENCY = Metrics.operation("articleVote.async");
+
+    public static void main(String[] args) {
+        AsyncChapter01 chapter = new AsyncChapter01();
+        String articleId = chapter.postArticle("username", "A title", "https://www.baidu.com").join();
+        chapter.printer("We posted a new article with id: " + articleId);
+        chapter.articleVote("other_user", articleId).join();
+        chapter.addGroups(articleId, new String[]{"new-group"}).join();
+        chapter.printer("Articles in new-group: " + chapter.getGroupArticles("new-group", 1).join());
+    }
+
+    /**
+     * 发表文章
+     *
+     * @param user
+     * @param title
+     * @param link
+     * @return 文章id
+     */
+    public CompletableFuture<String> postArticle(String user, String title, String link) {
+        long start = System.nanoTime();
+        AsyncRedisConnection conn = async();
+        return POST_ARTICLE_LATENCY.recordOnCompletion(start, conn.command("INCR", "article:").thenCompose(id -> {
+            String articleId = String.valueOf(id);
+            String voted = "voted:" + articleId;
+            String articleKey = "article:" + articleId;
+            long posted = System.currentTimeMillis() / 1000;
+            String now = String.valueOf(posted);
+            String score = String.valueOf(posted + VOTE_SCORE);
+            Map<String, String> articleData = new HashMap<>(16);
+            articleData.put("id", articleId);
+            articleData.put("title", title);
+            articleData.put("link", link);
+            articleData.put("user", user);
+            articleData.put("now", now);
+            articleData.put("votes", "1");
+            CompletableFuture<?> author = VoterFilter.isBloom()
+                    ? addVoter(articleId, user)
+                    : CompletableFuture.allOf(conn.command("SADD", voted, user),
+                    conn.command("EXPIRE", voted, String.valueOf(ONE_WEEK_IN_SECONDS)));
+            List<CompletableFuture<Object>> writes = new ArrayList<>();
+            writes.add(conn.command(ArticleStorage.saveCommand(articleId, articleData)));
+            writes.add(conn.command("ZADD", "score:" + articleId, score, articleKey));
+            writes.add(conn.command("ZADD", "time:" + articleId, now, articleKey));
+            writes.add(conn.command("ZADD", Chapter01.SCORE_RANKING, score, articleKey));
+            writes.add(conn.command("ZADD", Chapter01.TIME_RANKING, now, articleKey));
+            for (String word : ArticleSearch.tokenize(title)) {
+                writes.add(conn.command("SADD", ArticleSearch.INDEX + word, articleKey));
+            }
+            if (ArticleFeed.isEnabled()) {
+                // 写入作者时间线并入队扩散任务，与 Chapter01.postArticle 相同
+                for (String[] command : ArticleFeed.publishCommands(user, articleKey, posted)) {
+                    writes.add(conn.command(command));
+                }
+            }
+            return CompletableFuture.allOf(author, CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0])))
+                    .thenApply(ignored -> articleId);
+        }));
+    }
+
+    /**
+     * 文章投票
+     *
+     * @param user
+     * @param articleId
+     * @return 投票是否成功
+     */
+    public CompletableFuture<Boolean> articleVote(String user, String articleId) {
+        long start = System.nanoTime();
+        AsyncRedisConnection conn = async();
+        String article = "article:" + articleId;
+        long cutoff = (System.currentTimeMillis() / 1000) - ONE_WEEK_IN_SECONDS;
+        CompletableFuture<Boolean> voted = conn.command("ZSCORE", "time:" + articleId, article).thenCompose(time -> {
+            Double posted = Replies.score(time);
+            if (posted == null || posted < cutoff) {
+                return CompletableFuture.completedFuture(false);
+            }
+            CompletableFuture<Boolean> fresh = VoterFilter.isBloom() ? addVoter(articleId, user)
+                    : conn.command("SADD", "voted:" + articleId, user).thenApply(added -> Replies.integer(added) == 1);
+            return fresh.thenCompose(added -> {
+                if (!added) {
+                    return CompletableFuture.completedFuture(false);
+                }
+                conn.command("ZINCRBY", "score:" + articleId, String.valueOf(VOTE_SCORE), article);
+                conn.command("ZINCRBY", Chapter01.SCORE_RANKING, String.valueOf(VOTE_SCORE), article);
+                conn.command("HINCRBY", ArticleStorage.hashKey(articleId), ArticleStorage.votesField(articleId), "1");
+                // 同步更新文章所在各分组的排名
+                return conn.command("SMEMBERS", Chapter01.GROUPS + articleId).thenCompose(reply -> {
+                    List<String> groups = Replies.strings(reply);
+                    List<CompletableFuture<Object>> replies = new ArrayList<>();
+                    for (String group : groups) {
+                        replies.add(conn.command("ZINCRBY", Chapter01.GROUP_SCORE + group,
+                                String.valueOf(VOTE_SCORE), article));
+                    }
+                    return CompletableFuture.allOf(replies.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+                        // 与 Chapter01.articleVote 相同，把本进程的投票同步到前K名镜像
+                        Chapter01.notifyVote("score:" + articleId, article, 1);
+                        Chapter01.notifyVote(Chapter01.SCORE_RANKING, article, 1);
+                        for (String group : groups) {
+                            Chapter01.notifyVote(Chapter01.GROUP_SCORE + group, article, 1);
+                        }
+                        return true;
+                    });
+                });
+            });
+        });
+        return ARTICLE_VOTE_LATENCY.recordOnCompletion(start, voted);
+    }
+
+    /**
+     * 布隆模式的判重需要WATCH或脚本，不能在共享连接上进行，改在连接池的连接上异步执行
+     */
+    private CompletableFuture<Boolean> addVoter(String articleId, String user) {
+        return CompletableFuture.supplyAsync(() -> {
+            try (RedisLease lease = lease()) {
+                return VoterFilter.add(lease.getConn(), articleId, user);
+            }
+        });
+    }
+
+    /**
+     * 获取一页文章，各文章的读取同时发出
+     *
+     * @param page
+     * @param key
+     * @return
+     */
+    public CompletableFuture<List<Map<String, String>>> getArticles(int page, String key) {
+        AsyncRedisConnection conn = async();
+        int start = (page - 1) * ARTICLES_PER_PAGE;
+        int end = start + ARTICLES_PER_PAGE - 1;
+        return conn.command("ZREVRANGE", key, String.valueOf(start), String.valueOf(end)).thenCompose(ids -> {
+            List<CompletableFuture<Object>> replies = new ArrayList<>();
+            boolean bucketed = ArticleStorage.isBucketed();
+            List<String> members = Replies.strings(ids);
+            for (String member : members) {
+                if (bucketed) {
+                    String articleId = ArticleStorage.idOf(member);
+                    replies.add(conn.command("HMGET", ArticleStorage.hashKey(articleId),
+                            ArticleStorage.recordField(articleId), ArticleStorage.votesField(articleId)));
+                } else {
+                    replies.add(conn.command("HGETALL", member));
+                }
+            }
+            return CompletableFuture.allOf(replies.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+                List<Map<String, String>> articles = new ArrayList<>(replies.size());
+                for (int i = 0; i < replies.size(); i++) {
+                    Object reply = replies.get(i).join();
+                    if (bucketed) {
+                        List<String> values = Replies.strings(reply);
+                        articles.add(ArticleStorage.decode(ArticleStorage.idOf(members.get(i)),
+                                values.get(0), values.get(1)));
+                    } else {
+                        articles.add(Replies.hash(reply));
+                    }
+                }
+                return articles;
+            });
+        });
+    }
+
+    /**
+     * 添加分组，并以文章当前分值加入分组排名
+     * <p>
+     * 需要WATCH分值后重试，不能在共享连接上进行，与布隆判重一样改在连接池的连接上异步执行
+     *
+     * @param articleId
+     * @param groups
+     * @return
+     */
+    public CompletableFuture<Void> addGroups(String articleId, String[] groups) {
+        if (groups.length == 0) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return CompletableFuture.runAsync(() -> {
+            try (RedisLease lease = lease()) {
+                Chapter01.addGroupsWatched(lease.getConn(), articleId, groups);
+            }
+        });
+    }
+
+    /**
+     * 获取组内文章，分组排名随投票增量维护
+     *
+     * @param group
+     * @param page
+     * @return
+     */
+    public CompletableFuture<List<Map<String, String>>> getGroupArticles(String group, int page) {
+        return getArticles(page, Chapter01.GROUP_SCORE + group);
+    }
+}
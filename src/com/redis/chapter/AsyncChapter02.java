@@ -0,0 +1,149 @@
+package com.redis.chapter;
+
+import com.redis.async.AsyncRedisConnection;
+import com.redis.async.Replies;
+import com.redis.common.LatencyHistogram;
+import com.redis.common.Metrics;
+import com.redis.common.RedisHandler;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * {@link Chapter02} 的异步版本：登录令牌、购物车与网页缓存
+ *
+ * @author kqyang
+ */
+public class AsyncChapter02 extends RedisHandler {
+    private static final LatencyHistogram UPDATE_TOKEN_LATENCY = Metrics.operation("updateToken.async");
+    private static final LatencyHistogram CHECK_TOKEN_LATENCY = Metrics.operation("checkToken.async");
+    private static final LatencyHistogram CACHE_REQUEST_LATENCY = Metrics.operation("cacheRequest.async");
+
+    /**
+     * 复用同步版本中与redis无关的请求解析方法
+     */
+    private final Chapter02 pages = new Chapter02();
+
+    /**
+     * 检查token
+     *
+     * @param token
+     * @return 登录用户，未登录为null
+     */
+    public CompletableFuture<String> checkToken(String token) {
+        long start = System.nanoTime();
+        CompletableFuture<String> user = async().command("HGET", LoginStore.hashKey(token), token)
+                .thenApply(Replies::string);
+        if (LoginStore.isMigrating()) {
+            // 桶中没有时再查尚未迁移的 login:
+            user = user.thenCompose(found -> found != null ? CompletableFuture.completedFuture(found)
+                    : async().command("HGET", LoginStore.LOGIN, token).thenApply(Replies::string));
+        }
+        return CHECK_TOKEN_LATENCY.recordOnCompletion(start, user);
+    }
+
+    /**
+     * 更新token，所有命令同时发出
+     *
+     * @param token
+     * @param user
+     * @param item
+     * @return
+     */
+    public CompletableFuture<Void> updateToken(String token, String user, String item) {
+        long start = System.nanoTime();
+        AsyncRedisConnection conn = async();
+        String timestamp = String.valueOf(System.currentTimeMillis() / 1000);
+        List<CompletableFuture<Object>> replies = new ArrayList<>(6);
+        for (String[] command : LoginStore.saveCommands(token, user)) {
+            replies.add(conn.command(command));
+        }
+        replies.add(conn.command("ZADD", "recent:", timestamp, token));
+        if (item != null) {
+            replies.add(conn.command("ZADD", "viewed:" + token, timestamp, item));
+            replies.add(conn.command("ZREMRANGEBYRANK", "viewed:" + token, "0", "-26"));
+            ItemPopularity popularity = ItemPopularity.active();
+            if (popularity != null) {
+                popularity.record(item);
+            } else {
+                replies.add(conn.command("ZINCRBY", "viewed:", "-1", item));
+            }
+        }
+        return UPDATE_TOKEN_LATENCY.recordOnCompletion(start,
+                CompletableFuture.allOf(replies.toArray(new CompletableFuture<?>[0])));
+    }
+
+    /**
+     * 添加商品到购物车，数量小于等于0时移除
+     *
+     * @param session
+     * @param item
+     * @param count
+     * @return
+     */
+    public CompletableFuture<Void> addToCart(String session, String item, int count) {
+        AsyncRedisConnection conn = async();
+        CompletableFuture<Object> reply = count <= 0
+                ? conn.command("HDEL", "cart:" + session, item)
+                : conn.command("HSET", "cart:" + session, item, String.valueOf(count));
+        return reply.thenApply(ignored -> null);
+    }
+
+    /**
+     * 缓存请求
+     * <p>
+     * 回调生成页面可能较慢，放到公共线程池执行，不占用IO线程
+     *
+     * @param request
+     * @param callback
+     * @param token
+     * @return
+     */
+    public CompletableFuture<String> cacheRequest(String request, Chapter02.Callback callback, String token) {
+        long start = System.nanoTime();
+        CompletableFuture<String> content = canCache(request, token).thenCompose(cacheable -> {
+            if (!cacheable) {
+                return CompletableFuture.supplyAsync(() -> callback != null ? callback.call(request) : null);
+            }
+            // 页面以二进制压缩存储，并需要跨进程的生成锁，交给同步版本共用的PageCache
+            return CompletableFuture.supplyAsync(() -> Chapter02.PAGES.get(request, callback));
+        });
+        return CACHE_REQUEST_LATENCY.recordOnCompletion(start, content);
+    }
+
+    /**
+     * 验证是否可以缓存
+     *
+     * @param request
+     * @param token
+     * @return
+     */
+    public CompletableFuture<Boolean> canCache(String request, String token) {
+        Map<String, String> params = new HashMap<>(16);
+        try {
+            URL url = new URL(request);
+            if (url.getQuery() != null) {
+                for (String param : url.getQuery().split("&")) {
+                    String[] pair = param.split("=", 2);
+                    params.put(pair[0], pair.length == 2 ? pair[1] : null);
+                }
+            }
+        } catch (MalformedURLException e) {
+            printer("canCache method exception: " + e.getMessage());
+            return CompletableFuture.completedFuture(false);
+        }
+        String itemId = pages.extractItemId(params);
+        if (itemId == null || pages.isDynamic(params)) {
+            return CompletableFuture.completedFuture(false);
+        }
+        return async().command("ZRANK", "viewed:" + token, itemId).thenApply(rank -> {
+            Long value = Replies.integer(rank);
+            return value != null && value < 10000;
+        });
+    }
+}
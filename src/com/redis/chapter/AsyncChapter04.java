@@ -0,0 +1,68 @@
+package com.redis.chapter;
+
+import com.redis.common.LatencyHistogram;
+import com.redis.common.Metrics;
+import com.redis.common.RedisHandler;
+import com.redis.common.TransactionStats;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * {@link Chapter04} 的异步版本：市场上架与购买
+ * <p>
+ * 多路复用的连接不能使用WATCH（连接上的其他请求会共享同一个监视状态），
+ * 这里直接使用 {@link Chapter04} 中的lua脚本，检查与修改在服务端原子执行。
+ *
+ * @author kqyang
+ */
+public class AsyncChapter04 extends RedisHandler {
+    private static final LatencyHistogram LIST_ITEM_LATENCY = Metrics.operation("listItem.async");
+    private static final LatencyHistogram PURCHASE_ITEM_LATENCY = Metrics.operation("purchaseItem.async");
+
+    /**
+     * 上架商品
+     *
+     * @param itemId
+     * @param sellerId
+     * @param price
+     * @return 库存中没有该商品时为false
+     */
+    public CompletableFuture<Boolean> listItem(String itemId, String sellerId, double price) {
+        long start = System.nanoTime();
+        TransactionStats stats = TransactionStats.of("listItem.async");
+        CompletableFuture<Boolean> listed = async().evalsha(Chapter04.LIST_ITEM,
+                Arrays.asList("inventory:" + sellerId, "market:"),
+                Arrays.asList(itemId, itemId + '.' + sellerId, String.valueOf(price)))
+                .thenApply(reply -> record(stats, reply));
+        return LIST_ITEM_LATENCY.recordOnCompletion(start, listed);
+    }
+
+    /**
+     * 购买商品
+     *
+     * @param buyerId
+     * @param itemId
+     * @param sellerId
+     * @param lprice
+     * @return 商品已下架、价格变化或余额不足时为false
+     */
+    public CompletableFuture<Boolean> purchaseItem(String buyerId, String itemId, String sellerId, double lprice) {
+        long start = System.nanoTime();
+        TransactionStats stats = TransactionStats.of("purchaseItem.async");
+        CompletableFuture<Boolean> purchased = async().evalsha(Chapter04.PURCHASE_ITEM,
+                Arrays.asList("market:", "users:" + buyerId, "users:" + sellerId, "inventory:" + buyerId),
+                Arrays.asList(itemId + "." + sellerId, itemId, String.valueOf(lprice)))
+                .thenApply(reply -> record(stats, reply));
+        return PURCHASE_ITEM_LATENCY.recordOnCompletion(start, purchased);
+    }
+
+    private static boolean record(TransactionStats stats, Object reply) {
+        if (Long.valueOf(1).equals(reply)) {
+            stats.commit();
+            return true;
+        }
+        stats.reject();
+        return false;
+    }
+}
@@ -0,0 +1,144 @@
+package com.redis.chapter;
+
+import com.google.gson.Gson;
+import com.redis.async.AsyncRedisConnection;
+import com.redis.async.Replies;
+import com.redis.common.LatencyHistogram;
+import com.redis.common.Metrics;
+import com.redis.common.RedisHandler;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * {@link Chapter05} 的异步版本：日志、计数器与IP所属城市查询
+ *
+ * @author kqyang
+ */
+public class AsyncChapter05 extends RedisHandler {
+    private static final LatencyHistogram LOG_RECENT_LATENCY = Metrics.operation("logRecent.async");
+    private static final LatencyHistogram LOG_COMMON_LATENCY = Metrics.operation("logCommon.async");
+    private static final LatencyHistogram UPDATE_COUNTER_LATENCY = Metrics.operation("updateCounter.async");
+
+    /**
+     * 复用同步版本中与redis无关的计算方法
+     */
+    private final Chapter05 logs = new Chapter05();
+
+    public CompletableFuture<Void> logRecent(String name, String message) {
+        return logRecent(name, message, INFO);
+    }
+
+    /**
+     * 最近日志，只保留一百条
+     *
+     * @param name
+     * @param message
+     * @param severity
+     * @return
+     */
+    public CompletableFuture<Void> logRecent(String name, String message, String severity) {
+        long start = System.nanoTime();
+        AsyncRedisConnection conn = async();
+        String destination = "recent:" + name + ":" + severity;
+        conn.command("LPUSH", destination, Chapter05.TIMESTAMP.format(new Date()) + ' ' + message);
+        return LOG_RECENT_LATENCY.recordOnCompletion(start,
+                conn.command("LTRIM", destination, "0", "99").thenApply(ignored -> null));
+    }
+
+    public CompletableFuture<Void> logCommon(String name, String message) {
+        return logCommon(name, message, INFO);
+    }
+
+    /**
+     * 常见日志，使用 {@link Chapter05} 的脚本归档与计数，不需要WATCH
+     *
+     * @param name
+     * @param message
+     * @param severity
+     * @return
+     */
+    public CompletableFuture<Void> logCommon(String name, String message, String severity) {
+        long start = System.nanoTime();
+        String commonDest = "common:" + name + ":" + severity;
+        CompletableFuture<Object> reply = async().evalsha(Chapter05.LOG_COMMON,
+                Arrays.asList(commonDest, commonDest + ":start", "recent:" + name + ":" + severity,
+                        commonDest + ":last", commonDest + ":pstart"),
+                Arrays.asList(Chapter05.ISO_FORMAT.format(new Date()), message,
+                        Chapter05.TIMESTAMP.format(new Date()) + ' ' + message));
+        return LOG_COMMON_LATENCY.recordOnCompletion(start, reply.thenApply(ignored -> null));
+    }
+
+    public CompletableFuture<Void> updateCounter(String name, int count) {
+        return updateCounter(name, count, System.currentTimeMillis() / 1000);
+    }
+
+    /**
+     * 更新计数器，各精度的更新在一个事务中提交
+     *
+     * @param name
+     * @param count
+     * @param now
+     * @return
+     */
+    public CompletableFuture<Void> updateCounter(String name, int count, long now) {
+        long start = System.nanoTime();
+        List<String[]> commands = new ArrayList<>(Chapter05.PRECISION.length * 2);
+        for (int prec : Chapter05.PRECISION) {
+            long pnow = (now / prec) * prec;
+            String precMember = String.valueOf(prec) + ':' + name;
+            commands.add(new String[]{"ZADD", "known:", "0", precMember});
+            commands.add(new String[]{"HINCRBY", "count:" + precMember, String.valueOf(pnow), String.valueOf(count)});
+        }
+        return UPDATE_COUNTER_LATENCY.recordOnCompletion(start,
+                async().transaction(commands).thenApply(ignored -> null));
+    }
+
+    /**
+     * 获取时间片内页面点击次数，按时间戳排序
+     * <p>
+     * 与 {@link Chapter05} 不同，结果用 {@link Map.Entry}（键为时间戳，值为次数）表示，不依赖javafx
+     *
+     * @param name
+     * @param precision
+     * @return
+     */
+    public CompletableFuture<List<Map.Entry<Integer, Integer>>> getCounter(String name, int precision) {
+        String precMember = String.valueOf(precision) + ":" + name;
+        return async().command("HGETALL", "count:" + precMember).thenApply(reply -> {
+            List<Map.Entry<Integer, Integer>> results = new ArrayList<>(32);
+            for (Map.Entry<String, String> entry : Replies.hash(reply).entrySet()) {
+                results.add(new AbstractMap.SimpleImmutableEntry<>(Integer.parseInt(entry.getKey()),
+                        Integer.parseInt(entry.getValue())));
+            }
+            results.sort(Map.Entry.comparingByKey());
+            return results;
+        });
+    }
+
+    /**
+     * 通过IP查找城市信息
+     *
+     * @param ipAddress
+     * @return 城市信息，找不到时为null
+     */
+    public CompletableFuture<String[]> findCityByIp(String ipAddress) {
+        AsyncRedisConnection conn = async();
+        String score = String.valueOf(logs.ipToScore(ipAddress));
+        return conn.command("ZREVRANGEBYSCORE", "ip2CityId:", score, "0", "LIMIT", "0", "1").thenCompose(ids -> {
+            List<String> results = Replies.strings(ids);
+            if (results.isEmpty()) {
+                return CompletableFuture.completedFuture(null);
+            }
+            String cityId = results.get(0);
+            cityId = cityId.substring(0, cityId.indexOf('_'));
+            return conn.command("HGET", "cityId2City:", cityId)
+                    .thenApply(city -> new Gson().fromJson(Replies.string(city), String[].class));
+        });
+    }
+}
@@ -0,0 +1,74 @@
+package com.redis.chapter;
+
+import com.redis.async.Replies;
+import com.redis.common.RedisHandler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * {@link Chapter06} 的异步版本：最近联系人与公会成员
+ *
+ * @author kqyang
+ */
+public class AsyncChapter06 extends RedisHandler {
+
+    /**
+     * 添加公会成员
+     *
+     * @param guild
+     * @param user
+     * @return
+     */
+    public CompletableFuture<Void> joinGuild(String guild, String user) {
+        return async().command("ZADD", "members:" + guild, "0", user).thenApply(ignored -> null);
+    }
+
+    /**
+     * 添加或更新最近联系人，移除、插入与裁剪在一个事务中执行
+     *
+     * @param user
+     * @param contact
+     * @return
+     */
+    public CompletableFuture<Void> addUpdateContact(String user, String contact) {
+        String acList = "recent:" + user;
+        return async().transaction(Arrays.asList(
+                new String[]{"LREM", acList, "0", contact},
+                new String[]{"LPUSH", acList, contact},
+                new String[]{"LTRIM", acList, "0", "99"}))
+                .thenApply(ignored -> null);
+    }
+
+    /**
+     * 移除一个最近联系人
+     *
+     * @param user
+     * @param contact
+     * @return
+     */
+    public CompletableFuture<Void> removeContact(String user, String contact) {
+        return async().command("LREM", "recent:" + user, "0", contact).thenApply(ignored -> null);
+    }
+
+    /**
+     * 获取匹配前缀的列表
+     *
+     * @param user
+     * @param prefix
+     * @return
+     */
+    public CompletableFuture<List<String>> fetchAutocompleteList(String user, String prefix) {
+        return async().command("LRANGE", "recent:" + user, "0", "-1").thenApply(reply -> {
+            List<String> matches = new ArrayList<>(32);
+            for (String candidate : Replies.strings(reply)) {
+                if (candidate.toLowerCase().startsWith(prefix)) {
+                    matches.add(candidate);
+                }
+            }
+            return matches;
+        });
+    }
+}
@@ -1,16 +1,98 @@
 package com.redis.chapter;
 
+import com.redis.common.AutoPipeline;
+import com.redis.common.LatencyHistogram;
+import com.redis.common.Metrics;
 import com.redis.common.RedisHandler;
+import com.redis.common.RedisLease;
+import com.redis.common.ShardedPipeline;
+import com.redis.common.ShardedRedis;
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.Transaction;
+import redis.clients.jedis.Tuple;
 import redis.clients.jedis.ZParams;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 
 public class Chapter01 extends RedisHandler {
-    private static final Jedis conn = getConn();
     private static final int ONE_WEEK_IN_SECONDS = 7 * 86400;
     private static final int VOTE_SCORE = 432;
     private static final int ARTICLES_PER_PAGE = 25;
+    private static final LatencyHistogram POST_ARTICLE_LATENCY = Metrics.operation("postArticle");
+    private static final LatencyHistogram ARTICLE_VOTE_LATENCY = Metrics.operation("articleVote");
+    private static final LatencyHistogram POST_ARTICLES_LATENCY = Metrics.operation("postArticles");
+    private static final int POST_BATCH_SIZE = 1000;
+    static final ArticlePageLoader PAGES = new ArticlePageLoader();
+    private static final ArticleSearch SEARCH = new ArticleSearch();
+    private static final ArticleFeed FEED = new ArticleFeed();
+    /**
+     * 文章所属的分组
+     */
+    static final String GROUPS = "groups:";
+    /**
+     * 分组内按分值的排名
+     */
+    static final String GROUP_SCORE = "score:group:";
+    /**
+     * 全部文章按分值、按发表时间的排名，与检索索引一起放在默认节点，供检索排序与首页列表使用
+     */
+    public static final String SCORE_RANKING = "score:";
+    public static final String TIME_RANKING = "time:";
+    private static volatile TopArticles topArticles;
+
+    /**
+     * 在本地镜像排名key的前pages页，之后这几页的 {@link #getArticles(int, String)} 不访问redis
+     *
+     * @param key            排名有序集合
+     * @param pages          镜像的页数
+     * @param maxStaleMillis 允许的最大陈旧时间
+     * @return
+     */
+    public static synchronized TopArticles mirrorTopArticles(String key, int pages, long maxStaleMillis) {
+        stopMirroringTopArticles();
+        topArticles = new TopArticles(key, pages * ARTICLES_PER_PAGE, maxStaleMillis);
+        return topArticles;
+    }
+
+    public static synchronized void stopMirroringTopArticles() {
+        if (topArticles != null) {
+            topArticles.close();
+            topArticles = null;
+        }
+    }
+
+    /**
+     * 把本进程的投票同步到镜像
+     *
+     * @param rankingKey
+     * @param article
+     * @param votes
+     */
+    static void notifyVote(String rankingKey, String article, long votes) {
+        TopArticles mirror = topArticles;
+        if (mirror != null) {
+            mirror.onVote(rankingKey, article, (double) VOTE_SCORE * votes, votes);
+        }
+    }
+
+    /**
+     * 启用分片，文章的各个键（散列、投票集合、score:id、time:id、groups:id）按文章id同在一个节点，
+     * 分组的键（group:组名、score:group:组名以及getGroupArticles缓存的交集）按组名同在一个节点
+     * <p>
+     * 投票与加组需要同时更新文章节点与分组节点，分片时两者不在同一事务中，并发时分组排名可能有一票偏差，
+     * 可用 {@link #rebuildGroupScores(String)} 校正。全局排名（{@link #SCORE_RANKING}、{@link #TIME_RANKING}）、
+     * 检索索引、关注时间线与异步接口（AsyncChapter01）不参与分片，仍使用默认节点。
+     *
+     * @param sharded 尚未写入数据的分片
+     */
+    public static void shardArticles(ShardedRedis sharded) {
+        sharded.colocateBySuffix(ArticleStorage.ARTICLE, VoterFilter.VOTED, VoterFilter.BLOOM, VoterFilter.VOTERS,
+                "score:", "time:", GROUPS, "group:", GROUP_SCORE);
+        useShards(sharded);
+    }
 
     public static void main(String[] args) {
         new Chapter01().run();
@@ -26,7 +108,7 @@ public class Chapter01 extends RedisHandler {
         /*
          * 获取文章详情
          */
-        Map<String, String> articleData = conn.hgetAll("article:" + articleId);
+        Map<String, String> articleData = getArticle(articleId);
         for (Map.Entry<String, String> entry : articleData.entrySet()) {
             printer(entry.getKey() + ":" + entry.getValue());
         }
@@ -36,14 +118,14 @@ public class Chapter01 extends RedisHandler {
          * b.打印投票数
          */
         articleVote("other_user", articleId);
-        String votes = conn.hget("article:" + articleId, "votes");
+        String votes = getArticle(articleId).get("votes");
         printer("We voted for the article, it now has votes:" + votes);
         assert Integer.parseInt(votes) > 1;
         /*
          * 打印文章列表
          */
         printer("The current highest-scoring articles are:");
-        List<Map<String, String>> articles = getArticles(1, "score:" + articleId);
+        List<Map<String, String>> articles = getArticles(1, SCORE_RANKING);
         printArticles(articles);
         assert articles.size() >= 1;
         /*
@@ -68,14 +150,113 @@ public class Chapter01 extends RedisHandler {
      * @return
      */
     public String postArticle(String user, String title, String link) {
-        String articleId = String.valueOf(conn.incr("article:"));
+        long start = System.nanoTime();
+        try {
+            String articleId;
+            try (RedisLease lease = leaseFor(ArticleStorage.ARTICLE)) {
+                articleId = String.valueOf(lease.getConn().incr(ArticleStorage.ARTICLE));
+            }
+            try (ShardedPipeline pipes = new ShardedPipeline()) {
+                writeArticle(pipes, articleId, user, title, link, System.currentTimeMillis() / 1000);
+                pipes.sync();
+            }
+            if (VoterFilter.isBloom()) {
+                // 布隆模式需要先读位图，不能放进流水线
+                try (RedisLease lease = leaseFor(VoterFilter.BLOOM + articleId, VoterFilter.VOTERS + articleId)) {
+                    VoterFilter.add(lease.getConn(), articleId, user);
+                }
+            }
+            return articleId;
+        } finally {
+            POST_ARTICLE_LATENCY.recordSince(start);
+        }
+    }
+
+    /**
+     * 批量发表文章，用于回填与导入
+     *
+     * @param articles 每项包含 user、title、link
+     * @return 发表的文章数
+     */
+    public long postArticles(Iterable<Map<String, String>> articles) {
+        return postArticles(articles, POST_BATCH_SIZE);
+    }
+
+    /**
+     * 批量发表文章
+     * <p>
+     * 按批消费输入，每批用一次INCRBY预留一段连续id，整批的散列、投票集合与有序集合写入放进同一个流水线，
+     * 内存占用只与批大小有关。完成后打印每秒发表的文章数。
+     *
+     * @param articles  每项包含 user、title、link，可以是按需生成的序列
+     * @param batchSize 每批文章数
+     * @return 发表的文章数
+     */
+    public long postArticles(Iterable<Map<String, String>> articles, int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize must be positive");
+        }
+        long begin = System.nanoTime();
+        long posted = 0;
+        List<Map<String, String>> batch = new ArrayList<>(batchSize);
+        for (Map<String, String> article : articles) {
+            batch.add(article);
+            if (batch.size() == batchSize) {
+                posted += postBatch(batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            posted += postBatch(batch);
+        }
+        long elapsed = System.nanoTime() - begin;
+        printer(String.format("posted %d articles in %d ms, %.0f articles/s", posted, elapsed / 1000000,
+                posted * 1e9 / Math.max(1, elapsed)));
+        return posted;
+    }
+
+    private long postBatch(List<Map<String, String>> batch) {
+        long start = System.nanoTime();
+        try {
+            // 预留 [first, last] 一段id，并发的批量与单篇发表互不重叠
+            long last;
+            try (RedisLease lease = leaseFor(ArticleStorage.ARTICLE)) {
+                last = lease.getConn().incrBy(ArticleStorage.ARTICLE, batch.size());
+            }
+            long first = last - batch.size() + 1;
+            long now = System.currentTimeMillis() / 1000;
+            // 分片时每个节点一条流水线
+            try (ShardedPipeline pipes = new ShardedPipeline()) {
+                for (int i = 0; i < batch.size(); i++) {
+                    Map<String, String> article = batch.get(i);
+                    writeArticle(pipes, String.valueOf(first + i), article.get("user"), article.get("title"),
+                            article.get("link"), now);
+                }
+                pipes.sync();
+            }
+            if (VoterFilter.isBloom()) {
+                for (int i = 0; i < batch.size(); i++) {
+                    String articleId = String.valueOf(first + i);
+                    try (RedisLease lease = leaseFor(VoterFilter.BLOOM + articleId, VoterFilter.VOTERS + articleId)) {
+                        VoterFilter.add(lease.getConn(), articleId, batch.get(i).get("user"));
+                    }
+                }
+            }
+            return batch.size();
+        } finally {
+            POST_ARTICLES_LATENCY.recordSince(start);
+        }
+    }
+
+    /**
+     * 把一篇文章的全部写入加入所在节点的流水线
+     */
+    private static void writeArticle(ShardedPipeline pipes, String articleId, String user, String title, String link,
+                                     long now) {
         /*
          * 以投票id为键user为值，添加到set集合，并设置投票过期时间（一周）
          */
-        String voted = "voted:" + articleId;
-        conn.sadd(voted, user);
-        conn.expire(voted, ONE_WEEK_IN_SECONDS);
-        long now = System.currentTimeMillis() / 1000;
+        VoterFilter.init(pipes.of(VoterFilter.VOTED + articleId), articleId, user);
         String articleKey = "article:" + articleId;
         /*
          * a.生成文章属性
@@ -88,32 +269,156 @@ public class Chapter01 extends RedisHandler {
         articleData.put("user", user);
         articleData.put("now", String.valueOf(now));
         articleData.put("votes", "1");
-        conn.hmset(articleKey, articleData);
+        ArticleStorage.save(pipes.of(ArticleStorage.hashKey(articleId)), articleId, articleData);
         /*
          * 将文章投票分数和投票时间添加到zset中
          */
-        conn.zadd("score:" + articleId, now + VOTE_SCORE, articleKey);
-        conn.zadd("time:" + articleId, now, articleKey);
-        return articleId;
+        pipes.of("score:" + articleId).zadd("score:" + articleId, now + VOTE_SCORE, articleKey);
+        pipes.of("time:" + articleId).zadd("time:" + articleId, now, articleKey);
+        pipes.local().zadd(SCORE_RANKING, now + VOTE_SCORE, articleKey);
+        pipes.local().zadd(TIME_RANKING, now, articleKey);
+        /*
+         * 标题分词写入倒排索引，见 ArticleSearch
+         */
+        ArticleSearch.index(pipes.local(), articleKey, title);
+        if (ArticleFeed.isEnabled()) {
+            // 写入作者时间线，关注者的时间线由后台扩散
+            ArticleFeed.publish(pipes.local(), user, articleKey, now);
+        }
     }
 
     /**
      * 文章投票
+     * <p>
+     * 每票四次往返，热门文章的大量投票应交给 {@link VoteAggregator} 批量写入
      *
      * @param user
      * @param articleId
      */
     public void articleVote(String user, String articleId) {
-        // 验证文章投票时间是否过期
+        long start = System.nanoTime();
+        try {
+            if (shards() != null) {
+                voteSharded(user, articleId);
+                return;
+            }
+            AutoPipeline pipeline = autoPipeline();
+            String article = "article:" + articleId;
+            // 验证文章投票时间是否过期
+            long cutoff = (System.currentTimeMillis() / 1000) - ONE_WEEK_IN_SECONDS;
+            if (pipeline.submit(pipe -> pipe.zscore("time:" + articleId, article)).join() < cutoff) {
+                printer("此次投票已超出该文章 [" + article + "]投票截止日期，投票失败!");
+                return;
+            }
+            if (addVoter(pipeline, articleId, user)) {
+                List<CompletableFuture<?>> writes = new ArrayList<>();
+                writes.add(pipeline.submit(pipe -> pipe.zincrby("score:" + articleId, VOTE_SCORE, article)));
+                writes.add(pipeline.submit(pipe -> pipe.zincrby(SCORE_RANKING, VOTE_SCORE, article)));
+                CompletableFuture<Set<String>> groups = pipeline.submit(pipe -> pipe.smembers(GROUPS + articleId));
+                writes.add(pipeline.submit(pipe -> ArticleStorage.incrVotes(pipe, articleId, 1)));
+                // 同步更新文章所在各分组的排名
+                Set<String> articleGroups = groups.join();
+                for (String group : articleGroups) {
+                    writes.add(pipeline.submit(pipe -> pipe.zincrby(GROUP_SCORE + group, VOTE_SCORE, article)));
+                }
+                // 等待全部回复，任何一条命令出错都会抛出
+                CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0])).join();
+                notifyVote("score:" + articleId, article, 1);
+                notifyVote(SCORE_RANKING, article, 1);
+                for (String group : articleGroups) {
+                    notifyVote(GROUP_SCORE + group, article, 1);
+                }
+                printer("投票成功!");
+            }
+        } finally {
+            ARTICLE_VOTE_LATENCY.recordSince(start);
+        }
+    }
+
+    /**
+     * 分片时的投票：自动流水线只连接默认节点，改为在文章所在节点判重计分，再按节点更新散列票数与分组排名
+     */
+    private void voteSharded(String user, String articleId) {
+        String article = "article:" + articleId;
         long cutoff = (System.currentTimeMillis() / 1000) - ONE_WEEK_IN_SECONDS;
-        if (conn.zscore("time:" + articleId, "article:" + articleId) < cutoff) {
-            printer("此次投票已超出该文章 [article:" + articleId + "]投票截止日期，投票失败!");
-            return;
+        Set<String> groups;
+        try (RedisLease lease = leaseFor("time:" + articleId, "score:" + articleId, GROUPS + articleId,
+                VoterFilter.VOTED + articleId)) {
+            Jedis conn = lease.getConn();
+            if (conn.zscore("time:" + articleId, article) < cutoff) {
+                printer("此次投票已超出该文章 [" + article + "]投票截止日期，投票失败!");
+                return;
+            }
+            if (!VoterFilter.add(conn, articleId, user)) {
+                return;
+            }
+            Pipeline pipe = conn.pipelined();
+            pipe.zincrby("score:" + articleId, VOTE_SCORE, article);
+            Response<Set<String>> members = pipe.smembers(GROUPS + articleId);
+            pipe.sync();
+            groups = members.get();
+        }
+        addVotesSharded(articleId, groups, 1);
+        notifyVote("score:" + articleId, article, 1);
+        notifyVote(SCORE_RANKING, article, 1);
+        for (String group : groups) {
+            notifyVote(GROUP_SCORE + group, article, 1);
+        }
+        printer("投票成功!");
+    }
+
+    /**
+     * 分片时把票数计入文章散列、各分组排名与全局排名，它们可能不在文章所在节点，按节点用流水线写入
+     *
+     * @param articleId
+     * @param groups    文章所在的分组
+     * @param votes
+     */
+    static void addVotesSharded(String articleId, Set<String> groups, long votes) {
+        String article = "article:" + articleId;
+        try (ShardedPipeline pipes = new ShardedPipeline()) {
+            ArticleStorage.incrVotes(pipes.of(ArticleStorage.hashKey(articleId)), articleId, votes);
+            for (String group : groups) {
+                pipes.of(GROUP_SCORE + group).zincrby(GROUP_SCORE + group, (double) VOTE_SCORE * votes, article);
+            }
+            pipes.local().zincrby(SCORE_RANKING, (double) VOTE_SCORE * votes, article);
+            pipes.sync();
+        }
+    }
+
+    /**
+     * 记录投票用户，精确集合模式走自动流水线，布隆模式见 {@link VoterFilter}
+     */
+    private boolean addVoter(AutoPipeline pipeline, String articleId, String user) {
+        if (!VoterFilter.isBloom()) {
+            return pipeline.submit(pipe -> pipe.sadd(VoterFilter.VOTED + articleId, user)).join() == 1;
+        }
+        try (RedisLease lease = lease()) {
+            return VoterFilter.add(lease.getConn(), articleId, user);
+        }
+    }
+
+    /**
+     * 投票人数，布隆模式下为估计值
+     *
+     * @param articleId
+     * @return
+     */
+    public long getVoterCount(String articleId) {
+        try (RedisLease lease = leaseFor((VoterFilter.isBloom() ? VoterFilter.VOTERS : VoterFilter.VOTED) + articleId)) {
+            return VoterFilter.voterCount(lease.getConn(), articleId);
         }
-        if (conn.sadd("voted:" + articleId, user) == 1) {
-            conn.zincrby("score:" + articleId, VOTE_SCORE, "article:" + articleId);
-            conn.hincrBy("article:" + articleId, "votes", 1);
-            printer("投票成功!");
+    }
+
+    /**
+     * 获取一篇文章
+     *
+     * @param articleId
+     * @return 文章不存在时为空散列
+     */
+    public Map<String, String> getArticle(String articleId) {
+        try (RedisLease lease = leaseFor(ArticleStorage.hashKey(articleId))) {
+            return ArticleStorage.load(lease.getConn(), articleId);
         }
     }
 
@@ -136,16 +441,81 @@ public class Chapter01 extends RedisHandler {
      * @return
      */
     public List<Map<String, String>> getArticles(int page, String key, String articleId) {
+        TopArticles mirror = topArticles;
+        if (mirror != null) {
+            int start = (page - 1) * ARTICLES_PER_PAGE;
+            List<Map<String, String>> articles = mirror.range(key, start, start + ARTICLES_PER_PAGE - 1);
+            if (articles != null) {
+                return articles;
+            }
+        }
+        return getArticlePage(page, key).toMaps();
+    }
+
+    /**
+     * 获取一页文章，id页与文章散列一次往返取回
+     *
+     * @param page
+     * @param key
+     * @param fields 页面需要的字段，为空时取全部字段
+     * @return
+     */
+    public ArticlePage getArticlePage(int page, String key, String... fields) {
         int start = (page - 1) * ARTICLES_PER_PAGE;
         int end = start + ARTICLES_PER_PAGE - 1;
-        // 按照分值排序
-        Set<String> articleIds = conn.zrevrange(key, start, end);
-        List<Map<String, String>> articles = new LinkedList<>();
-        for (String id : articleIds) {
-            Map<String, String> articleData = conn.hgetAll(id);
-            articles.add(articleData);
-        }
-        return articles;
+        return PAGES.load(key, start, end, fields);
+    }
+
+    /**
+     * 游标分页：从上一页末尾继续取一页，适合无限滚动，任意深度的代价相同，翻页期间的投票不会让页面错位
+     *
+     * @param key
+     * @param cursor 上一页的 {@link ArticlePage#getNextCursor()}，null表示第一页
+     * @param fields 页面需要的字段，为空时取全部字段
+     * @return 下一页游标为null时已到末尾
+     */
+    public ArticlePage getArticlesAfter(String key, String cursor, String... fields) {
+        return PAGES.loadAfter(key, cursor, ARTICLES_PER_PAGE, fields);
+    }
+
+    /**
+     * 组内文章的游标分页，按分组排名（score:group:组名）
+     *
+     * @param group
+     * @param cursor
+     * @param fields
+     * @return
+     */
+    public ArticlePage getGroupArticlesAfter(String group, String cursor, String... fields) {
+        return getArticlesAfter(GROUP_SCORE + group, cursor, fields);
+    }
+
+    /**
+     * 按标题检索文章，结果按排名有序集合排序
+     *
+     * @param query   查询语句，语法见 {@link ArticleSearch}
+     * @param sortKey 排序用的全局排名 {@link #SCORE_RANKING} 或 {@link #TIME_RANKING}，
+     *                或其他与检索索引同在默认节点、成员为 article:id 的有序集合
+     * @param page
+     * @return
+     */
+    public List<Map<String, String>> searchArticles(String query, String sortKey, int page) {
+        int start = (page - 1) * ARTICLES_PER_PAGE;
+        ArticleSearch.Result result = SEARCH.search(query, sortKey, start, start + ARTICLES_PER_PAGE - 1);
+        return PAGES.loadArticles(result.getIds());
+    }
+
+    /**
+     * 首页时间线中的一页文章：一次ZREVRANGE取文章键，再读取文章
+     *
+     * @param user
+     * @param page
+     * @return
+     */
+    public List<Map<String, String>> getHomeArticles(String user, int page) {
+        int start = (page - 1) * ARTICLES_PER_PAGE;
+        List<String> ids = FEED.homeTimeline(user, start, start + ARTICLES_PER_PAGE - 1);
+        return PAGES.loadArticles(ids);
     }
 
     /**
@@ -167,14 +537,151 @@ public class Chapter01 extends RedisHandler {
 
     /**
      * 添加分组
+     * <p>
+     * 同时记录文章所属分组（groups:id），并以文章当前分值加入分组排名（score:group:组名），
+     * 之后的投票直接更新分组排名，读取分组文章无需再求交集
      *
      * @param articleId
      * @param groups
      */
     public void addGroups(String articleId, String[] groups) {
+        if (groups.length == 0) {
+            return;
+        }
+        if (shards() != null) {
+            addGroupsSharded(articleId, groups);
+            return;
+        }
+        try (RedisLease lease = lease()) {
+            addGroupsWatched(lease.getConn(), articleId, groups);
+        }
+    }
+
+    /**
+     * 在单个节点上添加分组，AsyncChapter01.addGroups 也在连接池的连接上调用
+     *
+     * @param conn
+     * @param articleId
+     * @param groups
+     */
+    static void addGroupsWatched(Jedis conn, String articleId, String[] groups) {
+        String article = "article:" + articleId;
+        String score = "score:" + articleId;
+        while (true) {
+            // 读取分值与加入排名之间有投票时重试，避免漏记这一票
+            conn.watch(score);
+            Double current = conn.zscore(score, article);
+            Transaction trans = conn.multi();
+            trans.sadd(GROUPS + articleId, groups);
+            for (String group : groups) {
+                trans.sadd("group:" + group, article);
+                if (current != null) {
+                    trans.zadd(GROUP_SCORE + group, current, article);
+                }
+            }
+            List<Object> results = trans.exec();
+            if (results != null && !results.isEmpty()) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 分片时先在文章节点记录分组并读取分值，再在各分组节点加入排名；
+     * 两步之间的投票可能被分组排名漏记，见 {@link #shardArticles(ShardedRedis)}
+     */
+    private void addGroupsSharded(String articleId, String[] groups) {
         String article = "article:" + articleId;
+        Double current;
+        try (RedisLease lease = leaseFor(GROUPS + articleId, "score:" + articleId)) {
+            Pipeline pipe = lease.getConn().pipelined();
+            pipe.sadd(GROUPS + articleId, groups);
+            Response<Double> score = pipe.zscore("score:" + articleId, article);
+            pipe.sync();
+            current = score.get();
+        }
         for (String group : groups) {
-            conn.sadd("group:" + group, article);
+            try (RedisLease lease = leaseFor("group:" + group, GROUP_SCORE + group)) {
+                Transaction trans = lease.getConn().multi();
+                trans.sadd("group:" + group, article);
+                if (current != null) {
+                    trans.zadd(GROUP_SCORE + group, current, article);
+                }
+                trans.exec();
+            }
+        }
+    }
+
+    /**
+     * 移除分组
+     *
+     * @param articleId
+     * @param groups
+     */
+    public void removeGroups(String articleId, String[] groups) {
+        if (groups.length == 0) {
+            return;
+        }
+        String article = "article:" + articleId;
+        if (shards() != null) {
+            try (RedisLease lease = leaseFor(GROUPS + articleId)) {
+                lease.getConn().srem(GROUPS + articleId, groups);
+            }
+            for (String group : groups) {
+                try (RedisLease lease = leaseFor("group:" + group, GROUP_SCORE + group)) {
+                    Transaction trans = lease.getConn().multi();
+                    trans.srem("group:" + group, article);
+                    trans.zrem(GROUP_SCORE + group, article);
+                    trans.exec();
+                }
+            }
+            return;
+        }
+        try (RedisLease lease = lease()) {
+            Jedis conn = lease.getConn();
+            Transaction trans = conn.multi();
+            trans.srem(GROUPS + articleId, groups);
+            for (String group : groups) {
+                trans.srem("group:" + group, article);
+                trans.zrem(GROUP_SCORE + group, article);
+            }
+            trans.exec();
+        }
+    }
+
+    /**
+     * 按组内各文章的当前分值重建分组排名
+     * <p>
+     * 用于导入增量维护之前已存在的分组，或校正并发投票与加组时可能出现的一票偏差
+     *
+     * @param group
+     */
+    public void rebuildGroupScores(String group) {
+        try (RedisLease lease = leaseFor("group:" + group, GROUP_SCORE + group)) {
+            Jedis conn = lease.getConn();
+            Set<String> articles = conn.smembers("group:" + group);
+            Map<String, Response<Double>> scores = new HashMap<>(articles.size());
+            // 分片时各文章的键在各自的节点上
+            try (ShardedPipeline pipes = new ShardedPipeline()) {
+                for (String article : articles) {
+                    String articleId = article.substring(article.indexOf(':') + 1);
+                    pipes.of(GROUPS + articleId).sadd(GROUPS + articleId, group);
+                    scores.put(article, pipes.of("score:" + articleId).zscore("score:" + articleId, article));
+                }
+                pipes.sync();
+            }
+            Map<String, Double> members = new HashMap<>(scores.size());
+            for (Map.Entry<String, Response<Double>> entry : scores.entrySet()) {
+                if (entry.getValue().get() != null) {
+                    members.put(entry.getKey(), entry.getValue().get());
+                }
+            }
+            Transaction trans = conn.multi();
+            trans.del(GROUP_SCORE + group);
+            if (!members.isEmpty()) {
+                trans.zadd(GROUP_SCORE + group, members);
+            }
+            trans.exec();
         }
     }
 
@@ -200,15 +707,69 @@ public class Chapter01 extends RedisHandler {
      * @return
      */
     public List<Map<String, String>> getGroupArticles(String group, int page, String score, String articleId) {
+        if ("score:".equals(score)) {
+            // 分值排名随投票增量维护
+            return getArticles(page, GROUP_SCORE + group);
+        }
         String key = score + group;
-        if (!conn.exists(key)) {
-            /*
-             * 取两集合交集，并生成新的集合
-             */
-            ZParams zParams = new ZParams().aggregate(ZParams.Aggregate.MAX);
-            conn.zinterstore(key, zParams, "group:" + group, score + articleId);
-            conn.expire(key, 60);
+        try (RedisLease lease = leaseFor(key, "group:" + group)) {
+            Jedis conn = lease.getConn();
+            if (!conn.exists(key)) {
+                if (sameShard(key, score + articleId)) {
+                    /*
+                     * 取两集合交集，并生成新的集合
+                     */
+                    ZParams zParams = new ZParams().aggregate(ZParams.Aggregate.MAX);
+                    conn.zinterstore(key, zParams, "group:" + group, score + articleId);
+                } else {
+                    intersectAcross(conn, key, "group:" + group, score + articleId);
+                }
+                conn.expire(key, 60);
+            }
         }
         return getArticles(page, key);
     }
+
+    /**
+     * 租用排名有序集合所在节点的连接，全局排名在默认节点，其余按键路由
+     *
+     * @param key
+     * @return
+     */
+    static RedisLease leaseRanking(String key) {
+        return SCORE_RANKING.equals(key) || TIME_RANKING.equals(key) ? lease() : leaseFor(key);
+    }
+
+    /**
+     * 两个键是否在同一节点，未启用分片时总是
+     */
+    private static boolean sameShard(String key, String other) {
+        ShardedRedis sharded = shards();
+        return sharded == null || sharded.shardFor(key).equals(sharded.shardFor(other));
+    }
+
+    /**
+     * 有序集合在其他节点时，在客户端求与分组集合的交集（分值取MAX，与ZINTERSTORE相同），写入conn所在节点的dest
+     */
+    private static void intersectAcross(Jedis conn, String dest, String group, String sorted) {
+        Set<Tuple> members;
+        try (RedisLease lease = leaseFor(sorted)) {
+            members = lease.getConn().zrangeWithScores(sorted, 0, -1);
+        }
+        Pipeline pipe = conn.pipelined();
+        Map<Tuple, Response<Boolean>> found = new LinkedHashMap<>(members.size());
+        for (Tuple tuple : members) {
+            found.put(tuple, pipe.sismember(group, tuple.getElement()));
+        }
+        pipe.sync();
+        Map<String, Double> scores = new HashMap<>(found.size());
+        for (Map.Entry<Tuple, Response<Boolean>> entry : found.entrySet()) {
+            if (entry.getValue().get()) {
+                scores.put(entry.getKey().getElement(), Math.max(1, entry.getKey().getScore()));
+            }
+        }
+        if (!scores.isEmpty()) {
+            conn.zadd(dest, scores);
+        }
+    }
 }
\ No newline at end of file
@@ -1,16 +1,24 @@
 package com.redis.chapter;
 
 import com.google.gson.Gson;
+import com.redis.common.AutoPipeline;
+import com.redis.common.LatencyHistogram;
+import com.redis.common.Metrics;
 import com.redis.common.RedisHandler;
+import com.redis.common.RedisLease;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.Tuple;
 
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 
 public class Chapter02 extends RedisHandler {
-    private static final Jedis conn = getConn();
+    private static final LatencyHistogram UPDATE_TOKEN_LATENCY = Metrics.operation("updateToken");
+    private static final LatencyHistogram CHECK_TOKEN_LATENCY = Metrics.operation("checkToken");
+    private static final LatencyHistogram CACHE_REQUEST_LATENCY = Metrics.operation("cacheRequest");
+    static final PageCache PAGES = new PageCache();
 
     public static void main(String[] args) throws InterruptedException {
         new Chapter02().run();
@@ -39,95 +47,101 @@ public class Chapter02 extends RedisHandler {
      * 测试登录cookies
      */
     public void testLoginCookies() throws InterruptedException {
-        printer("----- testLoginCookies -----");
-        String token = getToken();
-        /*
-         * 更新token
-         */
-        updateToken(token, "username", "itemX");
-        printer("We just logged-in/updated token:" + token);
-        printer("For user:'username'");
-        printer();
+        try (RedisLease lease = lease()) {
+            Jedis conn = lease.getConn();
+            printer("----- testLoginCookies -----");
+            String token = getToken();
+            /*
+             * 更新token
+             */
+            updateToken(token, "username", "itemX");
+            printer("We just logged-in/updated token:" + token);
+            printer("For user:'username'");
+            printer();
 
-        /*
-         * 验证token
-         */
-        printer("What username do we get when we look-up that token?");
-        String user = checkToken(token);
-        printer(user);
-        printer();
-        assert user != null;
+            /*
+             * 验证token
+             */
+            printer("What username do we get when we look-up that token?");
+            String user = checkToken(token);
+            printer(user);
+            printer();
+            assert user != null;
 
-        /*
-         * 缓存清理
-         */
-        printer("Let's drop the maximum number of cookies to 0 to clean them out");
-        printer("We will start a thread to do the cleaning, while we stop it later");
-        CleanSessionsThread thread = new CleanSessionsThread(10000000);
-        thread.start();
-        Thread.sleep(1000);
-        thread.quit();
-        Thread.sleep(2000);
-        if (thread.isAlive()) {
-            throw new RuntimeException("The clean session thread is still alive!");
-        }
+            /*
+             * 缓存清理
+             */
+            printer("Let's drop the maximum number of cookies to 0 to clean them out");
+            printer("We will start a thread to do the cleaning, while we stop it later");
+            CleanSessionsThread thread = new CleanSessionsThread(10000000);
+            thread.start();
+            Thread.sleep(1000);
+            thread.quit();
+            Thread.sleep(2000);
+            if (thread.isAlive()) {
+                throw new RuntimeException("The clean session thread is still alive!");
+            }
 
-        long s = conn.hlen("login:");
-        printer("The current number of sessions still available is:" + s);
-        assert s == 0;
+            long s = LoginStore.size();
+            printer("The current number of sessions still available is:" + s);
+            assert s == 0;
+        }
     }
 
     /**
      * 测试购物车
      */
     public void testShoppingCartCookies() throws InterruptedException {
-        printer("\n----- testShoppingCartCookies -----");
-        String token = getToken();
-        /*
-         * 刷新token
-         */
-        printer("We'll refresh our session...");
-        updateToken(token, "username", "itemY");
+        try (RedisLease lease = lease()) {
+            Jedis conn = lease.getConn();
+            printer("\n----- testShoppingCartCookies -----");
+            String token = getToken();
+            /*
+             * 刷新token
+             */
+            printer("We'll refresh our session...");
+            updateToken(token, "username", "itemY");
 
-        /*
-         * 添加一个商品到购物车
-         */
-        printer("And add an item to the shopping cart");
-        addToCart(token, "itemY", 3);
+            /*
+             * 添加一个商品到购物车
+             */
+            printer("And add an item to the shopping cart");
+            addToCart(token, "itemY", 3);
 
-        /*
-         * 获取购物车中所有商品
-         */
-        Map<String, String> items = conn.hgetAll("cart:" + token);
-        printer("Our shopping cart currently has:");
-        for (Map.Entry<String, String> entry : items.entrySet()) {
-            printer(entry.getKey() + ":" + entry.getValue());
-        }
-        printer();
-        assert items.size() >= 1;
+            /*
+             * 获取购物车中所有商品
+             */
+            Map<String, String> items = conn.hgetAll("cart:" + token);
+            printer("Our shopping cart currently has:");
+            for (Map.Entry<String, String> entry : items.entrySet()) {
+                printer(entry.getKey() + ":" + entry.getValue());
+            }
+            printer();
+            assert items.size() >= 1;
 
-        /*
-         * 清理购物车
-         */
-        printer("Let's clean out our sessions and carts");
-        CleanFullSessionThread thread = new CleanFullSessionThread(10000000);
-        thread.start();
-        Thread.sleep(1000);
-        thread.quit();
-        Thread.sleep(2000);
-        if (thread.isAlive()) {
-            throw new RuntimeException("The clean sessions thread is still alive!");
-        }
+            /*
+             * 清理购物车
+             */
+            printer("Let's clean out our sessions and carts");
+            CleanFullSessionThread thread = new CleanFullSessionThread(10000000);
+            thread.start();
+            Thread.sleep(1000);
+            thread.quit();
+            Thread.sleep(2000);
+            if (thread.isAlive()) {
+                throw new RuntimeException("The clean sessions thread is still alive!");
+            }
 
-        /*
-         * 获取购物车中所有商品
-         */
-        items = conn.hgetAll("cart:" + token);
-        printer("Our shopping cart now contains");
-        for (Map.Entry<String, String> entry : items.entrySet()) {
-            printer(entry.getKey() + ":" + entry.getValue());
+            /*
+             * 获取购物车中所有商品
+             */
+            items = conn.hgetAll("cart:" + token);
+            printer("Our shopping cart now contains");
+            for (Map.Entry<String, String> entry : items.entrySet()) {
+                printer(entry.getKey() + ":" + entry.getValue());
+            }
+            assert items.size() == 0;
         }
-        assert items.size() == 0;
     }
 
     /**
@@ -164,57 +178,60 @@ public class Chapter02 extends RedisHandler {
      * 测试缓存行数据
      */
     public void testCacheRows() throws InterruptedException {
-        printer("\n----- testCacheRows -----");
-        printer("First, let's schedule caching of itemX every 5 seconds");
-
-        /*
-         * 缓存行
-         */
-        scheduleRowCache("itemX", 5);
-        printer("Our schedule looks like:");
-
-        /*
-         * 打印行
-         */
-        Set<Tuple> s = conn.zrangeWithScores("schedule:", 0, -1);
-        for (Tuple tuple : s) {
-            printer(tuple.getElement() + ", " + (float) tuple.getScore());
-        }
-        assert s.size() != 0;
+        try (RedisLease lease = lease()) {
+            Jedis conn = lease.getConn();
+            printer("\n----- testCacheRows -----");
+            printer("First, let's schedule caching of itemX every 5 seconds");
 
-        printer("We'll start a caching thread that will cache the data...");
-        CacheRowsThread thread = new CacheRowsThread();
-        thread.start();
+            /*
+             * 缓存行
+             */
+            scheduleRowCache("itemX", 5);
+            printer("Our schedule looks like:");
 
-        Thread.sleep(1000);
-        printer("Our cached data looks like:");
-        String r = conn.get("inv:itemX");
-        printer(r);
-        assert r != null;
-        printer();
+            /*
+             * 打印行
+             */
+            Set<Tuple> s = conn.zrangeWithScores("schedule:", 0, -1);
+            for (Tuple tuple : s) {
+                printer(tuple.getElement() + ", " + (float) tuple.getScore());
+            }
+            assert s.size() != 0;
+
+            printer("We'll start a caching thread that will cache the data...");
+            CacheRowsThread thread = new CacheRowsThread();
+            thread.start();
+
+            Thread.sleep(1000);
+            printer("Our cached data looks like:");
+            String r = conn.get("inv:itemX");
+            printer(r);
+            assert r != null;
+            printer();
+
+            printer("We'll check again in 5 seconds...");
+            Thread.sleep(5000);
+            printer("Notice that the data has changed...");
+            String r2 = conn.get("inv:itemX");
+            printer(r2);
+            printer();
+            assert r2 != null;
+            assert !r.equals(r2);
+
+            printer("Let's force un-caching");
+            scheduleRowCache("itemX", -1);
+            Thread.sleep(1000);
+            r = conn.get("inv:itemX");
+            printer("The cache was cleared? " + (r == null));
+            assert r == null;
+
+            thread.quit();
+            Thread.sleep(2000);
+            if (thread.isAlive()) {
+                throw new RuntimeException("The database caching thread is still alive!");
+            }
 
-        printer("We'll check again in 5 seconds...");
-        Thread.sleep(5000);
-        printer("Notice that the data has changed...");
-        String r2 = conn.get("inv:itemX");
-        printer(r2);
-        printer();
-        assert r2 != null;
-        assert !r.equals(r2);
-
-        printer("Let's force un-caching");
-        scheduleRowCache("itemX", -1);
-        Thread.sleep(1000);
-        r = conn.get("inv:itemX");
-        printer("The cache was cleared? " + (r == null));
-        assert r == null;
-
-        thread.quit();
-        Thread.sleep(2000);
-        if (thread.isAlive()) {
-            throw new RuntimeException("The database caching thread is still alive!");
         }
-
     }
 
     /**
@@ -225,26 +242,54 @@ public class Chapter02 extends RedisHandler {
      * @param item
      */
     public void updateToken(String token, String user, String item) {
-        long timestamp = System.currentTimeMillis() / 1000;
-        conn.hset("login:", token, user);
-        conn.zadd("recent:", timestamp, token);
-        if (item != null) {
-            conn.zadd("viewed:" + token, timestamp, item);
-            /*
-             * 移除排序集合中区间内的成员
-             *     eg:  1  2  3  4  5  6  7  8  9
-             *  index:  0  1  2  3  4  5  6  7  8
-             * -index: -9 -8 -7 -6 -5 -4 -3 -2  -1
-             * conn.zremrangeByRank(key,0,-7)
-             * result:           4  5  6  7  8  9
-             * formula: 0,-(saveCount+1)
-             */
-            conn.zremrangeByRank("viewed:" + token, 0, -26);
+        long start = System.nanoTime();
+        try {
             /*
-             * 网页分析，新添加的代码
-             * 作用：用户浏览量越多，则score值越小，则当前商品越在有序集合上面的位置
+             * 命令交给共享的自动流水线，与其他线程的命令合并发送，最后等待全部回复
              */
-            conn.zincrby("viewed:", -1, item);
+            AutoPipeline pipeline = autoPipeline();
+            long timestamp = System.currentTimeMillis() / 1000;
+            List<CompletableFuture<?>> replies = new ArrayList<>(6);
+            boolean sharded = shards() != null;
+            if (!sharded) {
+                replies.add(pipeline.submit(pipe -> pipe.hset(LoginStore.hashKey(token), token, user)));
+                if (LoginStore.isMigrating()) {
+                    replies.add(pipeline.submit(pipe -> pipe.hdel(LoginStore.LOGIN, token)));
+                }
+            }
+            replies.add(pipeline.submit(pipe -> pipe.zadd("recent:", timestamp, token)));
+            if (item != null) {
+                replies.add(pipeline.submit(pipe -> pipe.zadd("viewed:" + token, timestamp, item)));
+                /*
+                 * 移除排序集合中区间内的成员
+                 *     eg:  1  2  3  4  5  6  7  8  9
+                 *  index:  0  1  2  3  4  5  6  7  8
+                 * -index: -9 -8 -7 -6 -5 -4 -3 -2  -1
+                 * conn.zremrangeByRank(key,0,-7)
+                 * result:           4  5  6  7  8  9
+                 * formula: 0,-(saveCount+1)
+                 */
+                replies.add(pipeline.submit(pipe -> pipe.zremrangeByRank("viewed:" + token, 0, -26)));
+                /*
+                 * 网页分析，新添加的代码
+                 * 作用：用户浏览量越多，则score值越小，则当前商品越在有序集合上面的位置
+                 * 启用ItemPopularity时先在本地计数，定期只写入热门商品
+                 */
+                ItemPopularity popularity = ItemPopularity.active();
+                if (popularity != null) {
+                    popularity.record(item);
+                } else {
+                    replies.add(pipeline.submit(pipe -> pipe.zincrby("viewed:", -1, item)));
+                }
+            }
+            if (sharded) {
+                // 自动流水线只连接默认节点，会话所在的桶按节点单独写入，与已提交的命令并行
+                LoginStore.save(token, user);
+            }
+            // 只等待最后一条会漏掉前面命令的错误，合并后任何一条出错都会抛出
+            CompletableFuture.allOf(replies.toArray(new CompletableFuture<?>[0])).join();
+        } finally {
+            UPDATE_TOKEN_LATENCY.recordSince(start);
         }
     }
 
@@ -255,15 +300,25 @@ public class Chapter02 extends RedisHandler {
      * @return
      */
     public String checkToken(String token) {
-        return conn.hget("login:", token);
+        long start = System.nanoTime();
+        try {
+            String user = cachedHget(LoginStore.hashKey(token), token);
+            if (user == null && LoginStore.isMigrating()) {
+                // 尚未迁移到分桶的会话
+                user = cachedHget(LoginStore.LOGIN, token);
+            }
+            return user;
+        } finally {
+            CHECK_TOKEN_LATENCY.recordSince(start);
+        }
     }
 
     /**
-     * 清理session线程
+     * 清理session线程，单线程逐批清理；积压较多时用 {@link SessionReaper} 并行清理
      */
     public class CleanSessionsThread extends Thread {
         private int limit;
-        private boolean quit;
+        private volatile boolean quit;
 
         public CleanSessionsThread(int limit) {
             this.limit = limit;
@@ -276,7 +331,10 @@ public class Chapter02 extends RedisHandler {
         @Override
         public void run() {
             while (!quit) {
-                long size = conn.zcard("recent:");
+                long size;
+                try (RedisLease lease = lease()) {
+                    size = lease.getConn().zcard("recent:");
+                }
                 if (size <= limit) {
                     try {
                         sleep(1000);
@@ -287,16 +345,20 @@ public class Chapter02 extends RedisHandler {
                 }
 
                 long endIndex = Math.min(size - limit, 100);
-                Set<String> tokenSet = conn.zrange("recent:", 0, endIndex - 1);
-                String[] tokens = tokenSet.toArray(new String[tokenSet.size()]);
-
-                List<Object> sessionKeys = new LinkedList<>();
-                for (String token : tokens) {
-                    sessionKeys.add("viewed:" + token);
+                try (RedisLease lease = lease()) {
+                    Jedis conn = lease.getConn();
+                    Set<String> tokenSet = conn.zrange("recent:", 0, endIndex - 1);
+                    String[] tokens = tokenSet.toArray(new String[tokenSet.size()]);
+
+                    List<Object> sessionKeys = new LinkedList<>();
+                    for (String token : tokens) {
+                        sessionKeys.add("viewed:" + token);
+                    }
+                    conn.del(sessionKeys.toArray(new String[sessionKeys.size()]));
+                    LoginStore.remove(tokens);
+                    conn.zrem("recent:", tokens);
+                    LoginStore.invalidate(tokens);
                 }
-                conn.del(sessionKeys.toArray(new String[sessionKeys.size()]));
-                conn.hdel("login:", tokens);
-                conn.zrem("recent:", tokens);
             }
         }
     }
@@ -309,19 +371,22 @@ public class Chapter02 extends RedisHandler {
      * @param count
      */
     public void addToCart(String session, String item, int count) {
-        if (count <= 0) {
-            conn.hdel("cart:" + session, item);
-        } else {
-            conn.hset("cart:" + session, item, String.valueOf(count));
+        try (RedisLease lease = lease()) {
+            Jedis conn = lease.getConn();
+            if (count <= 0) {
+                conn.hdel("cart:" + session, item);
+            } else {
+                conn.hset("cart:" + session, item, String.valueOf(count));
+            }
         }
     }
 
     /**
-     * 清理购物车线程
+     * 清理购物车线程，积压较多时用 {@link SessionReaper} 并行清理
      */
     public class CleanFullSessionThread extends Thread {
         private int limit;
-        private boolean quit;
+        private volatile boolean quit;
 
         public CleanFullSessionThread(int limit) {
             this.limit = limit;
@@ -334,7 +399,10 @@ public class Chapter02 extends RedisHandler {
         @Override
         public void run() {
             while (!quit) {
-                long size = conn.zcard("recent:");
+                long size;
+                try (RedisLease lease = lease()) {
+                    size = lease.getConn().zcard("recent:");
+                }
                 if (size <= limit) {
                     try {
                         sleep(1000);
@@ -345,18 +413,22 @@ public class Chapter02 extends RedisHandler {
                 }
 
                 long endIndex = Math.min(size - limit, 100);
-                Set<String> sessionSet = conn.zrange("recent:", 0, endIndex - 1);
-                String[] sessions = sessionSet.toArray(new String[sessionSet.size()]);
+                try (RedisLease lease = lease()) {
+                    Jedis conn = lease.getConn();
+                    Set<String> sessionSet = conn.zrange("recent:", 0, endIndex - 1);
+                    String[] sessions = sessionSet.toArray(new String[sessionSet.size()]);
+
+                    List<String> sessionKeys = new LinkedList<>();
+                    for (String session : sessions) {
+                        sessionKeys.add("viewed:" + session);
+                        sessionKeys.add("cart:" + session);
+                    }
 
-                List<String> sessionKeys = new LinkedList<>();
-                for (String session : sessions) {
-                    sessionKeys.add("viewed:" + session);
-                    sessionKeys.add("cart:" + session);
+                    conn.del(sessionKeys.toArray(new String[sessionKeys.size()]));
+                    LoginStore.remove(sessions);
+                    conn.zrem("recent:", sessions);
+                    LoginStore.invalidate(sessions);
                 }
-
-                conn.del(sessionKeys.toArray(new String[sessionKeys.size()]));
-                conn.hdel("login:", sessions);
-                conn.zrem("recent:", sessions);
             }
         }
     }
@@ -369,7 +441,7 @@ public class Chapter02 extends RedisHandler {
     }
 
     /**
-     * 缓存请求
+     * 缓存请求，页面的读取、生成与压缩见 {@link PageCache}
      *
      * @param request
      * @param callback
@@ -377,18 +449,15 @@ public class Chapter02 extends RedisHandler {
      * @return
      */
     public String cacheRequest(String request, Callback callback, String token) {
-        if (!canCache(request, token)) {
-            return callback != null ? callback.call(request) : null;
-        }
-
-        String pageKey = "cache:" + hashRequest(request);
-        String content = conn.get(pageKey);
-
-        if (content == null && callback != null) {
-            content = callback.call(request);
-            conn.setex(pageKey, 300, content);
+        long start = System.nanoTime();
+        try {
+            if (!canCache(request, token)) {
+                return callback != null ? callback.call(request) : null;
+            }
+            return PAGES.get(request, callback);
+        } finally {
+            CACHE_REQUEST_LATENCY.recordSince(start);
         }
-        return content;
     }
 
     /**
@@ -399,25 +468,28 @@ public class Chapter02 extends RedisHandler {
      * @return
      */
     public boolean canCache(String request, String token) {
-        try {
-            URL url = new URL(request);
-            Map<String, String> params = new HashMap<>(16);
-            if (url.getQuery() != null) {
-                for (String param : url.getQuery().split("&")) {
-                    String[] pair = param.split("=", 2);
-                    params.put(pair[0], pair.length == 2 ? pair[1] : null);
+        try (RedisLease lease = lease()) {
+            Jedis conn = lease.getConn();
+            try {
+                URL url = new URL(request);
+                Map<String, String> params = new HashMap<>(16);
+                if (url.getQuery() != null) {
+                    for (String param : url.getQuery().split("&")) {
+                        String[] pair = param.split("=", 2);
+                        params.put(pair[0], pair.length == 2 ? pair[1] : null);
+                    }
                 }
-            }
 
-            String itemId = extractItemId(params);
-            if (itemId == null || isDynamic(params)) {
+                String itemId = extractItemId(params);
+                if (itemId == null || isDynamic(params)) {
+                    return false;
+                }
+                Long rank = conn.zrank("viewed:" + token, itemId);
+                return rank != null && rank < 10000;
+            } catch (MalformedURLException e) {
+                printer("canCache method exception: " + e.getMessage());
                 return false;
             }
-            Long rank = conn.zrank("viewed:" + token, itemId);
-            return rank != null && rank < 10000;
-        } catch (MalformedURLException e) {
-            printer("canCache method exception: " + e.getMessage());
-            return false;
         }
     }
 
@@ -442,13 +514,13 @@ public class Chapter02 extends RedisHandler {
     }
 
     /**
-     * 获取hash值
+     * 获取hash值（SHA-256摘要，见 {@link PageCache#digest(String)}）
      *
      * @param request
      * @return
      */
     public String hashRequest(String request) {
-        return String.valueOf(request.hashCode());
+        return PageCache.digest(request);
     }
 
     /**
@@ -458,15 +530,14 @@ public class Chapter02 extends RedisHandler {
      * @param delay
      */
     public void scheduleRowCache(String rowId, int delay) {
-        conn.zadd("delay:", delay, rowId);
-        conn.zadd("schedule:", System.currentTimeMillis() / 1000, rowId);
+        RowCacheScheduler.schedule(rowId, delay);
     }
 
     /**
-     * 缓存行线程
+     * 缓存行线程，每50毫秒轮询一次、每次刷新一行；大量数据行用 {@link RowCacheScheduler} 批量刷新
      */
     public class CacheRowsThread extends Thread {
-        private boolean quit;
+        private volatile boolean quit;
 
         public void quit() {
             quit = true;
@@ -476,7 +547,10 @@ public class Chapter02 extends RedisHandler {
         public void run() {
             Gson gson = new Gson();
             while (!quit) {
-                Set<Tuple> range = conn.zrangeWithScores("schedule:", 0, 0);
+                Set<Tuple> range;
+                try (RedisLease lease = lease()) {
+                    range = lease.getConn().zrangeWithScores("schedule:", 0, 0);
+                }
                 Tuple next = range.size() > 0 ? range.iterator().next() : null;
                 long now = System.currentTimeMillis() / 1000;
                 if (next == null || next.getScore() > now) {
@@ -488,18 +562,21 @@ public class Chapter02 extends RedisHandler {
                     continue;
                 }
 
-                String rowId = next.getElement();
-                Double delay = conn.zscore("delay:", rowId);
-                if (delay <= 0) {
-                    conn.zrem("delay:", rowId);
-                    conn.zrem("schedule:", rowId);
-                    conn.del("inv:" + rowId);
-                    continue;
-                }
+                try (RedisLease lease = lease()) {
+                    Jedis conn = lease.getConn();
+                    String rowId = next.getElement();
+                    Double delay = conn.zscore("delay:", rowId);
+                    if (delay <= 0) {
+                        conn.zrem("delay:", rowId);
+                        conn.zrem("schedule:", rowId);
+                        conn.del("inv:" + rowId);
+                        continue;
+                    }
 
-                Inventory row = Inventory.get(rowId);
-                conn.zadd("schedule:", now + delay, rowId);
-                conn.set("inv:" + rowId, gson.toJson(row));
+                    Inventory row = Inventory.get(rowId);
+                    conn.zadd("schedule:", now + delay, rowId);
+                    conn.set("inv:" + rowId, gson.toJson(row));
+                }
             }
         }
     }
@@ -1,19 +1,52 @@
 package com.redis.chapter;
 
+import com.redis.bench.RedisBenchmark;
+import com.redis.common.LatencyHistogram;
+import com.redis.common.Metrics;
 import com.redis.common.RedisHandler;
+import com.redis.common.RedisLease;
+import com.redis.common.ScriptRegistry;
+import com.redis.common.TransactionStats;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.Pipeline;
 import redis.clients.jedis.Transaction;
 import redis.clients.jedis.Tuple;
 
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 public class Chapter04 extends RedisHandler {
-    private static final Jedis conn = getConn();
+    private static final LatencyHistogram LIST_ITEM_LATENCY = Metrics.operation("listItem");
+    private static final LatencyHistogram LIST_ITEM_SCRIPTED_LATENCY = Metrics.operation("listItem.script");
+    private static final LatencyHistogram PURCHASE_ITEM_LATENCY = Metrics.operation("purchaseItem");
+    private static final LatencyHistogram PURCHASE_ITEM_SCRIPTED_LATENCY = Metrics.operation("purchaseItem.script");
+    /**
+     * 上架脚本
+     * KEYS: inventory:seller, market:
+     * ARGV: itemId, itemId.sellerId, price
+     */
+    static final ScriptRegistry.Script LIST_ITEM = scripts().register("listItem",
+            "if redis.call('sismember', KEYS[1], ARGV[1]) == 0 then return 0 end\n"
+                    + "redis.call('zadd', KEYS[2], ARGV[3], ARGV[2])\n"
+                    + "redis.call('srem', KEYS[1], ARGV[1])\n"
+                    + "return 1");
+    /**
+     * 购买脚本
+     * KEYS: market:, users:buyer, users:seller, inventory:buyer
+     * ARGV: itemId.sellerId, itemId, lprice
+     */
+    static final ScriptRegistry.Script PURCHASE_ITEM = scripts().register("purchaseItem",
+            "local price = tonumber(redis.call('zscore', KEYS[1], ARGV[1]))\n"
+                    + "local funds = tonumber(redis.call('hget', KEYS[2], 'funds'))\n"
+                    + "if not price or not funds or price ~= tonumber(ARGV[3]) or price > funds then return 0 end\n"
+                    + "redis.call('hincrby', KEYS[3], 'funds', math.floor(price))\n"
+                    + "redis.call('hincrby', KEYS[2], 'funds', -math.floor(price))\n"
+                    + "redis.call('sadd', KEYS[4], ARGV[2])\n"
+                    + "redis.call('zrem', KEYS[1], ARGV[1])\n"
+                    + "return 1");
 
     public static void main(String[] args) {
         new Chapter04().run();
@@ -35,34 +68,37 @@ public class Chapter04 extends RedisHandler {
     }
 
     public void testListItem(boolean nested) {
-        if (!nested) {
-            printer("\n----- testListItem -----");
-        }
+        try (RedisLease lease = lease()) {
+            Jedis conn = lease.getConn();
+            if (!nested) {
+                printer("\n----- testListItem -----");
+            }
 
-        printer("We need to set up just enough state so that a user can list an item");
-        String seller = "user0";
-        String item = "item0";
-        conn.sadd("inventory:" + seller, item);
+            printer("We need to set up just enough state so that a user can list an item");
+            String seller = "user0";
+            String item = "item0";
+            conn.sadd("inventory:" + seller, item);
 
-        Set<String> i = conn.smembers("inventory:" + seller);
-        printer("The user's inventory has:");
-        for (String member : i) {
-            printer(" " + member);
-        }
-        assert i.size() > 0;
-        printer();
+            Set<String> i = conn.smembers("inventory:" + seller);
+            printer("The user's inventory has:");
+            for (String member : i) {
+                printer(" " + member);
+            }
+            assert i.size() > 0;
+            printer();
 
-        printer("Listing the item...");
-        boolean l = listItem(item, seller, 10);
-        printer("Listing the item succeeded? " + l);
-        assert l;
+            printer("Listing the item...");
+            boolean l = listItem(item, seller, 10);
+            printer("Listing the item succeeded? " + l);
+            assert l;
 
-        Set<Tuple> r = conn.zrangeWithScores("market:", 0, -1);
-        printer("The market contains:");
-        for (Tuple tuple : r) {
-            printer(" " + tuple.getElement() + "," + tuple.getScore());
+            Set<Tuple> r = conn.zrangeWithScores("market:", 0, -1);
+            printer("The market contains:");
+            for (Tuple tuple : r) {
+                printer(" " + tuple.getElement() + "," + tuple.getScore());
+            }
+            assert r.size() > 0;
         }
-        assert r.size() > 0;
     }
 
     /**
@@ -74,69 +110,115 @@ public class Chapter04 extends RedisHandler {
      * @return
      */
     public boolean listItem(String itemId, String sellerId, double price) {
-        String inventory = "inventory:" + sellerId;
-        String item = itemId + '.' + sellerId;
-        long end = System.currentTimeMillis() + 5000;
+        long start = System.nanoTime();
+        try {
+            try (RedisLease lease = leaseFor("inventory:" + sellerId, "market:")) {
+                Jedis conn = lease.getConn();
+                TransactionStats stats = TransactionStats.of("listItem");
+                String inventory = "inventory:" + sellerId;
+                String item = itemId + '.' + sellerId;
+                long end = System.currentTimeMillis() + 5000;
+
+                while (System.currentTimeMillis() < end) {
+                    conn.watch(inventory);
+                    if (!conn.sismember(inventory, itemId)) {
+                        conn.unwatch();
+                        stats.reject();
+                        return false;
+                    }
 
-        while (System.currentTimeMillis() < end) {
-            conn.watch(inventory);
-            if (!conn.sismember(inventory, itemId)) {
-                conn.unwatch();
+                    Transaction trans = conn.multi();
+                    trans.zadd("market:", price, item);
+                    trans.srem(inventory, itemId);
+                    List<Object> results = trans.exec();
+                    /*
+                     * null response indicates that the transaction was aborted due to the watched key changing
+                     */
+                    if (results == null) {
+                        stats.retry();
+                        continue;
+                    }
+                    stats.commit();
+                    return true;
+                }
+                stats.abort();
                 return false;
             }
+        } finally {
+            LIST_ITEM_LATENCY.recordSince(start);
+        }
+    }
 
-            Transaction trans = conn.multi();
-            trans.zadd("market:", price, item);
-            trans.srem(inventory, itemId);
-            List<Object> results = trans.exec();
-            /*
-             * null response indicates that the transaction was aborted due to the watched key changing
-             */
-            if (results == null) {
-                continue;
+    /**
+     * 物品上架（脚本版）
+     * <p>
+     * 检查库存与上架在服务端原子执行，一次往返，没有乐观重试
+     *
+     * @param itemId
+     * @param sellerId
+     * @param price
+     * @return
+     */
+    public boolean listItemScripted(String itemId, String sellerId, double price) {
+        long start = System.nanoTime();
+        try {
+            try (RedisLease lease = leaseFor("inventory:" + sellerId, "market:")) {
+                TransactionStats stats = TransactionStats.of("listItem.script");
+                Object listed = LIST_ITEM.eval(lease.getConn(),
+                        Arrays.asList("inventory:" + sellerId, "market:"),
+                        Arrays.asList(itemId, itemId + '.' + sellerId, String.valueOf(price)));
+                if (Long.valueOf(1).equals(listed)) {
+                    stats.commit();
+                    return true;
+                }
+                stats.reject();
+                return false;
             }
-            return true;
+        } finally {
+            LIST_ITEM_SCRIPTED_LATENCY.recordSince(start);
         }
-        return false;
     }
 
     public void testPurchaseItem() {
-        printer("\n----- testPurchaseItem -----");
-        testListItem(true);
+        try (RedisLease lease = lease()) {
+            Jedis conn = lease.getConn();
+            printer("\n----- testPurchaseItem -----");
+            testListItem(true);
 
-        printer("We need to set up just enough state so a user buy an item");
-        conn.hset("users:user1", "funds", "125");
-        Map<String, String> r = conn.hgetAll("users:user1");
-        printer("The user has some money:");
-        for (Map.Entry<String, String> entry : r.entrySet()) {
-            printer(" " + entry.getKey() + ": " + entry.getValue());
-        }
-        assert r.size() > 0;
-        assert r.get("funds") != null;
-        printer();
+            printer("We need to set up just enough state so a user buy an item");
+            conn.hset("users:user1", "funds", "125");
+            Map<String, String> r = conn.hgetAll("users:user1");
+            printer("The user has some money:");
+            for (Map.Entry<String, String> entry : r.entrySet()) {
+                printer(" " + entry.getKey() + ": " + entry.getValue());
+            }
+            assert r.size() > 0;
+            assert r.get("funds") != null;
+            printer();
 
-        printer("Let's purchase an item");
-        boolean b = purchaseItem("user1", "item0", "user0", 10);
-        printer("Purchase an item succeeded? " + b);
-        assert b;
-        r = conn.hgetAll("users:user1");
-        printer("Their money is now:");
-        for (Map.Entry<String, String> entry : r.entrySet()) {
-            printer(" " + entry.getKey() + ": " + entry.getValue());
-        }
-        assert r.size() > 0;
+            printer("Let's purchase an item");
+            boolean b = purchaseItem("user1", "item0", "user0", 10);
+            printer("Purchase an item succeeded? " + b);
+            assert b;
+            r = conn.hgetAll("users:user1");
+            printer("Their money is now:");
+            for (Map.Entry<String, String> entry : r.entrySet()) {
+                printer(" " + entry.getKey() + ": " + entry.getValue());
+            }
+            assert r.size() > 0;
 
-        String buyer = "user1";
-        Set<String> i = conn.smembers("inventory:" + buyer);
-        printer("Their inventory is now:");
-        for (String member : i) {
-            printer(" " + member);
-        }
-        assert i.size() > 0;
-        assert i.contains("item0");
-        assert conn.zscore("market:", "item0.user0") == null;
+            String buyer = "user1";
+            Set<String> i = conn.smembers("inventory:" + buyer);
+            printer("Their inventory is now:");
+            for (String member : i) {
+                printer(" " + member);
+            }
+            assert i.size() > 0;
+            assert i.contains("item0");
+            assert conn.zscore("market:", "item0.user0") == null;
 
 
+        }
     }
 
     /**
@@ -148,36 +230,79 @@ public class Chapter04 extends RedisHandler {
      * @param lprice
      */
     public boolean purchaseItem(String buyerId, String itemId, String sellerId, double lprice) {
-        String buyer = "users:" + buyerId;
-        String seller = "users:" + sellerId;
-        String item = itemId + "." + sellerId;
-        String inventory = "inventory:" + buyerId;
-        long end = System.currentTimeMillis() + 10000;
+        long start = System.nanoTime();
+        try {
+            try (RedisLease lease = leaseFor("market:", "users:" + buyerId, "users:" + sellerId, "inventory:" + buyerId)) {
+                Jedis conn = lease.getConn();
+                String buyer = "users:" + buyerId;
+                String seller = "users:" + sellerId;
+                String item = itemId + "." + sellerId;
+                String inventory = "inventory:" + buyerId;
+                TransactionStats stats = TransactionStats.of("purchaseItem");
+                long end = System.currentTimeMillis() + 10000;
 
-        while (System.currentTimeMillis() < end) {
-            conn.watch("market:", buyer);
-            double price = conn.zscore("market:", item);
-            double funds = Double.parseDouble(conn.hget(buyer, "funds"));
-            if (price != lprice || price > funds) {
-                conn.unwatch();
+                while (System.currentTimeMillis() < end) {
+                    conn.watch("market:", buyer);
+                    double price = conn.zscore("market:", item);
+                    double funds = Double.parseDouble(conn.hget(buyer, "funds"));
+                    if (price != lprice || price > funds) {
+                        conn.unwatch();
+                        stats.reject();
+                        return false;
+                    }
+
+                    Transaction trans = conn.multi();
+                    trans.hincrBy(seller, "funds", (int) price);
+                    trans.hincrBy(buyer, "funds", (int) -price);
+                    trans.sadd(inventory, itemId);
+                    trans.zrem("market:", item);
+                    List<Object> results = trans.exec();
+                    /*
+                     * null response indicates that the transaction was aborted due to the watched key changing.
+                     */
+                    if (results == null) {
+                        stats.retry();
+                        continue;
+                    }
+                    stats.commit();
+                    return true;
+                }
+                stats.abort();
                 return false;
             }
+        } finally {
+            PURCHASE_ITEM_LATENCY.recordSince(start);
+        }
+    }
 
-            Transaction trans = conn.multi();
-            trans.hincrBy(seller, "funds", (int) price);
-            trans.hincrBy(buyer, "funds", (int) -price);
-            trans.sadd(inventory, itemId);
-            trans.zrem("market:", item);
-            List<Object> results = trans.exec();
-            /*
-             * null response indicates that the transaction was aborted due to the watched key changing.
-             */
-            if (results == null) {
-                continue;
+    /**
+     * 商品购买（脚本版）
+     * <p>
+     * 价格、余额校验与转账、入库、下架在服务端原子执行，market:竞争激烈时也不会出现重试风暴
+     *
+     * @param buyerId
+     * @param itemId
+     * @param sellerId
+     * @param lprice
+     */
+    public boolean purchaseItemScripted(String buyerId, String itemId, String sellerId, double lprice) {
+        long start = System.nanoTime();
+        try {
+            try (RedisLease lease = leaseFor("market:", "users:" + buyerId, "users:" + sellerId, "inventory:" + buyerId)) {
+                TransactionStats stats = TransactionStats.of("purchaseItem.script");
+                Object purchased = PURCHASE_ITEM.eval(lease.getConn(),
+                        Arrays.asList("market:", "users:" + buyerId, "users:" + sellerId, "inventory:" + buyerId),
+                        Arrays.asList(itemId + "." + sellerId, itemId, String.valueOf(lprice)));
+                if (Long.valueOf(1).equals(purchased)) {
+                    stats.commit();
+                    return true;
+                }
+                stats.reject();
+                return false;
             }
-            return true;
+        } finally {
+            PURCHASE_ITEM_SCRIPTED_LATENCY.recordSince(start);
         }
-        return false;
     }
 
     public void testBenchmarkUploadToken() {
@@ -198,37 +323,19 @@ public class Chapter04 extends RedisHandler {
      * in 30s: updateToken        39521   30   1317  |
      *        updateTokenPipeline 922061  30   30735 |
      * ----------------------------------------------
+     * 以上为早期反射计时的结果，现改用 {@link RedisBenchmark} 直接调用，同时输出 p50/p99/p999 延迟
      */
     public void benchmarkUploadToken(int duration) {
+        RedisBenchmark benchmark = new RedisBenchmark();
+        benchmark.register("updateToken", (thread, seq) ->
+                updateToken("token" + seq, "user" + seq, "item" + seq));
+        benchmark.register("updateTokenPipeline", (thread, seq) ->
+                updateTokenPipeline("token" + seq, "user" + seq, "item" + seq));
+        benchmark.parseArgs(new String[]{"--threads=1", "--warmup=1", "--duration=" + duration});
         try {
-            Class[] args = new Class[]{
-                    String.class,
-                    String.class,
-                    String.class
-            };
-            Method[] methods = new Method[]{
-                    this.getClass().getDeclaredMethod("updateToken", args),
-                    this.getClass().getDeclaredMethod("updateTokenPipeline", args)
-            };
-            for (Method method : methods) {
-                int count = 0;
-                long start = System.currentTimeMillis();
-                long end = start + (duration * 1000);
-                while (System.currentTimeMillis() < end) {
-                    count++;
-                    method.invoke(this, "token" + count, "user" + count, "item" + count);
-                }
-                long delta = System.currentTimeMillis() - start;
-                printer(method.getName() + ' ' + count + ' ' + (delta / 1000) + ' ' + (count / (delta / 1000)));
-            }
-        } catch (NoSuchMethodException e) {
-            e.printStackTrace();
-        } catch (IllegalAccessException e) {
-            e.printStackTrace();
-        } catch (InvocationTargetException e) {
-            e.printStackTrace();
-        } catch (Exception e) {
-            e.printStackTrace();
+            benchmark.run(Collections.emptyList());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
@@ -240,13 +347,24 @@ public class Chapter04 extends RedisHandler {
      * @param item
      */
     public void updateToken(String token, String user, String item) {
-        long timestamp = System.currentTimeMillis() / 1000;
-        conn.hset("login:", token, user);
-        conn.zadd("recent:", timestamp, token);
-        if (item != null) {
-            conn.zadd("viewed:" + token, timestamp, token);
-            conn.zremrangeByRank("viewed:" + token, 0, -26);
-            conn.zincrby("viewed:", -1, item);
+        try (RedisLease lease = lease()) {
+            Jedis conn = lease.getConn();
+            long timestamp = System.currentTimeMillis() / 1000;
+            String loginKey = LoginStore.hashKey(token);
+            try (RedisLease login = leaseFor(loginKey)) {
+                login.getConn().hset(loginKey, token, user);
+            }
+            if (LoginStore.isMigrating()) {
+                try (RedisLease login = leaseFor(LoginStore.LOGIN)) {
+                    login.getConn().hdel(LoginStore.LOGIN, token);
+                }
+            }
+            conn.zadd("recent:", timestamp, token);
+            if (item != null) {
+                conn.zadd("viewed:" + token, timestamp, token);
+                conn.zremrangeByRank("viewed:" + token, 0, -26);
+                conn.zincrby("viewed:", -1, item);
+            }
         }
     }
 
@@ -261,16 +379,25 @@ public class Chapter04 extends RedisHandler {
      * 不带事物   pipe.sync()
      */
     public void updateTokenPipeline(String token, String user, String item) {
-        long timestamp = System.currentTimeMillis() / 1000;
-        Pipeline pipe = conn.pipelined();
-        pipe.multi();
-        pipe.hset("login:", token, user);
-        pipe.zadd("recent:", timestamp, token);
-        if (item != null) {
-            pipe.zadd("viewed:" + token, timestamp, token);
-            pipe.zremrangeByRank("viewed:" + token, 0, -26);
-            pipe.zincrby("viewed:", -1, item);
+        try (RedisLease lease = lease()) {
+            Jedis conn = lease.getConn();
+            long timestamp = System.currentTimeMillis() / 1000;
+            Pipeline pipe = conn.pipelined();
+            pipe.multi();
+            if (shards() == null) {
+                LoginStore.save(pipe, token, user);
+            }
+            pipe.zadd("recent:", timestamp, token);
+            if (item != null) {
+                pipe.zadd("viewed:" + token, timestamp, token);
+                pipe.zremrangeByRank("viewed:" + token, 0, -26);
+                pipe.zincrby("viewed:", -1, item);
+            }
+            pipe.exec();
+        }
+        if (shards() != null) {
+            // 分片时会话所在的桶可能在其他节点，不能放进默认节点的事务
+            LoginStore.save(token, user);
         }
-        pipe.exec();
     }
 }
\ No newline at end of file
@@ -1,7 +1,13 @@
 package com.redis.chapter;
 
 import com.google.gson.Gson;
+import com.redis.common.LatencyHistogram;
+import com.redis.common.Metrics;
 import com.redis.common.RedisHandler;
+import com.redis.common.RedisLease;
+import com.redis.common.ScriptRegistry;
+import com.redis.common.ShardedPipeline;
+import com.redis.common.TransactionStats;
 import javafx.util.Pair;
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVParser;
@@ -20,11 +26,32 @@ import java.text.SimpleDateFormat;
 import java.util.*;
 
 public class Chapter05 extends RedisHandler {
-    private static final Jedis conn = getConn();
     private static final Collator COLLATOR = Collator.getInstance();
     public static final SimpleDateFormat TIMESTAMP = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss:SSS");
     public static final SimpleDateFormat ISO_FORMAT = new SimpleDateFormat("yyyy-MM-dd'T'HH:00:00");
     public static final int[] PRECISION = new int[]{1, 5, 60, 300, 3600, 18000, 86400};
+    private static final LatencyHistogram LOG_RECENT_LATENCY = Metrics.operation("logRecent");
+    private static final LatencyHistogram LOG_COMMON_LATENCY = Metrics.operation("logCommon");
+    private static final LatencyHistogram LOG_COMMON_SCRIPTED_LATENCY = Metrics.operation("logCommon.script");
+    private static final LatencyHistogram UPDATE_COUNTER_LATENCY = Metrics.operation("updateCounter");
+    /**
+     * 常见日志脚本，进入新的小时时先归档上一小时的计数
+     * KEYS: common:name:severity, 对应的:start, recent:name:severity, :last, :pstart
+     * ARGV: 当前小时, 消息, 带时间戳的消息
+     */
+    static final ScriptRegistry.Script LOG_COMMON = scripts().register("logCommon",
+            "local existing = redis.call('get', KEYS[2])\n"
+                    + "if existing and existing < ARGV[1] then\n"
+                    + "  if redis.call('exists', KEYS[1]) == 1 then redis.call('rename', KEYS[1], KEYS[4]) end\n"
+                    + "  redis.call('rename', KEYS[2], KEYS[5])\n"
+                    + "  redis.call('set', KEYS[2], ARGV[1])\n"
+                    + "elseif not existing then\n"
+                    + "  redis.call('set', KEYS[2], ARGV[1])\n"
+                    + "end\n"
+                    + "redis.call('zincrby', KEYS[1], 1, ARGV[2])\n"
+                    + "redis.call('lpush', KEYS[3], ARGV[3])\n"
+                    + "redis.call('ltrim', KEYS[3], 0, 99)\n"
+                    + "return 1");
 
     static {
         ISO_FORMAT.setTimeZone(TimeZone.getTimeZone("UTC"));
@@ -68,29 +95,40 @@ public class Chapter05 extends RedisHandler {
      * @param severity
      */
     public void logRecent(String name, String message, String severity) {
-        String destination = "recent:" + name + ":" + severity;
-        Pipeline pipe = conn.pipelined();
-        pipe.lpush(destination, TIMESTAMP.format(new Date()) + ' ' + message);
-        // 仅保留一百条日志
-        pipe.ltrim(destination, 0, 99);
-        pipe.sync();
+        long start = System.nanoTime();
+        try {
+            try (RedisLease lease = lease()) {
+                Jedis conn = lease.getConn();
+                String destination = "recent:" + name + ":" + severity;
+                Pipeline pipe = conn.pipelined();
+                pipe.lpush(destination, TIMESTAMP.format(new Date()) + ' ' + message);
+                // 仅保留一百条日志
+                pipe.ltrim(destination, 0, 99);
+                pipe.sync();
+            }
+        } finally {
+            LOG_RECENT_LATENCY.recordSince(start);
+        }
     }
 
     public void testLogCommon() {
-        printer("\n----- testLogCommon -----");
-        printer("Let's write some items to the common log");
-        for (int count = 0; count < 6; count++) {
-            for (int i = 0; i < count; i++) {
-                logCommon("test", "message-" + count);
+        try (RedisLease lease = lease()) {
+            Jedis conn = lease.getConn();
+            printer("\n----- testLogCommon -----");
+            printer("Let's write some items to the common log");
+            for (int count = 0; count < 6; count++) {
+                for (int i = 0; i < count; i++) {
+                    logCommon("test", "message-" + count);
+                }
             }
+            Set<Tuple> common = conn.zrevrangeWithScores("common:test:info", 0, -1);
+            printer("The current number of common messages is: " + common.size());
+            printer("Those common messages are:");
+            for (Tuple tuple : common) {
+                printer(" " + tuple.getElement() + ", " + tuple.getScore());
+            }
+            assert common.size() >= 5;
         }
-        Set<Tuple> common = conn.zrevrangeWithScores("common:test:info", 0, -1);
-        printer("The current number of common messages is: " + common.size());
-        printer("Those common messages are:");
-        for (Tuple tuple : common) {
-            printer(" " + tuple.getElement() + ", " + tuple.getScore());
-        }
-        assert common.size() >= 5;
     }
 
     public void logCommon(String name, String message) {
@@ -98,32 +136,73 @@ public class Chapter05 extends RedisHandler {
     }
 
     public void logCommon(String name, String message, String severity, int timeout) {
-        String commonDest = "common:" + name + ":" + severity;
-        String startKey = commonDest + ":start";
-        long end = System.currentTimeMillis() + timeout;
-        while (System.currentTimeMillis() < end) {
-            conn.watch(startKey);
-            String hourStart = ISO_FORMAT.format(new Date());
-            String existing = conn.get(startKey);
-
-            Transaction trans = conn.multi();
-            if (existing != null && COLLATOR.compare(existing, hourStart) < 0) {
-                trans.rename(commonDest, commonDest + ":last");
-                trans.rename(startKey, commonDest + ":pstart");
-                trans.set(startKey, hourStart);
+        long start = System.nanoTime();
+        try {
+            try (RedisLease lease = lease()) {
+                Jedis conn = lease.getConn();
+                TransactionStats stats = TransactionStats.of("logCommon");
+                String commonDest = "common:" + name + ":" + severity;
+                String startKey = commonDest + ":start";
+                long end = System.currentTimeMillis() + timeout;
+                while (System.currentTimeMillis() < end) {
+                    conn.watch(startKey);
+                    String hourStart = ISO_FORMAT.format(new Date());
+                    String existing = conn.get(startKey);
+
+                    Transaction trans = conn.multi();
+                    if (existing != null && COLLATOR.compare(existing, hourStart) < 0) {
+                        trans.rename(commonDest, commonDest + ":last");
+                        trans.rename(startKey, commonDest + ":pstart");
+                        trans.set(startKey, hourStart);
+                    } else if (existing == null) {
+                        trans.set(startKey, hourStart);
+                    }
+
+                    trans.zincrby(commonDest, 1, message);
+
+                    String recentDest = "recent:" + name + ":" + severity;
+                    trans.lpush(recentDest, TIMESTAMP.format(new Date()) + ' ' + message);
+                    trans.ltrim(recentDest, 0, 99);
+                    List<Object> results = trans.exec();
+                    // null response indicates that the transaction was aborted due to the watched key changing.
+                    if (results == null) {
+                        stats.retry();
+                        continue;
+                    }
+                    stats.commit();
+                    return;
+                }
+                stats.abort();
             }
+        } finally {
+            LOG_COMMON_LATENCY.recordSince(start);
+        }
+    }
 
-            trans.zincrby(commonDest, 1, message);
+    public void logCommonScripted(String name, String message) {
+        logCommonScripted(name, message, INFO);
+    }
 
-            String recentDest = "recent:" + name + ":" + severity;
-            trans.lpush(recentDest, TIMESTAMP.format(new Date()) + ' ' + message);
-            trans.ltrim(recentDest, 0, 99);
-            List<Object> results = trans.exec();
-            // null response indicates that the transaction was aborted due to the watched key changing.
-            if (results == null) {
-                continue;
+    /**
+     * 常见日志（脚本版），一次往返，没有WATCH重试
+     *
+     * @param name
+     * @param message
+     * @param severity
+     */
+    public void logCommonScripted(String name, String message, String severity) {
+        long start = System.nanoTime();
+        try {
+            try (RedisLease lease = lease()) {
+                String commonDest = "common:" + name + ":" + severity;
+                LOG_COMMON.eval(lease.getConn(),
+                        Arrays.asList(commonDest, commonDest + ":start", "recent:" + name + ":" + severity,
+                                commonDest + ":last", commonDest + ":pstart"),
+                        Arrays.asList(ISO_FORMAT.format(new Date()), message, TIMESTAMP.format(new Date()) + ' ' + message));
+                TransactionStats.of("logCommon.script").commit();
             }
-            return;
+        } finally {
+            LOG_COMMON_SCRIPTED_LATENCY.recordSince(start);
         }
     }
 
@@ -179,40 +258,67 @@ public class Chapter05 extends RedisHandler {
      * @param now
      */
     public void updateCounter(String name, int count, long now) {
-        Transaction trans = conn.multi();
-        for (int prec : PRECISION) {
-            /*
-             * 用于计算当前时间片的起始时间
-             *
-             * 例如：prec=5; now=126
-             *      pnow=int(126/5)*5=121
-             *
-             * 例如：prec=10; now=126
-             *      pnow=int(126/10)*10=120
-             */
-            long pnow = (now / prec) * prec;
-            /*
-             * 拼接口的key例如：1:test
-             *               5:test
-             *               60:test
-             *               300:test
-             *               3600:test
-             *               18000:test
-             *               86400:test
-             */
-            String prec_member = String.valueOf(prec) + ':' + name;
-            /*
-             * 将所有时间片添加到有序集合中，默认分值设置为0
-             * TODO 暂时没看出来有什么用
-             */
-            trans.zadd("known:", 0, prec_member);
-            /*
-             * 记录当前时间片内的点击数量，属性为当前时间片的起始时间，对应的属性值在一定时间片内会随着
-             * 点击量的增加而更新
-             */
-            trans.hincrBy("count:" + prec_member, String.valueOf(pnow), count);
+        long start = System.nanoTime();
+        try {
+            if (shards() != null) {
+                updateCounterSharded(name, count, now);
+                return;
+            }
+            try (RedisLease lease = lease()) {
+                Jedis conn = lease.getConn();
+                Transaction trans = conn.multi();
+                for (int prec : PRECISION) {
+                    /*
+                     * 用于计算当前时间片的起始时间
+                     *
+                     * 例如：prec=5; now=126
+                     *      pnow=int(126/5)*5=121
+                     *
+                     * 例如：prec=10; now=126
+                     *      pnow=int(126/10)*10=120
+                     */
+                    long pnow = (now / prec) * prec;
+                    /*
+                     * 拼接口的key例如：1:test
+                     *               5:test
+                     *               60:test
+                     *               300:test
+                     *               3600:test
+                     *               18000:test
+                     *               86400:test
+                     */
+                    String prec_member = String.valueOf(prec) + ':' + name;
+                    /*
+                     * 将所有时间片添加到有序集合中，默认分值设置为0
+                     * TODO 暂时没看出来有什么用
+                     */
+                    trans.zadd("known:", 0, prec_member);
+                    /*
+                     * 记录当前时间片内的点击数量，属性为当前时间片的起始时间，对应的属性值在一定时间片内会随着
+                     * 点击量的增加而更新
+                     */
+                    trans.hincrBy("count:" + prec_member, String.valueOf(pnow), count);
+                }
+                trans.exec();
+            }
+        } finally {
+            UPDATE_COUNTER_LATENCY.recordSince(start);
+        }
+    }
+
+    /**
+     * 分片时known:与各精度的count:*分布在不同节点，按节点用流水线写入，不再是一个事务
+     */
+    private void updateCounterSharded(String name, int count, long now) {
+        try (ShardedPipeline pipes = new ShardedPipeline()) {
+            for (int prec : PRECISION) {
+                long pnow = (now / prec) * prec;
+                String prec_member = String.valueOf(prec) + ':' + name;
+                pipes.of("known:").zadd("known:", 0, prec_member);
+                pipes.of("count:" + prec_member).hincrBy("count:" + prec_member, String.valueOf(pnow), count);
+            }
+            pipes.sync();
         }
-        trans.exec();
     }
 
     /**
@@ -224,32 +330,35 @@ public class Chapter05 extends RedisHandler {
      */
     public List<Pair<Integer, Integer>> getCounter(String name, int precision) {
         String prec_member = String.valueOf(precision) + ":" + name;
-        /*
-         * 获取时间片内每时段页面点击次数
-         *
-         * 例如：count:30:test 20100021500 78
-         * 例如：count:30:test 20100021530 122
-         * 例如：count:30:test 20100021560 15
-         * 例如：count:30:test 20100021590 33
-         */
-        Map<String, String> date = conn.hgetAll("count:" + prec_member);
-        List<Pair<Integer, Integer>> results = new ArrayList<>(32);
-        for (Map.Entry<String, String> entry : date.entrySet()) {
-            Pair pair = new Pair<>(Integer.parseInt(entry.getKey()), Integer.parseInt(entry.getValue()));
-            results.add(pair);
+        try (RedisLease lease = leaseFor("count:" + prec_member)) {
+            Jedis conn = lease.getConn();
+            /*
+             * 获取时间片内每时段页面点击次数
+             *
+             * 例如：count:30:test 20100021500 78
+             * 例如：count:30:test 20100021530 122
+             * 例如：count:30:test 20100021560 15
+             * 例如：count:30:test 20100021590 33
+             */
+            Map<String, String> date = conn.hgetAll("count:" + prec_member);
+            List<Pair<Integer, Integer>> results = new ArrayList<>(32);
+            for (Map.Entry<String, String> entry : date.entrySet()) {
+                Pair pair = new Pair<>(Integer.parseInt(entry.getKey()), Integer.parseInt(entry.getValue()));
+                results.add(pair);
+            }
+            /*
+             * 对集合按时间戳进行排序
+             *
+             * 此处排序可以使用匿名实现类去完成比较，返回正数则大于，返回负数则小于，相等则返回0，
+             * 也可以使用jdk1.8新特性lambda表达式去完成，此处使用lambda表达式去实现
+             *
+             * 切两种lambda的实现方法建议使用第二种方式
+             * 1.Collections.sort(results, (pair1, pair2) -> pair1.getKey().compareTo(pair2.getKey()));
+             * 2.Collections.sort(results, Comparator.comparing(Pair::getKey));
+             */
+            Collections.sort(results, Comparator.comparing(Pair::getKey));
+            return results;
         }
-        /*
-         * 对集合按时间戳进行排序
-         *
-         * 此处排序可以使用匿名实现类去完成比较，返回正数则大于，返回负数则小于，相等则返回0，
-         * 也可以使用jdk1.8新特性lambda表达式去完成，此处使用lambda表达式去实现
-         *
-         * 切两种lambda的实现方法建议使用第二种方式
-         * 1.Collections.sort(results, (pair1, pair2) -> pair1.getKey().compareTo(pair2.getKey()));
-         * 2.Collections.sort(results, Comparator.comparing(Pair::getKey));
-         */
-        Collections.sort(results, Comparator.comparing(Pair::getKey));
-        return results;
     }
 
     /**
@@ -286,39 +395,46 @@ public class Chapter05 extends RedisHandler {
                  *
                  * 此处按每个时间片循环，当每个时间片执行结束之后则循环终止
                  */
-                while (index < conn.zcard("known:")) {
-                    Set<String> hashSet = conn.zrange("known:", index, index);
-                    index++;
-                    if (hashSet.size() == 0) {
-                        break;
-                    }
-                    String hash = hashSet.iterator().next();
-                    int prec = Integer.parseInt(hash.substring(0, hash.indexOf(":")));
-                    int bprec = (int) Math.floor(prec / 60);
-                    if (bprec == 0) {
-                        bprec = 1;
-                    }
-                    if ((passes % bprec) != 0) {
-                        continue;
-                    }
+                try (RedisLease lease = leaseFor("known:")) {
+                    Jedis conn = lease.getConn();
+                    while (index < conn.zcard("known:")) {
+                        Set<String> hashSet = conn.zrange("known:", index, index);
+                        index++;
+                        if (hashSet.size() == 0) {
+                            break;
+                        }
+                        String hash = hashSet.iterator().next();
+                        int prec = Integer.parseInt(hash.substring(0, hash.indexOf(":")));
+                        int bprec = (int) Math.floor(prec / 60);
+                        if (bprec == 0) {
+                            bprec = 1;
+                        }
+                        if ((passes % bprec) != 0) {
+                            continue;
+                        }
 
-                    String hkey = "count:" + hash;
-                    String cutoff = String.valueOf(((System.currentTimeMillis() + timeOffset) / 1000) - sampleCount * prec);
-                    List<String> samples = new ArrayList<>(conn.hkeys(hkey));
-                    Collections.sort(samples);
-                    int remove = bisectRight(samples, cutoff);
-
-                    if (remove != 0) {
-                        conn.hdel(hkey, samples.subList(0, remove).toArray(new String[0]));
-                        if (remove == samples.size()) {
-                            conn.watch(hkey);
-                            if (conn.hlen(hkey) == 0) {
-                                Transaction trans = conn.multi();
-                                trans.zrem("known:", hash);
-                                trans.exec();
-                                index--;
-                            } else {
-                                conn.unwatch();
+                        String hkey = "count:" + hash;
+                        String cutoff = String.valueOf(((System.currentTimeMillis() + timeOffset) / 1000) - sampleCount * prec);
+                        if (shards() != null) {
+                            index -= cleanSharded(conn, hash, hkey, cutoff);
+                            continue;
+                        }
+                        List<String> samples = new ArrayList<>(conn.hkeys(hkey));
+                        Collections.sort(samples);
+                        int remove = bisectRight(samples, cutoff);
+
+                        if (remove != 0) {
+                            conn.hdel(hkey, samples.subList(0, remove).toArray(new String[0]));
+                            if (remove == samples.size()) {
+                                conn.watch(hkey);
+                                if (conn.hlen(hkey) == 0) {
+                                    Transaction trans = conn.multi();
+                                    trans.zrem("known:", hash);
+                                    trans.exec();
+                                    index--;
+                                } else {
+                                    conn.unwatch();
+                                }
                             }
                         }
                     }
@@ -334,6 +450,30 @@ public class Chapter05 extends RedisHandler {
             }
         }
 
+        /**
+         * 分片时计数散列与known:可能不在同一节点，不能WATCH后在同一事务中移除；
+         * 移除后并发的updateCounter会重新登记known:，最多留下一个待下一轮清理的空登记
+         *
+         * @param knownConn known: 所在节点的连接
+         * @return 从known:移除的成员数
+         */
+        private int cleanSharded(Jedis knownConn, String hash, String hkey, String cutoff) {
+            try (RedisLease lease = leaseFor(hkey)) {
+                Jedis conn = lease.getConn();
+                List<String> samples = new ArrayList<>(conn.hkeys(hkey));
+                Collections.sort(samples);
+                int remove = bisectRight(samples, cutoff);
+                if (remove == 0) {
+                    return 0;
+                }
+                conn.hdel(hkey, samples.subList(0, remove).toArray(new String[0]));
+                if (remove < samples.size() || conn.exists(hkey)) {
+                    return 0;
+                }
+            }
+            return knownConn.zrem("known:", hash).intValue();
+        }
+
         public int bisectRight(List<String> values, String key) {
             int index = Collections.binarySearch(values, key);
             return index < 0 ? Math.abs(index) - 1 : index + 1;
@@ -370,41 +510,44 @@ public class Chapter05 extends RedisHandler {
      * @param file
      */
     public void importIpsToRedis(File file) {
-        FileReader reader = null;
-        try {
-            reader = new FileReader(file);
-            CSVParser parser = new CSVParser(reader, CSVFormat.DEFAULT);
-            /*
-             * get all records
-             */
-            List<CSVRecord> recordList = parser.getRecords();
-            Pipeline pipe = conn.pipelined();
-            for (int i = 0; i < recordList.size(); i++) {
+        try (RedisLease lease = leaseFor("ip2CityId:")) {
+            Jedis conn = lease.getConn();
+            FileReader reader = null;
+            try {
+                reader = new FileReader(file);
+                CSVParser parser = new CSVParser(reader, CSVFormat.DEFAULT);
                 /*
-                 * 当i大于2时（因为前两行是表头）开始获取数据
+                 * get all records
                  */
-                if (i <= 1) {
-                    continue;
+                List<CSVRecord> recordList = parser.getRecords();
+                Pipeline pipe = conn.pipelined();
+                for (int i = 0; i < recordList.size(); i++) {
+                    /*
+                     * 当i大于2时（因为前两行是表头）开始获取数据
+                     */
+                    if (i <= 1) {
+                        continue;
+                    }
+                    printer("currentNum: " + i);
+                    /*
+                     * .parseInt() method is end at 2147483648
+                     */
+                    int startNum = Integer.parseInt(recordList.get(i).get(0), 10);
+                    String cityNo = recordList.get(i).get(2);
+                    pipe.zadd("ip2CityId:", startNum, cityNo + "_" + i);
                 }
-                printer("currentNum: " + i);
-                /*
-                 * .parseInt() method is end at 2147483648
-                 */
-                int startNum = Integer.parseInt(recordList.get(i).get(0), 10);
-                String cityNo = recordList.get(i).get(2);
-                pipe.zadd("ip2CityId:", startNum, cityNo + "_" + i);
-            }
-            pipe.sync();
-        } catch (FileNotFoundException e) {
-            throw new RuntimeException(e);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        } finally {
-            if (reader != null) {
-                try {
-                    reader.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
+                pipe.sync();
+            } catch (FileNotFoundException e) {
+                throw new RuntimeException(e);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            } finally {
+                if (reader != null) {
+                    try {
+                        reader.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
                 }
             }
         }
@@ -416,84 +559,91 @@ public class Chapter05 extends RedisHandler {
      * @param file
      */
     public void importCitesToRedis(File file) {
-        Gson gson = new Gson();
-        FileReader reader = null;
-        Pipeline pipe = conn.pipelined();
-        try {
-            reader = new FileReader(file);
-            CSVParser parser = new CSVParser(reader, CSVFormat.DEFAULT);
-            List<CSVRecord> recordList = parser.getRecords();
-            for (int i = 0; i < recordList.size(); i++) {
-                /*
-                 * 当i大于2时（因为前两行是表头）开始获取数据
-                 */
-                if (i <= 1) {
-                    continue;
+        try (RedisLease lease = leaseFor("cityId2City:")) {
+            Jedis conn = lease.getConn();
+            Gson gson = new Gson();
+            FileReader reader = null;
+            Pipeline pipe = conn.pipelined();
+            try {
+                reader = new FileReader(file);
+                CSVParser parser = new CSVParser(reader, CSVFormat.DEFAULT);
+                List<CSVRecord> recordList = parser.getRecords();
+                for (int i = 0; i < recordList.size(); i++) {
+                    /*
+                     * 当i大于2时（因为前两行是表头）开始获取数据
+                     */
+                    if (i <= 1) {
+                        continue;
+                    }
+                    printer("currentNum: " + i);
+                    /*
+                     * 取出locId, country, region, city，并转成json格式存入redisHash
+                     */
+                    String cityStr = gson.toJson(new String[]{recordList.get(i).get(0), recordList.get(i).get(1),
+                            recordList.get(i).get(2), recordList.get(i).get(3)});
+                    pipe.hset("cityId2City:", recordList.get(i).get(0), cityStr);
                 }
-                printer("currentNum: " + i);
-                /*
-                 * 取出locId, country, region, city，并转成json格式存入redisHash
-                 */
-                String cityStr = gson.toJson(new String[]{recordList.get(i).get(0), recordList.get(i).get(1),
-                        recordList.get(i).get(2), recordList.get(i).get(3)});
-                pipe.hset("cityId2City:", recordList.get(i).get(0), cityStr);
-            }
-            pipe.sync();
-        } catch (Exception e) {
-            e.printStackTrace();
-        } finally {
-            if (reader != null) {
-                try {
-                    reader.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
+                pipe.sync();
+                invalidate("cityId2City:");
+            } catch (Exception e) {
+                e.printStackTrace();
+            } finally {
+                if (reader != null) {
+                    try {
+                        reader.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
                 }
             }
-        }
 
+        }
     }
 
     /**
      * 查询IP所属城市信息
      */
     public void testIpLookup() {
-        printer("\n----- testIpLookup -----");
-        File blocks = new File("/Users/yangkaiqiang/Documents/data/GeoLiteCity-Blocks.csv");
-        File locations = new File("/Users/yangkaiqiang/Documents/data/GeoLiteCity-Location.csv");
-        if (!blocks.exists()) {
-            printer("*****");
-            printer("GeoLiteCity-Blocks.csv file not found...");
-            printer("*****");
-        }
-        if (!locations.exists()) {
-            printer("*****");
-            printer("GeoLiteCity-Blocks.csv file not found...");
-            printer("*****");
-        }
-
-        printer("importing IP addresses to Redis...(this may take a while)");
-//        importIpsToRedis(blocks);
-        long ranges = conn.zcard("ip2CityId:");
-        printer("Loaded ranges into Redis: " + ranges);
-        assert ranges > 1000;
-        printer();
+        try (RedisLease lease = leaseFor("ip2CityId:")) {
+            Jedis conn = lease.getConn();
+            printer("\n----- testIpLookup -----");
+            File blocks = new File("/Users/yangkaiqiang/Documents/data/GeoLiteCity-Blocks.csv");
+            File locations = new File("/Users/yangkaiqiang/Documents/data/GeoLiteCity-Location.csv");
+            if (!blocks.exists()) {
+                printer("*****");
+                printer("GeoLiteCity-Blocks.csv file not found...");
+                printer("*****");
+            }
+            if (!locations.exists()) {
+                printer("*****");
+                printer("GeoLiteCity-Blocks.csv file not found...");
+                printer("*****");
+            }
 
-        printer("importing Location lookups into Redis...(this may take a while)");
-//        importCitesToRedis(locations);
-        long cities = conn.hlen("ip2CityId: ");
-        printer("Loaded city lookups into redis: " + cities);
-        assert cities > 1000;
-        printer();
+            printer("importing IP addresses to Redis...(this may take a while)");
+    //        importIpsToRedis(blocks);
+            long ranges = conn.zcard("ip2CityId:");
+            printer("Loaded ranges into Redis: " + ranges);
+            assert ranges > 1000;
+            printer();
+
+            printer("importing Location lookups into Redis...(this may take a while)");
+    //        importCitesToRedis(locations);
+            long cities = conn.hlen("ip2CityId: ");
+            printer("Loaded city lookups into redis: " + cities);
+            assert cities > 1000;
+            printer();
+
+            printer("Let's lookup some locations!");
+            for (int i = 0; i < 10; i++) {
+                String ip = randomOctet(255) + '.' +
+                        randomOctet(256) + '.' +
+                        randomOctet(256) + '.' +
+                        randomOctet(256);
+                printer(Arrays.toString(findCityByIp(ip)));
+            }
 
-        printer("Let's lookup some locations!");
-        for (int i = 0; i < 10; i++) {
-            String ip = randomOctet(255) + '.' +
-                    randomOctet(256) + '.' +
-                    randomOctet(256) + '.' +
-                    randomOctet(256);
-            printer(Arrays.toString(findCityByIp(ip)));
         }
-
     }
 
     /**
@@ -513,18 +663,23 @@ public class Chapter05 extends RedisHandler {
      * @return
      */
     public String[] findCityByIp(String ipAddress) {
-        int score = ipToScore(ipAddress);
-        /*
-         * 获取IP分值小于或等于给定分值的城市ID
-         */
-        Set<String> results = conn.zrevrangeByScore("ip2CityId:", score, 0, 0, 1);
+        Set<String> results;
+        try (RedisLease lease = leaseFor("ip2CityId:")) {
+            Jedis conn = lease.getConn();
+            int score = ipToScore(ipAddress);
+            /*
+             * 获取IP分值小于或等于给定分值的城市ID
+             */
+            results = conn.zrevrangeByScore("ip2CityId:", score, 0, 0, 1);
+        }
         if (results.size() == 0) {
             return null;
         }
 
         String cityId = results.iterator().next();
         cityId = cityId.substring(0, cityId.indexOf('_'));
-        return new Gson().fromJson(conn.hget("cityId2City:", cityId), String[].class);
+        // cityId2City: 可能在另一个节点，cachedHget按键路由
+        return new Gson().fromJson(cachedHget("cityId2City:", cityId), String[].class);
     }
 }
 
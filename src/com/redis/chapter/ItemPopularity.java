@@ -0,0 +1,349 @@
+package com.redis.chapter;
+
+import com.redis.common.LatencyHistogram;
+import com.redis.common.Metrics;
+import com.redis.common.RedisHandler;
+import com.redis.common.RedisLease;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.ZParams;
+import redis.clients.util.Hashing;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 商品浏览量的预聚合
+ * <p>
+ * {@link Chapter02#updateToken(String, String, String)} 每次浏览商品都对全局的 viewed: 有序集合执行一次ZINCRBY。
+ * 启用后（{@link #enable(ItemPopularity)}）浏览先计入进程内的计数窗口：
+ * <ul>
+ * <li>Count-Min Sketch（depth行、每行width个计数器）估计每个商品在窗口内的浏览量，只会高估，
+ * 高估量以大概率不超过 e/width * 窗口总浏览量</li>
+ * <li>按估计值保留浏览最多的topK个候选商品（heavy hitters）</li>
+ * </ul>
+ * 后台线程每隔flushMillis换出窗口，只把候选商品的浏览量用一次流水线写入 viewed:，长尾商品的浏览被丢弃，
+ * 页面缓存只关心排名靠前的商品（见 {@link Chapter02#canCache(String, String)}）。
+ * 每隔rescaleMillis裁剪 viewed: 只保留maxItems个商品并把分值减半，旧的热度逐渐衰减；
+ * 多个进程通过 lock:viewed: 键保证每个周期只有一个进程执行。
+ * <p>
+ * 估计误差可以用 {@link ItemPopularityReport} 测量。
+ *
+ * @author kqyang
+ */
+public class ItemPopularity extends RedisHandler implements AutoCloseable {
+    static final String VIEWED = "viewed:";
+    private static final String RESCALE_LOCK = "lock:viewed:";
+    private static final int DEFAULT_WIDTH = 16384;
+    private static final int DEFAULT_DEPTH = 4;
+    private static final int DEFAULT_TOP_K = 1000;
+    private static final long DEFAULT_FLUSH_MILLIS = 10000;
+    private static final long DEFAULT_RESCALE_MILLIS = 300000;
+    private static final int DEFAULT_MAX_ITEMS = 20000;
+    private static final LatencyHistogram FLUSH_LATENCY = Metrics.operation("popularityFlush");
+
+    private static volatile ItemPopularity active;
+
+    private final int width;
+    private final int depth;
+    private final int topK;
+    private final long flushMillis;
+    private final ReadWriteLock swapLock = new ReentrantReadWriteLock();
+    private final Thread flusher;
+    private final LongAdder views = new LongAdder();
+    private final AtomicLong writes = new AtomicLong();
+    private volatile Window window;
+    private volatile long rescaleMillis = DEFAULT_RESCALE_MILLIS;
+    private volatile int maxItems = DEFAULT_MAX_ITEMS;
+    private volatile boolean closed;
+    private long nextRescale;
+
+    public ItemPopularity() {
+        this(DEFAULT_WIDTH, DEFAULT_DEPTH, DEFAULT_TOP_K, DEFAULT_FLUSH_MILLIS);
+    }
+
+    /**
+     * @param width       每行计数器数，越大高估越少
+     * @param depth       行数（哈希函数个数），越大高估超出上界的概率越小
+     * @param topK        每个窗口写入 viewed: 的商品数
+     * @param flushMillis 窗口长度
+     */
+    public ItemPopularity(int width, int depth, int topK, long flushMillis) {
+        if (width <= 0 || depth <= 0 || topK <= 0 || flushMillis <= 0) {
+            throw new IllegalArgumentException("width, depth, topK and flushMillis must be positive");
+        }
+        this.width = width;
+        this.depth = depth;
+        this.topK = topK;
+        this.flushMillis = flushMillis;
+        this.window = new Window();
+        this.nextRescale = System.currentTimeMillis() + rescaleMillis;
+        this.flusher = new Thread(this::run, "ItemPopularityFlusher");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    /**
+     * 一个窗口的计数
+     */
+    private final class Window {
+        final AtomicLongArray counters = new AtomicLongArray(width * depth);
+        final Map<String, Long> candidates = new ConcurrentHashMap<>();
+        /**
+         * 候选已满时其中最小的估计值，新商品超过它才需要加锁替换
+         */
+        volatile long floor;
+
+        long add(String item) {
+            long hash = Hashing.MURMUR_HASH.hash(item);
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32) | 1;
+            long estimate = Long.MAX_VALUE;
+            for (int i = 0; i < depth; i++) {
+                int index = i * width + Math.floorMod(h1 + i * h2, width);
+                estimate = Math.min(estimate, counters.incrementAndGet(index));
+            }
+            return estimate;
+        }
+
+        long estimate(String item) {
+            long hash = Hashing.MURMUR_HASH.hash(item);
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32) | 1;
+            long estimate = Long.MAX_VALUE;
+            for (int i = 0; i < depth; i++) {
+                estimate = Math.min(estimate, counters.get(i * width + Math.floorMod(h1 + i * h2, width)));
+            }
+            return estimate;
+        }
+
+        void offer(String item, long estimate) {
+            if (candidates.replace(item, estimate) != null) {
+                return;
+            }
+            if (candidates.size() >= topK && estimate <= floor) {
+                return;
+            }
+            synchronized (this) {
+                candidates.put(item, estimate);
+                if (candidates.size() <= topK) {
+                    return;
+                }
+                // 淘汰最小的候选并重新计算门槛
+                String smallest = null;
+                long min = Long.MAX_VALUE;
+                long second = Long.MAX_VALUE;
+                for (Map.Entry<String, Long> candidate : candidates.entrySet()) {
+                    long count = candidate.getValue();
+                    if (count < min) {
+                        second = min;
+                        min = count;
+                        smallest = candidate.getKey();
+                    } else if (count < second) {
+                        second = count;
+                    }
+                }
+                candidates.remove(smallest);
+                floor = second;
+            }
+        }
+    }
+
+    /**
+     * 之后 {@link Chapter02#updateToken(String, String, String)} 的商品浏览交给tracker计数
+     *
+     * @param tracker
+     */
+    public static void enable(ItemPopularity tracker) {
+        active = tracker;
+    }
+
+    /**
+     * 恢复每次浏览直接ZINCRBY，不关闭之前的tracker
+     */
+    public static void disable() {
+        active = null;
+    }
+
+    /**
+     * @return 当前启用的tracker，未启用为null
+     */
+    public static ItemPopularity active() {
+        return active;
+    }
+
+    /**
+     * 记录一次浏览，关闭后（调用方可能在关闭前取得了tracker）直接ZINCRBY
+     *
+     * @param item
+     */
+    public void record(String item) {
+        swapLock.readLock().lock();
+        try {
+            if (!closed) {
+                Window current = window;
+                current.offer(item, current.add(item));
+                views.increment();
+                return;
+            }
+        } finally {
+            swapLock.readLock().unlock();
+        }
+        try (RedisLease lease = lease()) {
+            lease.getConn().zincrby(VIEWED, -1, item);
+        }
+    }
+
+    /**
+     * 当前窗口内商品浏览量的估计值
+     *
+     * @param item
+     * @return
+     */
+    public long estimate(String item) {
+        return window.estimate(item);
+    }
+
+    /**
+     * 当前窗口的候选商品及估计值
+     *
+     * @return
+     */
+    public Map<String, Long> topItems() {
+        return new HashMap<>(window.candidates);
+    }
+
+    /**
+     * 立即换出窗口，把候选商品写入 viewed:
+     */
+    public synchronized void flush() {
+        Window batch;
+        swapLock.writeLock().lock();
+        try {
+            batch = window;
+            if (batch.candidates.isEmpty()) {
+                return;
+            }
+            window = new Window();
+        } finally {
+            swapLock.writeLock().unlock();
+        }
+        long start = System.nanoTime();
+        try (RedisLease lease = lease()) {
+            Pipeline pipe = lease.getConn().pipelined();
+            for (Map.Entry<String, Long> candidate : batch.candidates.entrySet()) {
+                // 分值越小浏览越多，与直接ZINCRBY -1一致
+                pipe.zincrby(VIEWED, -candidate.getValue(), candidate.getKey());
+            }
+            pipe.sync();
+            writes.addAndGet(batch.candidates.size());
+        } finally {
+            FLUSH_LATENCY.recordSince(start);
+        }
+    }
+
+    /**
+     * 裁剪 viewed: 并把分值减半，多个进程中每个周期只执行一次
+     *
+     * @return 本进程是否执行了
+     */
+    public boolean rescale() {
+        try (RedisLease lease = lease()) {
+            Jedis conn = lease.getConn();
+            if (conn.set(RESCALE_LOCK, "1", "NX", "PX", Math.max(1, rescaleMillis - flushMillis)) == null) {
+                return false;
+            }
+            Pipeline pipe = conn.pipelined();
+            pipe.zremrangeByRank(VIEWED, maxItems, -1);
+            pipe.zinterstore(VIEWED, new ZParams().weightsByDouble(0.5), VIEWED);
+            pipe.sync();
+            return true;
+        }
+    }
+
+    /**
+     * 裁剪与衰减的周期及保留的商品数
+     *
+     * @param rescaleMillis
+     * @param maxItems
+     * @return
+     */
+    public ItemPopularity setRescale(long rescaleMillis, int maxItems) {
+        if (rescaleMillis <= 0 || maxItems <= 0) {
+            throw new IllegalArgumentException("rescaleMillis and maxItems must be positive");
+        }
+        this.rescaleMillis = rescaleMillis;
+        this.maxItems = maxItems;
+        return this;
+    }
+
+    /**
+     * 记录的浏览次数
+     *
+     * @return
+     */
+    public long getViews() {
+        return views.sum();
+    }
+
+    /**
+     * 写入 viewed: 的ZINCRBY次数
+     *
+     * @return
+     */
+    public long getWrites() {
+        return writes.get();
+    }
+
+    /**
+     * 停止后台线程并写入当前窗口
+     */
+    @Override
+    public void close() {
+        // 先停止分发新的浏览，再在写锁下标记关闭：之后的record直接写入，之前的已计入最后一个窗口
+        if (active == this) {
+            active = null;
+        }
+        swapLock.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        } finally {
+            swapLock.writeLock().unlock();
+        }
+        flusher.interrupt();
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+    private void run() {
+        while (!closed) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(flushMillis);
+                flush();
+                long now = System.currentTimeMillis();
+                if (now >= nextRescale) {
+                    nextRescale = now + rescaleMillis;
+                    rescale();
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                printer("popularity flush failed: " + e.getMessage());
+            }
+        }
+    }
+}
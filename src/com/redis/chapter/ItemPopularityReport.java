@@ -0,0 +1,143 @@
+package com.redis.chapter;
+
+import com.redis.common.RedisHandler;
+import com.redis.common.RedisLease;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * {@link ItemPopularity} 的估计误差
+ * <p>
+ * 在空库中生成浏览量服从Zipf分布的商品浏览序列，同时交给 {@link ItemPopularity} 与精确计数，
+ * 一个窗口结束后比较：真实前topK个商品的高估量（平均、最大，以及 e/width * 总浏览量 的理论上界）、
+ * 候选商品对真实前topK的召回率、写入 viewed: 后前100名与真实前100名的重合数，
+ * 以及ZINCRBY从每次浏览一次减少到的次数。测完后删除 viewed:。
+ * <p>
+ * 用法：ItemPopularityReport [浏览数] [商品数] [Zipf指数] [width] [depth] [topK]
+ *
+ * @author kqyang
+ */
+public class ItemPopularityReport extends RedisHandler {
+    private static final long SEED = 42;
+    private static final int COMPARED_RANKS = 100;
+
+    public static void main(String[] args) {
+        int views = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int items = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+        double skew = args.length > 2 ? Double.parseDouble(args[2]) : 1.0;
+        int width = args.length > 3 ? Integer.parseInt(args[3]) : 16384;
+        int depth = args.length > 4 ? Integer.parseInt(args[4]) : 4;
+        int topK = args.length > 5 ? Integer.parseInt(args[5]) : 1000;
+        new ItemPopularityReport().run(views, items, skew, width, depth, topK);
+    }
+
+    /**
+     * @param views 浏览次数
+     * @param items 商品数
+     * @param skew  Zipf指数，越大浏览越集中
+     * @param width
+     * @param depth
+     * @param topK
+     */
+    public void run(int views, int items, double skew, int width, int depth, int topK) {
+        try (RedisLease lease = lease()) {
+            if (lease.getConn().dbSize() != 0) {
+                printer("database is not empty, run the report against an empty database");
+                return;
+            }
+        }
+        printer("views=" + views + " items=" + items + " skew=" + skew + " width=" + width + " depth=" + depth
+                + " topK=" + topK);
+        double[] cumulative = zipf(items, skew);
+        long[] exact = new long[items];
+        Random random = new Random(SEED);
+        // 窗口足够长，由这里手动刷新
+        ItemPopularity tracker = new ItemPopularity(width, depth, topK, Long.MAX_VALUE / 2);
+        try {
+            long start = System.nanoTime();
+            for (int i = 0; i < views; i++) {
+                int item = sample(cumulative, random.nextDouble());
+                exact[item]++;
+                tracker.record("item" + item);
+            }
+            long elapsed = System.nanoTime() - start;
+
+            List<Integer> ranked = rank(exact);
+            Map<String, Long> candidates = tracker.topItems();
+            long total = 0;
+            long max = 0;
+            int recalled = 0;
+            int k = Math.min(topK, ranked.size());
+            for (int i = 0; i < k; i++) {
+                int item = ranked.get(i);
+                long over = tracker.estimate("item" + item) - exact[item];
+                total += over;
+                max = Math.max(max, over);
+                if (candidates.containsKey("item" + item)) {
+                    recalled++;
+                }
+            }
+            printer(String.format("records/s=%.0f overestimate mean=%.1f max=%d bound=%.1f recall=%.1f%%",
+                    views * 1e9 / elapsed, (double) total / k, max, Math.E / width * views, 100.0 * recalled / k));
+
+            tracker.flush();
+            Set<String> flushed;
+            try (RedisLease lease = lease()) {
+                flushed = lease.getConn().zrange(ItemPopularity.VIEWED, 0, COMPARED_RANKS - 1);
+            }
+            int overlap = 0;
+            for (int i = 0; i < Math.min(COMPARED_RANKS, ranked.size()); i++) {
+                if (flushed.contains("item" + ranked.get(i))) {
+                    overlap++;
+                }
+            }
+            printer("top-" + COMPARED_RANKS + " overlap=" + overlap + " ZINCRBY " + views + " -> "
+                    + tracker.getWrites());
+        } finally {
+            tracker.close();
+            try (RedisLease lease = lease()) {
+                lease.getConn().del(ItemPopularity.VIEWED);
+            }
+        }
+    }
+
+    /**
+     * Zipf分布的累积概率
+     */
+    private static double[] zipf(int items, double skew) {
+        double[] cumulative = new double[items];
+        double sum = 0;
+        for (int i = 0; i < items; i++) {
+            sum += 1 / Math.pow(i + 1, skew);
+            cumulative[i] = sum;
+        }
+        for (int i = 0; i < items; i++) {
+            cumulative[i] /= sum;
+        }
+        return cumulative;
+    }
+
+    private static int sample(double[] cumulative, double p) {
+        int index = Arrays.binarySearch(cumulative, p);
+        return Math.min(index >= 0 ? index : -index - 1, cumulative.length - 1);
+    }
+
+    /**
+     * 按真实浏览量降序排列的商品序号
+     */
+    private static List<Integer> rank(long[] exact) {
+        List<Integer> ranked = new ArrayList<>(exact.length);
+        for (int i = 0; i < exact.length; i++) {
+            if (exact[i] > 0) {
+                ranked.add(i);
+            }
+        }
+        ranked.sort((a, b) -> Long.compare(exact[b], exact[a]));
+        return ranked;
+    }
+}
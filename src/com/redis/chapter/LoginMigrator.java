@@ -0,0 +1,184 @@
+package com.redis.chapter;
+
+import com.redis.common.RedisHandler;
+import com.redis.common.RedisLease;
+import com.redis.common.ScriptRegistry;
+import com.redis.common.ShardedPipeline;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 把单个 login: 散列中的会话增量迁移到 {@link LoginStore} 的分桶布局
+ * <p>
+ * 用HSCAN分页遍历 login:，每页的会话逐个移动：先从 login: 删除，删除成功才HSETNX写入所在的桶，
+ * 因此迁移期间更新过的会话（已写入桶）不会被旧值覆盖，已被清理的会话也不会复活。
+ * 支持脚本时每页一次脚本调用，整页原子移动；否则流水线HDEL后再流水线HSETNX。
+ * 启用分片时各桶可能与 login: 不在同一节点，总是用后一种方式，HSETNX按桶所在的节点分组发送。
+ * 每页之间可以休眠，控制对服务端的压力。遍历完后 login: 仍有会话（未切换布局的进程写入的）时再遍历一轮。
+ * <p>
+ * 迁移开始前所有进程都应调用 {@link LoginStore#useBuckets(int, boolean)}（migrating为true），
+ * 迁移完成后可以改为migrating为false。
+ *
+ * @author kqyang
+ */
+public class LoginMigrator extends RedisHandler {
+    private static final int DEFAULT_SCAN_COUNT = 500;
+    /**
+     * 逐个移动会话
+     * KEYS: login:, 各会话所在的桶
+     * ARGV: 令牌1, 用户1, 令牌2, 用户2, ...
+     * 返回: 移动的会话数
+     */
+    private static final ScriptRegistry.Script MOVE = scripts().register("moveLogins",
+            "local moved = 0\n"
+                    + "for i = 2, #KEYS do\n"
+                    + "    local token = ARGV[i * 2 - 3]\n"
+                    + "    if redis.call('hdel', KEYS[1], token) == 1 then\n"
+                    + "        redis.call('hsetnx', KEYS[i], token, ARGV[i * 2 - 2])\n"
+                    + "        moved = moved + 1\n"
+                    + "    end\n"
+                    + "end\n"
+                    + "return moved");
+
+    private final int buckets;
+    private int scanCount = DEFAULT_SCAN_COUNT;
+    private long pauseMillis;
+    private boolean useScript = true;
+
+    /**
+     * @param buckets 目标桶数
+     */
+    public LoginMigrator(int buckets) {
+        if (buckets <= 0) {
+            throw new IllegalArgumentException("buckets must be positive");
+        }
+        this.buckets = buckets;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length < 1) {
+            System.out.println("usage: LoginMigrator <buckets> [pauseMillis]");
+            return;
+        }
+        LoginMigrator migrator = new LoginMigrator(Integer.parseInt(args[0]))
+                .setPauseMillis(args.length > 1 ? Long.parseLong(args[1]) : 0);
+        System.out.println("moved " + migrator.migrate() + " sessions");
+    }
+
+    /**
+     * HSCAN每页建议返回的会话数
+     *
+     * @param scanCount
+     * @return
+     */
+    public LoginMigrator setScanCount(int scanCount) {
+        if (scanCount <= 0) {
+            throw new IllegalArgumentException("scanCount must be positive");
+        }
+        this.scanCount = scanCount;
+        return this;
+    }
+
+    /**
+     * 每页之间的休眠时间
+     *
+     * @param pauseMillis
+     * @return
+     */
+    public LoginMigrator setPauseMillis(long pauseMillis) {
+        this.pauseMillis = pauseMillis;
+        return this;
+    }
+
+    /**
+     * 执行迁移：切换本进程为分桶布局（迁移中），迁移完成后结束回查
+     *
+     * @return 移动的会话数
+     * @throws InterruptedException
+     */
+    public long migrate() throws InterruptedException {
+        LoginStore.useBuckets(buckets, true);
+        ScanParams params = new ScanParams().count(scanCount);
+        long moved = 0;
+        long remaining;
+        do {
+            String cursor = ScanParams.SCAN_POINTER_START;
+            do {
+                try (RedisLease lease = leaseFor(LoginStore.LOGIN)) {
+                    Jedis conn = lease.getConn();
+                    ScanResult<Map.Entry<String, String>> page = conn.hscan(LoginStore.LOGIN, cursor, params);
+                    cursor = page.getStringCursor();
+                    if (!page.getResult().isEmpty()) {
+                        moved += move(conn, page.getResult());
+                    }
+                }
+                if (pauseMillis > 0) {
+                    TimeUnit.MILLISECONDS.sleep(pauseMillis);
+                }
+            } while (!ScanParams.SCAN_POINTER_START.equals(cursor));
+            try (RedisLease lease = leaseFor(LoginStore.LOGIN)) {
+                remaining = lease.getConn().hlen(LoginStore.LOGIN);
+            }
+        } while (remaining > 0);
+        LoginStore.finishMigration();
+        printer("login: migrated to " + buckets + " buckets, " + moved + " sessions moved");
+        return moved;
+    }
+
+    private long move(Jedis conn, List<Map.Entry<String, String>> sessions) {
+        if (shards() == null && ScriptRegistry.usable(useScript)) {
+            List<String> keys = new ArrayList<>(sessions.size() + 1);
+            List<String> args = new ArrayList<>(sessions.size() * 2);
+            keys.add(LoginStore.LOGIN);
+            for (Map.Entry<String, String> session : sessions) {
+                keys.add(LoginStore.hashKey(session.getKey()));
+                args.add(session.getKey());
+                args.add(session.getValue());
+            }
+            try {
+                return (Long) MOVE.eval(conn, keys, args);
+            } catch (JedisDataException e) {
+                if (!ScriptRegistry.isUnsupported(e)) {
+                    throw e;
+                }
+                // 服务端不支持脚本，之后都用两步流水线
+                useScript = false;
+            }
+        }
+        return moveStepwise(conn, sessions);
+    }
+
+    /**
+     * 先在 login: 所在的连接上删除，再按节点写入：删除与写入之间会话被清理时，写入的会话会残留在桶中，直到同一令牌再次登录
+     */
+    private long moveStepwise(Jedis conn, List<Map.Entry<String, String>> sessions) {
+        Pipeline pipe = conn.pipelined();
+        List<Response<Long>> deleted = new ArrayList<>(sessions.size());
+        for (Map.Entry<String, String> session : sessions) {
+            deleted.add(pipe.hdel(LoginStore.LOGIN, session.getKey()));
+        }
+        pipe.sync();
+        long moved = 0;
+        try (ShardedPipeline pipes = new ShardedPipeline()) {
+            for (int i = 0; i < sessions.size(); i++) {
+                if (deleted.get(i).get() == 1) {
+                    Map.Entry<String, String> session = sessions.get(i);
+                    String key = LoginStore.hashKey(session.getKey());
+                    pipes.of(key).hsetnx(key, session.getKey(), session.getValue());
+                    moved++;
+                }
+            }
+            pipes.sync();
+        }
+        return moved;
+    }
+}
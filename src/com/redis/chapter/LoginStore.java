@@ -0,0 +1,234 @@
+package com.redis.chapter;
+
+import com.redis.common.RedisHandler;
+import com.redis.common.ShardedPipeline;
+import redis.clients.jedis.PipelineBase;
+import redis.clients.jedis.Response;
+import redis.clients.util.Hashing;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 登录令牌散列的存储布局
+ * <p>
+ * 默认所有会话保存在一个 login: 散列中（令牌 -> 用户）。会话很多时它是一个巨大的键：无法分散到多个节点，
+ * 超出 hash-max-listpack-entries 后改用hashtable编码，扩容rehash时还会造成延迟尖刺。
+ * 可以切换为分桶布局：按令牌的MurmurHash取模分到 login:0 ~ login:(buckets-1) 共buckets个散列，
+ * 桶数应使每桶的会话数低于 hash-max-listpack-entries（默认128），各桶保持紧凑编码。
+ * 启用分片（{@link RedisHandler#useShards}）时各桶按键分布到不同节点：{@link #save(String, String)}、
+ * {@link #remove(String...)} 与 {@link #size()} 通过 {@link ShardedPipeline} 按节点发送，往返次数等于涉及的节点数。
+ * <p>
+ * 已有的 login: 数据用 {@link LoginMigrator} 增量迁移。迁移期间（{@link #useBuckets(int, boolean)} 的migrating为true）：
+ * 读取先查桶，未命中再查 login:；写入只写桶并删除 login: 中的旧值；删除同时删除两处。
+ * 与 {@link ArticleStorage} 一样，布局是进程内的设置，访问会话的所有进程应使用相同的设置。
+ *
+ * @author kqyang
+ */
+public final class LoginStore {
+    static final String LOGIN = "login:";
+
+    private static volatile int buckets;
+    private static volatile boolean migrating;
+
+    private LoginStore() {
+    }
+
+    /**
+     * 切换为分桶布局
+     *
+     * @param count     桶数
+     * @param migrating login: 中是否还有未迁移的会话
+     */
+    public static void useBuckets(int count, boolean migrating) {
+        if (count <= 0) {
+            throw new IllegalArgumentException("buckets must be positive");
+        }
+        buckets = count;
+        LoginStore.migrating = migrating;
+    }
+
+    /**
+     * 恢复单个 login: 散列的布局
+     */
+    public static void useSingleHash() {
+        buckets = 0;
+        migrating = false;
+    }
+
+    /**
+     * login: 已迁移完，读取不再回查
+     */
+    static void finishMigration() {
+        migrating = false;
+    }
+
+    public static boolean isBucketed() {
+        return buckets > 0;
+    }
+
+    public static boolean isMigrating() {
+        return buckets > 0 && migrating;
+    }
+
+    /**
+     * @return 桶数，0表示单个散列
+     */
+    public static int bucketCount() {
+        return buckets;
+    }
+
+    /**
+     * 令牌所在的散列键
+     *
+     * @param token
+     * @return
+     */
+    public static String hashKey(String token) {
+        int count = buckets;
+        return count > 0 ? LOGIN + Math.floorMod(Hashing.MURMUR_HASH.hash(token), (long) count) : LOGIN;
+    }
+
+    /**
+     * 按所在散列分组
+     *
+     * @param tokens
+     * @return 散列键 -> 该散列中的令牌
+     */
+    public static Map<String, String[]> group(String... tokens) {
+        Map<String, List<String>> grouped = new LinkedHashMap<>();
+        for (String token : tokens) {
+            grouped.computeIfAbsent(hashKey(token), key -> new ArrayList<>()).add(token);
+        }
+        Map<String, String[]> result = new LinkedHashMap<>(grouped.size() * 2);
+        for (Map.Entry<String, List<String>> entry : grouped.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().toArray(new String[entry.getValue().size()]));
+        }
+        return result;
+    }
+
+    /**
+     * 写入会话，分片时发往令牌所在桶的节点
+     *
+     * @param token
+     * @param user
+     */
+    public static void save(String token, String user) {
+        try (ShardedPipeline pipes = new ShardedPipeline()) {
+            save(pipes, token, user);
+            pipes.sync();
+        }
+    }
+
+    /**
+     * 写入会话
+     *
+     * @param pipes
+     * @param token
+     * @param user
+     */
+    public static void save(ShardedPipeline pipes, String token, String user) {
+        String key = hashKey(token);
+        pipes.of(key).hset(key, token, user);
+        if (isMigrating()) {
+            pipes.of(LOGIN).hdel(LOGIN, token);
+        }
+    }
+
+    /**
+     * 在同一连接的事务中写入会话，只能用于未启用分片时
+     *
+     * @param pipe  连接上的流水线或事务
+     * @param token
+     * @param user
+     */
+    public static void save(PipelineBase pipe, String token, String user) {
+        pipe.hset(hashKey(token), token, user);
+        if (isMigrating()) {
+            pipe.hdel(LOGIN, token);
+        }
+    }
+
+    /**
+     * 写入会话的命令，供只能发送字符串命令的客户端使用
+     *
+     * @param token
+     * @param user
+     * @return 一到两条命令
+     */
+    static List<String[]> saveCommands(String token, String user) {
+        List<String[]> commands = new ArrayList<>(2);
+        commands.add(new String[]{"HSET", hashKey(token), token, user});
+        if (isMigrating()) {
+            commands.add(new String[]{"HDEL", LOGIN, token});
+        }
+        return commands;
+    }
+
+    /**
+     * 删除会话，按桶所在的节点分组发送
+     *
+     * @param tokens
+     */
+    public static void remove(String... tokens) {
+        try (ShardedPipeline pipes = new ShardedPipeline()) {
+            remove(pipes, tokens);
+            pipes.sync();
+        }
+    }
+
+    /**
+     * 删除会话
+     *
+     * @param pipes
+     * @param tokens
+     */
+    public static void remove(ShardedPipeline pipes, String... tokens) {
+        for (Map.Entry<String, String[]> entry : group(tokens).entrySet()) {
+            pipes.of(entry.getKey()).hdel(entry.getKey(), entry.getValue());
+        }
+        if (isMigrating()) {
+            pipes.of(LOGIN).hdel(LOGIN, tokens);
+        }
+    }
+
+    /**
+     * 删除会话后通知近端缓存失效
+     *
+     * @param tokens
+     */
+    public static void invalidate(String... tokens) {
+        for (Map.Entry<String, String[]> entry : group(tokens).entrySet()) {
+            RedisHandler.invalidate(entry.getKey(), entry.getValue());
+        }
+        if (isMigrating()) {
+            RedisHandler.invalidate(LOGIN, tokens);
+        }
+    }
+
+    /**
+     * 会话总数，分桶时流水线HLEN所有的桶
+     *
+     * @return
+     */
+    public static long size() {
+        int count = buckets;
+        List<Response<Long>> lengths = new ArrayList<>(count + 1);
+        try (ShardedPipeline pipes = new ShardedPipeline()) {
+            for (int i = 0; i < count; i++) {
+                lengths.add(pipes.of(LOGIN + i).hlen(LOGIN + i));
+            }
+            if (count <= 0 || isMigrating()) {
+                lengths.add(pipes.of(LOGIN).hlen(LOGIN));
+            }
+            pipes.sync();
+        }
+        long total = 0;
+        for (Response<Long> length : lengths) {
+            total += length.get();
+        }
+        return total;
+    }
+}
@@ -0,0 +1,384 @@
+package com.redis.chapter;
+
+import com.redis.common.LatencyHistogram;
+import com.redis.common.Metrics;
+import com.redis.common.RedisHandler;
+import com.redis.common.RedisLease;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Transaction;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 网页缓存
+ * <p>
+ * 与 {@link Chapter02#cacheRequest(String, Chapter02.Callback, String)} 原来的做法相比：
+ * <ul>
+ * <li>键为 cache:请求的SHA-256摘要，不同请求不会因hashCode碰撞取到别的页面</li>
+ * <li>值为二进制：1字节格式（0原文，1为gzip）、8字节新鲜截止时间（毫秒）、页面内容；
+ * 页面不小于256字节且压缩后更小时才压缩</li>
+ * <li>新鲜期（freshSeconds）内直接返回；之后的staleSeconds内先返回旧页面，同时在后台重新生成</li>
+ * <li>同一页面同时只有一个生成者：进程内等待同一个future，跨进程用 lock:cache:摘要 短期锁，
+ * 未抢到锁的进程轮询等待页面写入，等待超过lockMillis后自己生成</li>
+ * </ul>
+ * 命中率、生成耗时（pageLoad）与压缩节省的字节数见各getter。
+ *
+ * @author kqyang
+ */
+public class PageCache extends RedisHandler {
+    static final String CACHE = "cache:";
+    private static final String LOCK = "lock:cache:";
+    private static final int DEFAULT_FRESH_SECONDS = 300;
+    private static final int DEFAULT_STALE_SECONDS = 60;
+    private static final long DEFAULT_LOCK_MILLIS = 3000;
+    private static final long POLL_MILLIS = 20;
+    private static final int MIN_COMPRESS_BYTES = 256;
+    private static final byte RAW = 0;
+    private static final byte GZIP = 1;
+    private static final int HEADER_BYTES = 9;
+    private static final int REFRESH_THREADS = 4;
+    private static final int REFRESH_QUEUE = 64;
+    private static final LatencyHistogram LOAD_LATENCY = Metrics.operation("pageLoad");
+    /**
+     * 后台刷新会阻塞在回调与redis上，不能占用公共ForkJoin池；队列满时放弃本次刷新，之后的请求仍返回旧页面并再次触发
+     */
+    private static final ThreadPoolExecutor REFRESHER = newRefresher();
+
+    private final int freshSeconds;
+    private final int staleSeconds;
+    private final Map<String, CompletableFuture<String>> loading = new ConcurrentHashMap<>();
+    /**
+     * 后台刷新单独登记：刷新抢不到锁时可能返回null，不能交给未命中的调用者等待
+     */
+    private final Map<String, CompletableFuture<String>> refreshing = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder staleHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final AtomicLong rawBytes = new AtomicLong();
+    private final AtomicLong storedBytes = new AtomicLong();
+    private long lockMillis = DEFAULT_LOCK_MILLIS;
+
+    public PageCache() {
+        this(DEFAULT_FRESH_SECONDS, DEFAULT_STALE_SECONDS);
+    }
+
+    /**
+     * @param freshSeconds 页面的新鲜期
+     * @param staleSeconds 新鲜期之后仍可返回旧页面的时间，0表示过期即重新生成
+     */
+    public PageCache(int freshSeconds, int staleSeconds) {
+        if (freshSeconds <= 0 || staleSeconds < 0) {
+            throw new IllegalArgumentException("freshSeconds must be positive and staleSeconds must not be negative");
+        }
+        this.freshSeconds = freshSeconds;
+        this.staleSeconds = staleSeconds;
+    }
+
+    /**
+     * 跨进程生成锁的时长，应大于生成一个页面的时间
+     *
+     * @param lockMillis
+     * @return
+     */
+    public PageCache setLockMillis(long lockMillis) {
+        if (lockMillis <= 0) {
+            throw new IllegalArgumentException("lockMillis must be positive");
+        }
+        this.lockMillis = lockMillis;
+        return this;
+    }
+
+    /**
+     * 请求的摘要，URL安全的Base64编码
+     *
+     * @param request
+     * @return
+     */
+    public static String digest(String request) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(request.getBytes(StandardCharsets.UTF_8));
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(hash);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 读取缓存的页面，没有时生成并缓存
+     *
+     * @param request
+     * @param callback 生成页面，null表示只读缓存
+     * @return 页面，没有缓存且callback为null或返回null时为null
+     */
+    public String get(String request, Chapter02.Callback callback) {
+        String digest = digest(request);
+        byte[] value;
+        try (RedisLease lease = lease()) {
+            value = lease.getConn().get(key(digest));
+        }
+        if (value != null) {
+            String content = decode(value);
+            if (freshUntil(value) > System.currentTimeMillis()) {
+                hits.increment();
+            } else {
+                staleHits.increment();
+                if (callback != null) {
+                    refresh(request, digest, callback);
+                }
+            }
+            return content;
+        }
+        misses.increment();
+        if (callback == null) {
+            return null;
+        }
+        return load(request, digest, callback, false).join();
+    }
+
+    /**
+     * 删除缓存的页面
+     *
+     * @param request
+     */
+    public void invalidate(String request) {
+        try (RedisLease lease = lease()) {
+            lease.getConn().del(CACHE + digest(request));
+        }
+    }
+
+    /**
+     * 命中（含返回旧页面）占读取次数的比例
+     *
+     * @return
+     */
+    public double getHitRatio() {
+        long served = hits.sum() + staleHits.sum();
+        long total = served + misses.sum();
+        return total == 0 ? 0 : (double) served / total;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * 返回旧页面的次数
+     *
+     * @return
+     */
+    public long getStaleHits() {
+        return staleHits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * 写入的页面压缩前后的字节差
+     *
+     * @return
+     */
+    public long getBytesSaved() {
+        return rawBytes.get() - storedBytes.get();
+    }
+
+    /**
+     * 后台重新生成过期的页面，已有生成者时不重复
+     */
+    private void refresh(String request, String digest, Chapter02.Callback callback) {
+        if (loading.containsKey(digest) || refreshing.containsKey(digest)) {
+            return;
+        }
+        try {
+            CompletableFuture.runAsync(() -> load(request, digest, callback, true), REFRESHER).exceptionally(e -> {
+                printer("page refresh failed: " + e.getMessage());
+                return null;
+            });
+        } catch (RejectedExecutionException e) {
+            // 刷新积压，跳过
+        }
+    }
+
+    private static ThreadPoolExecutor newRefresher() {
+        AtomicInteger threads = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(REFRESH_THREADS, REFRESH_THREADS, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(REFRESH_QUEUE), runnable -> {
+                    Thread worker = new Thread(runnable, "PageCacheRefresher-" + threads.getAndIncrement());
+                    worker.setDaemon(true);
+                    return worker;
+                }, new ThreadPoolExecutor.AbortPolicy());
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * 单一生成者：进程内的并发调用共享同一个future
+     * <p>
+     * 未命中的调用者与后台刷新各自共享future；未命中时正好有后台刷新，由跨进程锁保证只生成一次，
+     * 调用者轮询等待刷新写入的页面。
+     *
+     * @param background 后台刷新时抢不到跨进程锁直接放弃，不等待
+     */
+    private CompletableFuture<String> load(String request, String digest, Chapter02.Callback callback,
+                                           boolean background) {
+        Map<String, CompletableFuture<String>> inflight = background ? refreshing : loading;
+        CompletableFuture<String> created = new CompletableFuture<>();
+        CompletableFuture<String> existing = inflight.putIfAbsent(digest, created);
+        if (existing != null) {
+            return existing;
+        }
+        try {
+            created.complete(loadLocked(request, digest, callback, background));
+        } catch (RuntimeException e) {
+            created.completeExceptionally(e);
+        } finally {
+            inflight.remove(digest, created);
+        }
+        return created;
+    }
+
+    private String loadLocked(String request, String digest, Chapter02.Callback callback, boolean background) {
+        String lockKey = LOCK + digest;
+        String owner = UUID.randomUUID().toString();
+        long deadline = System.currentTimeMillis() + lockMillis;
+        while (true) {
+            try (RedisLease lease = lease()) {
+                Jedis conn = lease.getConn();
+                if (conn.set(lockKey, owner, "NX", "PX", lockMillis) != null) {
+                    try {
+                        return generate(conn, request, digest, callback);
+                    } finally {
+                        release(conn, lockKey, owner);
+                    }
+                }
+                byte[] value = conn.get(key(digest));
+                if (background) {
+                    // 其他生成者正在刷新，放弃本次刷新
+                    return value != null ? decode(value) : null;
+                }
+                // 其他进程正在生成，等待它写入新鲜的页面
+                if (value != null && freshUntil(value) > System.currentTimeMillis()) {
+                    return decode(value);
+                }
+                if (System.currentTimeMillis() >= deadline) {
+                    return generate(conn, request, digest, callback);
+                }
+            }
+            try {
+                TimeUnit.MILLISECONDS.sleep(POLL_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("interrupted while waiting for page " + request, e);
+            }
+        }
+    }
+
+    private String generate(Jedis conn, String request, String digest, Chapter02.Callback callback) {
+        long start = System.nanoTime();
+        String content;
+        try {
+            content = callback.call(request);
+        } finally {
+            LOAD_LATENCY.recordSince(start);
+        }
+        if (content != null) {
+            byte[] raw = content.getBytes(StandardCharsets.UTF_8);
+            byte[] value = encode(raw, System.currentTimeMillis() + freshSeconds * 1000L);
+            conn.psetex(key(digest), (freshSeconds + staleSeconds) * 1000L, value);
+            rawBytes.addAndGet(raw.length);
+            storedBytes.addAndGet(value.length - HEADER_BYTES);
+        }
+        return content;
+    }
+
+    /**
+     * 只删除自己持有的锁
+     */
+    private static void release(Jedis conn, String lockKey, String owner) {
+        conn.watch(lockKey);
+        if (owner.equals(conn.get(lockKey))) {
+            Transaction trans = conn.multi();
+            trans.del(lockKey);
+            // 检查后锁过期并被其他进程获取时EXEC失败，保留它
+            trans.exec();
+        } else {
+            conn.unwatch();
+        }
+    }
+
+    private static byte[] key(String digest) {
+        return (CACHE + digest).getBytes(StandardCharsets.UTF_8);
+    }
+
+    static byte[] encode(byte[] raw, long freshUntil) {
+        byte format = RAW;
+        byte[] body = raw;
+        if (raw.length >= MIN_COMPRESS_BYTES) {
+            byte[] compressed = gzip(raw);
+            if (compressed.length < raw.length) {
+                format = GZIP;
+                body = compressed;
+            }
+        }
+        return ByteBuffer.allocate(HEADER_BYTES + body.length).put(format).putLong(freshUntil).put(body).array();
+    }
+
+    static String decode(byte[] value) {
+        ByteBuffer buffer = ByteBuffer.wrap(value);
+        byte format = buffer.get();
+        byte[] body = new byte[value.length - HEADER_BYTES];
+        buffer.position(HEADER_BYTES);
+        buffer.get(body);
+        return new String(format == GZIP ? gunzip(body) : body, StandardCharsets.UTF_8);
+    }
+
+    private static long freshUntil(byte[] value) {
+        return ByteBuffer.wrap(value, 1, 8).getLong();
+    }
+
+    private static byte[] gzip(byte[] raw) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 2 + 32);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(raw);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] gunzip(byte[] compressed) {
+        try (GZIPInputStream gzip = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(compressed.length * 4);
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = gzip.read(buffer)) > 0) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
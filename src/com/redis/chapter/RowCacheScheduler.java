@@ -0,0 +1,367 @@
+package com.redis.chapter;
+
+import com.google.gson.Gson;
+import com.redis.common.LatencyHistogram;
+import com.redis.common.Metrics;
+import com.redis.common.RedisHandler;
+import com.redis.common.RedisLease;
+import com.redis.common.ScriptRegistry;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.Transaction;
+import redis.clients.jedis.Tuple;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 数据行缓存的刷新调度，替代 {@link Chapter02.CacheRowsThread}
+ * <p>
+ * schedule: 有序集合的分值为下次刷新时间（秒，可以带小数），delay: 为刷新间隔（秒，小于等于0表示取消缓存）。
+ * 调度线程每轮：
+ * <ul>
+ * <li>原子地认领所有到期的行（每轮最多batchSize个）：脚本（不支持脚本时用WATCH事务）把需要刷新的行改期到
+ * 当前时间加间隔，把取消的行从两个有序集合中删除，多个调度进程不会认领同一行</li>
+ * <li>需要刷新的行交给workers个线程的有界线程池调用 {@link Chapter02.Inventory#get(String)}</li>
+ * <li>所有行的SET inv:行 与取消行的DEL inv:行 用一个流水线写回</li>
+ * <li>休眠到下一行的到期时间，最长maxIdleMillis；本进程通过 {@link #schedule(String, double)} 新增的行会立即唤醒调度线程，
+ * 其他进程新增的行最迟maxIdleMillis后被发现</li>
+ * </ul>
+ * 刷新延迟（认领时最早到期的行已经晚了多久）与每秒刷新的行数见各getter。
+ *
+ * @author kqyang
+ */
+public class RowCacheScheduler extends RedisHandler implements AutoCloseable {
+    static final String SCHEDULE = "schedule:";
+    static final String DELAY = "delay:";
+    static final String INVENTORY = "inv:";
+    private static final int DEFAULT_BATCH_SIZE = 1000;
+    private static final long DEFAULT_MAX_IDLE_MILLIS = 500;
+    private static final Gson GSON = new Gson();
+    private static final LatencyHistogram REFRESH_LATENCY = Metrics.operation("rowRefresh");
+    private static final Set<RowCacheScheduler> RUNNING = new CopyOnWriteArraySet<>();
+    /**
+     * 认领到期的行
+     * KEYS: schedule:, delay:
+     * ARGV: 当前时间（秒）, 最多认领的行数
+     * 返回: {取消的行, 需刷新的行, 下一行的到期时间或nil, 最早到期的行的到期时间或nil}
+     */
+    private static final ScriptRegistry.Script CLAIM = scripts().register("claimRows",
+            "local now = tonumber(ARGV[1])\n"
+                    + "local due = redis.call('zrangebyscore', KEYS[1], '-inf', now, 'WITHSCORES',\n"
+                    + "    'LIMIT', 0, tonumber(ARGV[2]))\n"
+                    + "local removed, refresh = {}, {}\n"
+                    + "for i = 1, #due, 2 do\n"
+                    + "    local row = due[i]\n"
+                    + "    local delay = tonumber(redis.call('zscore', KEYS[2], row) or '0')\n"
+                    + "    if delay <= 0 then\n"
+                    + "        redis.call('zrem', KEYS[1], row)\n"
+                    + "        redis.call('zrem', KEYS[2], row)\n"
+                    + "        removed[#removed + 1] = row\n"
+                    + "    else\n"
+                    + "        redis.call('zadd', KEYS[1], now + delay, row)\n"
+                    + "        refresh[#refresh + 1] = row\n"
+                    + "    end\n"
+                    + "end\n"
+                    + "local nxt = redis.call('zrange', KEYS[1], 0, 0, 'WITHSCORES')\n"
+                    + "return {removed, refresh, nxt[2] or false, due[2] or false}");
+
+    private final int batchSize;
+    private final ThreadPoolExecutor pool;
+    private final Thread scheduler;
+    private final Object wakeUp = new Object();
+    private final AtomicLong refreshed = new AtomicLong();
+    private final AtomicLong removed = new AtomicLong();
+    private final long startedAt = System.currentTimeMillis();
+    private volatile long maxIdleMillis = DEFAULT_MAX_IDLE_MILLIS;
+    private volatile long lagMillis;
+    private volatile boolean useScript = true;
+    private volatile boolean closed;
+    private boolean woken;
+
+    public RowCacheScheduler() {
+        this(Runtime.getRuntime().availableProcessors(), DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * @param workers   加载数据行的线程数
+     * @param batchSize 每轮最多认领的行数
+     */
+    public RowCacheScheduler(int workers, int batchSize) {
+        if (workers <= 0 || batchSize <= 0) {
+            throw new IllegalArgumentException("workers and batchSize must be positive");
+        }
+        this.batchSize = batchSize;
+        AtomicInteger threads = new AtomicInteger();
+        // 队列满时由调度线程自己加载，等价于限制在途的加载数
+        this.pool = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(batchSize), runnable -> {
+                    Thread worker = new Thread(runnable, "RowCacheLoader-" + threads.getAndIncrement());
+                    worker.setDaemon(true);
+                    return worker;
+                }, new ThreadPoolExecutor.CallerRunsPolicy());
+        this.scheduler = new Thread(this::run, "RowCacheScheduler");
+        this.scheduler.setDaemon(true);
+        RUNNING.add(this);
+        this.scheduler.start();
+    }
+
+    /**
+     * 设置（或取消）一行的缓存并立即唤醒本进程的调度线程
+     *
+     * @param rowId
+     * @param delay 刷新间隔（秒），小于等于0表示取消缓存
+     */
+    public static void schedule(String rowId, double delay) {
+        try (RedisLease lease = lease()) {
+            Pipeline pipe = lease.getConn().pipelined();
+            pipe.zadd(DELAY, delay, rowId);
+            pipe.zadd(SCHEDULE, System.currentTimeMillis() / 1000.0, rowId);
+            pipe.sync();
+        }
+        for (RowCacheScheduler running : RUNNING) {
+            running.wake();
+        }
+    }
+
+    /**
+     * 没有到期的行时最长的休眠时间，决定发现其他进程新增的行的延迟
+     *
+     * @param maxIdleMillis
+     * @return
+     */
+    public RowCacheScheduler setMaxIdleMillis(long maxIdleMillis) {
+        if (maxIdleMillis <= 0) {
+            throw new IllegalArgumentException("maxIdleMillis must be positive");
+        }
+        this.maxIdleMillis = maxIdleMillis;
+        return this;
+    }
+
+    /**
+     * 刷新的行数
+     *
+     * @return
+     */
+    public long getRefreshed() {
+        return refreshed.get();
+    }
+
+    /**
+     * 取消缓存的行数
+     *
+     * @return
+     */
+    public long getRemoved() {
+        return removed.get();
+    }
+
+    /**
+     * 启动以来平均每秒刷新的行数
+     *
+     * @return
+     */
+    public double getRefreshRate() {
+        long elapsed = Math.max(1, System.currentTimeMillis() - startedAt);
+        return refreshed.get() * 1000.0 / elapsed;
+    }
+
+    /**
+     * 最近一轮中最早到期的行被认领时已经晚了多久
+     *
+     * @return
+     */
+    public long getLagMillis() {
+        return lagMillis;
+    }
+
+    /**
+     * 停止调度与加载线程，正在加载的行不再写回
+     */
+    @Override
+    public void close() {
+        closed = true;
+        RUNNING.remove(this);
+        scheduler.interrupt();
+        pool.shutdownNow();
+    }
+
+    private void wake() {
+        synchronized (wakeUp) {
+            woken = true;
+            wakeUp.notifyAll();
+        }
+    }
+
+    private void run() {
+        while (!closed) {
+            try {
+                long waitMillis = refreshDue();
+                if (waitMillis > 0) {
+                    synchronized (wakeUp) {
+                        if (!woken) {
+                            wakeUp.wait(waitMillis);
+                        }
+                        woken = false;
+                    }
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                if (closed) {
+                    return;
+                }
+                printer("row cache refresh failed: " + e.getMessage());
+                try {
+                    TimeUnit.MILLISECONDS.sleep(maxIdleMillis);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * 认领并刷新一批到期的行
+     *
+     * @return 到下一行到期还需等待的毫秒数，0表示还有到期的行
+     */
+    private long refreshDue() throws InterruptedException {
+        long nowMillis = System.currentTimeMillis();
+        Claim claim;
+        try (RedisLease lease = lease()) {
+            claim = claim(lease.getConn(), nowMillis / 1000.0);
+        }
+        if (claim.oldest != null) {
+            lagMillis = Math.max(0, nowMillis - (long) (claim.oldest * 1000));
+        }
+        if (!claim.refresh.isEmpty() || !claim.removed.isEmpty()) {
+            long start = System.nanoTime();
+            List<Future<String>> rows = new ArrayList<>(claim.refresh.size());
+            for (String rowId : claim.refresh) {
+                rows.add(pool.submit(() -> GSON.toJson(Chapter02.Inventory.get(rowId))));
+            }
+            try (RedisLease lease = lease()) {
+                Pipeline pipe = lease.getConn().pipelined();
+                for (int i = 0; i < rows.size(); i++) {
+                    pipe.set(INVENTORY + claim.refresh.get(i), get(rows.get(i)));
+                }
+                for (String rowId : claim.removed) {
+                    pipe.del(INVENTORY + rowId);
+                }
+                pipe.sync();
+            }
+            refreshed.addAndGet(claim.refresh.size());
+            removed.addAndGet(claim.removed.size());
+            REFRESH_LATENCY.recordSince(start);
+        }
+        if (claim.refresh.size() + claim.removed.size() >= batchSize) {
+            return 0;
+        }
+        if (claim.next == null) {
+            return maxIdleMillis;
+        }
+        long wait = (long) Math.ceil(claim.next * 1000) - System.currentTimeMillis();
+        return Math.max(1, Math.min(wait, maxIdleMillis));
+    }
+
+    private static String get(Future<String> row) throws InterruptedException {
+        try {
+            return row.get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("row load failed", e.getCause());
+        }
+    }
+
+    /**
+     * 一轮认领的结果
+     */
+    private static final class Claim {
+        final List<String> removed;
+        final List<String> refresh;
+        final Double next;
+        final Double oldest;
+
+        Claim(List<String> removed, List<String> refresh, Double next, Double oldest) {
+            this.removed = removed;
+            this.refresh = refresh;
+            this.next = next;
+            this.oldest = oldest;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Claim claim(Jedis conn, double now) {
+        if (ScriptRegistry.usable(useScript)) {
+            try {
+                List<Object> reply = (List<Object>) CLAIM.eval(conn, Arrays.asList(SCHEDULE, DELAY),
+                        Arrays.asList(String.valueOf(now), String.valueOf(batchSize)));
+                return new Claim((List<String>) reply.get(0), (List<String>) reply.get(1),
+                        reply.get(2) == null ? null : Double.valueOf((String) reply.get(2)),
+                        reply.get(3) == null ? null : Double.valueOf((String) reply.get(3)));
+            } catch (JedisDataException e) {
+                if (!ScriptRegistry.isUnsupported(e)) {
+                    throw e;
+                }
+                // 服务端不支持脚本，之后都用WATCH事务
+                useScript = false;
+            }
+        }
+        return claimWatched(conn, now);
+    }
+
+    private Claim claimWatched(Jedis conn, double now) {
+        while (true) {
+            conn.watch(SCHEDULE, DELAY);
+            Set<Tuple> due = conn.zrangeByScoreWithScores(SCHEDULE, Double.NEGATIVE_INFINITY, now, 0, batchSize);
+            if (due.isEmpty()) {
+                conn.unwatch();
+                Set<Tuple> next = conn.zrangeWithScores(SCHEDULE, 0, 0);
+                return new Claim(Collections.emptyList(), Collections.emptyList(),
+                        next.isEmpty() ? null : next.iterator().next().getScore(), null);
+            }
+            Pipeline pipe = conn.pipelined();
+            List<Response<Double>> delays = new ArrayList<>(due.size());
+            for (Tuple row : due) {
+                delays.add(pipe.zscore(DELAY, row.getElement()));
+            }
+            pipe.sync();
+            List<String> removedRows = new ArrayList<>();
+            List<String> refreshRows = new ArrayList<>();
+            Transaction trans = conn.multi();
+            int i = 0;
+            for (Tuple row : due) {
+                Double delay = delays.get(i++).get();
+                if (delay == null || delay <= 0) {
+                    trans.zrem(SCHEDULE, row.getElement());
+                    trans.zrem(DELAY, row.getElement());
+                    removedRows.add(row.getElement());
+                } else {
+                    trans.zadd(SCHEDULE, now + delay, row.getElement());
+                    refreshRows.add(row.getElement());
+                }
+            }
+            Response<Set<Tuple>> next = trans.zrangeWithScores(SCHEDULE, 0, 0);
+            List<Object> results = trans.exec();
+            // 其他调度进程先认领了，重新读取
+            if (results != null && !results.isEmpty()) {
+                return new Claim(removedRows, refreshRows,
+                        next.get().isEmpty() ? null : next.get().iterator().next().getScore(),
+                        due.iterator().next().getScore());
+            }
+        }
+    }
+}
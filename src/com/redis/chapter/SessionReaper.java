@@ -0,0 +1,304 @@
+package com.redis.chapter;
+
+import com.redis.common.KeyPurger;
+import com.redis.common.LatencyHistogram;
+import com.redis.common.Metrics;
+import com.redis.common.RedisHandler;
+import com.redis.common.RedisLease;
+import com.redis.common.ScriptRegistry;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.Transaction;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 会话清理，替代 {@link Chapter02.CleanSessionsThread} 与 {@link Chapter02.CleanFullSessionThread}
+ * <p>
+ * 多个工作者并行清理 recent: 中超出上限的最旧会话：
+ * <ul>
+ * <li>每批的大小按积压量计算：积压平均分给各工作者，限制在 [minBatch, maxBatch] 之间</li>
+ * <li>认领是原子的：脚本（不支持脚本时用WATCH事务）一次取出最旧的一批令牌，从 recent: 与 login: 中删除并返回，
+ * 各工作者拿到的令牌互不重叠。{@link LoginStore} 分桶或启用分片时脚本只操作 recent:，认领后再按节点流水线删除会话</li>
+ * <li>认领后用流水线UNLINK（不支持时DEL）删除 viewed:令牌 与 cart:令牌</li>
+ * <li>没有积压时休眠idleMillis，不会空转</li>
+ * </ul>
+ * 认领之后、删除之前进程退出时，这批会话的浏览记录与购物车会残留（分桶或分片时会话本身也会残留）。
+ * 通过 {@link #getBacklog()} 与 {@link #getReapRate()} 观察清理是否跟得上。
+ *
+ * @author kqyang
+ */
+public class SessionReaper extends RedisHandler implements AutoCloseable {
+    private static final int DEFAULT_MIN_BATCH = 100;
+    private static final int DEFAULT_MAX_BATCH = 2000;
+    private static final long DEFAULT_IDLE_MILLIS = 1000;
+    private static final int RATE_WINDOW_SECONDS = 10;
+    private static final LatencyHistogram REAP_LATENCY = Metrics.operation("sessionReap");
+    /**
+     * 认领一批会话
+     * KEYS: recent:, login:（可选，分桶或分片时不传）
+     * ARGV: 会话上限, 工作者数, 最小批量, 最大批量
+     * 返回: {积压量, 令牌...}
+     */
+    private static final ScriptRegistry.Script CLAIM = scripts().register("claimSessions",
+            "local over = redis.call('zcard', KEYS[1]) - tonumber(ARGV[1])\n"
+                    + "if over <= 0 then return {0} end\n"
+                    + "local n = math.ceil(over / tonumber(ARGV[2]))\n"
+                    + "n = math.min(math.max(n, tonumber(ARGV[3])), tonumber(ARGV[4]), over)\n"
+                    + "local tokens = redis.call('zrange', KEYS[1], 0, n - 1)\n"
+                    + "redis.call('zrem', KEYS[1], unpack(tokens))\n"
+                    + "if KEYS[2] then redis.call('hdel', KEYS[2], unpack(tokens)) end\n"
+                    + "table.insert(tokens, 1, over)\n"
+                    + "return tokens");
+
+    private final long limit;
+    private final int workerCount;
+    private final boolean carts;
+    private final List<Thread> workers = new ArrayList<>();
+    private final KeyPurger purger = new KeyPurger(null);
+    private final AtomicLong reaped = new AtomicLong();
+    private final long[] window = new long[RATE_WINDOW_SECONDS];
+    private int minBatch = DEFAULT_MIN_BATCH;
+    private int maxBatch = DEFAULT_MAX_BATCH;
+    private long idleMillis = DEFAULT_IDLE_MILLIS;
+    private long windowSecond;
+    private volatile long backlog;
+    private volatile boolean useScript = true;
+    private volatile boolean quit;
+
+    /**
+     * @param limit   保留的会话数
+     * @param workers 并行工作者数
+     * @param carts   是否同时删除购物车
+     */
+    public SessionReaper(long limit, int workers, boolean carts) {
+        if (limit < 0 || workers <= 0) {
+            throw new IllegalArgumentException("limit must not be negative and workers must be positive");
+        }
+        this.limit = limit;
+        this.workerCount = workers;
+        this.carts = carts;
+    }
+
+    /**
+     * 每批的令牌数范围
+     *
+     * @param minBatch
+     * @param maxBatch 脚本用unpack传参，不宜超过数千
+     * @return
+     */
+    public SessionReaper setBatchRange(int minBatch, int maxBatch) {
+        if (minBatch <= 0 || maxBatch < minBatch) {
+            throw new IllegalArgumentException("bad batch range: " + minBatch + ".." + maxBatch);
+        }
+        this.minBatch = minBatch;
+        this.maxBatch = maxBatch;
+        return this;
+    }
+
+    /**
+     * 没有积压时的休眠时间
+     *
+     * @param idleMillis
+     * @return
+     */
+    public SessionReaper setIdleMillis(long idleMillis) {
+        this.idleMillis = idleMillis;
+        return this;
+    }
+
+    /**
+     * 启动工作者线程
+     */
+    public synchronized void start() {
+        if (!workers.isEmpty()) {
+            throw new IllegalStateException("session reaper already started");
+        }
+        for (int i = 0; i < workerCount; i++) {
+            Thread worker = new Thread(this::run, "SessionReaper-" + i);
+            worker.setDaemon(true);
+            worker.start();
+            workers.add(worker);
+        }
+    }
+
+    /**
+     * 在当前线程清理一批
+     *
+     * @return 本批清理的会话数，0表示没有积压
+     */
+    public int reapOnce() {
+        long start = System.nanoTime();
+        try (RedisLease lease = lease()) {
+            Jedis conn = lease.getConn();
+            List<String> tokens = claim(conn);
+            if (tokens.isEmpty()) {
+                return 0;
+            }
+            List<String> keys = new ArrayList<>(tokens.size() * (carts ? 2 : 1));
+            for (String token : tokens) {
+                keys.add("viewed:" + token);
+                if (carts) {
+                    keys.add("cart:" + token);
+                }
+            }
+            String[] claimed = tokens.toArray(new String[tokens.size()]);
+            if (!claimsLogin()) {
+                LoginStore.remove(claimed);
+            }
+            purger.unlink(conn, keys);
+            LoginStore.invalidate(claimed);
+            recordReaped(tokens.size());
+            REAP_LATENCY.recordSince(start);
+            return tokens.size();
+        }
+    }
+
+    /**
+     * 最近一次认领时超出上限的会话数
+     *
+     * @return
+     */
+    public long getBacklog() {
+        return backlog;
+    }
+
+    /**
+     * 累计清理的会话数
+     *
+     * @return
+     */
+    public long getReaped() {
+        return reaped.get();
+    }
+
+    /**
+     * 最近10秒平均每秒清理的会话数
+     *
+     * @return
+     */
+    public synchronized double getReapRate() {
+        advance(System.currentTimeMillis() / 1000);
+        long total = 0;
+        for (long count : window) {
+            total += count;
+        }
+        return (double) total / RATE_WINDOW_SECONDS;
+    }
+
+    @Override
+    public void close() {
+        quit = true;
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+    }
+
+    private void run() {
+        while (!quit) {
+            try {
+                if (reapOnce() == 0) {
+                    TimeUnit.MILLISECONDS.sleep(idleMillis);
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                printer("session reap failed: " + e.getMessage());
+                try {
+                    TimeUnit.MILLISECONDS.sleep(idleMillis);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * 原子地取出最旧的一批会话
+     */
+    @SuppressWarnings("unchecked")
+    private List<String> claim(Jedis conn) {
+        if (ScriptRegistry.usable(useScript)) {
+            try {
+                List<String> claimKeys = claimsLogin() ? Arrays.asList("recent:", LoginStore.LOGIN)
+                        : Collections.singletonList("recent:");
+                List<Object> reply = (List<Object>) CLAIM.eval(conn, claimKeys,
+                        Arrays.asList(String.valueOf(limit), String.valueOf(workerCount), String.valueOf(minBatch),
+                                String.valueOf(maxBatch)));
+                backlog = (Long) reply.get(0);
+                List<String> tokens = new ArrayList<>(reply.size() - 1);
+                for (int i = 1; i < reply.size(); i++) {
+                    tokens.add((String) reply.get(i));
+                }
+                return tokens;
+            } catch (JedisDataException e) {
+                if (!ScriptRegistry.isUnsupported(e)) {
+                    throw e;
+                }
+                // 服务端不支持脚本，之后都用WATCH事务
+                useScript = false;
+            }
+        }
+        return claimWatched(conn);
+    }
+
+    /**
+     * 认领时是否同时删除会话：只有单个 login: 散列且与 recent: 在同一节点时才能放进同一脚本或事务
+     */
+    private static boolean claimsLogin() {
+        return !LoginStore.isBucketed() && shards() == null;
+    }
+
+    private List<String> claimWatched(Jedis conn) {
+        while (true) {
+            conn.watch("recent:");
+            long over = conn.zcard("recent:") - limit;
+            backlog = Math.max(0, over);
+            if (over <= 0) {
+                conn.unwatch();
+                return Collections.emptyList();
+            }
+            long n = Math.min(Math.min(Math.max((over + workerCount - 1) / workerCount, minBatch), maxBatch), over);
+            Set<String> claimed = conn.zrange("recent:", 0, n - 1);
+            String[] tokens = claimed.toArray(new String[claimed.size()]);
+            Transaction trans = conn.multi();
+            Response<Long> removed = trans.zrem("recent:", tokens);
+            if (claimsLogin()) {
+                trans.hdel(LoginStore.LOGIN, tokens);
+            }
+            List<Object> results = trans.exec();
+            // 其他工作者先认领了，重新读取
+            if (results != null && !results.isEmpty() && removed.get() > 0) {
+                return new ArrayList<>(claimed);
+            }
+        }
+    }
+
+    private synchronized void recordReaped(int count) {
+        reaped.addAndGet(count);
+        long second = System.currentTimeMillis() / 1000;
+        advance(second);
+        window[(int) (second % RATE_WINDOW_SECONDS)] += count;
+    }
+
+    /**
+     * 清空从上次记录到second之间的各秒
+     */
+    private void advance(long second) {
+        if (windowSecond == 0) {
+            windowSecond = second;
+            return;
+        }
+        for (long s = windowSecond + 1; s <= second && s <= windowSecond + RATE_WINDOW_SECONDS; s++) {
+            window[(int) (s % RATE_WINDOW_SECONDS)] = 0;
+        }
+        windowSecond = Math.max(windowSecond, second);
+    }
+}
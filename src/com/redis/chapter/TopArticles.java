@@ -0,0 +1,235 @@
+package com.redis.chapter;
+
+import com.redis.common.RedisHandler;
+import com.redis.common.RedisLease;
+import redis.clients.jedis.Tuple;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 排名前K篇文章的本地镜像
+ * <p>
+ * 按分值有序的集合（容量K）加文章键到条目的散列索引，保存一个排名有序集合的前K名及文章摘要。
+ * 前几页直接从本地内存读取，不访问redis；超出K的深页返回null，由调用方回退到redis。
+ * <p>
+ * 同步方式：
+ * <ul>
+ * <li>本进程的投票通过 {@link #onVote(String, String, double, long)} 立即调整分值与票数</li>
+ * <li>后台线程定期从redis全量刷新，覆盖其他进程的写入；距上次刷新超过maxStaleMillis时读取回退到redis</li>
+ * </ul>
+ * 不在镜像中的文章得票后可能进入前K名，这时提前触发一次刷新。
+ *
+ * @author kqyang
+ */
+public class TopArticles extends RedisHandler implements AutoCloseable {
+    private static final Comparator<Entry> ORDER = Comparator.comparingDouble((Entry entry) -> entry.score).reversed()
+            .thenComparing(entry -> entry.article, Comparator.reverseOrder());
+
+    private final String key;
+    private final int capacity;
+    private final long maxStaleMillis;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final TreeSet<Entry> ranking = new TreeSet<>(ORDER);
+    private final Map<String, Entry> index = new HashMap<>();
+    private final Thread refresher;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private volatile long refreshedAt;
+    private volatile boolean dirty;
+    private volatile boolean closed;
+
+    /**
+     * 排名中的一篇文章，摘要不可变，票数变化时整体替换
+     */
+    private static final class Entry {
+        final String article;
+        final double score;
+        final Map<String, String> summary;
+
+        Entry(String article, double score, Map<String, String> summary) {
+            this.article = article;
+            this.score = score;
+            this.summary = summary;
+        }
+    }
+
+    /**
+     * @param key            排名有序集合，例如 score:1 或 score:group:组名
+     * @param capacity       镜像的文章数K
+     * @param maxStaleMillis 允许的最大陈旧时间，后台每隔其四分之一刷新一次
+     */
+    public TopArticles(String key, int capacity, long maxStaleMillis) {
+        if (capacity <= 0 || maxStaleMillis <= 0) {
+            throw new IllegalArgumentException("capacity and maxStaleMillis must be positive");
+        }
+        this.key = key;
+        this.capacity = capacity;
+        this.maxStaleMillis = maxStaleMillis;
+        refresh();
+        this.refresher = new Thread(this::run, "TopArticlesRefresher-" + key);
+        this.refresher.setDaemon(true);
+        this.refresher.start();
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * 读取排名 [start, end] 区间的文章
+     *
+     * @param rankingKey
+     * @param start
+     * @param end
+     * @return 不是镜像的排名、区间超出K或镜像已过期时返回null
+     */
+    public List<Map<String, String>> range(String rankingKey, int start, int end) {
+        if (!key.equals(rankingKey) || end >= capacity || start < 0
+                || System.currentTimeMillis() - refreshedAt > maxStaleMillis) {
+            misses.incrementAndGet();
+            return null;
+        }
+        lock.readLock().lock();
+        try {
+            List<Map<String, String>> articles = new ArrayList<>(end - start + 1);
+            Iterator<Entry> it = ranking.iterator();
+            for (int rank = 0; rank <= end && it.hasNext(); rank++) {
+                Entry entry = it.next();
+                if (rank >= start) {
+                    articles.add(entry.summary);
+                }
+            }
+            hits.incrementAndGet();
+            return articles;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 本进程的投票写入redis后调用
+     *
+     * @param rankingKey 分值发生变化的排名有序集合
+     * @param article    文章键
+     * @param delta      分值增量
+     * @param votes      新增票数
+     */
+    public void onVote(String rankingKey, String article, double delta, long votes) {
+        if (!key.equals(rankingKey)) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            Entry entry = index.get(article);
+            if (entry == null) {
+                // 可能挤进前K名，交给刷新线程确认
+                if (delta > 0 && !dirty) {
+                    dirty = true;
+                    LockSupport.unpark(refresher);
+                }
+                return;
+            }
+            ranking.remove(entry);
+            Map<String, String> summary = new HashMap<>(entry.summary);
+            String current = summary.get("votes");
+            if (current != null) {
+                summary.put("votes", String.valueOf(Long.parseLong(current) + votes));
+            }
+            Entry updated = new Entry(article, entry.score + delta, Collections.unmodifiableMap(summary));
+            ranking.add(updated);
+            index.put(article, updated);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 从redis全量加载前K名
+     */
+    public void refresh() {
+        long now = System.currentTimeMillis();
+        dirty = false;
+        List<Entry> entries = new ArrayList<>(capacity);
+        Set<Tuple> top;
+        try (RedisLease lease = Chapter01.leaseRanking(key)) {
+            top = lease.getConn().zrevrangeWithScores(key, 0, capacity - 1);
+        }
+        List<String> members = new ArrayList<>(top.size());
+        for (Tuple tuple : top) {
+            members.add(tuple.getElement());
+        }
+        // 排名与文章散列可能不在同一节点，文章按所在节点分批读取
+        List<Map<String, String>> summaries = Chapter01.PAGES.loadArticles(members);
+        int i = 0;
+        for (Tuple tuple : top) {
+            entries.add(new Entry(tuple.getElement(), tuple.getScore(),
+                    Collections.unmodifiableMap(summaries.get(i++))));
+        }
+        lock.writeLock().lock();
+        try {
+            ranking.clear();
+            index.clear();
+            for (Entry entry : entries) {
+                ranking.add(entry);
+                index.put(entry.article, entry);
+            }
+            refreshedAt = now;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * 回退到redis的读取次数
+     *
+     * @return
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        refresher.interrupt();
+    }
+
+    private void run() {
+        long tick = TimeUnit.MILLISECONDS.toNanos(Math.max(1, maxStaleMillis / 4));
+        while (!closed) {
+            try {
+                // 两次刷新之间至少间隔十分之一周期，避免投票频繁触发全量刷新
+                TimeUnit.NANOSECONDS.sleep(tick / 10);
+                if (!dirty) {
+                    LockSupport.parkNanos(this, tick - tick / 10);
+                }
+                if (closed || Thread.interrupted()) {
+                    return;
+                }
+                refresh();
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                // 刷新失败时镜像逐渐过期，读取自动回退到redis
+                printer("top articles refresh failed: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,587 @@
+package com.redis.chapter;
+
+import com.redis.common.LatencyHistogram;
+import com.redis.common.Metrics;
+import com.redis.common.RedisHandler;
+import com.redis.common.RedisLease;
+import com.redis.common.ScriptRegistry;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.Transaction;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 投票聚合
+ * <p>
+ * {@link Chapter01#articleVote(String, String)} 的命令经共享的自动流水线与其他线程合并发送，但每票仍要依次等待
+ * 截止时间检查、SADD去重、读取分组与计分写入几批回复，各步之间也不是原子的。这里投票先进入进程内缓冲：同一用户对同一文章
+ * 在一个刷新周期内的重复投票直接丢弃，每篇文章的票数用分段计数（LongAdder）累加；
+ * 后台线程每隔flushMillis把缓冲整体换出，按文章批量写入，每篇文章的
+ * 截止时间检查、SADD去重、ZINCRBY、HINCRBY及所在分组排名的更新原子执行（脚本，或不支持脚本时WATCH事务），所有文章一次流水线发出。
+ * <p>
+ * 崩溃时的丢失：
+ * <ul>
+ * <li>不带预写日志时，最多丢失最近一个刷新周期内的投票</li>
+ * <li>带预写日志时，投票写入日志并交给操作系统后才返回，刷新成功后删除对应的日志段，重启时重放未删除的日志段。
+ * 并发的投票合并提交：一个线程把缓冲区写入文件时，其他线程的记录随同一次写入返回。
+ * 因此进程崩溃不丢已返回的投票；日志段只在每个周期换出时fsync，机器掉电最多丢失最近一个刷新周期的投票。
+ * 投票按用户去重，重放已写入redis的投票不会重复计分。</li>
+ * </ul>
+ *
+ * @author kqyang
+ */
+public class VoteAggregator extends RedisHandler implements AutoCloseable {
+    private static final int ONE_WEEK_IN_SECONDS = 7 * 86400;
+    private static final int VOTE_SCORE = 432;
+    private static final long DEFAULT_FLUSH_MILLIS = 5;
+    private static final String SEGMENT_PREFIX = "votes-";
+    private static final String SEGMENT_SUFFIX = ".wal";
+    private static final LatencyHistogram FLUSH_LATENCY = Metrics.operation("voteFlush");
+    /**
+     * 批量投票脚本
+     * KEYS: time:id, voted:id, score:id, 文章散列, groups:id, 全局排名
+     * ARGV: 文章键, 截止时间, 每票分值, 分组排名键前缀, 票数字段, 用户...
+     */
+    private static final ScriptRegistry.Script VOTE = scripts().register("voteBatch",
+            "local posted = redis.call('zscore', KEYS[1], ARGV[1])\n"
+                    + "if not posted or tonumber(posted) < tonumber(ARGV[2]) then return 0 end\n"
+                    + "local added = redis.call('sadd', KEYS[2], unpack(ARGV, 6))\n"
+                    + "if added > 0 then\n"
+                    + "  local delta = added * tonumber(ARGV[3])\n"
+                    + "  redis.call('zincrby', KEYS[3], delta, ARGV[1])\n"
+                    + "  redis.call('zincrby', KEYS[6], delta, ARGV[1])\n"
+                    + "  redis.call('hincrby', KEYS[4], ARGV[5], added)\n"
+                    + "  for _, group in ipairs(redis.call('smembers', KEYS[5])) do\n"
+                    + "    redis.call('zincrby', ARGV[4] .. group, delta, ARGV[1])\n"
+                    + "  end\n"
+                    + "end\n"
+                    + "return added");
+
+    private final long flushMillis;
+    private final File walDir;
+    private final ReadWriteLock swapLock = new ReentrantReadWriteLock();
+    private final Object walLock = new Object();
+    private final Thread flusher;
+    private final LongAdder duplicates = new LongAdder();
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private volatile Map<String, Pending> pending = new ConcurrentHashMap<>();
+    private volatile boolean closed;
+    private boolean useScript = true;
+    private boolean scriptLoaded;
+    private final Object walFlushLock = new Object();
+    private BufferedWriter wal;
+    private FileOutputStream walOut;
+    private File walSegment;
+    private long walWritten;
+    private long walFlushed;
+    private long nextSegment;
+
+    public VoteAggregator() {
+        this(DEFAULT_FLUSH_MILLIS, null);
+    }
+
+    /**
+     * @param flushMillis 刷新间隔
+     * @param walDir      预写日志目录，null表示不写日志；目录中已有的日志段会先重放
+     */
+    public VoteAggregator(long flushMillis, File walDir) {
+        if (flushMillis <= 0) {
+            throw new IllegalArgumentException("flushMillis must be positive");
+        }
+        this.flushMillis = flushMillis;
+        this.walDir = walDir;
+        if (walDir != null) {
+            recover();
+        }
+        this.flusher = new Thread(this::run, "VoteAggregatorFlusher");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    /**
+     * 一篇文章待写入的投票
+     */
+    private static final class Pending {
+        final Set<String> users = ConcurrentHashMap.newKeySet();
+        final LongAdder votes = new LongAdder();
+    }
+
+    /**
+     * 投票
+     *
+     * @param user
+     * @param articleId
+     * @return 本周期内该用户已对该文章投过票时为false；是否计分以redis中的去重与截止时间为准
+     */
+    public boolean vote(String user, String articleId) {
+        if (closed) {
+            throw new IllegalStateException("aggregator closed");
+        }
+        return enqueue(user, articleId, true);
+    }
+
+    /**
+     * @param commit 是否等待日志记录写入文件，批量重新入队时由调用方最后统一写出
+     */
+    private boolean enqueue(String user, String articleId, boolean commit) {
+        swapLock.readLock().lock();
+        try {
+            Pending article = pending.computeIfAbsent(articleId, k -> new Pending());
+            if (!article.users.add(user)) {
+                duplicates.increment();
+                return false;
+            }
+            article.votes.increment();
+            if (walDir != null) {
+                log(user, articleId, commit);
+            }
+            return true;
+        } finally {
+            swapLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 立即刷新缓冲中的投票
+     */
+    public synchronized void flush() {
+        Map<String, Pending> batch;
+        File segment;
+        swapLock.writeLock().lock();
+        try {
+            batch = pending;
+            if (batch.isEmpty()) {
+                return;
+            }
+            pending = new ConcurrentHashMap<>();
+            segment = walDir != null ? rotate() : null;
+        } finally {
+            swapLock.writeLock().unlock();
+        }
+        long start = System.nanoTime();
+        try {
+            write(batch);
+        } catch (RuntimeException e) {
+            // 写入失败的投票回到缓冲（并写入新的日志段），下个周期重试
+            for (Map.Entry<String, Pending> entry : batch.entrySet()) {
+                for (String user : entry.getValue().users) {
+                    enqueue(user, entry.getKey(), false);
+                }
+            }
+            if (walDir != null) {
+                // 旧日志段随后删除，重新入队的投票先在新日志段落盘
+                syncLog();
+            }
+            throw e;
+        } finally {
+            FLUSH_LATENCY.recordSince(start);
+            if (segment != null) {
+                segment.delete();
+            }
+        }
+    }
+
+    /**
+     * 缓冲中尚未写入的投票数
+     *
+     * @return
+     */
+    public long getPendingVotes() {
+        long votes = 0;
+        for (Pending article : pending.values()) {
+            votes += article.votes.sum();
+        }
+        return votes;
+    }
+
+    /**
+     * 写入redis后实际计分的投票数
+     *
+     * @return
+     */
+    public long getAcceptedVotes() {
+        return accepted.get();
+    }
+
+    /**
+     * 写入redis时因重复投票或超过截止时间而未计分的投票数
+     *
+     * @return
+     */
+    public long getRejectedVotes() {
+        return rejected.get();
+    }
+
+    /**
+     * 进程内丢弃的重复投票数
+     *
+     * @return
+     */
+    public long getDuplicates() {
+        return duplicates.sum();
+    }
+
+    /**
+     * 停止后台刷新并写入剩余的投票
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        flusher.interrupt();
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+        synchronized (this) {
+            if (wal != null) {
+                try {
+                    wal.close();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                if (pending.isEmpty()) {
+                    walSegment.delete();
+                }
+            }
+        }
+    }
+
+    private void run() {
+        while (!closed) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(flushMillis);
+                flush();
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                printer("vote flush failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 按文章写入一批投票
+     */
+    private void write(Map<String, Pending> batch) {
+        long cutoff = System.currentTimeMillis() / 1000 - ONE_WEEK_IN_SECONDS;
+        if (VoterFilter.isBloom()) {
+            for (Map.Entry<String, Pending> entry : batch.entrySet()) {
+                String id = entry.getKey();
+                try (RedisLease lease = leaseFor("time:" + id, "score:" + id, Chapter01.GROUPS + id,
+                        VoterFilter.BLOOM + id, VoterFilter.VOTERS + id)) {
+                    writeFiltered(lease.getConn(), entry.getKey(), new ArrayList<>(entry.getValue().users), cutoff);
+                }
+            }
+            return;
+        }
+        if (ScriptRegistry.usable(useScript)) {
+            try (RedisLease lease = lease()) {
+                writeScripted(lease.getConn(), batch, cutoff);
+                return;
+            } catch (JedisDataException e) {
+                if (!ScriptRegistry.isUnsupported(e)) {
+                    throw e;
+                }
+                // 服务端不支持脚本，之后都用WATCH事务
+                useScript = false;
+            }
+        }
+        for (Map.Entry<String, Pending> entry : batch.entrySet()) {
+            String id = entry.getKey();
+            // 分片时散列票数与分组排名在事务之后按节点写入，见 writeWatched
+            try (RedisLease lease = leaseFor("time:" + id, "voted:" + id, "score:" + id, Chapter01.GROUPS + id)) {
+                writeWatched(lease.getConn(), id, new ArrayList<>(entry.getValue().users), cutoff);
+            }
+        }
+    }
+
+    private void writeScripted(Jedis conn, Map<String, Pending> batch, long cutoff) {
+        if (!scriptLoaded) {
+            VOTE.load(conn);
+            scriptLoaded = true;
+        }
+        Pipeline pipe = conn.pipelined();
+        List<Response<Object>> replies = new ArrayList<>(batch.size());
+        List<Integer> sizes = new ArrayList<>(batch.size());
+        List<String> ids = new ArrayList<>(batch.size());
+        for (Map.Entry<String, Pending> entry : batch.entrySet()) {
+            String id = entry.getKey();
+            List<String> args = new ArrayList<>(entry.getValue().users.size() + 5);
+            args.add("article:" + id);
+            args.add(String.valueOf(cutoff));
+            args.add(String.valueOf(VOTE_SCORE));
+            args.add(Chapter01.GROUP_SCORE);
+            args.add(ArticleStorage.votesField(id));
+            args.addAll(entry.getValue().users);
+            replies.add(VOTE.evalsha(pipe,
+                    Arrays.asList("time:" + id, "voted:" + id, "score:" + id, ArticleStorage.hashKey(id),
+                            Chapter01.GROUPS + id, Chapter01.SCORE_RANKING),
+                    args));
+            sizes.add(args.size() - 5);
+            ids.add(id);
+        }
+        pipe.sync();
+        for (int i = 0; i < replies.size(); i++) {
+            long added;
+            try {
+                added = (Long) replies.get(i).get();
+            } catch (JedisDataException e) {
+                // 服务端重启等原因丢失了脚本，下次重新加载
+                scriptLoaded = false;
+                throw e;
+            }
+            accepted.addAndGet(added);
+            rejected.addAndGet(sizes.get(i) - added);
+            if (added > 0) {
+                // 分组排名的镜像由定期刷新同步
+                Chapter01.notifyVote("score:" + ids.get(i), "article:" + ids.get(i), added);
+                Chapter01.notifyVote(Chapter01.SCORE_RANKING, "article:" + ids.get(i), added);
+            }
+        }
+    }
+
+    /**
+     * 不支持脚本时：WATCH已投票集合，筛出新投票的用户，再用事务一次计分
+     */
+    private void writeWatched(Jedis conn, String id, List<String> users, long cutoff) {
+        String article = "article:" + id;
+        String voted = "voted:" + id;
+        while (true) {
+            conn.watch(voted, Chapter01.GROUPS + id);
+            Double posted = conn.zscore("time:" + id, article);
+            if (posted == null || posted < cutoff) {
+                conn.unwatch();
+                rejected.addAndGet(users.size());
+                return;
+            }
+            Pipeline pipe = conn.pipelined();
+            List<Response<Boolean>> members = new ArrayList<>(users.size());
+            for (String user : users) {
+                members.add(pipe.sismember(voted, user));
+            }
+            Response<Set<String>> groups = pipe.smembers(Chapter01.GROUPS + id);
+            pipe.sync();
+            List<String> fresh = new ArrayList<>(users.size());
+            for (int i = 0; i < users.size(); i++) {
+                if (!members.get(i).get()) {
+                    fresh.add(users.get(i));
+                }
+            }
+            if (fresh.isEmpty()) {
+                conn.unwatch();
+                rejected.addAndGet(users.size());
+                return;
+            }
+            // 分片时散列与分组排名可能在其他节点，不能放进同一事务
+            boolean sharded = shards() != null;
+            Transaction trans = conn.multi();
+            trans.sadd(voted, fresh.toArray(new String[fresh.size()]));
+            trans.zincrby("score:" + id, (double) VOTE_SCORE * fresh.size(), article);
+            if (!sharded) {
+                trans.hincrBy(ArticleStorage.hashKey(id), ArticleStorage.votesField(id), fresh.size());
+                trans.zincrby(Chapter01.SCORE_RANKING, (double) VOTE_SCORE * fresh.size(), article);
+                for (String group : groups.get()) {
+                    trans.zincrby(Chapter01.GROUP_SCORE + group, (double) VOTE_SCORE * fresh.size(), article);
+                }
+            }
+            List<Object> results = trans.exec();
+            if (results != null && !results.isEmpty()) {
+                if (sharded) {
+                    Chapter01.addVotesSharded(id, groups.get(), fresh.size());
+                }
+                accepted.addAndGet(fresh.size());
+                rejected.addAndGet(users.size() - fresh.size());
+                Chapter01.notifyVote("score:" + id, article, fresh.size());
+                Chapter01.notifyVote(Chapter01.SCORE_RANKING, article, fresh.size());
+                for (String group : groups.get()) {
+                    Chapter01.notifyVote(Chapter01.GROUP_SCORE + group, article, fresh.size());
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * 布隆模式：逐个用户判重（见 {@link VoterFilter}），再用流水线一次计分
+     */
+    private void writeFiltered(Jedis conn, String id, List<String> users, long cutoff) {
+        String article = "article:" + id;
+        Double posted = conn.zscore("time:" + id, article);
+        if (posted == null || posted < cutoff) {
+            rejected.addAndGet(users.size());
+            return;
+        }
+        long fresh = 0;
+        for (String user : users) {
+            if (VoterFilter.add(conn, id, user)) {
+                fresh++;
+            }
+        }
+        rejected.addAndGet(users.size() - fresh);
+        if (fresh == 0) {
+            return;
+        }
+        Set<String> groups = conn.smembers(Chapter01.GROUPS + id);
+        Pipeline pipe = conn.pipelined();
+        pipe.zincrby("score:" + id, (double) VOTE_SCORE * fresh, article);
+        if (shards() == null) {
+            ArticleStorage.incrVotes(pipe, id, fresh);
+            pipe.zincrby(Chapter01.SCORE_RANKING, (double) VOTE_SCORE * fresh, article);
+            for (String group : groups) {
+                pipe.zincrby(Chapter01.GROUP_SCORE + group, (double) VOTE_SCORE * fresh, article);
+            }
+        }
+        pipe.sync();
+        if (shards() != null) {
+            Chapter01.addVotesSharded(id, groups, fresh);
+        }
+        accepted.addAndGet(fresh);
+        Chapter01.notifyVote("score:" + id, article, fresh);
+        Chapter01.notifyVote(Chapter01.SCORE_RANKING, article, fresh);
+        for (String group : groups) {
+            Chapter01.notifyVote(Chapter01.GROUP_SCORE + group, article, fresh);
+        }
+    }
+
+    /**
+     * 追加一条投票到当前日志段并写入文件后返回，调用方持有读锁
+     * <p>
+     * 组提交：拿到walFlushLock的线程一次写出缓冲区中所有线程追加的记录，等待锁的线程发现自己的记录已写出时直接返回
+     */
+    private void log(String user, String articleId, boolean commit) {
+        try {
+            long sequence;
+            synchronized (walLock) {
+                wal.write(user);
+                wal.write('\t');
+                wal.write(articleId);
+                wal.write('\n');
+                sequence = ++walWritten;
+            }
+            if (!commit) {
+                return;
+            }
+            synchronized (walFlushLock) {
+                if (walFlushed >= sequence) {
+                    return;
+                }
+                long written;
+                synchronized (walLock) {
+                    written = walWritten;
+                    wal.flush();
+                }
+                walFlushed = written;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("failed to write vote log", e);
+        }
+    }
+
+    /**
+     * 写出并刷盘当前日志段，调用方保证期间不会换出日志段
+     */
+    private void syncLog() {
+        try {
+            synchronized (walLock) {
+                wal.flush();
+                walOut.getFD().sync();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("failed to write vote log", e);
+        }
+    }
+
+    /**
+     * 关闭并刷盘当前日志段，打开新的日志段，调用方持有写锁
+     *
+     * @return 旧日志段，对应的投票写入redis后删除
+     */
+    private File rotate() {
+        try {
+            File previous = walSegment;
+            if (wal != null) {
+                wal.flush();
+                wal.close();
+            }
+            openSegment();
+            return previous;
+        } catch (IOException e) {
+            throw new UncheckedIOException("failed to rotate vote log", e);
+        }
+    }
+
+    private void openSegment() throws IOException {
+        walSegment = new File(walDir, SEGMENT_PREFIX + System.currentTimeMillis() + "-" + (nextSegment++) + SEGMENT_SUFFIX);
+        FileOutputStream out = new FileOutputStream(walSegment);
+        walOut = out;
+        wal = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8)) {
+            @Override
+            public void close() throws IOException {
+                flush();
+                out.getFD().sync();
+                super.close();
+            }
+        };
+    }
+
+    /**
+     * 重放上次未写入redis的日志段
+     */
+    private void recover() {
+        if (!walDir.isDirectory() && !walDir.mkdirs()) {
+            throw new IllegalArgumentException("cannot create vote log directory " + walDir);
+        }
+        File[] segments = walDir.listFiles((dir, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        try {
+            openSegment();
+            if (segments == null) {
+                return;
+            }
+            for (File segment : segments) {
+                String content = new String(Files.readAllBytes(segment.toPath()), StandardCharsets.UTF_8);
+                // 崩溃时最后一行可能不完整，只重放以换行结尾的记录
+                int end = content.lastIndexOf('\n');
+                for (String line : content.substring(0, end + 1).split("\n")) {
+                    int tab = line.indexOf('\t');
+                    if (tab > 0) {
+                        enqueue(line.substring(0, tab), line.substring(tab + 1), false);
+                    }
+                }
+            }
+            // 重放的投票在新的日志段中落盘之后才能删除旧日志段
+            syncLog();
+            for (File segment : segments) {
+                segment.delete();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("failed to recover vote log", e);
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package com.redis.chapter;
+
+import com.redis.common.RedisHandler;
+import com.redis.common.ScriptRegistry;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.Transaction;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.util.Hashing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 已投票用户的去重方式
+ * <p>
+ * 默认用 voted:id 集合精确记录每个投票用户，热门文章的集合会保存数十万个用户名。
+ * 切换为布隆过滤器模式后，每篇文章改用可扩展布隆过滤器（位图）判重，另用 HyperLogLog 统计投票人数：
+ * <ul>
+ * <li>voted:bloom:id 散列记录层数 layers、最后一层已加入数 count，以及各层的容量 n(i)、位数 m(i)、哈希次数 k(i)</li>
+ * <li>voted:bloom:id:i 为第i层位图，最后一层加满后新建一层，容量翻倍、误判率减半，总误判率不超过设定值</li>
+ * <li>voters:id 为 HyperLogLog</li>
+ * </ul>
+ * 误判只会把少量新用户当成已投票（少记一票），不会重复计票。布隆模式下无法列出投票用户，也不能撤销投票。
+ * 切换模式不会迁移已有数据，应在写入前设置。
+ *
+ * @author kqyang
+ */
+public final class VoterFilter {
+    static final String VOTED = "voted:";
+    static final String BLOOM = "voted:bloom:";
+    static final String VOTERS = "voters:";
+    private static final int ONE_WEEK_IN_SECONDS = 7 * 86400;
+    /**
+     * 判重并加入
+     * KEYS: voted:bloom:id, voters:id（各层位图键由前者加 :i 得到）
+     * ARGV: 用户, h1, h2, 首层容量, 总误判率, 过期秒数
+     */
+    private static final ScriptRegistry.Script ADD = RedisHandler.scripts().register("voterBloomAdd",
+            "local meta = KEYS[1]\n"
+                    + "local layers = tonumber(redis.call('hget', meta, 'layers') or '0')\n"
+                    + "local h1, h2 = tonumber(ARGV[2]), tonumber(ARGV[3])\n"
+                    + "for i = 0, layers - 1 do\n"
+                    + "  local p = redis.call('hmget', meta, 'm' .. i, 'k' .. i)\n"
+                    + "  local m, k = tonumber(p[1]), tonumber(p[2])\n"
+                    + "  local found = true\n"
+                    + "  for j = 0, k - 1 do\n"
+                    + "    if redis.call('getbit', meta .. ':' .. i, (h1 + j * h2) % m) == 0 then found = false break end\n"
+                    + "  end\n"
+                    + "  if found then return 0 end\n"
+                    + "end\n"
+                    + "local last = layers - 1\n"
+                    + "if layers == 0 or tonumber(redis.call('hget', meta, 'count'))"
+                    + " >= tonumber(redis.call('hget', meta, 'n' .. last)) then\n"
+                    + "  last = layers\n"
+                    + "  local n = tonumber(ARGV[4]) * 2 ^ last\n"
+                    + "  local p = tonumber(ARGV[5]) * 0.5 ^ (last + 1)\n"
+                    + "  local k = math.ceil(math.log(1 / p) / math.log(2))\n"
+                    + "  local m = math.ceil(n * math.log(1 / p) / (math.log(2) ^ 2))\n"
+                    + "  redis.call('hmset', meta, 'layers', last + 1, 'count', 0, 'n' .. last, n, 'm' .. last, m,"
+                    + " 'k' .. last, k)\n"
+                    + "  if layers == 0 then redis.call('expire', meta, ARGV[6]) end\n"
+                    + "end\n"
+                    + "local p = redis.call('hmget', meta, 'm' .. last, 'k' .. last)\n"
+                    + "local m, k = tonumber(p[1]), tonumber(p[2])\n"
+                    + "for j = 0, k - 1 do redis.call('setbit', meta .. ':' .. last, (h1 + j * h2) % m, 1) end\n"
+                    + "redis.call('hincrby', meta, 'count', 1)\n"
+                    + "local ttl = redis.call('ttl', meta)\n"
+                    + "if ttl > 0 then redis.call('expire', meta .. ':' .. last, ttl) end\n"
+                    + "redis.call('pfadd', KEYS[2], ARGV[1])\n"
+                    + "if ttl > 0 then redis.call('expire', KEYS[2], ttl) end\n"
+                    + "return 1");
+
+    private static volatile Params params;
+    private static volatile boolean useScript = true;
+
+    /**
+     * 布隆过滤器参数
+     */
+    static final class Params {
+        final long initialCapacity;
+        final double errorRate;
+
+        Params(long initialCapacity, double errorRate) {
+            this.initialCapacity = initialCapacity;
+            this.errorRate = errorRate;
+        }
+    }
+
+    private VoterFilter() {
+    }
+
+    /**
+     * 切换为布隆过滤器模式
+     *
+     * @param initialCapacity 首层容量，取文章常见的投票人数
+     * @param errorRate       总误判率，例如0.01
+     */
+    public static void useBloom(long initialCapacity, double errorRate) {
+        if (initialCapacity <= 0 || errorRate <= 0 || errorRate >= 1) {
+            throw new IllegalArgumentException("initialCapacity must be positive and errorRate in (0, 1)");
+        }
+        params = new Params(initialCapacity, errorRate);
+    }
+
+    /**
+     * 恢复精确集合模式
+     */
+    public static void useExactSet() {
+        params = null;
+    }
+
+    public static boolean isBloom() {
+        return params != null;
+    }
+
+    /**
+     * @return 当前的布隆过滤器参数，精确集合模式为null
+     */
+    static Params params() {
+        return params;
+    }
+
+    static void restore(Params saved) {
+        params = saved;
+    }
+
+    /**
+     * 发表文章时创建作者的投票记录，并设置一周过期
+     *
+     * @param pipe
+     * @param articleId
+     * @param user
+     */
+    static void init(Pipeline pipe, String articleId, String user) {
+        if (params == null) {
+            pipe.sadd(VOTED + articleId, user);
+            pipe.expire(VOTED + articleId, ONE_WEEK_IN_SECONDS);
+        }
+    }
+
+    /**
+     * 记录一次投票
+     *
+     * @param conn
+     * @param articleId
+     * @param user
+     * @return 用户此前未投过票（布隆模式下有误判率的概率把新用户判为已投票）
+     */
+    public static boolean add(Jedis conn, String articleId, String user) {
+        Params current = params;
+        if (current == null) {
+            return conn.sadd(VOTED + articleId, user) == 1;
+        }
+        long hash = Hashing.MURMUR_HASH.hash(user);
+        long h1 = hash & 0x7fffffffL;
+        long h2 = (hash >>> 32) & 0x7fffffffL | 1;
+        if (useScript) {
+            try {
+                Object added = ADD.eval(conn, Arrays.asList(BLOOM + articleId, VOTERS + articleId), Arrays.asList(user,
+                        String.valueOf(h1), String.valueOf(h2), String.valueOf(current.initialCapacity),
+                        String.valueOf(current.errorRate), String.valueOf(ONE_WEEK_IN_SECONDS)));
+                return (Long) added == 1;
+            } catch (JedisDataException e) {
+                if (!ScriptRegistry.isUnsupported(e)) {
+                    throw e;
+                }
+                // 服务端不支持脚本，之后都用WATCH事务
+                useScript = false;
+            }
+        }
+        return addWatched(conn, articleId, user, h1, h2, current);
+    }
+
+    /**
+     * 投票人数，布隆模式下为HyperLogLog估计值
+     *
+     * @param conn
+     * @param articleId
+     * @return
+     */
+    public static long voterCount(Jedis conn, String articleId) {
+        return params == null ? conn.scard(VOTED + articleId) : conn.pfcount(VOTERS + articleId);
+    }
+
+    /**
+     * 不支持脚本时：WATCH元数据散列，读出各层位后用事务置位，任何并发加入都会使事务失败并重试
+     */
+    private static boolean addWatched(Jedis conn, String articleId, String user, long h1, long h2, Params current) {
+        String meta = BLOOM + articleId;
+        while (true) {
+            conn.watch(meta);
+            Map<String, String> state = conn.hgetAll(meta);
+            int layers = state.isEmpty() ? 0 : Integer.parseInt(state.get("layers"));
+            Pipeline pipe = conn.pipelined();
+            List<List<Response<Boolean>>> bits = new ArrayList<>(layers);
+            for (int i = 0; i < layers; i++) {
+                long m = Long.parseLong(state.get("m" + i));
+                int k = Integer.parseInt(state.get("k" + i));
+                List<Response<Boolean>> layer = new ArrayList<>(k);
+                for (int j = 0; j < k; j++) {
+                    layer.add(pipe.getbit(meta + ":" + i, (h1 + j * h2) % m));
+                }
+                bits.add(layer);
+            }
+            Response<Long> ttl = pipe.ttl(meta);
+            pipe.sync();
+            if (contains(bits)) {
+                conn.unwatch();
+                return false;
+            }
+            Transaction trans = conn.multi();
+            int last = layers - 1;
+            if (layers == 0 || Long.parseLong(state.get("count")) >= Long.parseLong(state.get("n" + last))) {
+                last = layers;
+                long n = current.initialCapacity << last;
+                double p = current.errorRate * Math.pow(0.5, last + 1);
+                int k = (int) Math.ceil(Math.log(1 / p) / Math.log(2));
+                long m = (long) Math.ceil(n * Math.log(1 / p) / (Math.log(2) * Math.log(2)));
+                state.put("m" + last, String.valueOf(m));
+                state.put("k" + last, String.valueOf(k));
+                trans.hset(meta, "layers", String.valueOf(last + 1));
+                trans.hset(meta, "count", "0");
+                trans.hset(meta, "n" + last, String.valueOf(n));
+                trans.hset(meta, "m" + last, String.valueOf(m));
+                trans.hset(meta, "k" + last, String.valueOf(k));
+            }
+            long m = Long.parseLong(state.get("m" + last));
+            int k = Integer.parseInt(state.get("k" + last));
+            for (int j = 0; j < k; j++) {
+                trans.setbit(meta + ":" + last, (h1 + j * h2) % m, true);
+            }
+            trans.hincrBy(meta, "count", 1);
+            trans.pfadd(VOTERS + articleId, user);
+            int expire = layers == 0 ? ONE_WEEK_IN_SECONDS : ttl.get().intValue();
+            if (expire > 0) {
+                trans.expire(meta, expire);
+                trans.expire(meta + ":" + last, expire);
+                trans.expire(VOTERS + articleId, expire);
+            }
+            List<Object> results = trans.exec();
+            if (results != null && !results.isEmpty()) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 任意一层的k个位全部置位即视为已存在
+     */
+    private static boolean contains(List<List<Response<Boolean>>> bits) {
+        for (List<Response<Boolean>> layer : bits) {
+            boolean found = true;
+            for (Response<Boolean> bit : layer) {
+                if (!bit.get()) {
+                    found = false;
+                    break;
+                }
+            }
+            if (found) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
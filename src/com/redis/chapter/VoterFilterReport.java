@@ -0,0 +1,95 @@
+package com.redis.chapter;
+
+import com.redis.common.KeyPurger;
+import com.redis.common.RedisHandler;
+import com.redis.common.RedisLease;
+import redis.clients.jedis.Jedis;
+
+/**
+ * 精确集合与布隆过滤器两种投票去重方式的对比
+ * <p>
+ * 在空库中分别用两种方式为一篇文章记录N个不同用户的投票，比较INFO中used_memory的增量、每秒投票数、
+ * 被误判为已投票的用户数，以及投票人数统计（SCARD / PFCOUNT）。每种方式测完后清空写入的键。
+ * <p>
+ * 用法：VoterFilterReport [投票数] [误判率] [首层容量]。
+ * 嵌入式服务端的used_memory是JVM堆占用，受GC影响，结果只对真实redis有意义。
+ *
+ * @author kqyang
+ */
+public class VoterFilterReport extends RedisHandler {
+    private static final String ARTICLE_ID = "1";
+
+    public static void main(String[] args) {
+        int votes = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        double errorRate = args.length > 1 ? Double.parseDouble(args[1]) : 0.01;
+        long initialCapacity = args.length > 2 ? Long.parseLong(args[2]) : 1024;
+        new VoterFilterReport().run(votes, errorRate, initialCapacity);
+    }
+
+    /**
+     * @param votes           不同用户的投票数
+     * @param errorRate       布隆模式的总误判率
+     * @param initialCapacity 布隆模式的首层容量
+     */
+    public void run(int votes, double errorRate, long initialCapacity) {
+        try (RedisLease lease = lease()) {
+            if (lease.getConn().dbSize() != 0) {
+                printer("database is not empty, run the report against an empty database");
+                return;
+            }
+        }
+        printer("votes=" + votes + " errorRate=" + errorRate + " initialCapacity=" + initialCapacity);
+        VoterFilter.Params saved = VoterFilter.params();
+        try {
+            VoterFilter.useExactSet();
+            long exact = measure("exact-set", votes);
+            VoterFilter.useBloom(initialCapacity, errorRate);
+            long filtered = measure("bloom", votes);
+            if (exact > 0 && filtered > 0) {
+                printer(String.format("bloom mode uses %.1f%% of the exact-set memory", 100.0 * filtered / exact));
+            }
+        } finally {
+            // 恢复调用前的去重方式
+            VoterFilter.restore(saved);
+        }
+    }
+
+    /**
+     * 记录一种方式的投票并打印一行结果
+     *
+     * @return used_memory增量
+     */
+    private long measure(String mode, int votes) {
+        long before = usedMemory();
+        try (RedisLease lease = lease()) {
+            Jedis conn = lease.getConn();
+            long rejected = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < votes; i++) {
+                if (!VoterFilter.add(conn, ARTICLE_ID, "user:" + i)) {
+                    rejected++;
+                }
+            }
+            long elapsed = System.nanoTime() - start;
+            long used = usedMemory() - before;
+            printer(String.format("%-10s used_memory=%-12d bytes/vote=%-8.1f votes/s=%-10.0f false-positives=%-6d"
+                            + " voters=%d", mode, used, (double) used / votes, votes * 1e9 / elapsed, rejected,
+                    VoterFilter.voterCount(conn, ARTICLE_ID)));
+            return used;
+        } finally {
+            new KeyPurger(VoterFilter.VOTED + "*").purge();
+            new KeyPurger(VoterFilter.VOTERS + "*").purge();
+        }
+    }
+
+    private long usedMemory() {
+        try (RedisLease lease = lease()) {
+            for (String line : lease.getConn().info("memory").split("\r\n")) {
+                if (line.startsWith("used_memory:")) {
+                    return Long.parseLong(line.substring("used_memory:".length()));
+                }
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,225 @@
+package com.redis.common;
+
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 自动合并流水线
+ * <p>
+ * 多个线程提交命令并拿到future，后台写线程把队列中的命令合并到同一个pipeline中发送，
+ * 攒够maxBatch条或等待lingerNanos后刷新一次，再把每条回复分发给对应的future。
+ * 调用方无需自行构造Pipeline即可获得流水线吞吐。
+ *
+ * @author kqyang
+ */
+public class AutoPipeline implements AutoCloseable {
+    private static final int DEFAULT_MAX_BATCH = 512;
+    private static final long DEFAULT_LINGER_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private final BlockingQueue<Pending<?>> queue = new LinkedBlockingQueue<>();
+    private final int maxBatch;
+    private final long lingerNanos;
+    private final Thread writer;
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong commands = new AtomicLong();
+    private volatile boolean closed;
+
+    public AutoPipeline() {
+        this(DEFAULT_MAX_BATCH, DEFAULT_LINGER_NANOS);
+    }
+
+    /**
+     * @param maxBatch    单次刷新的最大命令数
+     * @param lingerNanos 收到第一条命令后最多等待多久再刷新
+     */
+    public AutoPipeline(int maxBatch, long lingerNanos) {
+        if (maxBatch <= 0) {
+            throw new IllegalArgumentException("maxBatch must be positive");
+        }
+        this.maxBatch = maxBatch;
+        this.lingerNanos = lingerNanos;
+        this.writer = new Thread(this::drain, "AutoPipelineWriter");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * 流水线命令
+     *
+     * @param <T>
+     */
+    public interface Command<T> {
+        Response<T> apply(Pipeline pipe);
+    }
+
+    /**
+     * 提交命令
+     * <p>
+     * 与close并发时，命令要么被写线程发送，要么future以IllegalStateException失败，不会一直挂起
+     *
+     * @param command
+     * @param <T>
+     * @return 命令回复
+     */
+    public <T> CompletableFuture<T> submit(Command<T> command) {
+        if (closed) {
+            throw new IllegalStateException("auto pipeline is closed");
+        }
+        Pending<T> pending = new Pending<>(command);
+        queue.add(pending);
+        // 入队前后关闭时写线程可能已退出；能从队列取回说明还没被写线程取走，由这里失败
+        if (closed && queue.remove(pending)) {
+            pending.future.completeExceptionally(new IllegalStateException("auto pipeline is closed"));
+        }
+        return pending.future;
+    }
+
+    /**
+     * 已刷新的批次数
+     *
+     * @return
+     */
+    public long getFlushes() {
+        return flushes.get();
+    }
+
+    /**
+     * 已发送的命令数
+     *
+     * @return
+     */
+    public long getCommands() {
+        return commands.get();
+    }
+
+    /**
+     * 停止写线程，已提交的命令会在停止前全部刷新
+     */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 写线程：攒批并刷新，退出后让仍在队列中的命令失败
+     */
+    private void drain() {
+        List<Pending<?>> batch = new ArrayList<>(maxBatch);
+        try {
+            drain(batch);
+        } finally {
+            queue.drainTo(batch);
+            fail(batch, new IllegalStateException("auto pipeline is closed"));
+        }
+    }
+
+    private void drain(List<Pending<?>> batch) {
+        while (!closed || !queue.isEmpty()) {
+            try {
+                Pending<?> first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + lingerNanos;
+                while (batch.size() < maxBatch) {
+                    queue.drainTo(batch, maxBatch - batch.size());
+                    long left = deadline - System.nanoTime();
+                    if (batch.size() >= maxBatch || left <= 0) {
+                        break;
+                    }
+                    Pending<?> next = queue.poll(left, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                flush(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                // 攒了一半的批次由drain()连同队列中的命令一起失败
+                return;
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * 一个pipeline发送整批命令并分发回复
+     *
+     * @param batch
+     */
+    private void flush(List<Pending<?>> batch) {
+        try (RedisLease lease = RedisHandler.lease()) {
+            Pipeline pipe = lease.getConn().pipelined();
+            for (Pending<?> pending : batch) {
+                pending.enqueue(pipe);
+            }
+            pipe.sync();
+        } catch (RuntimeException e) {
+            fail(batch, e);
+            return;
+        }
+        flushes.incrementAndGet();
+        commands.addAndGet(batch.size());
+        for (Pending<?> pending : batch) {
+            pending.complete();
+        }
+    }
+
+    private static void fail(List<Pending<?>> batch, RuntimeException e) {
+        for (Pending<?> pending : batch) {
+            pending.future.completeExceptionally(e);
+        }
+        batch.clear();
+    }
+
+    /**
+     * 待发送命令
+     *
+     * @param <T>
+     */
+    private static class Pending<T> {
+        private final Command<T> command;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+        private Response<T> response;
+
+        Pending(Command<T> command) {
+            this.command = command;
+        }
+
+        void enqueue(Pipeline pipe) {
+            try {
+                response = command.apply(pipe);
+            } catch (RuntimeException e) {
+                future.completeExceptionally(e);
+            }
+        }
+
+        void complete() {
+            if (response == null) {
+                future.complete(null);
+                return;
+            }
+            try {
+                future.complete(response.get());
+            } catch (RuntimeException e) {
+                // 单条命令的错误回复只影响自身
+                future.completeExceptionally(e);
+            }
+        }
+    }
+}
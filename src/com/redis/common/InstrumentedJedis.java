@@ -0,0 +1,98 @@
+package com.redis.common;
+
+import redis.clients.jedis.Client;
+import redis.clients.jedis.Connection;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Protocol;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+/**
+ * 记录每条命令耗时的Jedis
+ * <p>
+ * 替换内部的 {@link Client}：发送命令时把命令和发送时刻放入环形队列，读到一条回复时取出队首计算耗时，
+ * 因此流水线和事务中的命令也能逐条统计（流水线命令的耗时包含在客户端缓冲区等待发送的时间）。
+ * 队列用基本类型数组实现，只在流水线深度超过容量时扩容。
+ *
+ * @author kqyang
+ */
+public class InstrumentedJedis extends Jedis {
+
+    public InstrumentedJedis(String host, int port, int connectionTimeout, int soTimeout) {
+        super(host, port, connectionTimeout, soTimeout);
+        TimedClient timedClient = new TimedClient(host, port);
+        timedClient.setConnectionTimeout(connectionTimeout);
+        timedClient.setSoTimeout(soTimeout);
+        this.client = timedClient;
+    }
+
+    private static final class TimedClient extends Client {
+        private int[] commands = new int[16];
+        private long[] starts = new long[16];
+        private int head;
+        private int size;
+
+        TimedClient(String host, int port) {
+            super(host, port);
+        }
+
+        @Override
+        protected Connection sendCommand(Protocol.Command cmd, byte[]... args) {
+            if (size == commands.length) {
+                grow();
+            }
+            int tail = (head + size) & (commands.length - 1);
+            commands[tail] = cmd.ordinal();
+            starts[tail] = System.nanoTime();
+            size++;
+            try {
+                return super.sendCommand(cmd, args);
+            } catch (JedisConnectionException e) {
+                size = 0;
+                throw e;
+            }
+        }
+
+        @Override
+        protected Object readProtocolWithCheckingBroken() {
+            boolean consumed = false;
+            try {
+                Object reply = super.readProtocolWithCheckingBroken();
+                consumed = true;
+                return reply;
+            } catch (JedisConnectionException e) {
+                size = 0;
+                throw e;
+            } catch (RuntimeException e) {
+                // 错误回复同样消费了一条命令
+                consumed = true;
+                throw e;
+            } finally {
+                // 订阅模式下服务端主动推送的消息没有对应的命令
+                if (consumed && size > 0) {
+                    Metrics.recordCommand(commands[head], System.nanoTime() - starts[head]);
+                    head = (head + 1) & (commands.length - 1);
+                    size--;
+                }
+            }
+        }
+
+        @Override
+        public void disconnect() {
+            size = 0;
+            super.disconnect();
+        }
+
+        private void grow() {
+            int[] newCommands = new int[commands.length * 2];
+            long[] newStarts = new long[starts.length * 2];
+            for (int i = 0; i < size; i++) {
+                int index = (head + i) & (commands.length - 1);
+                newCommands[i] = commands[index];
+                newStarts[i] = starts[index];
+            }
+            commands = newCommands;
+            starts = newStarts;
+            head = 0;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.redis.common;
+
+import org.apache.commons.pool2.PooledObject;
+import org.apache.commons.pool2.PooledObjectFactory;
+import org.apache.commons.pool2.impl.DefaultPooledObject;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.util.Pool;
+
+/**
+ * 记录借用等待时间的连接池，池中的连接为 {@link InstrumentedJedis}
+ * <p>
+ * jedis 2.9的JedisPool构造时总会用自带的工厂建立内部池，这里直接继承 {@link Pool}，内部池只用本类的工厂建立一次；
+ * 借出与归还的处理与JedisPool相同。
+ *
+ * @author kqyang
+ */
+public class InstrumentedJedisPool extends Pool<Jedis> {
+
+    public InstrumentedJedisPool(JedisPoolConfig config, String host, int port, int timeout,
+                                 String password, int database) {
+        super(config, new Factory(host, port, timeout, password, database));
+        Metrics.register(host + ':' + port + '/' + database, this);
+    }
+
+    @Override
+    public Jedis getResource() {
+        long start = System.nanoTime();
+        try {
+            Jedis jedis = super.getResource();
+            // 连接close时通过dataSource归还本池
+            jedis.setDataSource(this);
+            return jedis;
+        } finally {
+            Metrics.recordBorrow(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * 由 {@link Jedis#close()} 调用，与Pool中的声明一样已废弃，业务代码应通过close归还
+     *
+     * @param jedis
+     */
+    @Override
+    @Deprecated
+    public void returnResource(Jedis jedis) {
+        if (jedis == null) {
+            return;
+        }
+        try {
+            jedis.resetState();
+            returnResourceObject(jedis);
+        } catch (RuntimeException e) {
+            returnBrokenResource(jedis);
+            throw new JedisException("Could not return the resource to the pool", e);
+        }
+    }
+
+    @Override
+    @Deprecated
+    public void returnBrokenResource(Jedis jedis) {
+        if (jedis != null) {
+            returnBrokenResourceObject(jedis);
+        }
+    }
+
+    /**
+     * 与jedis自带的工厂一致：建立连接时认证并选择库，借出时库不一致再select
+     */
+    private static final class Factory implements PooledObjectFactory<Jedis> {
+        private final String host;
+        private final int port;
+        private final int timeout;
+        private final String password;
+        private final int database;
+
+        Factory(String host, int port, int timeout, String password, int database) {
+            this.host = host;
+            this.port = port;
+            this.timeout = timeout;
+            this.password = password;
+            this.database = database;
+        }
+
+        @Override
+        public PooledObject<Jedis> makeObject() {
+            Jedis jedis = new InstrumentedJedis(host, port, timeout, timeout);
+            try {
+                jedis.connect();
+                if (password != null) {
+                    jedis.auth(password);
+                }
+                if (database != 0) {
+                    jedis.select(database);
+                }
+            } catch (RuntimeException e) {
+                jedis.close();
+                throw e;
+            }
+            return new DefaultPooledObject<>(jedis);
+        }
+
+        @Override
+        public void destroyObject(PooledObject<Jedis> pooled) {
+            Jedis jedis = pooled.getObject();
+            if (jedis.isConnected()) {
+                try {
+                    jedis.quit();
+                } catch (RuntimeException e) {
+                    // ignore
+                }
+                jedis.disconnect();
+            }
+        }
+
+        @Override
+        public boolean validateObject(PooledObject<Jedis> pooled) {
+            try {
+                Jedis jedis = pooled.getObject();
+                return jedis.isConnected() && "PONG".equals(jedis.ping());
+            } catch (RuntimeException e) {
+                return false;
+            }
+        }
+
+        @Override
+        public void activateObject(PooledObject<Jedis> pooled) {
+            Jedis jedis = pooled.getObject();
+            if (jedis.getDB() != database) {
+                jedis.select(database);
+            }
+        }
+
+        @Override
+        public void passivateObject(PooledObject<Jedis> pooled) {
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package com.redis.common;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * 批量删除键
+ * <p>
+ * 用SCAN游标分页遍历键空间（可带MATCH模式），每页的键按batchSize分批，
+ * 每批用UNLINK在后台释放内存，不会像KEYS加一次性DEL那样长时间阻塞服务端。
+ * 可以限制每秒删除的键数（每批删除后检查），并在每页处理完后回调进度。
+ * 启用分片（{@link RedisHandler#useShards(ShardedRedis)}）时依次遍历默认节点与每个分片节点。
+ * <p>
+ * jedis 2.9没有UNLINK命令，这里通过lua脚本调用；服务端不支持脚本或UNLINK（redis 4.0以下）时退回DEL。
+ *
+ * @author kqyang
+ */
+public class KeyPurger {
+    private static final ScriptRegistry.Script UNLINK = RedisHandler.scripts().register("unlink",
+            "return redis.call('UNLINK', unpack(KEYS))");
+    private static final int DEFAULT_SCAN_COUNT = 1000;
+    private static final int DEFAULT_BATCH_SIZE = 100;
+
+    private final String pattern;
+    private int scanCount = DEFAULT_SCAN_COUNT;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private long maxKeysPerSecond;
+    private ProgressListener listener;
+    private volatile boolean scriptLoaded;
+    private volatile boolean useDel;
+
+    /**
+     * 删除进度回调
+     */
+    public interface ProgressListener {
+        /**
+         * @param scanned       已遍历的键数（SCAN可能重复返回同一个键）
+         * @param deleted       实际删除的键数
+         * @param elapsedMillis 已耗时
+         */
+        void onProgress(long scanned, long deleted, long elapsedMillis);
+    }
+
+    /**
+     * @param pattern MATCH模式，例如 viewed:* 或 cache:*，null表示所有键
+     */
+    public KeyPurger(String pattern) {
+        this.pattern = pattern;
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.out.println("usage: KeyPurger <pattern> [maxKeysPerSecond]");
+            return;
+        }
+        KeyPurger purger = new KeyPurger(args[0])
+                .setMaxKeysPerSecond(args.length > 1 ? Long.parseLong(args[1]) : 0)
+                .setListener((scanned, deleted, elapsed) ->
+                        System.out.println("scanned=" + scanned + " deleted=" + deleted + " elapsed=" + elapsed + "ms"));
+        System.out.println("deleted " + purger.purge() + " keys");
+    }
+
+    /**
+     * SCAN每页建议返回的键数
+     *
+     * @param scanCount
+     * @return
+     */
+    public KeyPurger setScanCount(int scanCount) {
+        if (scanCount <= 0) {
+            throw new IllegalArgumentException("scanCount must be positive");
+        }
+        this.scanCount = scanCount;
+        return this;
+    }
+
+    /**
+     * 单条UNLINK最多删除的键数
+     *
+     * @param batchSize
+     * @return
+     */
+    public KeyPurger setBatchSize(int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize must be positive");
+        }
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * 每秒最多删除的键数，0表示不限制
+     *
+     * @param maxKeysPerSecond
+     * @return
+     */
+    public KeyPurger setMaxKeysPerSecond(long maxKeysPerSecond) {
+        if (maxKeysPerSecond < 0) {
+            throw new IllegalArgumentException("maxKeysPerSecond must not be negative");
+        }
+        this.maxKeysPerSecond = maxKeysPerSecond;
+        return this;
+    }
+
+    public KeyPurger setListener(ProgressListener listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    /**
+     * 执行删除
+     *
+     * @return 删除的键数
+     */
+    public long purge() {
+        Progress progress = new Progress();
+        // 不参与分片的数据（登录令牌、检索索引等）仍在默认节点上
+        purge(RedisHandler::lease, progress);
+        ShardedRedis sharded = RedisHandler.shards();
+        if (sharded != null) {
+            for (String shard : sharded.getShards()) {
+                purge(() -> sharded.leaseShard(shard), progress);
+            }
+        }
+        return progress.deleted;
+    }
+
+    /**
+     * 遍历一个节点
+     *
+     * @param node     租用该节点的连接
+     * @param progress 所有节点累计的进度
+     */
+    private void purge(Supplier<RedisLease> node, Progress progress) {
+        ScanParams params = new ScanParams().count(scanCount);
+        if (pattern != null) {
+            params.match(pattern);
+        }
+        String cursor = ScanParams.SCAN_POINTER_START;
+        do {
+            List<String> keys;
+            try (RedisLease lease = node.get()) {
+                ScanResult<String> page = lease.getConn().scan(cursor, params);
+                cursor = page.getStringCursor();
+                keys = page.getResult();
+            }
+            progress.scanned += keys.size();
+            for (int from = 0; from < keys.size(); from += batchSize) {
+                List<String> batch = keys.subList(from, Math.min(keys.size(), from + batchSize));
+                // 每批单独租用连接，限速等待期间不占用连接
+                try (RedisLease lease = node.get()) {
+                    progress.deleted += unlinkBatch(lease.getConn(), batch);
+                }
+                throttle(progress.start, progress.deleted);
+            }
+            if (listener != null) {
+                listener.onProgress(progress.scanned, progress.deleted,
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - progress.start));
+            }
+        } while (!ScanParams.SCAN_POINTER_START.equals(cursor));
+    }
+
+    /**
+     * 分批流水线删除给定的键，优先UNLINK，不支持时DEL
+     *
+     * @param conn
+     * @param keys 数量不限，按batchSize拆成多条命令在同一流水线中发送
+     * @return 实际删除的键数
+     */
+    public long unlink(Jedis conn, List<String> keys) {
+        if (keys.size() <= batchSize) {
+            return unlinkBatch(conn, keys);
+        }
+        if (!useDel) {
+            try {
+                if (!scriptLoaded) {
+                    UNLINK.load(conn);
+                    scriptLoaded = true;
+                }
+                return sendBatches(conn, keys, false);
+            } catch (JedisDataException e) {
+                // 不支持脚本或UNLINK，之后都用DEL
+                useDel = true;
+            }
+        }
+        return sendBatches(conn, keys, true);
+    }
+
+    /**
+     * 一条命令删除不超过batchSize个键
+     */
+    private long unlinkBatch(Jedis conn, List<String> batch) {
+        if (batch.isEmpty()) {
+            return 0;
+        }
+        if (!useDel) {
+            try {
+                return (Long) UNLINK.eval(conn, batch, Collections.<String>emptyList());
+            } catch (JedisDataException e) {
+                // 不支持脚本或UNLINK，之后都用DEL
+                useDel = true;
+            }
+        }
+        return conn.del(batch.toArray(new String[batch.size()]));
+    }
+
+    private long sendBatches(Jedis conn, List<String> keys, boolean del) {
+        Pipeline pipe = conn.pipelined();
+        for (int from = 0; from < keys.size(); from += batchSize) {
+            List<String> batch = keys.subList(from, Math.min(keys.size(), from + batchSize));
+            if (del) {
+                pipe.del(batch.toArray(new String[batch.size()]));
+            } else {
+                UNLINK.evalsha(pipe, batch, Collections.<String>emptyList());
+            }
+        }
+        long deleted = 0;
+        for (Object reply : pipe.syncAndReturnAll()) {
+            if (reply instanceof JedisDataException) {
+                throw (JedisDataException) reply;
+            }
+            deleted += (Long) reply;
+        }
+        return deleted;
+    }
+
+    /**
+     * 按限速计算应耗时间，删除得太快则休眠
+     */
+    private void throttle(long start, long deleted) {
+        if (maxKeysPerSecond <= 0) {
+            return;
+        }
+        long expected = TimeUnit.SECONDS.toNanos(deleted) / maxKeysPerSecond;
+        long ahead = expected - (System.nanoTime() - start);
+        if (ahead > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(ahead);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("purge interrupted", e);
+            }
+        }
+    }
+
+    /**
+     * 跨节点累计的进度
+     */
+    private static final class Progress {
+        final long start = System.nanoTime();
+        long scanned;
+        long deleted;
+    }
+}
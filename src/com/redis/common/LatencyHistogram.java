@@ -0,0 +1,140 @@
+package com.redis.common;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 延迟直方图（HDR风格的对数线性分桶）
+ * <p>
+ * 每个2的幂区间再均分为32个子桶，相对误差约3%，可覆盖1ns到约18分钟。
+ * 记录时只做位运算和原子自增，不分配对象，可多线程并发写入。
+ *
+ * @author kqyang
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 6;
+    private static final int HALF = 1 << (SUB_BITS - 1);
+    private static final long MAX_VALUE = (1L << 40) - 1;
+    private static final int BUCKETS = indexOf(MAX_VALUE) + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * 记录一次耗时
+     *
+     * @param nanos
+     */
+    public void record(long nanos) {
+        long value = nanos < 0 ? 0 : Math.min(nanos, MAX_VALUE);
+        counts.incrementAndGet(indexOf(value));
+        total.incrementAndGet();
+        sum.addAndGet(value);
+        long current;
+        while (value > (current = max.get())) {
+            if (max.compareAndSet(current, value)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * 从startNanos（System.nanoTime()）记录到现在的耗时
+     *
+     * @param startNanos
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * 异步操作完成（包括异常完成）时记录从startNanos开始的耗时
+     *
+     * @param startNanos
+     * @param future
+     * @return
+     */
+    public <T> CompletableFuture<T> recordOnCompletion(long startNanos, CompletableFuture<T> future) {
+        return future.whenComplete((result, error) -> recordSince(startNanos));
+    }
+
+    /**
+     * 获取百分位耗时
+     *
+     * @param percentile 0-100，例如 99.9
+     * @return 纳秒
+     */
+    public long percentile(double percentile) {
+        long count = total.get();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(count * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestOf(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    public long getCount() {
+        return total.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long count = total.get();
+        return count == 0 ? 0 : (double) sum.get() / count;
+    }
+
+    /**
+     * 清空
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        total.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    /**
+     * 数值所在桶下标
+     *
+     * @param value
+     * @return
+     */
+    private static int indexOf(long value) {
+        int msb = 63 - Long.numberOfLeadingZeros(value);
+        if (msb < SUB_BITS) {
+            return (int) value;
+        }
+        int shift = msb - SUB_BITS + 1;
+        return shift * HALF + (int) (value >>> shift);
+    }
+
+    /**
+     * 桶内最大值
+     *
+     * @param index
+     * @return
+     */
+    private static long highestOf(int index) {
+        if (index < 2 * HALF) {
+            return index;
+        }
+        int shift = index / HALF - 1;
+        long mantissa = index - (long) shift * HALF;
+        return ((mantissa + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,333 @@
+package com.redis.common;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Protocol;
+import redis.clients.util.Pool;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 延迟指标
+ * <p>
+ * 记录三类数据：每条redis命令从发送到收到回复的耗时（由 {@link InstrumentedJedis} 采集），
+ * 各章节高层操作的耗时（调用方持有 {@link #operation(String)} 返回的直方图），以及从连接池借连接的等待时间。
+ * 记录路径只有数组下标和原子自增，不分配对象，可以在生产环境常开。
+ * 通过 {@link #snapshot()} 获取快照，{@link Snapshot#export()} 导出为文本。
+ *
+ * @author kqyang
+ */
+public final class Metrics {
+    private static final Protocol.Command[] COMMANDS = Protocol.Command.values();
+    private static final LatencyHistogram[] COMMAND_LATENCY = new LatencyHistogram[COMMANDS.length];
+    private static final Map<String, LatencyHistogram> OPERATIONS = new ConcurrentHashMap<>();
+    private static final LatencyHistogram POOL_WAIT = new LatencyHistogram();
+    private static final Map<String, Pool<Jedis>> POOLS = new ConcurrentHashMap<>();
+
+    static {
+        for (int i = 0; i < COMMAND_LATENCY.length; i++) {
+            COMMAND_LATENCY[i] = new LatencyHistogram();
+        }
+    }
+
+    private Metrics() {
+    }
+
+    /**
+     * 高层操作的直方图，调用方应保存在静态字段中复用
+     *
+     * @param name
+     * @return
+     */
+    public static LatencyHistogram operation(String name) {
+        LatencyHistogram histogram = OPERATIONS.get(name);
+        return histogram != null ? histogram : OPERATIONS.computeIfAbsent(name, k -> new LatencyHistogram());
+    }
+
+    /**
+     * 命令的直方图
+     *
+     * @param command
+     * @return
+     */
+    public static LatencyHistogram command(Protocol.Command command) {
+        return COMMAND_LATENCY[command.ordinal()];
+    }
+
+    static void recordCommand(int ordinal, long nanos) {
+        COMMAND_LATENCY[ordinal].record(nanos);
+    }
+
+    static void recordBorrow(long nanos) {
+        POOL_WAIT.record(nanos);
+    }
+
+    /**
+     * 登记需要采集活跃/空闲连接数的连接池，每个连接池（默认节点与各分片节点）单独导出
+     * <p>
+     * 同名的连接池（重新连接同一地址）替换旧的，已关闭的连接池在下次快照时移除
+     *
+     * @param name      连接池名称，例如 127.0.0.1:6379/14
+     * @param jedisPool
+     */
+    static void register(String name, Pool<Jedis> jedisPool) {
+        POOLS.put(name, jedisPool);
+    }
+
+    /**
+     * 清空所有直方图
+     */
+    public static void reset() {
+        for (LatencyHistogram histogram : COMMAND_LATENCY) {
+            histogram.reset();
+        }
+        for (LatencyHistogram histogram : OPERATIONS.values()) {
+            histogram.reset();
+        }
+        POOL_WAIT.reset();
+    }
+
+    /**
+     * 当前指标快照，只包含有记录的命令和操作
+     *
+     * @return
+     */
+    public static Snapshot snapshot() {
+        Map<String, Summary> commands = new TreeMap<>();
+        for (int i = 0; i < COMMANDS.length; i++) {
+            if (COMMAND_LATENCY[i].getCount() > 0) {
+                commands.put(COMMANDS[i].name(), new Summary(COMMAND_LATENCY[i]));
+            }
+        }
+        Map<String, Summary> operations = new TreeMap<>();
+        for (Map.Entry<String, LatencyHistogram> entry : OPERATIONS.entrySet()) {
+            if (entry.getValue().getCount() > 0) {
+                operations.put(entry.getKey(), new Summary(entry.getValue()));
+            }
+        }
+        Map<String, PoolStats> pools = new TreeMap<>();
+        for (Map.Entry<String, Pool<Jedis>> entry : POOLS.entrySet()) {
+            Pool<Jedis> pool = entry.getValue();
+            if (pool.isClosed()) {
+                POOLS.remove(entry.getKey(), pool);
+                continue;
+            }
+            pools.put(entry.getKey(), new PoolStats(pool.getNumActive(), pool.getNumIdle(), pool.getNumWaiters()));
+        }
+        return new Snapshot(commands, operations, new Summary(POOL_WAIT), pools);
+    }
+
+    /**
+     * 连接池的连接数
+     */
+    public static final class PoolStats {
+        private final int active;
+        private final int idle;
+        private final int waiters;
+
+        PoolStats(int active, int idle, int waiters) {
+            this.active = active;
+            this.idle = idle;
+            this.waiters = waiters;
+        }
+
+        public int getActive() {
+            return active;
+        }
+
+        public int getIdle() {
+            return idle;
+        }
+
+        public int getWaiters() {
+            return waiters;
+        }
+    }
+
+    /**
+     * 直方图摘要，时间单位为纳秒
+     */
+    public static final class Summary {
+        private final long count;
+        private final double mean;
+        private final long p50;
+        private final long p90;
+        private final long p99;
+        private final long p999;
+        private final long max;
+
+        Summary(LatencyHistogram histogram) {
+            this.count = histogram.getCount();
+            this.mean = histogram.getMean();
+            this.p50 = histogram.percentile(50);
+            this.p90 = histogram.percentile(90);
+            this.p99 = histogram.percentile(99);
+            this.p999 = histogram.percentile(99.9);
+            this.max = histogram.getMax();
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMean() {
+            return mean;
+        }
+
+        public long getP50() {
+            return p50;
+        }
+
+        public long getP90() {
+            return p90;
+        }
+
+        public long getP99() {
+            return p99;
+        }
+
+        public long getP999() {
+            return p999;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("count=%d mean=%.1fus p50=%.1fus p99=%.1fus p999=%.1fus max=%.1fus",
+                    count, mean / 1000, p50 / 1000.0, p99 / 1000.0, p999 / 1000.0, max / 1000.0);
+        }
+    }
+
+    /**
+     * 指标快照
+     */
+    public static final class Snapshot {
+        private final Map<String, Summary> commands;
+        private final Map<String, Summary> operations;
+        private final Summary poolWait;
+        private final Map<String, PoolStats> pools;
+
+        Snapshot(Map<String, Summary> commands, Map<String, Summary> operations, Summary poolWait,
+                 Map<String, PoolStats> pools) {
+            this.commands = Collections.unmodifiableMap(commands);
+            this.operations = Collections.unmodifiableMap(operations);
+            this.poolWait = poolWait;
+            this.pools = Collections.unmodifiableMap(pools);
+        }
+
+        public Map<String, Summary> getCommands() {
+            return commands;
+        }
+
+        public Map<String, Summary> getOperations() {
+            return operations;
+        }
+
+        public Summary getPoolWait() {
+            return poolWait;
+        }
+
+        /**
+         * 各连接池的连接数，键为登记时的名称
+         *
+         * @return
+         */
+        public Map<String, PoolStats> getPools() {
+            return pools;
+        }
+
+        /**
+         * 所有连接池的活跃连接数之和
+         *
+         * @return
+         */
+        public int getPoolActive() {
+            int active = 0;
+            for (PoolStats stats : pools.values()) {
+                active += stats.active;
+            }
+            return active;
+        }
+
+        public int getPoolIdle() {
+            int idle = 0;
+            for (PoolStats stats : pools.values()) {
+                idle += stats.idle;
+            }
+            return idle;
+        }
+
+        public int getPoolWaiters() {
+            int waiters = 0;
+            for (PoolStats stats : pools.values()) {
+                waiters += stats.waiters;
+            }
+            return waiters;
+        }
+
+        /**
+         * 导出为prometheus文本格式，延迟单位为秒
+         *
+         * @return
+         */
+        public String export() {
+            StringBuilder out = new StringBuilder();
+            for (Map.Entry<String, Summary> entry : commands.entrySet()) {
+                appendSummary(out, "redis_command_latency_seconds", "command", entry.getKey(), entry.getValue());
+            }
+            for (Map.Entry<String, Summary> entry : operations.entrySet()) {
+                appendSummary(out, "redis_operation_latency_seconds", "operation", entry.getKey(), entry.getValue());
+            }
+            appendSummary(out, "redis_pool_borrow_wait_seconds", null, null, poolWait);
+            for (Map.Entry<String, PoolStats> entry : pools.entrySet()) {
+                String labels = "{pool=\"" + entry.getKey() + "\"} ";
+                PoolStats stats = entry.getValue();
+                out.append("redis_pool_active").append(labels).append(stats.active).append('\n');
+                out.append("redis_pool_idle").append(labels).append(stats.idle).append('\n');
+                out.append("redis_pool_waiters").append(labels).append(stats.waiters).append('\n');
+            }
+            return out.toString();
+        }
+
+        private static void appendSummary(StringBuilder out, String metric, String label, String value, Summary summary) {
+            String labels = label == null ? "" : label + "=\"" + value + "\",";
+            appendQuantile(out, metric, labels, "0.5", summary.p50);
+            appendQuantile(out, metric, labels, "0.9", summary.p90);
+            appendQuantile(out, metric, labels, "0.99", summary.p99);
+            appendQuantile(out, metric, labels, "0.999", summary.p999);
+            appendQuantile(out, metric, labels, "1", summary.max);
+            String plain = label == null ? "" : "{" + label + "=\"" + value + "\"}";
+            out.append(metric).append("_count").append(plain).append(' ').append(summary.count).append('\n');
+            out.append(metric).append("_sum").append(plain).append(' ')
+                    .append(summary.mean * summary.count / 1e9).append('\n');
+        }
+
+        private static void appendQuantile(StringBuilder out, String metric, String labels, String quantile, long nanos) {
+            out.append(metric).append('{').append(labels).append("quantile=\"").append(quantile).append("\"} ")
+                    .append(nanos / 1e9).append('\n');
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder out = new StringBuilder();
+            for (Map.Entry<String, Summary> entry : operations.entrySet()) {
+                out.append(String.format("%-24s %s%n", entry.getKey(), entry.getValue()));
+            }
+            for (Map.Entry<String, Summary> entry : commands.entrySet()) {
+                out.append(String.format("%-24s %s%n", entry.getKey(), entry.getValue()));
+            }
+            out.append(String.format("%-24s %s%n", "pool borrow wait", poolWait));
+            for (Map.Entry<String, PoolStats> entry : pools.entrySet()) {
+                PoolStats stats = entry.getValue();
+                out.append(String.format("pool %s active=%d idle=%d waiters=%d%n",
+                        entry.getKey(), stats.active, stats.idle, stats.waiters));
+            }
+            return out.toString();
+        }
+    }
+}
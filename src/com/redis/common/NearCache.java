@@ -0,0 +1,409 @@
+package com.redis.common;
+
+import redis.clients.jedis.JedisPubSub;
+import redis.clients.jedis.exceptions.JedisException;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * 客户端近端缓存
+ * <p>
+ * 缓存很少变化的热点读（字符串GET、散列HGET），按估算的内存占用限制总容量，条目带TTL。
+ * 容量满时用频率草图做准入：新条目的访问频率不高于LRU淘汰候选时拒绝写入，避免一次性访问冲掉热点。
+ * <p>
+ * 一致性：修改被缓存键的一方调用 {@link RedisHandler#invalidate(String, String...)}，向
+ * {@link #INVALIDATION_CHANNEL} 发布失效消息，各进程的订阅线程收到后删除本地条目。
+ * 订阅断开期间缓存停用并清空，重新订阅后再启用，避免错过失效消息。
+ * 未经invalidate的写入只能依赖TTL过期，因此TTL即最大不一致时间。
+ *
+ * @author kqyang
+ */
+public class NearCache implements AutoCloseable {
+    public static final String INVALIDATION_CHANNEL = "__nearcache:invalidate";
+    /**
+     * 失效消息格式：key 或 key\nfield1\nfield2...
+     */
+    static final String FIELD_SEPARATOR = "\n";
+    /**
+     * 每个条目除字符数据以外的估算开销（对象头、引用、链表节点）
+     */
+    private static final int ENTRY_OVERHEAD = 96;
+    private static final long RETRY_MILLIS = 1000;
+
+    private final long maxWeight;
+    private final long ttlNanos;
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private final Map<String, Set<Key>> keyIndex = new HashMap<>();
+    private final FrequencySketch sketch;
+    private volatile Invalidator invalidator;
+    private final Thread subscriber;
+    private long weight;
+    private long generation;
+    private volatile boolean online;
+    private volatile boolean closed;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong rejections = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /**
+     * @param maxWeight 容量上限（估算字节数）
+     * @param ttlMillis 条目存活时间
+     */
+    public NearCache(long maxWeight, long ttlMillis) {
+        if (maxWeight <= 0 || ttlMillis <= 0) {
+            throw new IllegalArgumentException("maxWeight and ttlMillis must be positive");
+        }
+        this.maxWeight = maxWeight;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.sketch = new FrequencySketch((int) Math.min(1 << 20, Math.max(64, maxWeight / ENTRY_OVERHEAD)));
+        this.subscriber = new Thread(this::subscribe, "NearCacheInvalidator");
+        this.subscriber.setDaemon(true);
+        this.subscriber.start();
+    }
+
+    /**
+     * 读取缓存，未命中时调用loader从redis加载
+     *
+     * @param key    redis键
+     * @param field  散列字段，字符串键传null
+     * @param loader 加载函数，返回null的结果不缓存
+     * @return
+     */
+    public String get(String key, String field, Supplier<String> loader) {
+        if (!online) {
+            misses.incrementAndGet();
+            return loader.get();
+        }
+        Key cacheKey = new Key(key, field);
+        long stamp;
+        synchronized (this) {
+            sketch.increment(cacheKey.hashCode());
+            Entry entry = entries.get(cacheKey);
+            if (entry != null) {
+                if (entry.expireAt - System.nanoTime() > 0) {
+                    hits.incrementAndGet();
+                    return entry.value;
+                }
+                remove(cacheKey);
+            }
+            stamp = generation;
+        }
+        misses.incrementAndGet();
+        String value = loader.get();
+        if (value != null) {
+            put(cacheKey, value, stamp);
+        }
+        return value;
+    }
+
+    /**
+     * 写入加载结果；加载期间发生过失效则放弃，防止旧值覆盖
+     */
+    private synchronized void put(Key cacheKey, String value, long stamp) {
+        if (!online || stamp != generation) {
+            return;
+        }
+        long entryWeight = weigh(cacheKey, value);
+        if (entryWeight > maxWeight) {
+            rejections.incrementAndGet();
+            return;
+        }
+        remove(cacheKey);
+        int frequency = sketch.frequency(cacheKey.hashCode());
+        while (weight + entryWeight > maxWeight) {
+            Key victim = entries.keySet().iterator().next();
+            Entry victimEntry = entries.get(victim);
+            // 已过期的直接淘汰，否则比较访问频率决定是否准入
+            if (victimEntry.expireAt - System.nanoTime() > 0 && frequency <= sketch.frequency(victim.hashCode())) {
+                rejections.incrementAndGet();
+                return;
+            }
+            remove(victim);
+            evictions.incrementAndGet();
+        }
+        entries.put(cacheKey, new Entry(value, entryWeight, System.nanoTime() + ttlNanos));
+        keyIndex.computeIfAbsent(cacheKey.key, k -> new HashSet<>()).add(cacheKey);
+        weight += entryWeight;
+    }
+
+    private void remove(Key cacheKey) {
+        Entry entry = entries.remove(cacheKey);
+        if (entry == null) {
+            return;
+        }
+        weight -= entry.weight;
+        Set<Key> fields = keyIndex.get(cacheKey.key);
+        if (fields != null) {
+            fields.remove(cacheKey);
+            if (fields.isEmpty()) {
+                keyIndex.remove(cacheKey.key);
+            }
+        }
+    }
+
+    /**
+     * 删除本地条目，不发布失效消息
+     *
+     * @param key
+     * @param fields 为空时删除该键的所有条目
+     */
+    public synchronized void invalidateLocal(String key, String... fields) {
+        generation++;
+        if (fields == null || fields.length == 0) {
+            Set<Key> cached = keyIndex.get(key);
+            if (cached != null) {
+                for (Key cacheKey : cached.toArray(new Key[0])) {
+                    remove(cacheKey);
+                    invalidations.incrementAndGet();
+                }
+            }
+            return;
+        }
+        for (String field : fields) {
+            Key cacheKey = new Key(key, field);
+            if (entries.containsKey(cacheKey)) {
+                remove(cacheKey);
+                invalidations.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * 清空缓存
+     */
+    public synchronized void clear() {
+        generation++;
+        entries.clear();
+        keyIndex.clear();
+        weight = 0;
+    }
+
+    /**
+     * 组装失效消息
+     *
+     * @param key
+     * @param fields
+     * @return
+     */
+    static String message(String key, String... fields) {
+        StringBuilder message = new StringBuilder(key);
+        if (fields != null) {
+            for (String field : fields) {
+                message.append(FIELD_SEPARATOR).append(field);
+            }
+        }
+        return message.toString();
+    }
+
+    /**
+     * 订阅失效频道，断开后清空缓存并重试
+     */
+    private void subscribe() {
+        while (!closed) {
+            invalidator = new Invalidator();
+            try (RedisLease lease = RedisHandler.lease()) {
+                lease.getConn().subscribe(invalidator, INVALIDATION_CHANNEL);
+            } catch (JedisException e) {
+                // 连接断开，下面重新订阅
+            }
+            online = false;
+            clear();
+            if (closed) {
+                break;
+            }
+            try {
+                Thread.sleep(RETRY_MILLIS);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+    }
+
+    private class Invalidator extends JedisPubSub {
+        @Override
+        public void onSubscribe(String channel, int subscribedChannels) {
+            clear();
+            online = true;
+        }
+
+        @Override
+        public void onMessage(String channel, String message) {
+            String[] parts = message.split(FIELD_SEPARATOR);
+            String[] fields = new String[parts.length - 1];
+            System.arraycopy(parts, 1, fields, 0, fields.length);
+            invalidateLocal(parts[0], fields);
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        online = false;
+        Invalidator current = invalidator;
+        if (current != null && current.isSubscribed()) {
+            current.unsubscribe();
+        }
+        subscriber.interrupt();
+        clear();
+    }
+
+    /**
+     * 是否已订阅失效频道（未订阅时直接读redis）
+     *
+     * @return
+     */
+    public boolean isOnline() {
+        return online;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public long getRejections() {
+        return rejections.get();
+    }
+
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+
+    public synchronized long getWeight() {
+        return weight;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * 命中率
+     *
+     * @return
+     */
+    public double getHitRate() {
+        long hit = hits.get();
+        long total = hit + misses.get();
+        return total == 0 ? 0 : (double) hit / total;
+    }
+
+    @Override
+    public String toString() {
+        return "NearCache{size=" + size() + ", weight=" + getWeight() + "/" + maxWeight
+                + ", hits=" + getHits() + ", misses=" + getMisses() + ", evictions=" + getEvictions()
+                + ", rejections=" + getRejections() + ", invalidations=" + getInvalidations() + "}";
+    }
+
+    private static long weigh(Key cacheKey, String value) {
+        int chars = cacheKey.key.length() + (cacheKey.field == null ? 0 : cacheKey.field.length()) + value.length();
+        return ENTRY_OVERHEAD + 2L * chars;
+    }
+
+    private static final class Key {
+        final String key;
+        final String field;
+        private final int hash;
+
+        Key(String key, String field) {
+            this.key = key;
+            this.field = field;
+            this.hash = 31 * key.hashCode() + Objects.hashCode(field);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return key.equals(other.key) && Objects.equals(field, other.field);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class Entry {
+        final String value;
+        final long weight;
+        final long expireAt;
+
+        Entry(String value, long weight, long expireAt) {
+            this.value = value;
+            this.weight = weight;
+            this.expireAt = expireAt;
+        }
+    }
+
+    /**
+     * 4位计数的count-min草图，计数总量达到阈值后全部减半，使频率随时间衰减
+     */
+    private static final class FrequencySketch {
+        private static final int DEPTH = 4;
+        private static final int MAX_COUNT = 15;
+        private static final int[] SEEDS = {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+        private final byte[][] table;
+        private final int mask;
+        private final int resetAt;
+        private int additions;
+
+        FrequencySketch(int expectedEntries) {
+            int width = Integer.highestOneBit(Math.max(16, expectedEntries - 1) << 1);
+            this.table = new byte[DEPTH][width];
+            this.mask = width - 1;
+            this.resetAt = width * 10;
+        }
+
+        void increment(int hash) {
+            for (int i = 0; i < DEPTH; i++) {
+                int index = index(hash, i);
+                if (table[i][index] < MAX_COUNT) {
+                    table[i][index]++;
+                }
+            }
+            if (++additions >= resetAt) {
+                for (byte[] row : table) {
+                    for (int i = 0; i < row.length; i++) {
+                        row[i] >>= 1;
+                    }
+                }
+                additions /= 2;
+            }
+        }
+
+        int frequency(int hash) {
+            int min = MAX_COUNT;
+            for (int i = 0; i < DEPTH; i++) {
+                min = Math.min(min, table[i][index(hash, i)]);
+            }
+            return min;
+        }
+
+        private int index(int hash, int row) {
+            int h = hash * SEEDS[row];
+            h ^= h >>> 16;
+            return h & mask;
+        }
+    }
+}
@@ -1,10 +1,13 @@
 package com.redis.common;
 
+import com.redis.async.AsyncRedisConnection;
+import com.redis.server.EmbeddedRedisServer;
 import redis.clients.jedis.Jedis;
-import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.util.Pool;
 
-import java.util.Set;
+import java.io.IOException;
 
 /**
  * Created by kqyang on 2019/7/7.
@@ -15,17 +18,319 @@ public class RedisHandler extends Base {
     private static final int PORT = 6379;
     private static final int INDEX = 14;
     private static final int TIMEOUT = 2000;
-    private static JedisPool jedisPool = new JedisPool(new JedisPoolConfig(), LOCAL_HOST, PORT, TIMEOUT);
+    private static final ThreadLocal<RedisLease> LEASES = new ThreadLocal<>();
+    /**
+     * -Dredis.embedded=true 时改为连接进程内的 {@link EmbeddedRedisServer}
+     */
+    private static final String EMBEDDED_PROPERTY = "redis.embedded";
+    /**
+     * 当前连接的redis，由 {@link #newPool} 记录，供异步连接使用
+     */
+    private static volatile String currentHost;
+    private static volatile int currentPort;
+    private static volatile int currentDatabase;
+    private static volatile AsyncRedisConnection asyncConnection;
+    private static volatile Pool<Jedis> jedisPool = Boolean.getBoolean(EMBEDDED_PROPERTY)
+            ? embeddedPool() : newPool(LOCAL_HOST, PORT, INDEX);
+    /**
+     * -Dredis.nearcache=容量字节数 时启用近端缓存
+     */
+    private static final String NEAR_CACHE_PROPERTY = "redis.nearcache";
+    private static final long NEAR_CACHE_TTL_MILLIS = 30000;
+    private static volatile NearCache nearCache;
+    private static volatile ShardedRedis shards;
+
+    private static Pool<Jedis> newPool(String host, int port, int database) {
+        currentHost = host;
+        currentPort = port;
+        currentDatabase = database;
+        return createPool(host, port, database);
+    }
+
+    /**
+     * 创建带统计的连接池，不改变当前连接的redis（分片节点使用）
+     *
+     * @param host
+     * @param port
+     * @param database
+     * @return
+     */
+    static Pool<Jedis> createPool(String host, int port, int database) {
+        return new InstrumentedJedisPool(poolConfig(), host, port, TIMEOUT, PASSWORD.isEmpty() ? null : PASSWORD, database);
+    }
+
+    private static Pool<Jedis> embeddedPool() {
+        try {
+            EmbeddedRedisServer server = new EmbeddedRedisServer(0).start();
+            return newPool(LOCAL_HOST, server.getPort(), INDEX);
+        } catch (IOException e) {
+            throw new IllegalStateException("failed to start embedded redis", e);
+        }
+    }
+
+    /**
+     * 切换连接的redis，例如指向测试用的 {@link EmbeddedRedisServer}
+     * <p>
+     * 需在使用连接之前调用，已借出的连接仍归还旧连接池
+     *
+     * @param host
+     * @param port
+     * @param database
+     */
+    public static synchronized void connect(String host, int port, int database) {
+        Pool<Jedis> old = jedisPool;
+        jedisPool = newPool(host, port, database);
+        old.close();
+        if (asyncConnection != null) {
+            asyncConnection.close();
+            asyncConnection = null;
+        }
+    }
+
+    /**
+     * 共享的非阻塞连接，所有异步操作在同一条连接上多路复用
+     * <p>
+     * 连接断开后下次调用时重建。这条连接只连到默认节点，不按键路由，启用分片时拒绝使用，
+     * 否则异步接口写入的键（例如AsyncChapter01的文章）会落在同步接口读不到的节点上
+     *
+     * @return
+     * @throws IllegalStateException 已启用分片
+     */
+    public static AsyncRedisConnection async() {
+        if (shards != null) {
+            throw new IllegalStateException("async connection does not support sharding, use the synchronous API");
+        }
+        AsyncRedisConnection conn = asyncConnection;
+        if (conn != null && conn.isOpen()) {
+            return conn;
+        }
+        synchronized (RedisHandler.class) {
+            conn = asyncConnection;
+            if (conn == null || !conn.isOpen()) {
+                try {
+                    conn = new AsyncRedisConnection(currentHost, currentPort, PASSWORD.isEmpty() ? null : PASSWORD,
+                            currentDatabase, TIMEOUT);
+                } catch (IOException e) {
+                    throw new JedisConnectionException(e);
+                }
+                asyncConnection = conn;
+            }
+            return conn;
+        }
+    }
+
+    /**
+     * 连接池配置，连接数随cpu核数增长
+     *
+     * @return
+     */
+    private static JedisPoolConfig poolConfig() {
+        int size = Math.max(8, Runtime.getRuntime().availableProcessors() * 4);
+        JedisPoolConfig config = new JedisPoolConfig();
+        config.setMaxTotal(size);
+        config.setMaxIdle(size);
+        config.setMaxWaitMillis(TIMEOUT);
+        return config;
+    }
+
+    /**
+     * 租用当前线程的redis连接
+     * <p>
+     * 用法：try (RedisLease lease = lease()) { Jedis conn = lease.getConn(); ... }
+     * 同一线程内嵌套调用复用同一条连接，最外层关闭时归还连接池
+     *
+     * @return
+     */
+    public static RedisLease lease() {
+        RedisLease lease = LEASES.get();
+        if (lease != null) {
+            lease.retain();
+            return lease;
+        }
+        // 连接池已按INDEX建立连接，借出时无需再执行select
+        lease = new RedisLease(jedisPool.getResource());
+        LEASES.set(lease);
+        return lease;
+    }
+
+    /**
+     * 启用分片，之后 {@link #leaseFor(String...)} 按键路由到各节点，传入null恢复单节点
+     * <p>
+     * 只有通过leaseFor、{@link ShardedPipeline} 或 {@link #cachedHget(String, String)} 访问的键才会分片：
+     * 文章（Chapter01，应通过Chapter01.shardArticles启用以配置同址规则）、市场交易（Chapter04，
+     * 需把market:、users:、inventory: colocate到同一tag）、计数器（known:、count:*）、IP查询（ip2CityId:、cityId2City:）
+     * 与登录会话（login: 及其分桶，见LoginStore）。
+     * 其余仍使用 {@link #lease()} 的模块，例如检索索引、关注时间线与日志，继续读写默认节点；
+     * 异步连接（{@link #async()}）不支持分片，启用后调用会抛出异常。
+     *
+     * @param sharded
+     */
+    public static void useShards(ShardedRedis sharded) {
+        shards = sharded;
+    }
+
+    /**
+     * 当前的分片配置，未启用时返回null
+     *
+     * @return
+     */
+    public static ShardedRedis shards() {
+        return shards;
+    }
+
+    /**
+     * 租用keys所在节点的连接，多键操作需传入访问的全部键
+     * <p>
+     * 未启用分片时等同于 {@link #lease()}
+     *
+     * @param keys
+     * @return
+     */
+    public static RedisLease leaseFor(String... keys) {
+        ShardedRedis sharded = shards;
+        return sharded == null ? lease() : sharded.lease(keys);
+    }
+
+    /**
+     * 共享的自动合并流水线，首次使用时启动写线程
+     *
+     * @return
+     */
+    public static AutoPipeline autoPipeline() {
+        return AutoPipelineHolder.INSTANCE;
+    }
+
+    private static class AutoPipelineHolder {
+        private static final AutoPipeline INSTANCE = new AutoPipeline();
+    }
+
+    /**
+     * 共享的lua脚本注册表
+     *
+     * @return
+     */
+    public static ScriptRegistry scripts() {
+        return ScriptRegistryHolder.INSTANCE;
+    }
+
+    private static class ScriptRegistryHolder {
+        private static final ScriptRegistry INSTANCE = new ScriptRegistry();
+    }
+
+    static {
+        long nearCacheBytes = Long.getLong(NEAR_CACHE_PROPERTY, 0L);
+        if (nearCacheBytes > 0) {
+            enableNearCache(nearCacheBytes, NEAR_CACHE_TTL_MILLIS);
+        }
+    }
+
+    /**
+     * 启用近端缓存，之后 {@link #cachedGet(String)}、{@link #cachedHget(String, String)} 优先读本地
+     *
+     * @param maxWeight 容量上限（估算字节数）
+     * @param ttlMillis 条目存活时间，即未经失效通知的写入最长可见延迟
+     * @return
+     */
+    public static synchronized NearCache enableNearCache(long maxWeight, long ttlMillis) {
+        disableNearCache();
+        nearCache = new NearCache(maxWeight, ttlMillis);
+        return nearCache;
+    }
+
+    public static synchronized void disableNearCache() {
+        if (nearCache != null) {
+            nearCache.close();
+            nearCache = null;
+        }
+    }
+
+    /**
+     * 当前的近端缓存，未启用时返回null
+     *
+     * @return
+     */
+    public static NearCache nearCache() {
+        return nearCache;
+    }
+
+    /**
+     * 经近端缓存执行GET，未命中时按键路由读取（启用分片时为键所在节点）
+     *
+     * @param key
+     * @return
+     */
+    protected static String cachedGet(String key) {
+        NearCache cache = nearCache;
+        if (cache == null) {
+            try (RedisLease lease = leaseFor(key)) {
+                return lease.getConn().get(key);
+            }
+        }
+        return cache.get(key, null, () -> {
+            try (RedisLease lease = leaseFor(key)) {
+                return lease.getConn().get(key);
+            }
+        });
+    }
+
+    /**
+     * 经近端缓存执行HGET，未命中时按键路由读取（启用分片时为键所在节点）
+     *
+     * @param key
+     * @param field
+     * @return
+     */
+    protected static String cachedHget(String key, String field) {
+        NearCache cache = nearCache;
+        if (cache == null) {
+            try (RedisLease lease = leaseFor(key)) {
+                return lease.getConn().hget(key, field);
+            }
+        }
+        return cache.get(key, field, () -> {
+            try (RedisLease lease = leaseFor(key)) {
+                return lease.getConn().hget(key, field);
+            }
+        });
+    }
+
+    /**
+     * 修改了可能被近端缓存的键后调用，通知所有进程删除本地条目
+     *
+     * @param key
+     * @param fields 散列字段，为空时失效整个键
+     */
+    public static void invalidate(String key, String... fields) {
+        NearCache cache = nearCache;
+        if (cache != null) {
+            cache.invalidateLocal(key, fields);
+        }
+        // 其他进程可能启用了近端缓存，本地未启用也要发布
+        try (RedisLease lease = lease()) {
+            lease.getConn().publish(NearCache.INVALIDATION_CHANNEL, NearCache.message(key, fields));
+        }
+    }
+
+    /**
+     * 解除线程与租约的绑定
+     *
+     * @param lease
+     */
+    static void release(RedisLease lease) {
+        if (LEASES.get() == lease) {
+            LEASES.remove();
+        }
+    }
 
     /**
      * 获取redis客户端链接
      *
      * @return
+     * @deprecated 调用方需自行归还连接，请使用 {@link #lease()}
      */
+    @Deprecated
     protected static Jedis getConn() {
-        Jedis conn = jedisPool.getResource();
-        conn.select(INDEX);
-        return conn;
+        return jedisPool.getResource();
     }
 
     /**
@@ -48,12 +353,13 @@ public class RedisHandler extends Base {
 
     /**
      * 清空库
+     * <p>
+     * 用SCAN分页遍历并分批UNLINK，不会阻塞服务端
      */
     protected void clearKeys() {
-        Set<String> keys = getConn().keys("*");
-        if (keys != null && keys.size() > 0) {
-            getConn().del(keys.toArray(new String[keys.size()]));
+        long deleted = new KeyPurger(null).purge();
+        if (deleted > 0) {
             printer("already clear");
         }
     }
-}
\ No newline at end of file
+}
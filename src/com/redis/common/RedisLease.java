@@ -0,0 +1,53 @@
+package com.redis.common;
+
+import redis.clients.jedis.Jedis;
+
+/**
+ * redis连接租约
+ * <p>
+ * 通过 {@link RedisHandler#lease()} 获取，配合 try-with-resources 使用。同一线程内嵌套获取的租约共享同一条连接
+ * （线程亲和），最外层租约关闭时连接才会归还连接池，因此每个线程（包括虚拟线程）在一次操作内只占用一条连接，
+ * 不同线程之间互不共享 socket。
+ *
+ * @author kqyang
+ */
+public final class RedisLease implements AutoCloseable {
+    private final Jedis conn;
+    private final Thread owner;
+    private int depth = 1;
+
+    RedisLease(Jedis conn) {
+        this.conn = conn;
+        this.owner = Thread.currentThread();
+    }
+
+    /**
+     * 获取租约持有的连接
+     *
+     * @return
+     */
+    public Jedis getConn() {
+        return conn;
+    }
+
+    /**
+     * 嵌套获取时增加引用
+     */
+    void retain() {
+        depth++;
+    }
+
+    /**
+     * 释放租约，最外层释放时归还连接
+     */
+    @Override
+    public void close() {
+        if (Thread.currentThread() != owner) {
+            throw new IllegalStateException("lease must be closed by the thread that acquired it");
+        }
+        if (--depth == 0) {
+            RedisHandler.release(this);
+            conn.close();
+        }
+    }
+}
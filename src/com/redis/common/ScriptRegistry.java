@@ -0,0 +1,198 @@
+package com.redis.common;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.MultiKeyPipelineBase;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.util.SafeEncoder;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * lua脚本注册表
+ * <p>
+ * 脚本在本地计算SHA1，调用时只发送EVALSHA；服务端返回NOSCRIPT（首次调用、重启或SCRIPT FLUSH之后）时
+ * 先SCRIPT LOAD再重试一次，之后同一脚本不再传输脚本正文。
+ * 通过 {@link RedisHandler#scripts()} 获取共享实例。
+ *
+ * @author kqyang
+ */
+public class ScriptRegistry {
+    private static final String NOSCRIPT = "NOSCRIPT";
+    private static final String UNKNOWN_COMMAND = "unknown command";
+
+    private final Map<String, Script> scripts = new ConcurrentHashMap<>();
+    private final AtomicLong loads = new AtomicLong();
+
+    /**
+     * 注册脚本，同名脚本重复注册时返回已有的实例
+     *
+     * @param name
+     * @param source lua源码
+     * @return
+     */
+    public Script register(String name, String source) {
+        return scripts.computeIfAbsent(name, k -> new Script(name, source));
+    }
+
+    public Script get(String name) {
+        return scripts.get(name);
+    }
+
+    public Collection<Script> getScripts() {
+        return Collections.unmodifiableCollection(scripts.values());
+    }
+
+    /**
+     * 预先加载所有脚本，避免首次调用时的NOSCRIPT往返
+     *
+     * @param conn
+     */
+    public void preload(Jedis conn) {
+        for (Script script : scripts.values()) {
+            script.load(conn);
+        }
+    }
+
+    /**
+     * 执行SCRIPT LOAD的次数（NOSCRIPT后的重新加载与显式加载）
+     *
+     * @return
+     */
+    public long getLoads() {
+        return loads.get();
+    }
+
+    /**
+     * 多键脚本是否可以执行：调用方尚未回退，且未启用分片（分片时脚本访问的键可能不在同一节点）
+     *
+     * @param enabled 调用方的脚本开关，{@link #isUnsupported(JedisDataException)} 后置为false
+     * @return
+     */
+    public static boolean usable(boolean enabled) {
+        return enabled && RedisHandler.shards() == null;
+    }
+
+    /**
+     * 服务端是否不支持脚本（例如 EmbeddedRedisServer 对EVALSHA返回unknown command）
+     * <p>
+     * 返回true时调用方应关闭脚本开关，之后改用WATCH事务或流水线；其他错误应原样抛出
+     *
+     * @param e 执行脚本时的错误
+     * @return
+     */
+    public static boolean isUnsupported(JedisDataException e) {
+        return e.getMessage() != null && e.getMessage().contains(UNKNOWN_COMMAND);
+    }
+
+    /**
+     * 已注册的脚本
+     */
+    public final class Script {
+        private final String name;
+        private final String source;
+        private final String sha;
+        private final AtomicLong calls = new AtomicLong();
+
+        private Script(String name, String source) {
+            this.name = name;
+            this.source = source;
+            this.sha = sha1(source);
+        }
+
+        /**
+         * 执行脚本
+         *
+         * @param conn
+         * @param keys 脚本访问的键，保证可按键路由
+         * @param args
+         * @return
+         */
+        public Object eval(Jedis conn, List<String> keys, List<String> args) {
+            calls.incrementAndGet();
+            try {
+                return conn.evalsha(sha, keys, args);
+            } catch (JedisDataException e) {
+                if (e.getMessage() == null || !e.getMessage().startsWith(NOSCRIPT)) {
+                    throw e;
+                }
+            }
+            load(conn);
+            return conn.evalsha(sha, keys, args);
+        }
+
+        /**
+         * 在流水线或事务中执行脚本，调用前需先 {@link #load(Jedis)}
+         * <p>
+         * String版本的evalsha按字符串解析回复，整数回复需用二进制版本，回复原样返回。
+         *
+         * @param pipe
+         * @param keys
+         * @param args
+         * @return
+         */
+        public Response<Object> evalsha(MultiKeyPipelineBase pipe, List<String> keys, List<String> args) {
+            calls.incrementAndGet();
+            return pipe.evalsha(SafeEncoder.encode(sha), encode(keys), encode(args));
+        }
+
+        /**
+         * 加载脚本，流水线中使用EVALSHA前调用，保证不会出现NOSCRIPT
+         *
+         * @param conn
+         */
+        public void load(Jedis conn) {
+            String loaded = conn.scriptLoad(source);
+            loads.incrementAndGet();
+            if (!sha.equals(loaded)) {
+                throw new IllegalStateException("script " + name + " loaded with unexpected sha " + loaded);
+            }
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getSource() {
+            return source;
+        }
+
+        public String getSha() {
+            return sha;
+        }
+
+        public long getCalls() {
+            return calls.get();
+        }
+    }
+
+    private static List<byte[]> encode(List<String> values) {
+        List<byte[]> encoded = new ArrayList<>(values.size());
+        for (String value : values) {
+            encoded.add(SafeEncoder.encode(value));
+        }
+        return encoded;
+    }
+
+    private static String sha1(String source) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(source.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
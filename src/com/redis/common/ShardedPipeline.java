@@ -0,0 +1,79 @@
+package com.redis.common;
+
+import redis.clients.jedis.Pipeline;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 按节点分组的流水线
+ * <p>
+ * {@link #of(String)} 返回键所在节点的流水线，{@link #sync()} 依次同步各节点，往返次数等于涉及的节点数；
+ * 未启用分片时所有键共用 {@link RedisHandler#lease()} 的一条流水线。
+ * 不参与分片的数据（检索索引、时间线等）通过 {@link #local()} 写入默认节点。
+ * 用法：try (ShardedPipeline pipes = new ShardedPipeline()) { pipes.of(key).incr(key); pipes.sync(); }
+ *
+ * @author kqyang
+ */
+public class ShardedPipeline implements AutoCloseable {
+    private static final String LOCAL = "";
+
+    private final ShardedRedis sharded = RedisHandler.shards();
+    private final Map<String, RedisLease> leases = new LinkedHashMap<>();
+    private final Map<String, Pipeline> pipes = new LinkedHashMap<>();
+
+    /**
+     * 键所在节点的流水线
+     *
+     * @param key
+     * @return
+     */
+    public Pipeline of(String key) {
+        if (sharded == null) {
+            return local();
+        }
+        String shard = sharded.shardFor(key);
+        Pipeline pipe = pipes.get(shard);
+        if (pipe == null) {
+            RedisLease lease = sharded.lease(key);
+            leases.put(shard, lease);
+            pipe = lease.getConn().pipelined();
+            pipes.put(shard, pipe);
+        }
+        return pipe;
+    }
+
+    /**
+     * 默认节点的流水线
+     *
+     * @return
+     */
+    public Pipeline local() {
+        Pipeline pipe = pipes.get(LOCAL);
+        if (pipe == null) {
+            RedisLease lease = RedisHandler.lease();
+            leases.put(LOCAL, lease);
+            pipe = lease.getConn().pipelined();
+            pipes.put(LOCAL, pipe);
+        }
+        return pipe;
+    }
+
+    /**
+     * 同步各节点的流水线，之后可以继续使用
+     */
+    public void sync() {
+        for (Pipeline pipe : pipes.values()) {
+            pipe.sync();
+        }
+    }
+
+    @Override
+    public void close() {
+        for (RedisLease lease : leases.values()) {
+            lease.close();
+        }
+        leases.clear();
+        pipes.clear();
+    }
+}
@@ -0,0 +1,447 @@
+package com.redis.common;
+
+import com.redis.server.EmbeddedRedisServer;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+import redis.clients.jedis.Transaction;
+import redis.clients.jedis.Tuple;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.util.Hashing;
+import redis.clients.util.Pool;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * 一致性哈希分片
+ * <p>
+ * 每个节点在环上放置若干虚拟节点，键按哈希值顺时针落到第一个虚拟节点所属的节点，
+ * 增删节点时只有相邻区间的键需要迁移。
+ * <p>
+ * 多键操作（事务、ZINTERSTORE、脚本）要求所有键位于同一节点：
+ * <ul>
+ * <li>键名中含 {tag} 时只对tag计算哈希，与redis cluster的hash tag规则相同，例如 {market}:users:17</li>
+ * <li>已有的键名可以通过 {@link #colocate(String, String...)} 按前缀归入同一个tag，不必改名</li>
+ * <li>按实体分布的键可以通过 {@link #colocateBySuffix(String...)} 只对前缀之后的名字计算哈希，
+ * 例如 score:17 与 voted:17 同在文章17所在的节点</li>
+ * </ul>
+ * 通过 {@link RedisHandler#useShards(ShardedRedis)} 启用后，{@link RedisHandler#leaseFor(String...)} 按键路由。
+ *
+ * @author kqyang
+ */
+public class ShardedRedis implements AutoCloseable {
+    private static final int DEFAULT_VIRTUAL_NODES = 160;
+    private static final int SCAN_COUNT = 1000;
+    private static final int DELETE_BATCH = 100;
+
+    private final int virtualNodes;
+    private final Map<String, String> prefixTags = new LinkedHashMap<>();
+    /**
+     * 按名字路由的前缀，长的在前
+     */
+    private final TreeMap<String, Boolean> suffixPrefixes = new TreeMap<>(Collections.reverseOrder());
+    private final List<EmbeddedRedisServer> servers = new CopyOnWriteArrayList<>();
+    private volatile Ring ring = new Ring(Collections.emptyMap(), DEFAULT_VIRTUAL_NODES);
+
+    public ShardedRedis() {
+        this(DEFAULT_VIRTUAL_NODES);
+    }
+
+    /**
+     * @param virtualNodes 每个节点的虚拟节点数，越多分布越均匀
+     */
+    public ShardedRedis(int virtualNodes) {
+        if (virtualNodes <= 0) {
+            throw new IllegalArgumentException("virtualNodes must be positive");
+        }
+        this.virtualNodes = virtualNodes;
+    }
+
+    /**
+     * 启动count个进程内redis作为节点，用于测试与基准
+     *
+     * @param count
+     * @return
+     */
+    public static ShardedRedis embedded(int count) {
+        ShardedRedis sharded = new ShardedRedis();
+        for (int i = 0; i < count; i++) {
+            sharded.addShard("shard-" + i, sharded.startEmbedded(), false);
+        }
+        return sharded;
+    }
+
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        try (ShardedRedis sharded = embedded(count)) {
+            Map<String, Integer> before = new TreeMap<>();
+            for (int i = 0; i < 10000; i++) {
+                String key = "user:" + i;
+                try (RedisLease lease = sharded.lease(key)) {
+                    lease.getConn().set(key, String.valueOf(i));
+                }
+                before.merge(sharded.shardFor(key), 1, Integer::sum);
+            }
+            System.out.println("distribution: " + before);
+            long moved = sharded.addShard("shard-" + count, sharded.startEmbedded(), true);
+            System.out.println("added shard-" + count + ", moved " + moved + " keys");
+            System.out.println("distribution: " + sharded.distribution());
+        }
+    }
+
+    /**
+     * 把以prefixes开头的键归入同一个hash tag，例如
+     * colocate("market", "market:", "users:", "inventory:") 使市场交易涉及的键都在同一节点
+     * <p>
+     * 需在写入数据之前配置，之后修改会使已有的键无法找到
+     *
+     * @param tag
+     * @param prefixes
+     * @return
+     */
+    public synchronized ShardedRedis colocate(String tag, String... prefixes) {
+        for (String prefix : prefixes) {
+            prefixTags.put(prefix, tag);
+        }
+        return this;
+    }
+
+    /**
+     * 以prefixes开头的键只对前缀之后、下一个冒号之前的名字计算哈希，
+     * 例如 colocateBySuffix("score:", "voted:") 使 score:17 与 voted:17 位于同一节点；
+     * 多个前缀同时匹配时取最长的，名字为空时按整个键计算
+     * <p>
+     * 需在写入数据之前配置，之后修改会使已有的键无法找到
+     *
+     * @param prefixes
+     * @return
+     */
+    public synchronized ShardedRedis colocateBySuffix(String... prefixes) {
+        for (String prefix : prefixes) {
+            suffixPrefixes.put(prefix, Boolean.TRUE);
+        }
+        return this;
+    }
+
+    /**
+     * 添加节点，不迁移数据（初始化时使用）
+     *
+     * @param name 节点名，决定虚拟节点在环上的位置，同一节点重启后应保持不变
+     * @param host
+     * @param port
+     * @param database
+     * @return
+     */
+    public ShardedRedis addShard(String name, String host, int port, int database) {
+        addShard(name, RedisHandler.createPool(host, port, database), false);
+        return this;
+    }
+
+    /**
+     * 添加节点
+     *
+     * @param name
+     * @param pool
+     * @param rebalance 是否把新环上属于该节点的键从原节点迁移过来，迁移期间写入这些键的修改可能丢失
+     * @return 迁移的键数
+     */
+    public synchronized long addShard(String name, Pool<Jedis> pool, boolean rebalance) {
+        Ring current = ring;
+        if (current.shards.containsKey(name)) {
+            throw new IllegalArgumentException("shard " + name + " already exists");
+        }
+        Map<String, Pool<Jedis>> shards = new LinkedHashMap<>(current.shards);
+        shards.put(name, pool);
+        Ring next = new Ring(shards, virtualNodes);
+        return rebalance ? migrate(current, next) : switchTo(next);
+    }
+
+    /**
+     * 移除节点，先把它的键迁移到环上的后继节点，迁移期间写入这些键的修改可能丢失
+     *
+     * @param name
+     * @return 迁移的键数
+     */
+    public synchronized long removeShard(String name) {
+        Ring current = ring;
+        Pool<Jedis> pool = current.shards.get(name);
+        if (pool == null) {
+            throw new IllegalArgumentException("unknown shard " + name);
+        }
+        if (current.shards.size() == 1) {
+            throw new IllegalStateException("cannot remove the last shard");
+        }
+        Map<String, Pool<Jedis>> shards = new LinkedHashMap<>(current.shards);
+        shards.remove(name);
+        long moved = migrate(current, new Ring(shards, virtualNodes));
+        pool.close();
+        return moved;
+    }
+
+    /**
+     * 键所在的节点名
+     *
+     * @param key
+     * @return
+     */
+    public String shardFor(String key) {
+        return ring.shardFor(routingKey(key));
+    }
+
+    public Collection<String> getShards() {
+        return Collections.unmodifiableSet(ring.shards.keySet());
+    }
+
+    /**
+     * 租用keys所在节点的连接
+     * <p>
+     * 分片租约不与线程绑定，嵌套调用会借出新的连接
+     *
+     * @param keys 本次操作访问的全部键，必须位于同一节点
+     * @return
+     * @throws JedisDataException 键分布在不同节点（CROSSSLOT）
+     */
+    public RedisLease lease(String... keys) {
+        if (keys.length == 0) {
+            throw new IllegalArgumentException("at least one key is required");
+        }
+        Ring current = ring;
+        String shard = current.shardFor(routingKey(keys[0]));
+        for (int i = 1; i < keys.length; i++) {
+            String other = current.shardFor(routingKey(keys[i]));
+            if (!shard.equals(other)) {
+                throw new JedisDataException("CROSSSLOT keys " + keys[0] + " (" + shard + ") and "
+                        + keys[i] + " (" + other + ") are on different shards");
+            }
+        }
+        return new RedisLease(current.shards.get(shard).getResource());
+    }
+
+    /**
+     * 租用指定节点的连接，用于逐个节点遍历（例如 {@link KeyPurger}）
+     *
+     * @param name {@link #getShards()} 中的节点名
+     * @return
+     */
+    public RedisLease leaseShard(String name) {
+        Pool<Jedis> pool = ring.shards.get(name);
+        if (pool == null) {
+            throw new IllegalArgumentException("unknown shard " + name);
+        }
+        return new RedisLease(pool.getResource());
+    }
+
+    /**
+     * 各节点的键数
+     *
+     * @return
+     */
+    public Map<String, Long> distribution() {
+        Map<String, Long> sizes = new TreeMap<>();
+        for (Map.Entry<String, Pool<Jedis>> shard : ring.shards.entrySet()) {
+            try (Jedis conn = shard.getValue().getResource()) {
+                sizes.put(shard.getKey(), conn.dbSize());
+            }
+        }
+        return sizes;
+    }
+
+    @Override
+    public synchronized void close() {
+        for (Pool<Jedis> pool : ring.shards.values()) {
+            pool.close();
+        }
+        ring = new Ring(Collections.emptyMap(), virtualNodes);
+        for (EmbeddedRedisServer server : servers) {
+            server.close();
+        }
+        servers.clear();
+    }
+
+    /**
+     * 计算哈希用的部分：{tag}中的tag、按前缀配置的tag、前缀之后的名字或整个键
+     */
+    String routingKey(String key) {
+        int open = key.indexOf('{');
+        if (open >= 0) {
+            int close = key.indexOf('}', open + 1);
+            if (close > open + 1) {
+                return key.substring(open + 1, close);
+            }
+        }
+        if (!prefixTags.isEmpty() || !suffixPrefixes.isEmpty()) {
+            synchronized (this) {
+                for (Map.Entry<String, String> entry : prefixTags.entrySet()) {
+                    if (key.startsWith(entry.getKey())) {
+                        return entry.getValue();
+                    }
+                }
+                // 逆序遍历时较长的前缀排在它的前缀之前
+                for (String prefix : suffixPrefixes.keySet()) {
+                    if (key.startsWith(prefix) && key.length() > prefix.length()) {
+                        int end = key.indexOf(':', prefix.length());
+                        return key.substring(prefix.length(), end < 0 ? key.length() : end);
+                    }
+                }
+            }
+        }
+        return key;
+    }
+
+    private Pool<Jedis> startEmbedded() {
+        try {
+            EmbeddedRedisServer server = new EmbeddedRedisServer(0).start();
+            servers.add(server);
+            return RedisHandler.createPool("127.0.0.1", server.getPort(), 0);
+        } catch (IOException e) {
+            throw new IllegalStateException("failed to start embedded redis", e);
+        }
+    }
+
+    private long switchTo(Ring next) {
+        ring = next;
+        return 0;
+    }
+
+    /**
+     * 迁移归属发生变化的键
+     * <p>
+     * 先把键逐个复制到新节点（此时仍按旧环读写），再切换到新环，最后删除旧节点上的副本。
+     * 没有双读窗口：切换前只读旧节点，切换后只读新节点。某个键复制之后、切换之前写入旧节点的修改
+     * 不会带到新节点，切换后即丢失；切换后到旧副本删除前，仍按旧环路由的调用方（切换前取得的连接）
+     * 读到的是旧副本。因此应在停写或写入很少时执行，迁移键数越多，这个窗口越长。
+     */
+    private long migrate(Ring current, Ring next) {
+        Map<String, List<String>> moved = new HashMap<>();
+        for (Map.Entry<String, Pool<Jedis>> source : current.shards.entrySet()) {
+            List<String> keys = new ArrayList<>();
+            ScanParams params = new ScanParams().count(SCAN_COUNT);
+            String cursor = ScanParams.SCAN_POINTER_START;
+            try (Jedis from = source.getValue().getResource()) {
+                do {
+                    ScanResult<String> page = from.scan(cursor, params);
+                    cursor = page.getStringCursor();
+                    for (String key : page.getResult()) {
+                        String target = next.shardFor(routingKey(key));
+                        if (!target.equals(source.getKey())) {
+                            try (Jedis to = next.shards.get(target).getResource()) {
+                                if (copy(from, to, key)) {
+                                    keys.add(key);
+                                }
+                            }
+                        }
+                    }
+                } while (!ScanParams.SCAN_POINTER_START.equals(cursor));
+            }
+            moved.put(source.getKey(), keys);
+        }
+        ring = next;
+        long count = 0;
+        for (Map.Entry<String, List<String>> entry : moved.entrySet()) {
+            List<String> keys = entry.getValue();
+            count += keys.size();
+            try (Jedis from = current.shards.get(entry.getKey()).getResource()) {
+                for (int i = 0; i < keys.size(); i += DELETE_BATCH) {
+                    List<String> batch = keys.subList(i, Math.min(keys.size(), i + DELETE_BATCH));
+                    from.del(batch.toArray(new String[batch.size()]));
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 按类型复制一个键及其过期时间，键在读取前已过期时返回false
+     */
+    private static boolean copy(Jedis from, Jedis to, String key) {
+        String type = from.type(key);
+        Long pttl = from.pttl(key);
+        Transaction trans = to.multi();
+        trans.del(key);
+        switch (type) {
+            case "string":
+                byte[] name = key.getBytes(StandardCharsets.UTF_8);
+                byte[] value = from.get(name);
+                if (value == null) {
+                    trans.discard();
+                    return false;
+                }
+                trans.set(name, value);
+                break;
+            case "list":
+                List<String> items = from.lrange(key, 0, -1);
+                if (!items.isEmpty()) {
+                    trans.rpush(key, items.toArray(new String[items.size()]));
+                }
+                break;
+            case "set":
+                Set<String> members = from.smembers(key);
+                if (!members.isEmpty()) {
+                    trans.sadd(key, members.toArray(new String[members.size()]));
+                }
+                break;
+            case "zset":
+                Map<String, Double> scores = new HashMap<>();
+                for (Tuple tuple : from.zrangeWithScores(key, 0, -1)) {
+                    scores.put(tuple.getElement(), tuple.getScore());
+                }
+                if (!scores.isEmpty()) {
+                    trans.zadd(key, scores);
+                }
+                break;
+            case "hash":
+                Map<String, String> hash = from.hgetAll(key);
+                if (!hash.isEmpty()) {
+                    trans.hmset(key, hash);
+                }
+                break;
+            case "none":
+                trans.discard();
+                return false;
+            default:
+                trans.discard();
+                throw new IllegalStateException("cannot migrate " + type + " key " + key);
+        }
+        if (pttl != null && pttl > 0) {
+            trans.pexpire(key, pttl);
+        }
+        trans.exec();
+        return true;
+    }
+
+    /**
+     * 不可变的哈希环，增删节点时整体替换
+     */
+    private static final class Ring {
+        private final Map<String, Pool<Jedis>> shards;
+        private final TreeMap<Long, String> points = new TreeMap<>();
+
+        Ring(Map<String, Pool<Jedis>> shards, int virtualNodes) {
+            this.shards = Collections.unmodifiableMap(new LinkedHashMap<>(shards));
+            for (String name : shards.keySet()) {
+                for (int i = 0; i < virtualNodes; i++) {
+                    points.put(Hashing.MURMUR_HASH.hash(name + "#" + i), name);
+                }
+            }
+        }
+
+        String shardFor(String routingKey) {
+            if (points.isEmpty()) {
+                throw new IllegalStateException("no shards configured");
+            }
+            Map.Entry<Long, String> point = points.ceilingEntry(Hashing.MURMUR_HASH.hash(routingKey));
+            return point != null ? point.getValue() : points.firstEntry().getValue();
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.redis.common;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 事务执行统计
+ * <p>
+ * 按操作名记录：提交成功、WATCH冲突后的重试、超时放弃、以及条件不满足的拒绝次数，
+ * 用于对比 WATCH/MULTI/EXEC 乐观重试与脚本两种实现在竞争下的表现。
+ *
+ * @author kqyang
+ */
+public final class TransactionStats {
+    private static final Map<String, TransactionStats> STATS = new ConcurrentHashMap<>();
+
+    private final String name;
+    private final AtomicLong commits = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong aborts = new AtomicLong();
+    private final AtomicLong rejects = new AtomicLong();
+
+    private TransactionStats(String name) {
+        this.name = name;
+    }
+
+    /**
+     * 获取操作的统计
+     *
+     * @param name
+     * @return
+     */
+    public static TransactionStats of(String name) {
+        return STATS.computeIfAbsent(name, TransactionStats::new);
+    }
+
+    /**
+     * 所有操作的统计，按名称排序
+     *
+     * @return
+     */
+    public static Map<String, TransactionStats> all() {
+        return Collections.unmodifiableMap(new TreeMap<>(STATS));
+    }
+
+    public void commit() {
+        commits.incrementAndGet();
+    }
+
+    /**
+     * EXEC因WATCH的键被修改返回null
+     */
+    public void retry() {
+        retries.incrementAndGet();
+    }
+
+    /**
+     * 超时仍未提交
+     */
+    public void abort() {
+        aborts.incrementAndGet();
+    }
+
+    /**
+     * 前置条件不满足（例如库存中没有该商品）
+     */
+    public void reject() {
+        rejects.incrementAndGet();
+    }
+
+    public void reset() {
+        commits.set(0);
+        retries.set(0);
+        aborts.set(0);
+        rejects.set(0);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getCommits() {
+        return commits.get();
+    }
+
+    public long getRetries() {
+        return retries.get();
+    }
+
+    public long getAborts() {
+        return aborts.get();
+    }
+
+    public long getRejects() {
+        return rejects.get();
+    }
+
+    @Override
+    public String toString() {
+        return name + "{commits=" + getCommits() + ", retries=" + getRetries()
+                + ", aborts=" + getAborts() + ", rejects=" + getRejects() + "}";
+    }
+}
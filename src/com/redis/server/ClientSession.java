@@ -0,0 +1,105 @@
+package com.redis.server;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 客户端连接及其状态（当前库、事务队列、WATCH的键、订阅的频道）
+ *
+ * @author kqyang
+ */
+public class ClientSession implements Runnable {
+    private final EmbeddedRedisServer server;
+    private final Socket socket;
+    final RespReader reader;
+    final RespWriter writer;
+
+    int db;
+    boolean multi;
+    boolean multiError;
+    final List<List<String>> queued = new ArrayList<>();
+    final Map<Integer, Set<String>> watched = new HashMap<>();
+    final Set<String> channels = new LinkedHashSet<>();
+    final Set<String> patterns = new LinkedHashSet<>();
+    boolean closing;
+    private boolean dirty;
+
+    ClientSession(EmbeddedRedisServer server, Socket socket) throws IOException {
+        this.server = server;
+        this.socket = socket;
+        this.reader = new RespReader(socket.getInputStream());
+        this.writer = new RespWriter(socket.getOutputStream());
+    }
+
+    @Override
+    public void run() {
+        try {
+            List<String> command;
+            while (!closing && (command = reader.readCommand()) != null) {
+                if (command.isEmpty()) {
+                    continue;
+                }
+                server.executor().execute(this, command);
+                // 流水线请求还没读完时先不刷新，攒到一起写回
+                if (closing || !reader.hasBuffered()) {
+                    synchronized (writer) {
+                        writer.flush();
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // 连接断开
+        } finally {
+            server.disconnect(this);
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * WATCH的键被修改
+     */
+    void markDirty() {
+        dirty = true;
+    }
+
+    boolean isDirty() {
+        return dirty;
+    }
+
+    /**
+     * 清除WATCH状态，需在服务端锁内调用
+     */
+    void unwatchAll() {
+        for (Map.Entry<Integer, Set<String>> entry : watched.entrySet()) {
+            Database database = server.database(entry.getKey());
+            for (String key : entry.getValue()) {
+                database.unwatch(key, this);
+            }
+        }
+        watched.clear();
+        dirty = false;
+    }
+
+    boolean isSubscribed() {
+        return !channels.isEmpty() || !patterns.isEmpty();
+    }
+
+    void close() {
+        closing = true;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package com.redis.server;
+
+/**
+ * 命令执行错误，消息即返回给客户端的错误回复（不含前缀'-'）
+ *
+ * @author kqyang
+ */
+public class CommandException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public static final String WRONG_TYPE = "WRONGTYPE Operation against a key holding the wrong kind of value";
+    public static final String NOT_INTEGER = "ERR value is not an integer or out of range";
+    public static final String NOT_FLOAT = "ERR value is not a valid float";
+    public static final String SYNTAX = "ERR syntax error";
+
+    public CommandException(String message) {
+        super(message);
+    }
+
+    /**
+     * 参数个数错误
+     *
+     * @param command
+     * @return
+     */
+    public static CommandException wrongArity(String command) {
+        return new CommandException("ERR wrong number of arguments for '" + command.toLowerCase() + "' command");
+    }
+}
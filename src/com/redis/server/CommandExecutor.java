@@ -0,0 +1,1779 @@
+package com.redis.server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.regex.Pattern;
+
+/**
+ * 命令分发与执行
+ * <p>
+ * 每条命令在服务端全局锁内执行：先完成全部参数校验和计算，再写回复，
+ * 因此出错时不会留下半条回复，EXEC 也可以直接把各条命令的回复依次写入数组。
+ *
+ * @author kqyang
+ */
+public class CommandExecutor {
+    private static final Set<String> SUBSCRIBE_MODE_COMMANDS = new HashSet<>(Arrays.asList(
+            "SUBSCRIBE", "UNSUBSCRIBE", "PSUBSCRIBE", "PUNSUBSCRIBE", "PING", "QUIT"));
+    private static final Set<String> TRANSACTION_CONTROL = new HashSet<>(Arrays.asList(
+            "MULTI", "EXEC", "DISCARD", "WATCH"));
+
+    private final EmbeddedRedisServer server;
+
+    CommandExecutor(EmbeddedRedisServer server) {
+        this.server = server;
+    }
+
+    /**
+     * 执行一条命令并写回复
+     *
+     * @param session
+     * @param args
+     */
+    void execute(ClientSession session, List<String> args) throws IOException {
+        String name = args.get(0).toUpperCase();
+        synchronized (server.lock) {
+            synchronized (session.writer) {
+                RespWriter out = session.writer;
+                try {
+                    if (session.isSubscribed() && !SUBSCRIBE_MODE_COMMANDS.contains(name)) {
+                        throw new CommandException("ERR only (P)SUBSCRIBE / (P)UNSUBSCRIBE / PING / QUIT allowed in this context");
+                    }
+                    if (session.multi && !TRANSACTION_CONTROL.contains(name)) {
+                        if (!isKnown(name)) {
+                            session.multiError = true;
+                            throw new CommandException("ERR unknown command '" + args.get(0) + "'");
+                        }
+                        session.queued.add(args);
+                        out.status("QUEUED");
+                        return;
+                    }
+                    dispatch(session, name, args, out);
+                } catch (CommandException e) {
+                    out.error(e.getMessage());
+                }
+            }
+        }
+    }
+
+    private boolean isKnown(String name) {
+        switch (name) {
+            case "EVAL":
+            case "EVALSHA":
+            case "SCRIPT":
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    private void dispatch(ClientSession session, String name, List<String> args, RespWriter out) throws IOException {
+        Database db = server.database(session.db);
+        switch (name) {
+            // ---------------- 连接与服务端 ----------------
+            case "PING":
+                if (args.size() > 1) {
+                    out.bulk(args.get(1));
+                } else {
+                    out.status("PONG");
+                }
+                return;
+            case "ECHO":
+                arity(args, 2);
+                out.bulk(args.get(1));
+                return;
+            case "QUIT":
+                out.status("OK");
+                session.closing = true;
+                return;
+            case "AUTH":
+            case "CLIENT":
+            case "CONFIG":
+                out.status("OK");
+                return;
+            case "SELECT":
+                arity(args, 2);
+                int index = (int) Values.parseLong(args.get(1));
+                server.database(index);
+                session.db = index;
+                out.status("OK");
+                return;
+            case "DBSIZE":
+                out.integer(db.size());
+                return;
+            case "FLUSHDB":
+                db.clear();
+                out.status("OK");
+                return;
+            case "FLUSHALL":
+                for (int i = 0; i < server.databaseCount(); i++) {
+                    server.database(i).clear();
+                }
+                out.status("OK");
+                return;
+            case "TIME": {
+                long micros = System.currentTimeMillis() * 1000;
+                out.array(Arrays.asList(String.valueOf(micros / 1000000), String.valueOf(micros % 1000000)));
+                return;
+            }
+            case "INFO":
+                out.bulk(info());
+                return;
+
+            // ---------------- 键 ----------------
+            case "DEL":
+            case "UNLINK": {
+                minArity(args, 2);
+                long removed = 0;
+                for (int i = 1; i < args.size(); i++) {
+                    if (db.remove(args.get(i))) {
+                        removed++;
+                    }
+                }
+                out.integer(removed);
+                return;
+            }
+            case "EXISTS": {
+                minArity(args, 2);
+                long count = 0;
+                for (int i = 1; i < args.size(); i++) {
+                    if (db.exists(args.get(i))) {
+                        count++;
+                    }
+                }
+                out.integer(count);
+                return;
+            }
+            case "TYPE":
+                arity(args, 2);
+                out.status(Database.typeOf(db.get(args.get(1))));
+                return;
+            case "EXPIRE":
+                arity(args, 3);
+                out.integer(bool(db.expireAt(args.get(1), System.currentTimeMillis() + Values.parseLong(args.get(2)) * 1000)));
+                return;
+            case "PEXPIRE":
+                arity(args, 3);
+                out.integer(bool(db.expireAt(args.get(1), System.currentTimeMillis() + Values.parseLong(args.get(2)))));
+                return;
+            case "EXPIREAT":
+                arity(args, 3);
+                out.integer(bool(db.expireAt(args.get(1), Values.parseLong(args.get(2)) * 1000)));
+                return;
+            case "PEXPIREAT":
+                arity(args, 3);
+                out.integer(bool(db.expireAt(args.get(1), Values.parseLong(args.get(2)))));
+                return;
+            case "TTL": {
+                arity(args, 2);
+                long pttl = db.pttl(args.get(1));
+                out.integer(pttl < 0 ? pttl : (pttl + 500) / 1000);
+                return;
+            }
+            case "PTTL":
+                arity(args, 2);
+                out.integer(db.pttl(args.get(1)));
+                return;
+            case "PERSIST":
+                arity(args, 2);
+                out.integer(bool(db.persist(args.get(1))));
+                return;
+            case "KEYS": {
+                arity(args, 2);
+                Pattern pattern = glob(args.get(1));
+                List<String> keys = new ArrayList<>();
+                for (String key : db.keys()) {
+                    if (pattern.matcher(key).matches()) {
+                        keys.add(key);
+                    }
+                }
+                out.array(keys);
+                return;
+            }
+            case "SCAN": {
+                minArity(args, 2);
+                ScanPage page = scan(db.keys(), args, 2);
+                out.arrayHeader(2);
+                out.bulk(page.cursor);
+                out.array(page.items);
+                return;
+            }
+            case "SORT":
+                sort(db, args, out);
+                return;
+            case "RENAME":
+            case "RENAMENX": {
+                arity(args, 3);
+                String source = args.get(1);
+                String target = args.get(2);
+                Object value = db.get(source);
+                if (value == null) {
+                    throw new CommandException("ERR no such key");
+                }
+                if ("RENAMENX".equals(name) && db.exists(target)) {
+                    out.integer(0);
+                    return;
+                }
+                Long expireAt = db.expireAtOf(source);
+                db.remove(source);
+                db.set(target, value);
+                if (expireAt != null) {
+                    db.expireAt(target, expireAt);
+                }
+                if ("RENAMENX".equals(name)) {
+                    out.integer(1);
+                } else {
+                    out.status("OK");
+                }
+                return;
+            }
+
+            // ---------------- 字符串 ----------------
+            case "GET":
+                arity(args, 2);
+                out.bulk(db.get(args.get(1), String.class));
+                return;
+            case "GETSET": {
+                arity(args, 3);
+                String old = db.get(args.get(1), String.class);
+                db.set(args.get(1), args.get(2));
+                out.bulk(old);
+                return;
+            }
+            case "SET":
+                set(db, args, out);
+                return;
+            case "SETNX":
+                arity(args, 3);
+                if (db.exists(args.get(1))) {
+                    out.integer(0);
+                } else {
+                    db.set(args.get(1), args.get(2));
+                    out.integer(1);
+                }
+                return;
+            case "SETEX":
+            case "PSETEX": {
+                arity(args, 4);
+                long ttl = Values.parseLong(args.get(2));
+                if (ttl <= 0) {
+                    throw new CommandException("ERR invalid expire time in " + name.toLowerCase());
+                }
+                db.set(args.get(1), args.get(3));
+                db.expireAt(args.get(1), System.currentTimeMillis() + ("SETEX".equals(name) ? ttl * 1000 : ttl));
+                out.status("OK");
+                return;
+            }
+            case "MGET": {
+                minArity(args, 2);
+                out.arrayHeader(args.size() - 1);
+                for (int i = 1; i < args.size(); i++) {
+                    Object value = db.get(args.get(i));
+                    out.bulk(value instanceof String ? (String) value : null);
+                }
+                return;
+            }
+            case "MSET":
+                if (args.size() < 3 || args.size() % 2 == 0) {
+                    throw CommandException.wrongArity(name);
+                }
+                for (int i = 1; i < args.size(); i += 2) {
+                    db.set(args.get(i), args.get(i + 1));
+                }
+                out.status("OK");
+                return;
+            case "INCR":
+                arity(args, 2);
+                out.integer(incrBy(db, args.get(1), 1));
+                return;
+            case "DECR":
+                arity(args, 2);
+                out.integer(incrBy(db, args.get(1), -1));
+                return;
+            case "INCRBY":
+                arity(args, 3);
+                out.integer(incrBy(db, args.get(1), Values.parseLong(args.get(2))));
+                return;
+            case "DECRBY":
+                arity(args, 3);
+                out.integer(incrBy(db, args.get(1), -Values.parseLong(args.get(2))));
+                return;
+            case "INCRBYFLOAT": {
+                arity(args, 3);
+                String current = db.get(args.get(1), String.class);
+                double value = (current == null ? 0 : Values.parseDouble(current)) + Values.parseDouble(args.get(2));
+                String text = Values.formatDouble(value);
+                db.put(args.get(1), text);
+                out.bulk(text);
+                return;
+            }
+            case "APPEND": {
+                arity(args, 3);
+                String current = db.get(args.get(1), String.class);
+                String value = (current == null ? "" : current) + args.get(2);
+                db.put(args.get(1), value);
+                out.integer(value.length());
+                return;
+            }
+            case "STRLEN": {
+                arity(args, 2);
+                String current = db.get(args.get(1), String.class);
+                out.integer(current == null ? 0 : current.length());
+                return;
+            }
+            case "GETRANGE": {
+                arity(args, 4);
+                String current = db.get(args.get(1), String.class);
+                if (current == null || current.isEmpty()) {
+                    out.bulk("");
+                    return;
+                }
+                int[] range = normalize(Values.parseLong(args.get(2)), Values.parseLong(args.get(3)), current.length());
+                out.bulk(range == null ? "" : current.substring(range[0], range[1] + 1));
+                return;
+            }
+            case "SETRANGE": {
+                arity(args, 4);
+                long offset = Values.parseLong(args.get(2));
+                if (offset < 0) {
+                    throw new CommandException("ERR offset is out of range");
+                }
+                String current = db.get(args.get(1), String.class);
+                StringBuilder value = new StringBuilder(current == null ? "" : current);
+                String patch = args.get(3);
+                while (value.length() < offset + patch.length()) {
+                    value.append('\0');
+                }
+                value.replace((int) offset, (int) offset + patch.length(), patch);
+                db.put(args.get(1), value.toString());
+                out.integer(value.length());
+                return;
+            }
+            case "GETBIT": {
+                arity(args, 3);
+                String current = db.get(args.get(1), String.class);
+                out.integer(getBit(current, Values.parseLong(args.get(2))));
+                return;
+            }
+            case "SETBIT":
+                arity(args, 4);
+                out.integer(setBit(db, args.get(1), Values.parseLong(args.get(2)), args.get(3)));
+                return;
+            case "BITCOUNT":
+                out.integer(bitCount(db, args));
+                return;
+            case "BITOP":
+                out.integer(bitOp(db, args));
+                return;
+            case "PFADD": {
+                minArity(args, 2);
+                String current = db.get(args.get(1), String.class);
+                HyperLogLog.check(current);
+                char[] registers = (current == null ? HyperLogLog.empty() : current).toCharArray();
+                boolean changed = current == null;
+                for (int i = 2; i < args.size(); i++) {
+                    changed |= HyperLogLog.add(registers, args.get(i));
+                }
+                if (changed) {
+                    db.put(args.get(1), new String(registers));
+                }
+                out.integer(changed ? 1 : 0);
+                return;
+            }
+            case "PFCOUNT":
+                minArity(args, 2);
+                out.integer(HyperLogLog.count(mergeHll(db, args, 1)));
+                return;
+            case "PFMERGE":
+                minArity(args, 2);
+                db.put(args.get(1), new String(mergeHll(db, args, 1)));
+                out.status("OK");
+                return;
+
+            // ---------------- 列表 ----------------
+            case "LPUSH":
+            case "RPUSH": {
+                minArity(args, 3);
+                List<String> list = listOrCreate(db, args.get(1));
+                for (int i = 2; i < args.size(); i++) {
+                    if ("LPUSH".equals(name)) {
+                        list.add(0, args.get(i));
+                    } else {
+                        list.add(args.get(i));
+                    }
+                }
+                db.touch(args.get(1));
+                server.lock.notifyAll();
+                out.integer(list.size());
+                return;
+            }
+            case "LPOP":
+            case "RPOP":
+                arity(args, 2);
+                out.bulk(pop(db, args.get(1), "LPOP".equals(name)));
+                return;
+            case "LLEN": {
+                arity(args, 2);
+                List<String> list = list(db, args.get(1));
+                out.integer(list == null ? 0 : list.size());
+                return;
+            }
+            case "LINDEX": {
+                arity(args, 3);
+                List<String> list = list(db, args.get(1));
+                long i = Values.parseLong(args.get(2));
+                if (list != null && i < 0) {
+                    i += list.size();
+                }
+                out.bulk(list == null || i < 0 || i >= list.size() ? null : list.get((int) i));
+                return;
+            }
+            case "LRANGE": {
+                arity(args, 4);
+                List<String> list = list(db, args.get(1));
+                if (list == null) {
+                    out.arrayHeader(0);
+                    return;
+                }
+                int[] range = normalize(Values.parseLong(args.get(2)), Values.parseLong(args.get(3)), list.size());
+                out.array(range == null ? Collections.emptyList() : list.subList(range[0], range[1] + 1));
+                return;
+            }
+            case "LTRIM": {
+                arity(args, 4);
+                List<String> list = list(db, args.get(1));
+                if (list != null) {
+                    int[] range = normalize(Values.parseLong(args.get(2)), Values.parseLong(args.get(3)), list.size());
+                    List<String> kept = range == null ? new ArrayList<>() : new ArrayList<>(list.subList(range[0], range[1] + 1));
+                    list.clear();
+                    list.addAll(kept);
+                    db.touch(args.get(1));
+                    db.removeIfEmpty(args.get(1));
+                }
+                out.status("OK");
+                return;
+            }
+            case "LREM": {
+                arity(args, 4);
+                List<String> list = list(db, args.get(1));
+                long count = Values.parseLong(args.get(2));
+                String value = args.get(3);
+                long removed = 0;
+                if (list != null) {
+                    if (count >= 0) {
+                        Iterator<String> it = list.iterator();
+                        while (it.hasNext() && (count == 0 || removed < count)) {
+                            if (it.next().equals(value)) {
+                                it.remove();
+                                removed++;
+                            }
+                        }
+                    } else {
+                        for (int i = list.size() - 1; i >= 0 && removed < -count; i--) {
+                            if (list.get(i).equals(value)) {
+                                list.remove(i);
+                                removed++;
+                            }
+                        }
+                    }
+                    if (removed > 0) {
+                        db.touch(args.get(1));
+                        db.removeIfEmpty(args.get(1));
+                    }
+                }
+                out.integer(removed);
+                return;
+            }
+            case "RPOPLPUSH": {
+                arity(args, 3);
+                list(db, args.get(2));
+                String value = pop(db, args.get(1), false);
+                if (value != null) {
+                    listOrCreate(db, args.get(2)).add(0, value);
+                    db.touch(args.get(2));
+                    server.lock.notifyAll();
+                }
+                out.bulk(value);
+                return;
+            }
+            case "BLPOP":
+            case "BRPOP":
+            case "BRPOPLPUSH":
+                blockingPop(session, db, name, args, out);
+                return;
+
+            // ---------------- 集合 ----------------
+            case "SADD": {
+                minArity(args, 3);
+                Set<String> set = setOrCreate(db, args.get(1));
+                long added = 0;
+                for (int i = 2; i < args.size(); i++) {
+                    if (set.add(args.get(i))) {
+                        added++;
+                    }
+                }
+                db.touch(args.get(1));
+                out.integer(added);
+                return;
+            }
+            case "SREM": {
+                minArity(args, 3);
+                Set<String> set = set(db, args.get(1));
+                long removed = 0;
+                if (set != null) {
+                    for (int i = 2; i < args.size(); i++) {
+                        if (set.remove(args.get(i))) {
+                            removed++;
+                        }
+                    }
+                    db.touch(args.get(1));
+                    db.removeIfEmpty(args.get(1));
+                }
+                out.integer(removed);
+                return;
+            }
+            case "SISMEMBER": {
+                arity(args, 3);
+                Set<String> set = set(db, args.get(1));
+                out.integer(bool(set != null && set.contains(args.get(2))));
+                return;
+            }
+            case "SCARD": {
+                arity(args, 2);
+                Set<String> set = set(db, args.get(1));
+                out.integer(set == null ? 0 : set.size());
+                return;
+            }
+            case "SMEMBERS": {
+                arity(args, 2);
+                Set<String> set = set(db, args.get(1));
+                out.array(set == null ? Collections.emptySet() : set);
+                return;
+            }
+            case "SRANDMEMBER":
+            case "SPOP":
+                randomMembers(db, name, args, out);
+                return;
+            case "SMOVE": {
+                arity(args, 4);
+                Set<String> source = set(db, args.get(1));
+                set(db, args.get(2));
+                if (source == null || !source.remove(args.get(3))) {
+                    out.integer(0);
+                    return;
+                }
+                db.touch(args.get(1));
+                db.removeIfEmpty(args.get(1));
+                setOrCreate(db, args.get(2)).add(args.get(3));
+                db.touch(args.get(2));
+                out.integer(1);
+                return;
+            }
+            case "SINTER":
+            case "SUNION":
+            case "SDIFF":
+                minArity(args, 2);
+                out.array(setAlgebra(db, name, args.subList(1, args.size())));
+                return;
+            case "SINTERSTORE":
+            case "SUNIONSTORE":
+            case "SDIFFSTORE": {
+                minArity(args, 3);
+                Set<String> result = setAlgebra(db, name.substring(0, name.length() - 5), args.subList(2, args.size()));
+                db.remove(args.get(1));
+                if (!result.isEmpty()) {
+                    db.set(args.get(1), result);
+                }
+                out.integer(result.size());
+                return;
+            }
+            case "SSCAN": {
+                minArity(args, 3);
+                Set<String> set = set(db, args.get(1));
+                ScanPage page = scan(set == null ? Collections.emptyList() : set, args, 3);
+                out.arrayHeader(2);
+                out.bulk(page.cursor);
+                out.array(page.items);
+                return;
+            }
+
+            // ---------------- 散列 ----------------
+            case "HSET":
+            case "HMSET": {
+                if (args.size() < 4 || args.size() % 2 != 0) {
+                    throw CommandException.wrongArity(name);
+                }
+                Map<String, String> hash = hashOrCreate(db, args.get(1));
+                long added = 0;
+                for (int i = 2; i < args.size(); i += 2) {
+                    if (hash.put(args.get(i), args.get(i + 1)) == null) {
+                        added++;
+                    }
+                }
+                db.touch(args.get(1));
+                if ("HMSET".equals(name)) {
+                    out.status("OK");
+                } else {
+                    out.integer(added);
+                }
+                return;
+            }
+            case "HSETNX": {
+                arity(args, 4);
+                Map<String, String> hash = hashOrCreate(db, args.get(1));
+                boolean added = hash.putIfAbsent(args.get(2), args.get(3)) == null;
+                db.touch(args.get(1));
+                out.integer(bool(added));
+                return;
+            }
+            case "HGET": {
+                arity(args, 3);
+                Map<String, String> hash = hash(db, args.get(1));
+                out.bulk(hash == null ? null : hash.get(args.get(2)));
+                return;
+            }
+            case "HMGET": {
+                minArity(args, 3);
+                Map<String, String> hash = hash(db, args.get(1));
+                out.arrayHeader(args.size() - 2);
+                for (int i = 2; i < args.size(); i++) {
+                    out.bulk(hash == null ? null : hash.get(args.get(i)));
+                }
+                return;
+            }
+            case "HDEL": {
+                minArity(args, 3);
+                Map<String, String> hash = hash(db, args.get(1));
+                long removed = 0;
+                if (hash != null) {
+                    for (int i = 2; i < args.size(); i++) {
+                        if (hash.remove(args.get(i)) != null) {
+                            removed++;
+                        }
+                    }
+                    db.touch(args.get(1));
+                    db.removeIfEmpty(args.get(1));
+                }
+                out.integer(removed);
+                return;
+            }
+            case "HLEN": {
+                arity(args, 2);
+                Map<String, String> hash = hash(db, args.get(1));
+                out.integer(hash == null ? 0 : hash.size());
+                return;
+            }
+            case "HEXISTS": {
+                arity(args, 3);
+                Map<String, String> hash = hash(db, args.get(1));
+                out.integer(bool(hash != null && hash.containsKey(args.get(2))));
+                return;
+            }
+            case "HKEYS":
+            case "HVALS":
+            case "HGETALL": {
+                arity(args, 2);
+                Map<String, String> hash = hash(db, args.get(1));
+                if (hash == null) {
+                    out.arrayHeader(0);
+                } else if ("HKEYS".equals(name)) {
+                    out.array(hash.keySet());
+                } else if ("HVALS".equals(name)) {
+                    out.array(hash.values());
+                } else {
+                    out.arrayHeader(hash.size() * 2);
+                    for (Map.Entry<String, String> entry : hash.entrySet()) {
+                        out.bulk(entry.getKey());
+                        out.bulk(entry.getValue());
+                    }
+                }
+                return;
+            }
+            case "HINCRBY": {
+                arity(args, 4);
+                long delta = Values.parseLong(args.get(3));
+                Map<String, String> hash = hashOrCreate(db, args.get(1));
+                String current = hash.get(args.get(2));
+                long value;
+                try {
+                    value = (current == null ? 0 : Long.parseLong(current)) + delta;
+                } catch (NumberFormatException e) {
+                    throw new CommandException("ERR hash value is not an integer");
+                }
+                hash.put(args.get(2), Long.toString(value));
+                db.touch(args.get(1));
+                out.integer(value);
+                return;
+            }
+            case "HINCRBYFLOAT": {
+                arity(args, 4);
+                double delta = Values.parseDouble(args.get(3));
+                Map<String, String> hash = hashOrCreate(db, args.get(1));
+                String current = hash.get(args.get(2));
+                String value = Values.formatDouble((current == null ? 0 : Values.parseDouble(current)) + delta);
+                hash.put(args.get(2), value);
+                db.touch(args.get(1));
+                out.bulk(value);
+                return;
+            }
+            case "HSCAN": {
+                minArity(args, 3);
+                Map<String, String> hash = hash(db, args.get(1));
+                ScanPage page = scan(hash == null ? Collections.emptyList() : hash.keySet(), args, 3);
+                out.arrayHeader(2);
+                out.bulk(page.cursor);
+                out.arrayHeader(page.items.size() * 2);
+                for (String field : page.items) {
+                    out.bulk(field);
+                    out.bulk(hash.get(field));
+                }
+                return;
+            }
+
+            // ---------------- 有序集合 ----------------
+            case "ZADD":
+                zadd(db, args, out);
+                return;
+            case "ZINCRBY": {
+                arity(args, 4);
+                double delta = Values.parseDouble(args.get(2));
+                double score = zsetOrCreate(db, args.get(1)).incr(args.get(3), delta);
+                db.touch(args.get(1));
+                out.bulk(Values.formatDouble(score));
+                return;
+            }
+            case "ZSCORE": {
+                arity(args, 3);
+                ZSet zset = zset(db, args.get(1));
+                Double score = zset == null ? null : zset.score(args.get(2));
+                out.bulk(score == null ? null : Values.formatDouble(score));
+                return;
+            }
+            case "ZCARD": {
+                arity(args, 2);
+                ZSet zset = zset(db, args.get(1));
+                out.integer(zset == null ? 0 : zset.size());
+                return;
+            }
+            case "ZRANK":
+            case "ZREVRANK": {
+                arity(args, 3);
+                ZSet zset = zset(db, args.get(1));
+                Long rank = zset == null ? null : zset.rank(args.get(2));
+                if (rank == null) {
+                    out.bulk(null);
+                } else {
+                    out.integer("ZRANK".equals(name) ? rank : zset.size() - 1 - rank);
+                }
+                return;
+            }
+            case "ZREM": {
+                minArity(args, 3);
+                ZSet zset = zset(db, args.get(1));
+                long removed = 0;
+                if (zset != null) {
+                    for (int i = 2; i < args.size(); i++) {
+                        if (zset.remove(args.get(i))) {
+                            removed++;
+                        }
+                    }
+                    db.touch(args.get(1));
+                    db.removeIfEmpty(args.get(1));
+                }
+                out.integer(removed);
+                return;
+            }
+            case "ZRANGE":
+            case "ZREVRANGE": {
+                minArity(args, 4);
+                boolean withScores = args.size() > 4 && "WITHSCORES".equalsIgnoreCase(args.get(4));
+                if (args.size() > 5 || args.size() == 5 && !withScores) {
+                    throw new CommandException(CommandException.SYNTAX);
+                }
+                ZSet zset = zset(db, args.get(1));
+                List<ZSet.Entry> entries = Collections.emptyList();
+                if (zset != null) {
+                    int[] range = normalize(Values.parseLong(args.get(2)), Values.parseLong(args.get(3)), zset.size());
+                    if (range != null) {
+                        entries = zset.range(range[0], range[1], "ZREVRANGE".equals(name));
+                    }
+                }
+                writeEntries(out, entries, withScores);
+                return;
+            }
+            case "ZRANGEBYSCORE":
+            case "ZREVRANGEBYSCORE":
+                rangeByScore(db, name, args, out);
+                return;
+            case "ZCOUNT": {
+                arity(args, 4);
+                ZSet zset = zset(db, args.get(1));
+                ZSet.ScoreBound min = ZSet.ScoreBound.parse(args.get(2));
+                ZSet.ScoreBound max = ZSet.ScoreBound.parse(args.get(3));
+                out.integer(zset == null ? 0 : zset.rangeByScore(min, max, false).size());
+                return;
+            }
+            case "ZREMRANGEBYRANK":
+            case "ZREMRANGEBYSCORE": {
+                arity(args, 4);
+                ZSet zset = zset(db, args.get(1));
+                List<ZSet.Entry> entries = Collections.emptyList();
+                if (zset != null) {
+                    if ("ZREMRANGEBYRANK".equals(name)) {
+                        int[] range = normalize(Values.parseLong(args.get(2)), Values.parseLong(args.get(3)), zset.size());
+                        if (range != null) {
+                            entries = zset.range(range[0], range[1], false);
+                        }
+                    } else {
+                        entries = zset.rangeByScore(ZSet.ScoreBound.parse(args.get(2)), ZSet.ScoreBound.parse(args.get(3)), false);
+                    }
+                    for (ZSet.Entry entry : entries) {
+                        zset.remove(entry.member);
+                    }
+                    if (!entries.isEmpty()) {
+                        db.touch(args.get(1));
+                        db.removeIfEmpty(args.get(1));
+                    }
+                }
+                out.integer(entries.size());
+                return;
+            }
+            case "ZINTERSTORE":
+            case "ZUNIONSTORE":
+                out.integer(zstore(db, "ZINTERSTORE".equals(name), args));
+                return;
+            case "ZSCAN": {
+                minArity(args, 3);
+                ZSet zset = zset(db, args.get(1));
+                List<String> members = new ArrayList<>();
+                if (zset != null) {
+                    for (ZSet.Entry entry : zset.entries()) {
+                        members.add(entry.member);
+                    }
+                }
+                ScanPage page = scan(members, args, 3);
+                out.arrayHeader(2);
+                out.bulk(page.cursor);
+                out.arrayHeader(page.items.size() * 2);
+                for (String member : page.items) {
+                    out.bulk(member);
+                    out.bulk(Values.formatDouble(zset.score(member)));
+                }
+                return;
+            }
+
+            // ---------------- 事务 ----------------
+            case "MULTI":
+                if (session.multi) {
+                    throw new CommandException("ERR MULTI calls can not be nested");
+                }
+                session.multi = true;
+                session.multiError = false;
+                session.queued.clear();
+                out.status("OK");
+                return;
+            case "DISCARD":
+                if (!session.multi) {
+                    throw new CommandException("ERR DISCARD without MULTI");
+                }
+                session.multi = false;
+                session.queued.clear();
+                session.unwatchAll();
+                out.status("OK");
+                return;
+            case "EXEC":
+                exec(session, out);
+                return;
+            case "WATCH":
+                if (session.multi) {
+                    throw new CommandException("ERR WATCH inside MULTI is not allowed");
+                }
+                minArity(args, 2);
+                for (int i = 1; i < args.size(); i++) {
+                    if (session.watched.computeIfAbsent(session.db, k -> new HashSet<>()).add(args.get(i))) {
+                        db.watch(args.get(i), session);
+                    }
+                }
+                out.status("OK");
+                return;
+            case "UNWATCH":
+                session.unwatchAll();
+                out.status("OK");
+                return;
+
+            // ---------------- 发布订阅 ----------------
+            case "PUBLISH":
+                arity(args, 3);
+                out.integer(publish(args.get(1), args.get(2)));
+                return;
+            case "SUBSCRIBE":
+            case "PSUBSCRIBE": {
+                minArity(args, 2);
+                boolean pattern = "PSUBSCRIBE".equals(name);
+                for (int i = 1; i < args.size(); i++) {
+                    String channel = args.get(i);
+                    (pattern ? session.patterns : session.channels).add(channel);
+                    (pattern ? server.patterns : server.channels)
+                            .computeIfAbsent(channel, k -> new LinkedHashSet<>()).add(session);
+                    subscriptionReply(out, name.toLowerCase(), channel, session);
+                }
+                return;
+            }
+            case "UNSUBSCRIBE":
+            case "PUNSUBSCRIBE": {
+                boolean pattern = "PUNSUBSCRIBE".equals(name);
+                Set<String> own = pattern ? session.patterns : session.channels;
+                List<String> targets = args.size() > 1 ? args.subList(1, args.size()) : new ArrayList<>(own);
+                if (targets.isEmpty()) {
+                    subscriptionReply(out, name.toLowerCase(), null, session);
+                    return;
+                }
+                for (String channel : targets) {
+                    own.remove(channel);
+                    EmbeddedRedisServer.removeSubscriber(pattern ? server.patterns : server.channels, channel, session);
+                    subscriptionReply(out, name.toLowerCase(), channel, session);
+                }
+                return;
+            }
+            default:
+                throw new CommandException("ERR unknown command '" + args.get(0) + "'");
+        }
+    }
+
+    // ---------------- 命令实现 ----------------
+
+    private void set(Database db, List<String> args, RespWriter out) throws IOException {
+        minArity(args, 3);
+        String key = args.get(1);
+        boolean nx = false;
+        boolean xx = false;
+        long ttlMillis = -1;
+        for (int i = 3; i < args.size(); i++) {
+            String option = args.get(i).toUpperCase();
+            if ("NX".equals(option)) {
+                nx = true;
+            } else if ("XX".equals(option)) {
+                xx = true;
+            } else if (("EX".equals(option) || "PX".equals(option)) && i + 1 < args.size()) {
+                long ttl = Values.parseLong(args.get(++i));
+                if (ttl <= 0) {
+                    throw new CommandException("ERR invalid expire time in set");
+                }
+                ttlMillis = "EX".equals(option) ? ttl * 1000 : ttl;
+            } else {
+                throw new CommandException(CommandException.SYNTAX);
+            }
+        }
+        boolean exists = db.exists(key);
+        if (nx && exists || xx && !exists) {
+            out.bulk(null);
+            return;
+        }
+        db.set(key, args.get(2));
+        if (ttlMillis > 0) {
+            db.expireAt(key, System.currentTimeMillis() + ttlMillis);
+        }
+        out.status("OK");
+    }
+
+    /**
+     * SORT key [BY pattern] [LIMIT offset count] [GET pattern ...] [ASC|DESC] [ALPHA] [STORE destination]
+     */
+    private void sort(Database db, List<String> args, RespWriter out) throws IOException {
+        minArity(args, 2);
+        String by = null;
+        List<String> gets = new ArrayList<>();
+        boolean desc = false;
+        boolean alpha = false;
+        long offset = 0;
+        long count = -1;
+        String store = null;
+        for (int i = 2; i < args.size(); i++) {
+            String option = args.get(i).toUpperCase();
+            if ("BY".equals(option) && i + 1 < args.size()) {
+                by = args.get(++i);
+            } else if ("GET".equals(option) && i + 1 < args.size()) {
+                gets.add(args.get(++i));
+            } else if ("LIMIT".equals(option) && i + 2 < args.size()) {
+                offset = Values.parseLong(args.get(++i));
+                count = Values.parseLong(args.get(++i));
+            } else if ("STORE".equals(option) && i + 1 < args.size()) {
+                store = args.get(++i);
+            } else if ("ASC".equals(option)) {
+                desc = false;
+            } else if ("DESC".equals(option)) {
+                desc = true;
+            } else if ("ALPHA".equals(option)) {
+                alpha = true;
+            } else {
+                throw new CommandException(CommandException.SYNTAX);
+            }
+        }
+        Object value = db.get(args.get(1));
+        List<String> elements = new ArrayList<>();
+        if (value instanceof ZSet) {
+            for (ZSet.Entry entry : ((ZSet) value).entries()) {
+                elements.add(entry.member);
+            }
+        } else if (value instanceof Collection) {
+            for (Object element : (Collection<?>) value) {
+                elements.add((String) element);
+            }
+        } else if (value != null) {
+            throw new CommandException(CommandException.WRONG_TYPE);
+        }
+        boolean sorted = by == null || by.contains("*");
+        if (sorted) {
+            Map<String, Object> weights = new HashMap<>();
+            for (String element : elements) {
+                String weight = by == null ? element : lookup(db, by, element);
+                if (alpha) {
+                    weights.put(element, weight == null ? "" : weight);
+                } else {
+                    weights.put(element, weight == null ? 0d
+                            : Values.parseDouble(weight, "ERR One or more scores can't be converted into double"));
+                }
+            }
+            Comparator<String> comparator = alpha
+                    ? Comparator.comparing(e -> (String) weights.get(e))
+                    : Comparator.comparingDouble(e -> (Double) weights.get(e));
+            elements.sort(desc ? comparator.reversed() : comparator);
+        }
+        if (offset > 0 || count >= 0) {
+            int from = (int) Math.min(Math.max(offset, 0), elements.size());
+            int to = count < 0 ? elements.size() : (int) Math.min(elements.size(), from + count);
+            elements = elements.subList(from, to);
+        }
+        List<String> result = new ArrayList<>();
+        for (String element : elements) {
+            if (gets.isEmpty()) {
+                result.add(element);
+            }
+            for (String get : gets) {
+                result.add("#".equals(get) ? element : lookup(db, get, element));
+            }
+        }
+        if (store == null) {
+            out.array(result);
+            return;
+        }
+        db.remove(store);
+        if (!result.isEmpty()) {
+            List<String> stored = new ArrayList<>();
+            for (String element : result) {
+                stored.add(element == null ? "" : element);
+            }
+            db.set(store, stored);
+            server.lock.notifyAll();
+        }
+        out.integer(result.size());
+    }
+
+    /**
+     * 按 BY/GET 模式取外部键的值，pattern 中的 * 替换为元素，"->field" 表示取散列字段
+     */
+    private String lookup(Database db, String pattern, String element) {
+        int star = pattern.indexOf('*');
+        if (star < 0) {
+            return null;
+        }
+        int arrow = pattern.indexOf("->", star);
+        String key = pattern.substring(0, star) + element + pattern.substring(star + 1, arrow < 0 ? pattern.length() : arrow);
+        Object value = db.get(key);
+        if (arrow < 0) {
+            return value instanceof String ? (String) value : null;
+        }
+        return value instanceof Map ? (String) ((Map<?, ?>) value).get(pattern.substring(arrow + 2)) : null;
+    }
+
+    private long incrBy(Database db, String key, long delta) {
+        String current = db.get(key, String.class);
+        long value = (current == null ? 0 : Values.parseLong(current)) + delta;
+        db.put(key, Long.toString(value));
+        return value;
+    }
+
+    private long getBit(String value, long offset) {
+        if (offset < 0) {
+            throw new CommandException("ERR bit offset is not an integer or out of range");
+        }
+        int index = (int) (offset >> 3);
+        if (value == null || index >= value.length()) {
+            return 0;
+        }
+        return (value.charAt(index) >> (7 - (offset & 7))) & 1;
+    }
+
+    private long setBit(Database db, String key, long offset, String bit) {
+        if (!"0".equals(bit) && !"1".equals(bit)) {
+            throw new CommandException("ERR bit is not an integer or out of range");
+        }
+        if (offset < 0 || offset >= 4L * 1024 * 1024 * 1024) {
+            throw new CommandException("ERR bit offset is not an integer or out of range");
+        }
+        String current = db.get(key, String.class);
+        int index = (int) (offset >> 3);
+        char[] bytes = new char[Math.max(current == null ? 0 : current.length(), index + 1)];
+        if (current != null) {
+            current.getChars(0, current.length(), bytes, 0);
+        }
+        int mask = 1 << (7 - (offset & 7));
+        long old = (bytes[index] & mask) != 0 ? 1 : 0;
+        bytes[index] = (char) ("1".equals(bit) ? (bytes[index] | mask) : (bytes[index] & ~mask));
+        db.put(key, new String(bytes));
+        return old;
+    }
+
+    private char[] mergeHll(Database db, List<String> args, int from) {
+        char[] registers = HyperLogLog.empty().toCharArray();
+        for (int i = from; i < args.size(); i++) {
+            String value = db.get(args.get(i), String.class);
+            HyperLogLog.check(value);
+            if (value != null) {
+                HyperLogLog.merge(registers, value);
+            }
+        }
+        return registers;
+    }
+
+    private long bitCount(Database db, List<String> args) {
+        if (args.size() != 2 && args.size() != 4) {
+            throw CommandException.wrongArity("BITCOUNT");
+        }
+        String value = db.get(args.get(1), String.class);
+        if (value == null || value.isEmpty()) {
+            return 0;
+        }
+        int start = 0;
+        int end = value.length() - 1;
+        if (args.size() == 4) {
+            int[] range = normalize(Values.parseLong(args.get(2)), Values.parseLong(args.get(3)), value.length());
+            if (range == null) {
+                return 0;
+            }
+            start = range[0];
+            end = range[1];
+        }
+        long count = 0;
+        for (int i = start; i <= end; i++) {
+            count += Integer.bitCount(value.charAt(i) & 0xff);
+        }
+        return count;
+    }
+
+    private long bitOp(Database db, List<String> args) {
+        minArity(args, 4);
+        String op = args.get(1).toUpperCase();
+        List<String> sources = new ArrayList<>();
+        int length = 0;
+        for (int i = 3; i < args.size(); i++) {
+            String value = db.get(args.get(i), String.class);
+            sources.add(value == null ? "" : value);
+            length = Math.max(length, sources.get(sources.size() - 1).length());
+        }
+        if ("NOT".equals(op) && sources.size() != 1) {
+            throw new CommandException("ERR BITOP NOT must be called with a single source key.");
+        }
+        char[] result = new char[length];
+        for (int i = 0; i < length; i++) {
+            int acc = byteAt(sources.get(0), i);
+            for (int s = 1; s < sources.size(); s++) {
+                int b = byteAt(sources.get(s), i);
+                switch (op) {
+                    case "AND":
+                        acc &= b;
+                        break;
+                    case "OR":
+                        acc |= b;
+                        break;
+                    case "XOR":
+                        acc ^= b;
+                        break;
+                    default:
+                        throw new CommandException(CommandException.SYNTAX);
+                }
+            }
+            result[i] = (char) ("NOT".equals(op) ? (~acc & 0xff) : acc);
+        }
+        if (length == 0) {
+            db.remove(args.get(2));
+        } else {
+            db.set(args.get(2), new String(result));
+        }
+        return length;
+    }
+
+    private static int byteAt(String value, int index) {
+        return index < value.length() ? value.charAt(index) & 0xff : 0;
+    }
+
+    private String pop(Database db, String key, boolean left) {
+        List<String> list = list(db, key);
+        if (list == null || list.isEmpty()) {
+            return null;
+        }
+        String value = left ? list.remove(0) : list.remove(list.size() - 1);
+        db.touch(key);
+        db.removeIfEmpty(key);
+        return value;
+    }
+
+    /**
+     * BLPOP/BRPOP/BRPOPLPUSH：没有元素时在全局锁上等待，推入命令会唤醒
+     */
+    private void blockingPop(ClientSession session, Database db, String name, List<String> args, RespWriter out)
+            throws IOException {
+        minArity(args, 3);
+        boolean rpoplpush = "BRPOPLPUSH".equals(name);
+        if (rpoplpush && args.size() != 4) {
+            throw CommandException.wrongArity(name);
+        }
+        double timeout = Values.parseDouble(args.get(args.size() - 1), "ERR timeout is not a float or out of range");
+        long deadline = timeout <= 0 ? Long.MAX_VALUE : System.currentTimeMillis() + (long) (timeout * 1000);
+        List<String> keys = rpoplpush ? args.subList(1, 2) : args.subList(1, args.size() - 1);
+        while (true) {
+            for (String key : keys) {
+                List<String> list = list(db, key);
+                if (list != null && !list.isEmpty()) {
+                    String value = pop(db, key, "BLPOP".equals(name));
+                    if (rpoplpush) {
+                        listOrCreate(db, args.get(2)).add(0, value);
+                        db.touch(args.get(2));
+                        out.bulk(value);
+                    } else {
+                        out.array(Arrays.asList(key, value));
+                    }
+                    return;
+                }
+            }
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0 || session.multi || session.closing) {
+                if (rpoplpush) {
+                    out.bulk(null);
+                } else {
+                    out.nullArray();
+                }
+                return;
+            }
+            try {
+                server.lock.wait(Math.min(remaining, 1000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                out.nullArray();
+                return;
+            }
+        }
+    }
+
+    private void randomMembers(Database db, String name, List<String> args, RespWriter out) throws IOException {
+        if (args.size() != 2 && args.size() != 3) {
+            throw CommandException.wrongArity(name);
+        }
+        Set<String> set = set(db, args.get(1));
+        boolean pop = "SPOP".equals(name);
+        if (args.size() == 2) {
+            String member = null;
+            if (set != null && !set.isEmpty()) {
+                List<String> members = new ArrayList<>(set);
+                member = members.get(ThreadLocalRandom.current().nextInt(members.size()));
+                if (pop) {
+                    set.remove(member);
+                    db.touch(args.get(1));
+                    db.removeIfEmpty(args.get(1));
+                }
+            }
+            out.bulk(member);
+            return;
+        }
+        long count = Values.parseLong(args.get(2));
+        List<String> members = set == null ? new ArrayList<>() : new ArrayList<>(set);
+        List<String> result = new ArrayList<>();
+        if (count < 0 && !pop) {
+            for (long i = 0; i < -count && !members.isEmpty(); i++) {
+                result.add(members.get(ThreadLocalRandom.current().nextInt(members.size())));
+            }
+        } else {
+            Collections.shuffle(members);
+            result.addAll(members.subList(0, (int) Math.min(Math.abs(count), members.size())));
+            if (pop && set != null) {
+                set.removeAll(result);
+                db.touch(args.get(1));
+                db.removeIfEmpty(args.get(1));
+            }
+        }
+        out.array(result);
+    }
+
+    private Set<String> setAlgebra(Database db, String op, List<String> keys) {
+        Set<String> result = null;
+        for (String key : keys) {
+            Set<String> set = set(db, key);
+            Set<String> members = set == null ? Collections.emptySet() : set;
+            if (result == null) {
+                result = new LinkedHashSet<>(members);
+            } else if ("SINTER".equals(op)) {
+                result.retainAll(members);
+            } else if ("SUNION".equals(op)) {
+                result.addAll(members);
+            } else {
+                result.removeAll(members);
+            }
+        }
+        return result;
+    }
+
+    private void zadd(Database db, List<String> args, RespWriter out) throws IOException {
+        minArity(args, 4);
+        boolean nx = false;
+        boolean xx = false;
+        boolean ch = false;
+        boolean incr = false;
+        int i = 2;
+        for (; i < args.size(); i++) {
+            String option = args.get(i).toUpperCase();
+            if ("NX".equals(option)) {
+                nx = true;
+            } else if ("XX".equals(option)) {
+                xx = true;
+            } else if ("CH".equals(option)) {
+                ch = true;
+            } else if ("INCR".equals(option)) {
+                incr = true;
+            } else {
+                break;
+            }
+        }
+        if ((args.size() - i) % 2 != 0 || args.size() == i || incr && args.size() - i != 2) {
+            throw new CommandException(CommandException.SYNTAX);
+        }
+        List<String> pairs = args.subList(i, args.size());
+        double[] scores = new double[pairs.size() / 2];
+        for (int p = 0; p < scores.length; p++) {
+            scores[p] = Values.parseDouble(pairs.get(p * 2));
+        }
+        ZSet zset = zsetOrCreate(db, args.get(1));
+        long changed = 0;
+        Double result = null;
+        for (int p = 0; p < scores.length; p++) {
+            String member = pairs.get(p * 2 + 1);
+            Double old = zset.score(member);
+            if (nx && old != null || xx && old == null) {
+                continue;
+            }
+            double score = incr ? (old == null ? 0 : old) + scores[p] : scores[p];
+            zset.add(member, score);
+            result = score;
+            if (old == null || ch && old != score) {
+                changed++;
+            }
+        }
+        db.touch(args.get(1));
+        db.removeIfEmpty(args.get(1));
+        if (incr) {
+            out.bulk(result == null ? null : Values.formatDouble(result));
+        } else {
+            out.integer(changed);
+        }
+    }
+
+    private void rangeByScore(Database db, String name, List<String> args, RespWriter out) throws IOException {
+        minArity(args, 4);
+        boolean reverse = "ZREVRANGEBYSCORE".equals(name);
+        ZSet.ScoreBound min = ZSet.ScoreBound.parse(args.get(reverse ? 3 : 2));
+        ZSet.ScoreBound max = ZSet.ScoreBound.parse(args.get(reverse ? 2 : 3));
+        boolean withScores = false;
+        long offset = 0;
+        long count = -1;
+        for (int i = 4; i < args.size(); i++) {
+            String option = args.get(i).toUpperCase();
+            if ("WITHSCORES".equals(option)) {
+                withScores = true;
+            } else if ("LIMIT".equals(option) && i + 2 < args.size()) {
+                offset = Values.parseLong(args.get(++i));
+                count = Values.parseLong(args.get(++i));
+            } else {
+                throw new CommandException(CommandException.SYNTAX);
+            }
+        }
+        ZSet zset = zset(db, args.get(1));
+        List<ZSet.Entry> entries = zset == null ? Collections.emptyList() : zset.rangeByScore(min, max, reverse);
+        if (offset > 0 || count >= 0) {
+            int from = (int) Math.min(Math.max(offset, 0), entries.size());
+            int to = count < 0 ? entries.size() : (int) Math.min(entries.size(), from + count);
+            entries = offset < 0 ? Collections.emptyList() : entries.subList(from, to);
+        }
+        writeEntries(out, entries, withScores);
+    }
+
+    private long zstore(Database db, boolean inter, List<String> args) {
+        minArity(args, 4);
+        int numKeys = (int) Values.parseLong(args.get(2));
+        if (numKeys < 1 || args.size() < 3 + numKeys) {
+            throw new CommandException(CommandException.SYNTAX);
+        }
+        List<String> keys = args.subList(3, 3 + numKeys);
+        double[] weights = new double[numKeys];
+        Arrays.fill(weights, 1);
+        String aggregate = "SUM";
+        for (int i = 3 + numKeys; i < args.size(); i++) {
+            String option = args.get(i).toUpperCase();
+            if ("WEIGHTS".equals(option) && i + numKeys < args.size()) {
+                for (int w = 0; w < numKeys; w++) {
+                    weights[w] = Values.parseDouble(args.get(++i), "ERR weight value is not a float");
+                }
+            } else if ("AGGREGATE".equals(option) && i + 1 < args.size()) {
+                aggregate = args.get(++i).toUpperCase();
+                if (!"SUM".equals(aggregate) && !"MIN".equals(aggregate) && !"MAX".equals(aggregate)) {
+                    throw new CommandException(CommandException.SYNTAX);
+                }
+            } else {
+                throw new CommandException(CommandException.SYNTAX);
+            }
+        }
+        Map<String, Double> result = null;
+        for (int k = 0; k < numKeys; k++) {
+            Map<String, Double> source = scoresOf(db, keys.get(k), weights[k]);
+            if (result == null) {
+                result = source;
+                continue;
+            }
+            if (inter) {
+                result.keySet().retainAll(source.keySet());
+            }
+            for (Map.Entry<String, Double> entry : source.entrySet()) {
+                Double current = result.get(entry.getKey());
+                if (current == null) {
+                    if (!inter) {
+                        result.put(entry.getKey(), entry.getValue());
+                    }
+                } else {
+                    result.put(entry.getKey(), aggregate(aggregate, current, entry.getValue()));
+                }
+            }
+        }
+        ZSet target = new ZSet();
+        for (Map.Entry<String, Double> entry : result.entrySet()) {
+            target.add(entry.getKey(), entry.getValue());
+        }
+        db.remove(args.get(1));
+        if (target.size() > 0) {
+            db.set(args.get(1), target);
+        }
+        return target.size();
+    }
+
+    private Map<String, Double> scoresOf(Database db, String key, double weight) {
+        Map<String, Double> scores = new HashMap<>();
+        Object value = db.get(key);
+        if (value instanceof ZSet) {
+            for (ZSet.Entry entry : ((ZSet) value).entries()) {
+                scores.put(entry.member, entry.score * weight);
+            }
+        } else if (value instanceof Set) {
+            for (Object member : (Set<?>) value) {
+                scores.put((String) member, weight);
+            }
+        } else if (value != null) {
+            throw new CommandException(CommandException.WRONG_TYPE);
+        }
+        return scores;
+    }
+
+    private static double aggregate(String aggregate, double a, double b) {
+        switch (aggregate) {
+            case "MIN":
+                return Math.min(a, b);
+            case "MAX":
+                return Math.max(a, b);
+            default:
+                return a + b;
+        }
+    }
+
+    private void exec(ClientSession session, RespWriter out) throws IOException {
+        if (!session.multi) {
+            throw new CommandException("ERR EXEC without MULTI");
+        }
+        List<List<String>> queued = new ArrayList<>(session.queued);
+        boolean aborted = session.multiError;
+        boolean dirty = session.isDirty();
+        session.multi = false;
+        session.queued.clear();
+        session.unwatchAll();
+        if (aborted) {
+            throw new CommandException("EXECABORT Transaction discarded because of previous errors.");
+        }
+        if (dirty) {
+            out.nullArray();
+            return;
+        }
+        out.arrayHeader(queued.size());
+        for (List<String> command : queued) {
+            try {
+                dispatch(session, command.get(0).toUpperCase(), command, out);
+            } catch (CommandException e) {
+                out.error(e.getMessage());
+            }
+        }
+    }
+
+    private long publish(String channel, String message) throws IOException {
+        long receivers = 0;
+        Set<ClientSession> subscribers = server.channels.get(channel);
+        if (subscribers != null) {
+            for (ClientSession subscriber : subscribers) {
+                synchronized (subscriber.writer) {
+                    subscriber.writer.array(Arrays.asList("message", channel, message));
+                    subscriber.writer.flush();
+                }
+                receivers++;
+            }
+        }
+        for (Map.Entry<String, Set<ClientSession>> entry : server.patterns.entrySet()) {
+            if (!glob(entry.getKey()).matcher(channel).matches()) {
+                continue;
+            }
+            for (ClientSession subscriber : entry.getValue()) {
+                synchronized (subscriber.writer) {
+                    subscriber.writer.array(Arrays.asList("pmessage", entry.getKey(), channel, message));
+                    subscriber.writer.flush();
+                }
+                receivers++;
+            }
+        }
+        return receivers;
+    }
+
+    private void subscriptionReply(RespWriter out, String kind, String channel, ClientSession session) throws IOException {
+        out.arrayHeader(3);
+        out.bulk(kind);
+        out.bulk(channel);
+        out.integer(session.channels.size() + session.patterns.size());
+    }
+
+    private String info() {
+        Runtime runtime = Runtime.getRuntime();
+        StringBuilder info = new StringBuilder();
+        info.append("# Server\r\n");
+        info.append("redis_version:4.0.0\r\n");
+        info.append("redis_mode:embedded\r\n");
+        info.append("# Memory\r\n");
+        info.append("used_memory:").append(runtime.totalMemory() - runtime.freeMemory()).append("\r\n");
+        info.append("# Keyspace\r\n");
+        for (int i = 0; i < server.databaseCount(); i++) {
+            int size = server.database(i).size();
+            if (size > 0) {
+                info.append("db").append(i).append(":keys=").append(size).append("\r\n");
+            }
+        }
+        return info.toString();
+    }
+
+    // ---------------- 工具方法 ----------------
+
+    private static void writeEntries(RespWriter out, List<ZSet.Entry> entries, boolean withScores) throws IOException {
+        out.arrayHeader(withScores ? entries.size() * 2 : entries.size());
+        for (ZSet.Entry entry : entries) {
+            out.bulk(entry.member);
+            if (withScores) {
+                out.bulk(Values.formatDouble(entry.score));
+            }
+        }
+    }
+
+    /**
+     * 将 [start, stop]（支持负数下标）归一化为合法下标，空区间返回null
+     */
+    private static int[] normalize(long start, long stop, int size) {
+        if (start < 0) {
+            start = Math.max(0, size + start);
+        }
+        if (stop < 0) {
+            stop = size + stop;
+        }
+        if (stop >= size) {
+            stop = size - 1;
+        }
+        if (start > stop || start >= size) {
+            return null;
+        }
+        return new int[]{(int) start, (int) stop};
+    }
+
+    /**
+     * 游标扫描结果
+     */
+    private static final class ScanPage {
+        final String cursor;
+        final List<String> items;
+
+        ScanPage(String cursor, List<String> items) {
+            this.cursor = cursor;
+            this.items = items;
+        }
+    }
+
+    /**
+     * 按元素散列值排序遍历，游标为下一个待返回的散列值，遍历期间删除元素不会导致遗漏
+     *
+     * @param source
+     * @param args
+     * @param optionsFrom MATCH/COUNT 参数的起始下标
+     * @return
+     */
+    private static ScanPage scan(Collection<String> source, List<String> args, int optionsFrom) {
+        long cursor = Values.parseLong(args.get(optionsFrom - 1));
+        Pattern pattern = null;
+        int count = 10;
+        for (int i = optionsFrom; i < args.size(); i++) {
+            String option = args.get(i).toUpperCase();
+            if ("MATCH".equals(option) && i + 1 < args.size()) {
+                pattern = glob(args.get(++i));
+            } else if ("COUNT".equals(option) && i + 1 < args.size()) {
+                count = (int) Values.parseLong(args.get(++i));
+                if (count < 1) {
+                    throw new CommandException(CommandException.SYNTAX);
+                }
+            } else {
+                throw new CommandException(CommandException.SYNTAX);
+            }
+        }
+        List<String> candidates = new ArrayList<>();
+        for (String item : source) {
+            if (hashOf(item) >= cursor) {
+                candidates.add(item);
+            }
+        }
+        candidates.sort(Comparator.comparingLong(CommandExecutor::hashOf).thenComparing(item -> item));
+        List<String> items = new ArrayList<>();
+        long next = 0;
+        int visited = 0;
+        for (int i = 0; i < candidates.size(); i++) {
+            String item = candidates.get(i);
+            long hash = hashOf(item);
+            // 同一散列值的元素必须在同一页返回
+            if (visited >= count && hash != hashOf(candidates.get(i - 1))) {
+                next = hash;
+                break;
+            }
+            visited++;
+            if (pattern == null || pattern.matcher(item).matches()) {
+                items.add(item);
+            }
+        }
+        return new ScanPage(Long.toString(next), items);
+    }
+
+    /**
+     * 扫描用散列值，取值 1..2^32，0保留给"遍历结束"
+     */
+    private static long hashOf(String item) {
+        return (item.hashCode() & 0xffffffffL) + 1;
+    }
+
+    /**
+     * glob风格匹配转正则
+     *
+     * @param glob
+     * @return
+     */
+    static Pattern glob(String glob) {
+        StringBuilder regex = new StringBuilder();
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            switch (c) {
+                case '*':
+                    regex.append(".*");
+                    break;
+                case '?':
+                    regex.append('.');
+                    break;
+                case '[':
+                    int close = glob.indexOf(']', i + 1);
+                    if (close < 0) {
+                        regex.append("\\[");
+                    } else {
+                        String body = glob.substring(i + 1, close).replace("\\", "\\\\").replace("[", "\\[").replace("&", "\\&");
+                        regex.append('[').append(body).append(']');
+                        i = close;
+                    }
+                    break;
+                case '\\':
+                    if (i + 1 < glob.length()) {
+                        regex.append(Pattern.quote(String.valueOf(glob.charAt(++i))));
+                    }
+                    break;
+                default:
+                    regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return Pattern.compile(regex.toString(), Pattern.DOTALL);
+    }
+
+    private static void arity(List<String> args, int expected) {
+        if (args.size() != expected) {
+            throw CommandException.wrongArity(args.get(0));
+        }
+    }
+
+    private static void minArity(List<String> args, int minimum) {
+        if (args.size() < minimum) {
+            throw CommandException.wrongArity(args.get(0));
+        }
+    }
+
+    private static long bool(boolean value) {
+        return value ? 1 : 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<String> list(Database db, String key) {
+        return db.get(key, List.class);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<String> listOrCreate(Database db, String key) {
+        return db.getOrCreate(key, List.class, ArrayList::new);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Set<String> set(Database db, String key) {
+        return db.get(key, Set.class);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Set<String> setOrCreate(Database db, String key) {
+        return db.getOrCreate(key, Set.class, LinkedHashSet::new);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, String> hash(Database db, String key) {
+        return db.get(key, Map.class);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, String> hashOrCreate(Database db, String key) {
+        return db.getOrCreate(key, Map.class, LinkedHashMap::new);
+    }
+
+    private static ZSet zset(Database db, String key) {
+        return db.get(key, ZSet.class);
+    }
+
+    private static ZSet zsetOrCreate(Database db, String key) {
+        return db.getOrCreate(key, ZSet.class, ZSet::new);
+    }
+}
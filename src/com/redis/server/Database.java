@@ -0,0 +1,258 @@
+package com.redis.server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+
+/**
+ * 单个逻辑库的键空间
+ * <p>
+ * 值类型：String（字符串）、List&lt;String&gt;（列表）、Map&lt;String, String&gt;（散列）、
+ * Set&lt;String&gt;（集合）、{@link ZSet}（有序集合）。过期采用访问时惰性删除。
+ * 所有方法都在服务端全局锁内调用，本身不做同步。
+ *
+ * @author kqyang
+ */
+public class Database {
+    private final Map<String, Object> values = new HashMap<>();
+    private final Map<String, Long> expires = new HashMap<>();
+    private final Map<String, Set<ClientSession>> watchers = new HashMap<>();
+
+    /**
+     * 获取键值，不存在或已过期返回null
+     *
+     * @param key
+     * @return
+     */
+    public Object get(String key) {
+        Long expireAt = expires.get(key);
+        if (expireAt != null && expireAt <= System.currentTimeMillis()) {
+            remove(key);
+            return null;
+        }
+        return values.get(key);
+    }
+
+    /**
+     * 获取指定类型的键值
+     *
+     * @param key
+     * @param type
+     * @param <T>
+     * @return
+     */
+    public <T> T get(String key, Class<T> type) {
+        Object value = get(key);
+        if (value == null) {
+            return null;
+        }
+        if (!type.isInstance(value)) {
+            throw new CommandException(CommandException.WRONG_TYPE);
+        }
+        return type.cast(value);
+    }
+
+    /**
+     * 获取指定类型的键值，不存在时创建
+     *
+     * @param key
+     * @param type
+     * @param factory
+     * @param <T>
+     * @return
+     */
+    public <T> T getOrCreate(String key, Class<T> type, Supplier<T> factory) {
+        T value = get(key, type);
+        if (value == null) {
+            value = factory.get();
+            values.put(key, value);
+        }
+        return value;
+    }
+
+    /**
+     * 写入新值并清除过期时间（SET语义）
+     *
+     * @param key
+     * @param value
+     */
+    public void set(String key, Object value) {
+        values.put(key, value);
+        expires.remove(key);
+        touch(key);
+    }
+
+    /**
+     * 写入新值并保留过期时间
+     *
+     * @param key
+     * @param value
+     */
+    public void put(String key, Object value) {
+        values.put(key, value);
+        touch(key);
+    }
+
+    public boolean remove(String key) {
+        expires.remove(key);
+        if (values.remove(key) == null) {
+            return false;
+        }
+        touch(key);
+        return true;
+    }
+
+    /**
+     * 集合类值被清空后删除键
+     *
+     * @param key
+     */
+    public void removeIfEmpty(String key) {
+        Object value = values.get(key);
+        boolean empty = value instanceof Collection && ((Collection<?>) value).isEmpty()
+                || value instanceof Map && ((Map<?, ?>) value).isEmpty()
+                || value instanceof ZSet && ((ZSet) value).size() == 0;
+        if (empty) {
+            remove(key);
+        }
+    }
+
+    public boolean exists(String key) {
+        return get(key) != null;
+    }
+
+    /**
+     * 设置过期时间
+     *
+     * @param key
+     * @param atMillis 过期的毫秒时间戳
+     * @return
+     */
+    public boolean expireAt(String key, long atMillis) {
+        if (get(key) == null) {
+            return false;
+        }
+        if (atMillis <= System.currentTimeMillis()) {
+            remove(key);
+        } else {
+            expires.put(key, atMillis);
+            touch(key);
+        }
+        return true;
+    }
+
+    public boolean persist(String key) {
+        if (get(key) == null || expires.remove(key) == null) {
+            return false;
+        }
+        touch(key);
+        return true;
+    }
+
+    /**
+     * 剩余生存时间
+     *
+     * @param key
+     * @return -2 不存在，-1 未设置过期
+     */
+    public long pttl(String key) {
+        if (get(key) == null) {
+            return -2;
+        }
+        Long expireAt = expires.get(key);
+        return expireAt == null ? -1 : Math.max(0, expireAt - System.currentTimeMillis());
+    }
+
+    Long expireAtOf(String key) {
+        return expires.get(key);
+    }
+
+    /**
+     * 所有未过期的键
+     *
+     * @return
+     */
+    public List<String> keys() {
+        long now = System.currentTimeMillis();
+        List<String> keys = new ArrayList<>(values.size());
+        Iterator<Map.Entry<String, Object>> it = values.entrySet().iterator();
+        while (it.hasNext()) {
+            String key = it.next().getKey();
+            Long expireAt = expires.get(key);
+            if (expireAt != null && expireAt <= now) {
+                it.remove();
+                expires.remove(key);
+                touch(key);
+                continue;
+            }
+            keys.add(key);
+        }
+        return keys;
+    }
+
+    public int size() {
+        return keys().size();
+    }
+
+    public void clear() {
+        for (String key : new ArrayList<>(values.keySet())) {
+            remove(key);
+        }
+    }
+
+    /**
+     * 键被修改，通知WATCH了该键的客户端
+     *
+     * @param key
+     */
+    public void touch(String key) {
+        Set<ClientSession> sessions = watchers.get(key);
+        if (sessions != null) {
+            for (ClientSession session : sessions) {
+                session.markDirty();
+            }
+        }
+    }
+
+    void watch(String key, ClientSession session) {
+        watchers.computeIfAbsent(key, k -> new HashSet<>()).add(session);
+    }
+
+    void unwatch(String key, ClientSession session) {
+        Set<ClientSession> sessions = watchers.get(key);
+        if (sessions != null) {
+            sessions.remove(session);
+            if (sessions.isEmpty()) {
+                watchers.remove(key);
+            }
+        }
+    }
+
+    /**
+     * 类型名
+     *
+     * @param value
+     * @return
+     */
+    static String typeOf(Object value) {
+        if (value == null) {
+            return "none";
+        } else if (value instanceof String) {
+            return "string";
+        } else if (value instanceof List) {
+            return "list";
+        } else if (value instanceof Map) {
+            return "hash";
+        } else if (value instanceof Set) {
+            return "set";
+        } else {
+            return "zset";
+        }
+    }
+}
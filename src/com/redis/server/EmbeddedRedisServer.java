@@ -0,0 +1,164 @@
+package com.redis.server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 进程内RESP服务端
+ * <p>
+ * 实现了各章节用到的字符串、列表、集合、散列、有序集合、过期、MULTI/EXEC/WATCH、流水线和发布订阅命令，
+ * 供测试与基准在没有真实redis时使用，也可作为零网络开销的对照组。
+ * 与redis一样所有命令串行执行（全局锁），每个连接一个线程负责读写。不支持脚本与持久化。
+ * <p>
+ * 用法：
+ * <pre>
+ * EmbeddedRedisServer server = new EmbeddedRedisServer(0).start();
+ * RedisHandler.connect("127.0.0.1", server.getPort(), 14);
+ * </pre>
+ *
+ * @author kqyang
+ */
+public class EmbeddedRedisServer implements AutoCloseable {
+    private static final int DATABASES = 16;
+
+    final Object lock = new Object();
+    final Map<String, Set<ClientSession>> channels = new HashMap<>();
+    final Map<String, Set<ClientSession>> patterns = new HashMap<>();
+    private final Database[] databases = new Database[DATABASES];
+    private final Set<ClientSession> sessions = ConcurrentHashMap.newKeySet();
+    private final CommandExecutor executor = new CommandExecutor(this);
+    private final ServerSocket serverSocket;
+    private volatile boolean running;
+    private volatile Thread acceptor;
+
+    /**
+     * @param port 监听端口，0表示随机端口
+     */
+    public EmbeddedRedisServer(int port) throws IOException {
+        for (int i = 0; i < DATABASES; i++) {
+            databases[i] = new Database();
+        }
+        serverSocket = new ServerSocket(port, 128, InetAddress.getLoopbackAddress());
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 6379;
+        EmbeddedRedisServer server = new EmbeddedRedisServer(port).start();
+        System.out.println("embedded redis listening on " + server.getPort());
+        // 监听线程是守护线程，主线程等待它结束，否则进程随即退出
+        server.join();
+    }
+
+    /**
+     * 启动监听线程
+     *
+     * @return
+     */
+    public EmbeddedRedisServer start() {
+        running = true;
+        Thread thread = new Thread(this::accept, "EmbeddedRedis-accept-" + getPort());
+        thread.setDaemon(true);
+        acceptor = thread;
+        thread.start();
+        return this;
+    }
+
+    /**
+     * 等待服务端关闭（{@link #close()}）
+     *
+     * @throws InterruptedException
+     */
+    public void join() throws InterruptedException {
+        Thread thread = acceptor;
+        if (thread != null) {
+            thread.join();
+        }
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // ignore
+        }
+        for (ClientSession session : new ArrayList<>(sessions)) {
+            session.close();
+        }
+    }
+
+    private void accept() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                ClientSession session = new ClientSession(this, socket);
+                sessions.add(session);
+                Thread thread = new Thread(session, "EmbeddedRedis-client-" + socket.getPort());
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                if (running) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    CommandExecutor executor() {
+        return executor;
+    }
+
+    Database database(int index) {
+        if (index < 0 || index >= DATABASES) {
+            throw new CommandException("ERR DB index is out of range");
+        }
+        return databases[index];
+    }
+
+    int databaseCount() {
+        return DATABASES;
+    }
+
+    /**
+     * 连接关闭时清理WATCH与订阅
+     *
+     * @param session
+     */
+    void disconnect(ClientSession session) {
+        synchronized (lock) {
+            session.unwatchAll();
+            for (String channel : session.channels) {
+                removeSubscriber(channels, channel, session);
+            }
+            for (String pattern : session.patterns) {
+                removeSubscriber(patterns, pattern, session);
+            }
+            session.channels.clear();
+            session.patterns.clear();
+        }
+        sessions.remove(session);
+    }
+
+    static void removeSubscriber(Map<String, Set<ClientSession>> registry, String name, ClientSession session) {
+        Set<ClientSession> subscribers = registry.get(name);
+        if (subscribers != null) {
+            subscribers.remove(session);
+            if (subscribers.isEmpty()) {
+                registry.remove(name);
+            }
+        }
+    }
+}
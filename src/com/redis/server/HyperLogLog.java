@@ -0,0 +1,143 @@
+package com.redis.server;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * HyperLogLog 字符串编码
+ * <p>
+ * 与redis一样把HLL存成字符串值（TYPE为string）：HYLL 头加 16384 个寄存器，每个寄存器占一个字符。
+ * 只实现稠密编码与原始估计加小基数线性计数修正，误差与redis同一量级（约0.81%），但编码不与redis互通。
+ *
+ * @author kqyang
+ */
+final class HyperLogLog {
+    private static final String MAGIC = "HYLL";
+    private static final int P = 14;
+    private static final int REGISTERS = 1 << P;
+    private static final long SEED = 0xadc83b19L;
+    static final String INVALID = "WRONGTYPE Key is not a valid HyperLogLog string value.";
+
+    private HyperLogLog() {
+    }
+
+    static String empty() {
+        char[] value = new char[MAGIC.length() + REGISTERS];
+        MAGIC.getChars(0, MAGIC.length(), value, 0);
+        return new String(value);
+    }
+
+    /**
+     * 校验值是否为本类编码的HLL
+     *
+     * @param value
+     */
+    static void check(String value) {
+        if (value != null && (value.length() != MAGIC.length() + REGISTERS || !value.startsWith(MAGIC))) {
+            throw new CommandException(INVALID);
+        }
+    }
+
+    /**
+     * 加入一个元素
+     *
+     * @param registers 可修改的寄存器数组
+     * @param element
+     * @return 是否有寄存器变化
+     */
+    static boolean add(char[] registers, String element) {
+        long hash = murmur64(element.getBytes(StandardCharsets.ISO_8859_1));
+        int index = MAGIC.length() + (int) (hash & (REGISTERS - 1));
+        long rest = (hash >>> P) | (1L << (64 - P));
+        char count = (char) (Long.numberOfTrailingZeros(rest) + 1);
+        if (count > registers[index]) {
+            registers[index] = count;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 把value的寄存器合并到registers（逐个取最大值）
+     *
+     * @param registers
+     * @param value
+     */
+    static void merge(char[] registers, String value) {
+        for (int i = MAGIC.length(); i < registers.length; i++) {
+            char register = value.charAt(i);
+            if (register > registers[i]) {
+                registers[i] = register;
+            }
+        }
+    }
+
+    static long count(char[] registers) {
+        double sum = 0;
+        int zeros = 0;
+        for (int i = MAGIC.length(); i < registers.length; i++) {
+            sum += 1.0 / (1L << registers[i]);
+            if (registers[i] == 0) {
+                zeros++;
+            }
+        }
+        double alpha = 0.7213 / (1 + 1.079 / REGISTERS);
+        double estimate = alpha * REGISTERS * REGISTERS / sum;
+        if (estimate <= 2.5 * REGISTERS && zeros > 0) {
+            estimate = REGISTERS * Math.log((double) REGISTERS / zeros);
+        }
+        return Math.round(estimate);
+    }
+
+    /**
+     * MurmurHash64A，与redis的HLL使用相同的种子
+     */
+    @SuppressWarnings("fallthrough")
+    private static long murmur64(byte[] data) {
+        final long m = 0xc6a4a7935bd1e995L;
+        final int r = 47;
+        long h = SEED ^ (data.length * m);
+        int blocks = data.length / 8;
+        for (int i = 0; i < blocks; i++) {
+            long k = 0;
+            for (int j = 7; j >= 0; j--) {
+                k = (k << 8) | (data[i * 8 + j] & 0xff);
+            }
+            k *= m;
+            k ^= k >>> r;
+            k *= m;
+            h ^= k;
+            h *= m;
+        }
+        int tail = blocks * 8;
+        switch (data.length & 7) {
+            case 7:
+                h ^= (long) (data[tail + 6] & 0xff) << 48;
+                // fall through
+            case 6:
+                h ^= (long) (data[tail + 5] & 0xff) << 40;
+                // fall through
+            case 5:
+                h ^= (long) (data[tail + 4] & 0xff) << 32;
+                // fall through
+            case 4:
+                h ^= (long) (data[tail + 3] & 0xff) << 24;
+                // fall through
+            case 3:
+                h ^= (long) (data[tail + 2] & 0xff) << 16;
+                // fall through
+            case 2:
+                h ^= (long) (data[tail + 1] & 0xff) << 8;
+                // fall through
+            case 1:
+                h ^= data[tail] & 0xff;
+                h *= m;
+                break;
+            default:
+                break;
+        }
+        h ^= h >>> r;
+        h *= m;
+        h ^= h >>> r;
+        return h;
+    }
+}
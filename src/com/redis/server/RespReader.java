@@ -0,0 +1,121 @@
+package com.redis.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * RESP请求解析
+ * <p>
+ * 参数按ISO-8859-1解码为字符串，字节与字符一一对应，因此二进制值也能原样保存和返回。
+ *
+ * @author kqyang
+ */
+public class RespReader {
+    private final InputStream in;
+    private final byte[] buffer = new byte[16 * 1024];
+    private int position;
+    private int limit;
+
+    public RespReader(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * 缓冲区中是否还有未处理的请求（用于判断是否可以先不刷新回复）
+     *
+     * @return
+     */
+    public boolean hasBuffered() throws IOException {
+        return position < limit || in.available() > 0;
+    }
+
+    /**
+     * 读取一条命令，连接关闭时返回null
+     *
+     * @return
+     */
+    public List<String> readCommand() throws IOException {
+        int first = read();
+        if (first < 0) {
+            return null;
+        }
+        if (first != '*') {
+            // inline命令，例如 telnet 中输入的 PING
+            String line = (char) first + readLine();
+            List<String> args = new ArrayList<>();
+            for (String part : line.trim().split("\\s+")) {
+                if (!part.isEmpty()) {
+                    args.add(part);
+                }
+            }
+            return args;
+        }
+        int count = Integer.parseInt(readLine());
+        List<String> args = new ArrayList<>(Math.max(count, 0));
+        for (int i = 0; i < count; i++) {
+            int type = read();
+            if (type != '$') {
+                throw new IOException("Protocol error: expected '$', got '" + (char) type + "'");
+            }
+            int length = Integer.parseInt(readLine());
+            byte[] bytes = new byte[length];
+            int offset = 0;
+            while (offset < length) {
+                if (position == limit) {
+                    fill();
+                }
+                int n = Math.min(length - offset, limit - position);
+                System.arraycopy(buffer, position, bytes, offset, n);
+                position += n;
+                offset += n;
+            }
+            // 跳过 \r\n
+            read();
+            read();
+            args.add(new String(bytes, StandardCharsets.ISO_8859_1));
+        }
+        return args;
+    }
+
+    private String readLine() throws IOException {
+        StringBuilder line = new StringBuilder();
+        while (true) {
+            int b = read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            if (b == '\r') {
+                read();
+                return line.toString();
+            }
+            line.append((char) b);
+        }
+    }
+
+    private int read() throws IOException {
+        if (position == limit && !fillOrEof()) {
+            return -1;
+        }
+        return buffer[position++] & 0xff;
+    }
+
+    private void fill() throws IOException {
+        if (!fillOrEof()) {
+            throw new EOFException();
+        }
+    }
+
+    private boolean fillOrEof() throws IOException {
+        int n = in.read(buffer);
+        if (n <= 0) {
+            return false;
+        }
+        position = 0;
+        limit = n;
+        return true;
+    }
+}
@@ -0,0 +1,78 @@
+package com.redis.server;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+
+/**
+ * RESP回复编码
+ * <p>
+ * 订阅连接可能同时被自身线程和发布者线程写入，调用方需要在写入整条回复期间持有本对象的锁。
+ *
+ * @author kqyang
+ */
+public class RespWriter {
+    private static final byte[] CRLF = new byte[]{'\r', '\n'};
+
+    private final OutputStream out;
+
+    public RespWriter(OutputStream out) {
+        this.out = new BufferedOutputStream(out, 16 * 1024);
+    }
+
+    public void status(String status) throws IOException {
+        out.write('+');
+        ascii(status);
+    }
+
+    public void error(String message) throws IOException {
+        out.write('-');
+        ascii(message.replace('\r', ' ').replace('\n', ' '));
+    }
+
+    public void integer(long value) throws IOException {
+        out.write(':');
+        ascii(Long.toString(value));
+    }
+
+    public void bulk(String value) throws IOException {
+        if (value == null) {
+            ascii("$-1");
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.ISO_8859_1);
+        out.write('$');
+        ascii(Integer.toString(bytes.length));
+        out.write(bytes);
+        out.write(CRLF);
+    }
+
+    public void arrayHeader(int size) throws IOException {
+        out.write('*');
+        ascii(Integer.toString(size));
+    }
+
+    public void nullArray() throws IOException {
+        ascii("*-1");
+    }
+
+    public void array(Collection<String> values) throws IOException {
+        arrayHeader(values.size());
+        for (String value : values) {
+            bulk(value);
+        }
+    }
+
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    private void ascii(String line) throws IOException {
+        for (int i = 0; i < line.length(); i++) {
+            out.write(line.charAt(i));
+        }
+        out.write(CRLF);
+    }
+}
@@ -0,0 +1,52 @@
+package com.redis.server;
+
+/**
+ * 数值解析与格式化，与redis的文本表示保持一致
+ *
+ * @author kqyang
+ */
+final class Values {
+    private Values() {
+    }
+
+    static long parseLong(String text) {
+        try {
+            return Long.parseLong(text);
+        } catch (NumberFormatException e) {
+            throw new CommandException(CommandException.NOT_INTEGER);
+        }
+    }
+
+    static double parseDouble(String text) {
+        return parseDouble(text, CommandException.NOT_FLOAT);
+    }
+
+    static double parseDouble(String text, String error) {
+        String lower = text.toLowerCase();
+        if ("inf".equals(lower) || "+inf".equals(lower) || "infinity".equals(lower) || "+infinity".equals(lower)) {
+            return Double.POSITIVE_INFINITY;
+        }
+        if ("-inf".equals(lower) || "-infinity".equals(lower)) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        try {
+            double value = Double.parseDouble(text);
+            if (Double.isNaN(value)) {
+                throw new CommandException(error);
+            }
+            return value;
+        } catch (NumberFormatException e) {
+            throw new CommandException(error);
+        }
+    }
+
+    static String formatDouble(double value) {
+        if (Double.isInfinite(value)) {
+            return value > 0 ? "inf" : "-inf";
+        }
+        if (value == Math.rint(value) && Math.abs(value) < 1e17) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+}
@@ -0,0 +1,176 @@
+package com.redis.server;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+
+/**
+ * 有序集合：成员到分值的散列 + 按（分值，成员）排序的树
+ *
+ * @author kqyang
+ */
+public class ZSet {
+    private static final Comparator<Entry> ORDER = Comparator
+            .comparingDouble((Entry entry) -> entry.score)
+            .thenComparing(entry -> entry.member);
+
+    private final Map<String, Double> scores = new HashMap<>();
+    private final TreeSet<Entry> sorted = new TreeSet<>(ORDER);
+
+    /**
+     * 有序集合元素
+     */
+    public static final class Entry {
+        public final String member;
+        public final double score;
+
+        Entry(String member, double score) {
+            this.member = member;
+            this.score = score;
+        }
+    }
+
+    public int size() {
+        return scores.size();
+    }
+
+    public Double score(String member) {
+        return scores.get(member);
+    }
+
+    /**
+     * 添加或更新成员
+     *
+     * @param member
+     * @param score
+     * @return 是否为新成员
+     */
+    public boolean add(String member, double score) {
+        Double old = scores.put(member, score);
+        if (old != null) {
+            sorted.remove(new Entry(member, old));
+        }
+        sorted.add(new Entry(member, score));
+        return old == null;
+    }
+
+    public double incr(String member, double delta) {
+        Double old = scores.get(member);
+        double score = (old == null ? 0 : old) + delta;
+        add(member, score);
+        return score;
+    }
+
+    public boolean remove(String member) {
+        Double old = scores.remove(member);
+        if (old == null) {
+            return false;
+        }
+        sorted.remove(new Entry(member, old));
+        return true;
+    }
+
+    /**
+     * 成员升序排名
+     *
+     * @param member
+     * @return
+     */
+    public Long rank(String member) {
+        Double score = scores.get(member);
+        if (score == null) {
+            return null;
+        }
+        return (long) sorted.headSet(new Entry(member, score), false).size();
+    }
+
+    /**
+     * 按排名取区间（含两端，已归一化为非负下标）
+     *
+     * @param start
+     * @param stop
+     * @param reverse
+     * @return
+     */
+    public List<Entry> range(long start, long stop, boolean reverse) {
+        List<Entry> result = new ArrayList<>();
+        if (start > stop || start >= size()) {
+            return result;
+        }
+        Iterator<Entry> it = reverse ? sorted.descendingIterator() : sorted.iterator();
+        long index = 0;
+        while (it.hasNext() && index <= stop) {
+            Entry entry = it.next();
+            if (index >= start) {
+                result.add(entry);
+            }
+            index++;
+        }
+        return result;
+    }
+
+    /**
+     * 按分值取区间
+     *
+     * @param min
+     * @param max
+     * @param reverse
+     * @return
+     */
+    public List<Entry> rangeByScore(ScoreBound min, ScoreBound max, boolean reverse) {
+        List<Entry> result = new ArrayList<>();
+        NavigableSet<Entry> view = reverse ? sorted.descendingSet() : sorted;
+        for (Entry entry : view) {
+            if (reverse ? !max.allowsBelow(entry.score) : !min.allowsAbove(entry.score)) {
+                continue;
+            }
+            if (reverse ? !min.allowsAbove(entry.score) : !max.allowsBelow(entry.score)) {
+                break;
+            }
+            result.add(entry);
+        }
+        return result;
+    }
+
+    public Iterable<Entry> entries() {
+        return sorted;
+    }
+
+    /**
+     * 分值边界，支持 "(" 开区间和 inf
+     */
+    public static final class ScoreBound {
+        final double value;
+        final boolean exclusive;
+
+        ScoreBound(double value, boolean exclusive) {
+            this.value = value;
+            this.exclusive = exclusive;
+        }
+
+        public static ScoreBound parse(String text) {
+            boolean exclusive = text.startsWith("(");
+            String number = exclusive ? text.substring(1) : text;
+            return new ScoreBound(Values.parseDouble(number, "ERR min or max is not a float"), exclusive);
+        }
+
+        /**
+         * 作为下界时score是否满足
+         */
+        boolean allowsAbove(double score) {
+            return exclusive ? score > value : score >= value;
+        }
+
+        /**
+         * 作为上界时score是否满足
+         */
+        boolean allowsBelow(double score) {
+            return exclusive ? score < value : score <= value;
+        }
+    }
+}